@@ -0,0 +1,111 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.opengl.EGL14;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SdkSuppress;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.view.Surface;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records the same Canvas-drawn clip with the blocking and the async drain and compares
+ * what the encoder thread spends per frame.  The draw stage includes the blocking drain,
+ * so that is where the async mode has to show.  Results are logged under the
+ * "DrainModeBenchmark" tag.
+ */
+@RunWith(AndroidJUnit4.class)
+@SdkSuppress(minSdkVersion = 23) // async drain falls back to blocking below M
+public class DrainModeBenchmarkTest {
+    private static final String TAG = "DrainModeBenchmark";
+    private static final int WIDTH = 720;
+    private static final int HEIGHT = 1280;
+    private static final int FRAME_RATE = 30;
+    private static final int FRAMES = 300;
+    private static final long TIMEOUT_MS = 10000;
+
+    private volatile Surface mSurface;
+
+    @Test
+    public void asyncDrainTakesDrainingOffTheEncoderThread() throws Exception {
+        File dir = InstrumentationRegistry.getTargetContext().getCacheDir();
+        RecorderManager manager = new RecorderManager(256L * 1024 * 1024,
+                RecorderManager.DEFAULT_MAX_IDLE_MS);
+        try {
+            RecorderStats.Snapshot blocking = record(manager,
+                    VideoEncoderCore.DRAIN_MODE_BLOCKING, new File(dir, "drain_blocking.mp4"));
+            RecorderStats.Snapshot async = record(manager,
+                    VideoEncoderCore.DRAIN_MODE_ASYNC, new File(dir, "drain_async.mp4"));
+            log("blocking", blocking);
+            log("async", async);
+
+            assertTrue(blocking.videoSamples > 0);
+            assertTrue(async.videoSamples > 0);
+            long blockingDrawUs = blocking.getStage(RecorderStats.STAGE_DRAW).getMeanUs();
+            long asyncDrawUs = async.getStage(RecorderStats.STAGE_DRAW).getMeanUs();
+            assertTrue("async draw " + asyncDrawUs + "us, blocking " + blockingDrawUs + "us",
+                    asyncDrawUs < blockingDrawUs);
+        } finally {
+            manager.release();
+        }
+    }
+
+    private RecorderStats.Snapshot record(RecorderManager manager, int drainMode, File file)
+            throws Exception {
+        RecorderManager.Session session = manager.acquire(newBuilder(null, drainMode).build());
+        try {
+            session.setCallback(new TextureMovieEncoder.Callback() {
+                @Override
+                public void onInputSurfacePrepared(Surface surface) {
+                    mSurface = surface;
+                }
+            });
+            session.getReadyFuture().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            Surface surface = mSurface;
+            assertNotNull("no input surface", surface);
+
+            session.start(newBuilder(file, drainMode).build())
+                    .get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            for (int frame = 0; frame < FRAMES; frame++) {
+                Canvas canvas = surface.lockCanvas(null);
+                canvas.drawColor(Color.rgb(frame * 8 % 256, 64, 255 - frame * 8 % 256));
+                surface.unlockCanvasAndPost(canvas);
+                Thread.sleep(1000 / FRAME_RATE);
+            }
+            session.stop().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            return session.getRecorder().getStatsSnapshot();
+        } finally {
+            mSurface = null;
+            session.close();
+            if (!file.delete()) {
+                Log.w(TAG, "Can't delete " + file);
+            }
+        }
+    }
+
+    private static TextureMovieEncoder.EncoderConfig.Builder newBuilder(File file,
+                                                                        int drainMode) {
+        return new TextureMovieEncoder.EncoderConfig.Builder(file, WIDTH, HEIGHT,
+                EGL14.EGL_NO_CONTEXT)
+                .setFrameRate(FRAME_RATE)
+                .setDrainMode(drainMode)
+                .setAudioPolicy(VideoEncoderCore.AUDIO_POLICY_NONE);
+    }
+
+    private static void log(String mode, RecorderStats.Snapshot stats) {
+        Log.i(TAG, mode + ": draw " + stats.getStage(RecorderStats.STAGE_DRAW)
+                + "; glCpu " + stats.getStage(RecorderStats.STAGE_GL_CPU)
+                + "; captureToMux " + stats.getStage(RecorderStats.STAGE_CAPTURE_TO_MUX)
+                + "; rendered=" + stats.framesRendered + " dropped=" + stats.framesDropped
+                + " samples=" + stats.videoSamples);
+    }
+}
@@ -0,0 +1,40 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link RecorderSoakBenchmark} on the device.  The memory and latency reports are
+ * logged under the "RecorderSoak" tag; the test fails if a session fails.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class RecorderSoakTest {
+    private static final String TAG = "RecorderSoakTest";
+    private static final int SESSIONS = 4 * RecorderSoakBenchmark.REPORT_EVERY;
+
+    @Test
+    public void recordsBackToBackSessions() throws Exception {
+        RecorderManager manager = new RecorderManager(256L * 1024 * 1024,
+                RecorderManager.DEFAULT_MAX_IDLE_MS);
+        RecorderSoakBenchmark benchmark = new RecorderSoakBenchmark(manager,
+                InstrumentationRegistry.getTargetContext().getCacheDir(), SESSIONS);
+        try {
+            benchmark.run();
+        } finally {
+            manager.release();
+        }
+        Log.i(TAG, "start latency " + benchmark.getStartLatency());
+        assertEquals(SESSIONS, benchmark.getCompletedSessions());
+        assertEquals(0, benchmark.getFailureCount());
+        // A pooled recorder is reused, so starting is a matter of opening the muxer
+        assertTrue(benchmark.getStartLatency().getPercentileUs(50) < 1000000);
+    }
+}
@@ -0,0 +1,162 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+/**
+ * Picks the video bit rate from what the encoder is actually producing.
+ * <p>
+ * A VirtualDisplay only produces frames when the screen changes, so the frame rate is a
+ * cheap measure of how busy the content is.  Every window the controller aims for
+ * <pre>
+ *     floor + (ceiling - floor) * min(1, fps / nominalFps)
+ * </pre>
+ * so a static screen drops to the floor and fast scrolling gets the ceiling.  If the
+ * encoder's output latency (capture to drain) goes over the limit, the device is not
+ * keeping up and the target is cut by {@link #BACKOFF_FACTOR} instead, then held there for a
+ * few windows.  Increases are rate-limited to {@link #MAX_STEP_UP} per window; changes
+ * smaller than {@link #MIN_CHANGE} are not reported, so the codec isn't reconfigured for
+ * noise.
+ * <p>
+ * The controller only sees numbers and timestamps passed in by the caller, so a recorded
+ * trace of (time, bytes, latency) can be replayed through it offline.  Not thread-safe;
+ * call it from the drain thread.  This class has no Android dependencies.
+ */
+public final class BitrateController {
+    /** Returned by {@link #onVideoSample} when the bit rate stays the same */
+    public static final int NO_CHANGE = -1;
+
+    public static final long DEFAULT_WINDOW_US = 1000000;
+    public static final long DEFAULT_MAX_LATENCY_US = 200000;
+
+    static final float BACKOFF_FACTOR = 0.75f;
+    static final float MAX_STEP_UP = 1.25f;
+    static final float MIN_CHANGE = 0.05f;
+    static final int HOLD_WINDOWS = 3;
+
+    private final int mFloor;
+    private final int mCeiling;
+    private final int mNominalFps;
+    private final long mWindowUs;
+    private final long mMaxLatencyUs;
+
+    private int mBitRate;
+    private long mWindowStartUs = -1;
+    private long mWindowBytes;
+    private int mWindowFrames;
+    private long mWindowLatencySumUs;
+    private int mHoldWindows;
+
+    private int mMeasuredBitRate;
+    private float mMeasuredFps;
+    private long mMeasuredLatencyUs;
+    private int mChangeCount;
+
+    /**
+     * @param initialBitRate bit rate the encoder was configured with
+     * @param floor          lowest bit rate to ask for
+     * @param ceiling        highest bit rate to ask for
+     * @param nominalFps     frame rate at which content counts as fully busy
+     */
+    public BitrateController(int initialBitRate, int floor, int ceiling, int nominalFps) {
+        this(initialBitRate, floor, ceiling, nominalFps, DEFAULT_WINDOW_US, DEFAULT_MAX_LATENCY_US);
+    }
+
+    public BitrateController(int initialBitRate, int floor, int ceiling, int nominalFps,
+                             long windowUs, long maxLatencyUs) {
+        if (floor <= 0 || ceiling < floor) {
+            throw new IllegalArgumentException("invalid range " + floor + ".." + ceiling);
+        }
+        if (nominalFps <= 0 || windowUs <= 0) {
+            throw new IllegalArgumentException("invalid fps or window");
+        }
+        mFloor = floor;
+        mCeiling = ceiling;
+        mNominalFps = nominalFps;
+        mWindowUs = windowUs;
+        mMaxLatencyUs = maxLatencyUs;
+        mBitRate = clamp(initialBitRate);
+    }
+
+    /**
+     * Accounts one encoded video sample.
+     *
+     * @param bytes     encoded size
+     * @param nowUs     when the sample came out of the encoder
+     * @param latencyUs time from capture to now
+     * @return the new bit rate to apply, or {@link #NO_CHANGE}
+     */
+    public int onVideoSample(int bytes, long nowUs, long latencyUs) {
+        if (mWindowStartUs < 0) {
+            mWindowStartUs = nowUs;
+        }
+        mWindowBytes += bytes;
+        mWindowFrames++;
+        mWindowLatencySumUs += latencyUs > 0 ? latencyUs : 0;
+
+        long elapsedUs = nowUs - mWindowStartUs;
+        if (elapsedUs < mWindowUs) {
+            return NO_CHANGE;
+        }
+        int next = evaluate(elapsedUs);
+        mWindowStartUs = nowUs;
+        mWindowBytes = 0;
+        mWindowFrames = 0;
+        mWindowLatencySumUs = 0;
+        return next;
+    }
+
+    private int evaluate(long elapsedUs) {
+        mMeasuredBitRate = (int) Math.min(Integer.MAX_VALUE, mWindowBytes * 8 * 1000000L / elapsedUs);
+        mMeasuredFps = mWindowFrames * 1000000f / elapsedUs;
+        mMeasuredLatencyUs = mWindowLatencySumUs / mWindowFrames;
+
+        int target;
+        if (mMeasuredLatencyUs > mMaxLatencyUs) {
+            target = (int) (mBitRate * BACKOFF_FACTOR);
+            mHoldWindows = HOLD_WINDOWS;
+        } else {
+            float activity = Math.min(1f, mMeasuredFps / mNominalFps);
+            target = mFloor + (int) ((mCeiling - mFloor) * activity);
+            if (mHoldWindows > 0) {
+                mHoldWindows--;
+                target = Math.min(target, mBitRate);
+            }
+            target = Math.min(target, (int) (mBitRate * MAX_STEP_UP));
+        }
+        target = clamp(target);
+        if (Math.abs(target - mBitRate) < mBitRate * MIN_CHANGE) {
+            return NO_CHANGE;
+        }
+        mBitRate = target;
+        mChangeCount++;
+        return target;
+    }
+
+    private int clamp(int bitRate) {
+        return Math.max(mFloor, Math.min(mCeiling, bitRate));
+    }
+
+    /**
+     * Returns the bit rate currently asked of the encoder.
+     */
+    public int getBitRate() {
+        return mBitRate;
+    }
+
+    /**
+     * Returns the bit rate actually produced during the last complete window.
+     */
+    public int getMeasuredBitRate() {
+        return mMeasuredBitRate;
+    }
+
+    public float getMeasuredFps() {
+        return mMeasuredFps;
+    }
+
+    public long getMeasuredLatencyUs() {
+        return mMeasuredLatencyUs;
+    }
+
+    public int getChangeCount() {
+        return mChangeCount;
+    }
+}
@@ -0,0 +1,223 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+import android.util.Range;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks an AVC encoder, output size, frame rate and bit rate the device can actually do.
+ * <p>
+ * Each quality tier asks for a width and frame rate.  For every AVC encoder (hardware ones
+ * first) the size is scaled to the source aspect ratio, aligned to what the codec wants, and
+ * shrunk until the codec supports it at a usable frame rate.  Frame rates come from the
+ * codec's measured achievable rates where published (API 23+), otherwise from its
+ * advertised ones.
+ * <p>
+ * Probing MediaCodecList takes tens of milliseconds, so results are cached in
+ * SharedPreferences, keyed by tier and source size, and dropped when the build fingerprint
+ * changes.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public class CodecNegotiator {
+    private static final String TAG = "CodecNegotiator";
+    private static final String MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
+    private static final String PREFS_NAME = "codec_negotiation";
+
+    public static final int QUALITY_LOW = 0;
+    public static final int QUALITY_MEDIUM = 1;
+    public static final int QUALITY_HIGH = 2;
+
+    private static final int[] TIER_WIDTH = {480, 720, 1080};
+    private static final int[] TIER_FPS = {30, 60, 60};
+    /** Bits per pixel per frame; screen content needs more than camera video for text */
+    private static final float BITS_PER_PIXEL = 0.2f;
+    private static final int MIN_FPS = 24;
+    private static final int MIN_WIDTH = 160;
+
+    /**
+     * A configuration the chosen codec supports.
+     */
+    public static final class Result {
+        public final String codecName;
+        public final int width;
+        public final int height;
+        public final int frameRate;
+        public final int bitRate;
+
+        Result(String codecName, int width, int height, int frameRate, int bitRate) {
+            this.codecName = codecName;
+            this.width = width;
+            this.height = height;
+            this.frameRate = frameRate;
+            this.bitRate = bitRate;
+        }
+
+        String serialize() {
+            return codecName + "|" + width + "|" + height + "|" + frameRate + "|" + bitRate;
+        }
+
+        static Result parse(String value) {
+            String[] parts = value.split("\\|");
+            if (parts.length != 5) {
+                return null;
+            }
+            try {
+                return new Result(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                        Integer.parseInt(parts[3]), Integer.parseInt(parts[4]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return codecName + " " + width + "x" + height + "@" + frameRate + " " + bitRate + "bps";
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+
+    public CodecNegotiator(Context context) {
+        mPrefs = context.getApplicationContext()
+                .getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the best configuration for the tier, from the cache if this device has been
+     * probed before.
+     *
+     * @param quality      {@link #QUALITY_LOW}, {@link #QUALITY_MEDIUM} or {@link #QUALITY_HIGH}
+     * @param sourceWidth  width of the content to encode
+     * @param sourceHeight height of the content to encode
+     * @return the configuration, or null if no AVC encoder supports anything usable
+     */
+    public Result negotiate(int quality, int sourceWidth, int sourceHeight) {
+        if (quality < QUALITY_LOW || quality > QUALITY_HIGH) {
+            throw new IllegalArgumentException("invalid quality " + quality);
+        }
+        String key = "q" + quality + "_" + sourceWidth + "x" + sourceHeight;
+        String cached = mPrefs.getString(key, null);
+        String prefix = Build.FINGERPRINT + "|";
+        if (cached != null && cached.startsWith(prefix)) {
+            Result result = Result.parse(cached.substring(prefix.length()));
+            if (result != null) {
+                Log.d(TAG, "Cached " + result);
+                return result;
+            }
+        }
+
+        long start = System.nanoTime();
+        Result result = probe(quality, sourceWidth, sourceHeight);
+        Log.d(TAG, "Probed " + result + " in " + (System.nanoTime() - start) / 1000000 + "ms");
+        if (result != null) {
+            mPrefs.edit().putString(key, prefix + result.serialize()).apply();
+        }
+        return result;
+    }
+
+    /**
+     * Forgets every cached result.
+     */
+    public void clearCache() {
+        mPrefs.edit().clear().apply();
+    }
+
+    private Result probe(int quality, int sourceWidth, int sourceHeight) {
+        List<MediaCodecInfo> hardware = new ArrayList<>();
+        List<MediaCodecInfo> software = new ArrayList<>();
+        for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+            if (!info.isEncoder() || !supportsType(info)) {
+                continue;
+            }
+            if (isSoftware(info.getName())) {
+                software.add(info);
+            } else {
+                hardware.add(info);
+            }
+        }
+        hardware.addAll(software);
+
+        for (MediaCodecInfo info : hardware) {
+            MediaCodecInfo.VideoCapabilities caps;
+            try {
+                caps = info.getCapabilitiesForType(MIME_TYPE).getVideoCapabilities();
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            if (caps == null) {
+                continue;
+            }
+            Result result = fit(info.getName(), caps, quality, sourceWidth, sourceHeight);
+            if (result != null) {
+                return result;
+            }
+            Log.d(TAG, info.getName() + " can't do quality " + quality);
+        }
+        return null;
+    }
+
+    private static Result fit(String codecName, MediaCodecInfo.VideoCapabilities caps,
+                              int quality, int sourceWidth, int sourceHeight) {
+        int widthAlign = Math.max(2, caps.getWidthAlignment());
+        int heightAlign = Math.max(2, caps.getHeightAlignment());
+        int targetFps = TIER_FPS[quality];
+        int width = Math.min(TIER_WIDTH[quality], sourceWidth);
+
+        while (width >= MIN_WIDTH) {
+            int w = alignDown(width, widthAlign);
+            int h = alignDown((int) ((long) w * sourceHeight / sourceWidth), heightAlign);
+            if (caps.isSizeSupported(w, h)) {
+                int fps = Math.min(targetFps, maxFrameRate(caps, w, h));
+                if (fps >= Math.min(MIN_FPS, targetFps)) {
+                    Range<Integer> bitRates = caps.getBitrateRange();
+                    int bitRate = bitRates.clamp((int) (w * h * fps * BITS_PER_PIXEL));
+                    return new Result(codecName, w, h, fps, bitRate);
+                }
+            }
+            width = width * 7 / 8;
+        }
+        return null;
+    }
+
+    private static int maxFrameRate(MediaCodecInfo.VideoCapabilities caps, int width, int height) {
+        Range<Double> rates = null;
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                rates = caps.getAchievableFrameRatesFor(width, height);
+            }
+            if (rates == null) {
+                rates = caps.getSupportedFrameRatesFor(width, height);
+            }
+        } catch (IllegalArgumentException e) {
+            return 0;
+        }
+        return rates == null ? 0 : (int) Math.floor(rates.getUpper());
+    }
+
+    private static boolean supportsType(MediaCodecInfo info) {
+        for (String type : info.getSupportedTypes()) {
+            if (MIME_TYPE.equalsIgnoreCase(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSoftware(String name) {
+        return name.startsWith("OMX.google.") || name.startsWith("c2.android.")
+                || name.startsWith("c2.google.");
+    }
+
+    private static int alignDown(int value, int alignment) {
+        return Math.max(alignment, value / alignment * alignment);
+    }
+}
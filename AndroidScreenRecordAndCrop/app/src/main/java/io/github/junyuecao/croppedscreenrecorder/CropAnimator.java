@@ -0,0 +1,107 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+/**
+ * Smoothly pans and zooms a crop rectangle inside a fixed region of interest.
+ * <p>
+ * The region is what the encoder was sized for.  A zoom keeps its aspect ratio, so the
+ * picture is never stretched, and the zoomed rectangle never leaves the region.  A new
+ * zoomTo() starts from wherever the running animation is, so following a moving target
+ * with repeated calls stays smooth.
+ * <p>
+ * Rectangles are {left, top, right, bottom} in fractions of the frame.  Not thread-safe;
+ * the encoder thread owns it.  This class has no Android dependencies.
+ */
+public final class CropAnimator {
+    private final float[] mBounds = new float[4];
+    private final float[] mFrom = new float[4];
+    private final float[] mTo = new float[4];
+    private final float[] mCurrent = new float[4];
+    private long mStartNs;
+    private long mDurationNs;
+    private boolean mAnimating;
+    private boolean mDirty;
+
+    public CropAnimator(float left, float top, float right, float bottom) {
+        mBounds[0] = left;
+        mBounds[1] = top;
+        mBounds[2] = right;
+        mBounds[3] = bottom;
+        System.arraycopy(mBounds, 0, mCurrent, 0, 4);
+        System.arraycopy(mBounds, 0, mTo, 0, 4);
+    }
+
+    /**
+     * Starts moving towards a zoomed view of the region.
+     *
+     * @param centerX    horizontal center of the view, as a fraction of the region
+     * @param centerY    vertical center of the view, as a fraction of the region
+     * @param zoom       1 shows the whole region, 2 half its width and height, ...
+     * @param durationNs 0 to jump there
+     */
+    public void zoomTo(float centerX, float centerY, float zoom, long durationNs, long nowNs) {
+        if (zoom < 1.0f) {
+            throw new IllegalArgumentException("invalid zoom " + zoom);
+        }
+        float regionWidth = mBounds[2] - mBounds[0];
+        float regionHeight = mBounds[3] - mBounds[1];
+        float halfWidth = regionWidth / zoom / 2;
+        float halfHeight = regionHeight / zoom / 2;
+        float x = clamp(mBounds[0] + centerX * regionWidth,
+                mBounds[0] + halfWidth, mBounds[2] - halfWidth);
+        float y = clamp(mBounds[1] + centerY * regionHeight,
+                mBounds[1] + halfHeight, mBounds[3] - halfHeight);
+
+        System.arraycopy(mCurrent, 0, mFrom, 0, 4);
+        mTo[0] = x - halfWidth;
+        mTo[1] = y - halfHeight;
+        mTo[2] = x + halfWidth;
+        mTo[3] = y + halfHeight;
+        mStartNs = nowNs;
+        mDurationNs = durationNs;
+        mAnimating = true;
+    }
+
+    /**
+     * Goes back to showing the whole region.
+     */
+    public void reset(long durationNs, long nowNs) {
+        zoomTo(0.5f, 0.5f, 1.0f, durationNs, nowNs);
+    }
+
+    public boolean isAnimating() {
+        return mAnimating;
+    }
+
+    /**
+     * Advances the animation and copies the current rectangle to outRect.
+     *
+     * @return true if the rectangle changed since the last call
+     */
+    public boolean update(long nowNs, float[] outRect) {
+        if (mAnimating) {
+            long elapsedNs = nowNs - mStartNs;
+            if (elapsedNs >= mDurationNs) {
+                System.arraycopy(mTo, 0, mCurrent, 0, 4);
+                mAnimating = false;
+            } else {
+                float t = Math.max(0f, (float) elapsedNs / mDurationNs);
+                // Smoothstep: starts and ends slowly
+                float eased = t * t * (3 - 2 * t);
+                for (int i = 0; i < 4; i++) {
+                    mCurrent[i] = mFrom[i] + (mTo[i] - mFrom[i]) * eased;
+                }
+            }
+            mDirty = true;
+        }
+        if (!mDirty) {
+            return false;
+        }
+        System.arraycopy(mCurrent, 0, outRect, 0, 4);
+        mDirty = mAnimating;
+        return true;
+    }
+
+    private static float clamp(float value, float min, float max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -8,39 +8,52 @@ import java.nio.FloatBuffer;
 
 
 /**
- * Tweaked version of Drawable2d that crop the texture coordinates.
+ * Tweaked version of Drawable2d that crops the texture coordinates to a rectangle.
+ * <p>
+ * The crop is given as fractions of the frame, with (0,0) at the top left.  Changing it
+ * rewrites the texture coordinates in place, so it may be animated every frame without
+ * allocating.
  */
 public class CroppedDrawable2d extends Drawable2d {
     private static final String TAG = "CroppedDrawable2d";
 
     private static final int SIZEOF_FLOAT = 4;
 
-    private FloatBuffer mTweakedTexCoordArray;
-    private float mTopCropped = 0.0f;
-    private float mBottomCropped = 1.0f;
-    private boolean mRecalculate;
+    private final FloatBuffer mTweakedTexCoordArray;
+    private float mLeft = 0.0f;
+    private float mTop = 0.0f;
+    private float mRight = 1.0f;
+    private float mBottom = 1.0f;
+    private int mTexCoordVersion;
 
     /**
-     * Trivial constructor.
+     * @param shape must be Prefab.FULL_RECTANGLE
      */
     public CroppedDrawable2d(Prefab shape) {
         super(shape);
-        mRecalculate = true;
+        int count = super.getTexCoordArray().capacity();
+        if (count != 8) {
+            throw new RuntimeException("only rectangles can be cropped: " + shape);
+        }
+        ByteBuffer bb = ByteBuffer.allocateDirect(count * SIZEOF_FLOAT);
+        bb.order(ByteOrder.nativeOrder());
+        mTweakedTexCoordArray = bb.asFloatBuffer();
+        updateTexCoords();
     }
 
     public float getBottomCropped() {
-        return mBottomCropped;
+        return 1.0f - mBottom;
     }
 
     /**
-     * @param bottomCropped defines the proportion to be cut on the top
+     * @param bottomCropped defines the proportion to be cut on the bottom
      */
     public void setBottomCropped(float bottomCropped) {
         if (bottomCropped < 0.0f || bottomCropped > 1.0f) {
             throw new RuntimeException("invalid crop " + bottomCropped);
         }
-        mBottomCropped = bottomCropped;
-        mRecalculate = true;
+        mBottom = 1.0f - bottomCropped;
+        updateTexCoords();
     }
 
     /**
@@ -50,55 +63,57 @@ public class CroppedDrawable2d extends Drawable2d {
         if (crop < 0.0f || crop > 1.0f) {
             throw new RuntimeException("invalid crop " + crop);
         }
-        mTopCropped = crop;
-        mRecalculate = true;
+        mTop = crop;
+        updateTexCoords();
     }
 
     /**
-     * Returns the array of texture coordinates.  The first time this is called, we generate
-     * a modified version of the array from the parent class.
-     * <p>
-     * To avoid allocations, this returns internal state.  The caller must not modify it.
+     * Keeps only the given rectangle of the frame, in fractions of its width and height.
+     */
+    public void setCropRect(float left, float top, float right, float bottom) {
+        if (left < 0.0f || right > 1.0f || left >= right
+                || top < 0.0f || bottom > 1.0f || top >= bottom) {
+            throw new RuntimeException("invalid crop " + left + "," + top + " - "
+                    + right + "," + bottom);
+        }
+        mLeft = left;
+        mTop = top;
+        mRight = right;
+        mBottom = bottom;
+        updateTexCoords();
+    }
+
+    /**
+     * Writes the crop into the texture coordinates.  Texture coordinates run from the
+     * bottom, the crop from the top.
      *
      * @see Drawable2d#FULL_RECTANGLE_TEX_COORDS
      */
+    private void updateTexCoords() {
+        FloatBuffer fb = mTweakedTexCoordArray;
+        fb.put(0, mLeft);           // 0 bottom left
+        fb.put(1, 1.0f - mBottom);
+        fb.put(2, mRight);          // 1 bottom right
+        fb.put(3, 1.0f - mBottom);
+        fb.put(4, mLeft);           // 2 top left
+        fb.put(5, 1.0f - mTop);
+        fb.put(6, mRight);          // 3 top right
+        fb.put(7, 1.0f - mTop);
+        mTexCoordVersion++;
+    }
+
+    /**
+     * Returns the array of cropped texture coordinates.
+     * <p>
+     * To avoid allocations, this returns internal state.  The caller must not modify it.
+     */
     @Override
     public FloatBuffer getTexCoordArray() {
-        if (mRecalculate) {
-            //Log.v(TAG, "Scaling to " + mScale);
-            FloatBuffer parentBuf = super.getTexCoordArray();
-            int count = parentBuf.capacity();
-
-            if (mTweakedTexCoordArray == null) {
-                ByteBuffer bb = ByteBuffer.allocateDirect(count * SIZEOF_FLOAT);
-                bb.order(ByteOrder.nativeOrder());
-                mTweakedTexCoordArray = bb.asFloatBuffer();
-            }
-
-            // Texture coordinates range from 0.0 to 1.0, inclusive.  We do a simple scale
-            // here, but we could get much fancier if we wanted to (say) zoom in and pan
-            // around.
-            FloatBuffer fb = mTweakedTexCoordArray;
-            for (int i = 0; i < count; i++) {
-                float fl = parentBuf.get(i);
-                if (i == 0 || i == 4) {
-                    fl = 0.0f;
-                } else if (i == 2 || i == 6) {
-                    fl = 1.0f;
-                } else if (i == 1 || i == 3) {
-                    // Crop the bottom
-                    fl = mBottomCropped;
-                } else if (i == 5 || i == 7) {
-                    // Crop the top
-                    fl = 1.0f - mTopCropped;
-                }
-
-                fb.put(i, fl);
-            }
-
-            mRecalculate = false;
-        }
-
         return mTweakedTexCoordArray;
     }
+
+    @Override
+    public int getTexCoordVersion() {
+        return mTexCoordVersion;
+    }
 }
@@ -0,0 +1,89 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * MuxerSink that writes a fragmented MP4 with {@link FragmentedMp4Writer}.  Every completed
+ * fragment is already on disk, so the file stays playable if recording never reaches stop().
+ */
+public class FragmentedMp4MuxerSink implements MuxerSink {
+    private static final String TAG = "FragmentedMp4MuxerSink";
+
+    private final FragmentedMp4Writer mWriter;
+
+    public FragmentedMp4MuxerSink(File outputFile) throws IOException {
+        mWriter = new FragmentedMp4Writer(outputFile);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return addTrack(mWriter, format);
+    }
+
+    /**
+     * Adds a track to writer from the format an encoder reported.
+     */
+    static int addTrack(FragmentedMp4Writer writer, MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            return writer.addVideoTrack(format.getInteger(MediaFormat.KEY_WIDTH),
+                    format.getInteger(MediaFormat.KEY_HEIGHT),
+                    format.getByteBuffer("csd-0"), format.getByteBuffer("csd-1"));
+        } else if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            int bitRate = format.containsKey(MediaFormat.KEY_BIT_RATE)
+                    ? format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+            return writer.addAudioTrack(format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                    format.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
+                    format.getByteBuffer("csd-0"), bitRate);
+        }
+        throw new IllegalArgumentException("unsupported track " + mime);
+    }
+
+    @Override
+    public void start() {
+        try {
+            mWriter.start();
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to write header", e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        byteBuf.position(bufferInfo.offset);
+        byteBuf.limit(bufferInfo.offset + bufferInfo.size);
+        try {
+            mWriter.writeSample(trackIndex, byteBuf, bufferInfo.presentationTimeUs,
+                    (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to write sample", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mWriter.stop();
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to write last fragment", e);
+        }
+        Log.d(TAG, "wrote " + mWriter.getBytesWritten() + " bytes in "
+                + mWriter.getFragmentCount() + " fragments");
+    }
+
+    @Override
+    public void release() {
+        // No-op if stop() already ran; otherwise closes the file.
+        try {
+            mWriter.stop();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close output", e);
+        }
+    }
+}
@@ -0,0 +1,812 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Writes H.264 and AAC samples as a fragmented MP4 (ISO BMFF with moof/mdat fragments).
+ * <p>
+ * The header (ftyp + moov, with an mvex so players expect fragments) is written by
+ * {@link #start()}.  Samples are buffered per track and appended as one moof/mdat pair
+ * whenever the fragment reaches the target duration at a video key frame, or the buffered
+ * bytes reach the budget.  Everything written so far is a playable file, so a recording
+ * survives the process dying before {@link #stop()}, and stopping only has to flush the last
+ * fragment instead of rewriting a moov with every sample in it.
+ * <p>
+ * Video samples are expected in Annex-B format (start codes), as MediaCodec produces them,
+ * and are rewritten with 4-byte length prefixes.  Audio samples are raw AAC frames.  Sample
+ * durations come from the presentation times in output order, so the stream must not
+ * contain B-frames.
+ * <p>
+ * Decode times are measured from the earliest first sample across the tracks, so a track
+ * that starts later than the other one begins with a matching offset in its tfdt.  The
+ * first fragment is therefore held back until every track has a sample, unless the buffer
+ * budget forces it out earlier.
+ * <p>
+ * This class is not thread-safe and has no Android dependencies.
+ */
+public class FragmentedMp4Writer {
+    public static final long DEFAULT_FRAGMENT_DURATION_US = 1000000;
+    public static final int DEFAULT_MAX_BUFFERED_BYTES = 4 * 1024 * 1024;
+
+    private static final int TRACK_VIDEO = 0;
+    private static final int TRACK_AUDIO = 1;
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int MAX_TRACKS = 2;
+
+    /** trun sample_flags: sync sample */
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    /** trun sample_flags: depends on others, non-sync */
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final WritableByteChannel mChannel;
+    private final boolean mOwnsChannel;
+    private final long mFragmentDurationUs;
+    private final int mMaxBufferedBytes;
+    private boolean mKeyFrameAligned = true;
+
+    private final Track[] mTracks = new Track[MAX_TRACKS];
+    private int mTrackCount;
+    private int mVideoTrack = -1;
+    private int mTracksWithSamples;
+    private boolean mStarted;
+    private boolean mStopped;
+    private int mSequenceNumber;
+    private long mOriginUs = -1;
+    private long mFragmentStartUs = -1;
+    private int mBufferedBytes;
+    private long mBytesWritten;
+
+    private ByteBuffer mHeader = ByteBuffer.allocate(4096);
+    private final ByteBuffer[] mGather = new ByteBuffer[MAX_TRACKS + 1];
+
+    /**
+     * Writes to a new file, with the default fragment duration and buffer budget.
+     */
+    public FragmentedMp4Writer(File file) throws IOException {
+        this(new FileOutputStream(file).getChannel(), true,
+                DEFAULT_FRAGMENT_DURATION_US, DEFAULT_MAX_BUFFERED_BYTES);
+    }
+
+    /**
+     * @param channel            where the MP4 bytes go; closed by {@link #stop()} only if
+     *                           ownsChannel is set
+     * @param fragmentDurationUs target fragment length
+     * @param maxBufferedBytes   sample bytes buffered before a fragment is forced out
+     */
+    public FragmentedMp4Writer(WritableByteChannel channel, boolean ownsChannel,
+                               long fragmentDurationUs, int maxBufferedBytes) {
+        mChannel = channel;
+        mOwnsChannel = ownsChannel;
+        mFragmentDurationUs = fragmentDurationUs;
+        mMaxBufferedBytes = maxBufferedBytes;
+        mHeader.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * By default fragments start at video key frames only.  Turning that off lets a fragment
+     * start at any video sample, which keeps fragments short for live streaming; a reader
+     * then has to start at a fragment that begins with a key frame.
+     */
+    public void setKeyFrameAligned(boolean keyFrameAligned) {
+        mKeyFrameAligned = keyFrameAligned;
+    }
+
+    /**
+     * Adds an H.264 track.
+     *
+     * @param sps sequence parameter set, with or without a start code
+     * @param pps picture parameter set, with or without a start code
+     * @return the track index to pass to {@link #writeSample}
+     */
+    public int addVideoTrack(int width, int height, ByteBuffer sps, ByteBuffer pps) {
+        checkCanAddTrack();
+        Track track = new Track(TRACK_VIDEO, mTrackCount + 1, VIDEO_TIMESCALE);
+        track.width = width;
+        track.height = height;
+        track.sps = stripStartCode(sps);
+        track.pps = stripStartCode(pps);
+        if (track.sps.length < 4) {
+            throw new IllegalArgumentException("invalid SPS");
+        }
+        mVideoTrack = mTrackCount;
+        mTracks[mTrackCount] = track;
+        return mTrackCount++;
+    }
+
+    /**
+     * Adds an AAC track.
+     *
+     * @param audioSpecificConfig the AudioSpecificConfig (MediaFormat "csd-0")
+     * @param bitRate             average bit rate, or 0 if unknown
+     * @return the track index to pass to {@link #writeSample}
+     */
+    public int addAudioTrack(int sampleRate, int channelCount, ByteBuffer audioSpecificConfig,
+                             int bitRate) {
+        checkCanAddTrack();
+        Track track = new Track(TRACK_AUDIO, mTrackCount + 1, sampleRate);
+        track.sampleRate = sampleRate;
+        track.channelCount = channelCount;
+        track.audioSpecificConfig = toArray(audioSpecificConfig);
+        track.bitRate = bitRate;
+        mTracks[mTrackCount] = track;
+        return mTrackCount++;
+    }
+
+    /**
+     * Writes the file header.  All tracks have to be added before this.
+     */
+    public void start() throws IOException {
+        if (mStarted) {
+            throw new IllegalStateException("already started");
+        }
+        if (mTrackCount == 0) {
+            throw new IllegalStateException("no tracks");
+        }
+        mStarted = true;
+        ByteBuffer b = ensureHeader(1024);
+        writeFtyp(b);
+        writeMoov(b);
+        b.flip();
+        writeFully(b);
+    }
+
+    /**
+     * Buffers one encoded sample, writing out the current fragment first if it is complete.
+     *
+     * @param trackIndex index returned by addVideoTrack() / addAudioTrack()
+     * @param data       sample bytes between position and limit; not modified
+     * @param ptsUs      presentation time in microseconds
+     * @param keyFrame   true for video sync samples (audio samples are always sync)
+     */
+    public void writeSample(int trackIndex, ByteBuffer data, long ptsUs, boolean keyFrame)
+            throws IOException {
+        if (!mStarted || mStopped) {
+            throw new IllegalStateException("not started");
+        }
+        if (trackIndex < 0 || trackIndex >= mTrackCount) {
+            throw new IllegalArgumentException("invalid track " + trackIndex);
+        }
+        Track track = mTracks[trackIndex];
+        int size = data.remaining();
+        if (!track.hasSamples) {
+            track.hasSamples = true;
+            mTracksWithSamples++;
+        }
+
+        // The first fragment fixes the origin, so wait until every track can take part
+        boolean fragmentDue = mFragmentStartUs >= 0
+                && (mOriginUs >= 0 || mTracksWithSamples == mTrackCount)
+                && ptsUs - mFragmentStartUs >= mFragmentDurationUs
+                && (mVideoTrack < 0
+                || (trackIndex == mVideoTrack && (keyFrame || !mKeyFrameAligned)));
+        // Annex-B to length prefixes grows a sample by at most a third
+        int needed = track.type == TRACK_VIDEO ? size + size / 3 + 4 : size;
+        if (mBufferedBytes > 0 && (fragmentDue || mBufferedBytes + needed > mMaxBufferedBytes)) {
+            flushFragment(trackIndex, ptsUs);
+        }
+        if (mFragmentStartUs < 0) {
+            mFragmentStartUs = ptsUs;
+        }
+
+        track.ensureCapacity(needed);
+        int before = track.data.position();
+        if (track.type == TRACK_VIDEO) {
+            appendLengthPrefixed(data, track.data);
+        } else {
+            int pos = data.position();
+            track.data.put(data);
+            data.position(pos);
+        }
+        int written = track.data.position() - before;
+        track.addSample(written, ptsUs,
+                track.type == TRACK_AUDIO || keyFrame ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        mBufferedBytes += written;
+    }
+
+    /**
+     * Writes out whatever is buffered as a final fragment, and closes the channel if we own
+     * it.
+     */
+    public void stop() throws IOException {
+        if (mStopped) {
+            return;
+        }
+        mStopped = true;
+        try {
+            if (mStarted && mBufferedBytes > 0) {
+                flushFragment(-1, 0);
+            }
+        } finally {
+            if (mOwnsChannel) {
+                mChannel.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes written to the channel so far.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    /**
+     * Returns the number of fragments written so far.
+     */
+    public int getFragmentCount() {
+        return mSequenceNumber;
+    }
+
+    /**
+     * Returns the sample bytes buffered for the next fragment.
+     */
+    public int getBufferedBytes() {
+        return mBufferedBytes;
+    }
+
+    // ----- fragments -----
+
+    /**
+     * Writes one moof + mdat with every buffered sample.
+     *
+     * @param nextTrack  track of the sample that triggered the flush, or -1
+     * @param nextPtsUs  its presentation time, which closes the last sample of that track
+     */
+    private void flushFragment(int nextTrack, long nextPtsUs) throws IOException {
+        int trafCount = 0;
+        int moofSize = 8 + 16;
+        for (int i = 0; i < mTrackCount; i++) {
+            Track t = mTracks[i];
+            if (t.count > 0) {
+                trafCount++;
+                moofSize += 8 + 16 + 20 + 20 + 12 * t.count;
+            }
+        }
+        if (trafCount == 0) {
+            return;
+        }
+        if (mOriginUs < 0) {
+            mOriginUs = Long.MAX_VALUE;
+            for (int i = 0; i < mTrackCount; i++) {
+                Track t = mTracks[i];
+                if (t.count > 0) {
+                    mOriginUs = Math.min(mOriginUs, t.ptsUs[0]);
+                }
+            }
+        }
+        for (int i = 0; i < mTrackCount; i++) {
+            Track t = mTracks[i];
+            if (t.count > 0 && t.baseUs == Long.MIN_VALUE) {
+                // Only a track missing from a budget-forced first fragment can start
+                // before the origin; it then starts at decode time 0 itself.
+                t.baseUs = Math.min(mOriginUs, t.ptsUs[0]);
+            }
+        }
+
+        ByteBuffer b = ensureHeader(moofSize + 8);
+        mSequenceNumber++;
+        int moof = beginBox(b, "moof");
+        int mfhd = beginFullBox(b, "mfhd", 0, 0);
+        b.putInt(mSequenceNumber);
+        endBox(b, mfhd);
+
+        int dataOffset = moofSize + 8;
+        for (int i = 0; i < mTrackCount; i++) {
+            Track t = mTracks[i];
+            if (t.count == 0) {
+                continue;
+            }
+            int traf = beginBox(b, "traf");
+            int tfhd = beginFullBox(b, "tfhd", 0, 0x020000); // default-base-is-moof
+            b.putInt(t.id);
+            endBox(b, tfhd);
+
+            int tfdt = beginFullBox(b, "tfdt", 1, 0);
+            b.putLong(t.ticks(t.ptsUs[0]));
+            endBox(b, tfdt);
+
+            // data-offset, sample-duration, sample-size and sample-flags present
+            int trun = beginFullBox(b, "trun", 0, 0x000701);
+            b.putInt(t.count);
+            b.putInt(dataOffset);
+            for (int s = 0; s < t.count; s++) {
+                long duration;
+                if (s + 1 < t.count) {
+                    duration = t.ticks(t.ptsUs[s + 1]) - t.ticks(t.ptsUs[s]);
+                } else if (i == nextTrack) {
+                    duration = t.ticks(nextPtsUs) - t.ticks(t.ptsUs[s]);
+                } else {
+                    duration = t.lastDuration;
+                }
+                if (duration <= 0) {
+                    duration = 1;
+                }
+                t.lastDuration = duration;
+                b.putInt((int) duration);
+                b.putInt(t.sizes[s]);
+                b.putInt(t.flags[s]);
+            }
+            endBox(b, trun);
+            endBox(b, traf);
+            dataOffset += t.data.position();
+        }
+        endBox(b, moof);
+
+        b.putInt(8 + mBufferedBytes);
+        b.put("mdat".getBytes(ASCII), 0, 4);
+        b.flip();
+
+        int n = 0;
+        mGather[n++] = b;
+        for (int i = 0; i < mTrackCount; i++) {
+            Track t = mTracks[i];
+            if (t.count > 0) {
+                t.data.flip();
+                mGather[n++] = t.data;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            writeFully(mGather[i]);
+            mGather[i] = null;
+        }
+        for (int i = 0; i < mTrackCount; i++) {
+            mTracks[i].reset();
+        }
+        mBufferedBytes = 0;
+        mFragmentStartUs = -1;
+    }
+
+    // ----- header boxes -----
+
+    private void writeFtyp(ByteBuffer b) {
+        int ftyp = beginBox(b, "ftyp");
+        putFourCc(b, "iso5");
+        b.putInt(512);
+        putFourCc(b, "iso5");
+        putFourCc(b, "iso6");
+        putFourCc(b, "mp41");
+        endBox(b, ftyp);
+    }
+
+    private void writeMoov(ByteBuffer b) {
+        int moov = beginBox(b, "moov");
+
+        int mvhd = beginFullBox(b, "mvhd", 0, 0);
+        b.putInt(0);                    // creation time
+        b.putInt(0);                    // modification time
+        b.putInt(MOVIE_TIMESCALE);
+        b.putInt(0);                    // duration: unknown, it's in the fragments
+        b.putInt(0x00010000);           // rate 1.0
+        b.putShort((short) 0x0100);     // volume 1.0
+        b.putShort((short) 0);
+        b.putInt(0);
+        b.putInt(0);
+        putUnityMatrix(b);
+        for (int i = 0; i < 6; i++) {
+            b.putInt(0);                // pre_defined
+        }
+        b.putInt(mTrackCount + 1);      // next track ID
+        endBox(b, mvhd);
+
+        for (int i = 0; i < mTrackCount; i++) {
+            writeTrak(b, mTracks[i]);
+        }
+
+        int mvex = beginBox(b, "mvex");
+        for (int i = 0; i < mTrackCount; i++) {
+            int trex = beginFullBox(b, "trex", 0, 0);
+            b.putInt(mTracks[i].id);
+            b.putInt(1);                // sample description index
+            b.putInt(0);                // default duration
+            b.putInt(0);                // default size
+            b.putInt(0);                // default flags
+            endBox(b, trex);
+        }
+        endBox(b, mvex);
+
+        endBox(b, moov);
+    }
+
+    private void writeTrak(ByteBuffer b, Track t) {
+        boolean video = t.type == TRACK_VIDEO;
+        int trak = beginBox(b, "trak");
+
+        int tkhd = beginFullBox(b, "tkhd", 0, 0x000003); // enabled, in movie
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(t.id);
+        b.putInt(0);
+        b.putInt(0);                    // duration
+        b.putInt(0);
+        b.putInt(0);
+        b.putShort((short) 0);          // layer
+        b.putShort((short) (video ? 0 : 1)); // alternate group
+        b.putShort((short) (video ? 0 : 0x0100)); // volume
+        b.putShort((short) 0);
+        putUnityMatrix(b);
+        b.putInt(video ? t.width << 16 : 0);
+        b.putInt(video ? t.height << 16 : 0);
+        endBox(b, tkhd);
+
+        int mdia = beginBox(b, "mdia");
+        int mdhd = beginFullBox(b, "mdhd", 0, 0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(t.timescale);
+        b.putInt(0);
+        b.putShort((short) 0x55C4);     // "und"
+        b.putShort((short) 0);
+        endBox(b, mdhd);
+
+        int hdlr = beginFullBox(b, "hdlr", 0, 0);
+        b.putInt(0);
+        putFourCc(b, video ? "vide" : "soun");
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(0);
+        b.put((video ? "VideoHandler" : "SoundHandler").getBytes(ASCII));
+        b.put((byte) 0);
+        endBox(b, hdlr);
+
+        int minf = beginBox(b, "minf");
+        if (video) {
+            int vmhd = beginFullBox(b, "vmhd", 0, 1);
+            b.putShort((short) 0);
+            b.putShort((short) 0);
+            b.putShort((short) 0);
+            b.putShort((short) 0);
+            endBox(b, vmhd);
+        } else {
+            int smhd = beginFullBox(b, "smhd", 0, 0);
+            b.putShort((short) 0);
+            b.putShort((short) 0);
+            endBox(b, smhd);
+        }
+        int dinf = beginBox(b, "dinf");
+        int dref = beginFullBox(b, "dref", 0, 0);
+        b.putInt(1);
+        int url = beginFullBox(b, "url ", 0, 1); // media is in this file
+        endBox(b, url);
+        endBox(b, dref);
+        endBox(b, dinf);
+
+        int stbl = beginBox(b, "stbl");
+        int stsd = beginFullBox(b, "stsd", 0, 0);
+        b.putInt(1);
+        if (video) {
+            writeAvc1(b, t);
+        } else {
+            writeMp4a(b, t);
+        }
+        endBox(b, stsd);
+        // Sample tables are empty; the samples live in the fragments.
+        int stts = beginFullBox(b, "stts", 0, 0);
+        b.putInt(0);
+        endBox(b, stts);
+        int stsc = beginFullBox(b, "stsc", 0, 0);
+        b.putInt(0);
+        endBox(b, stsc);
+        int stsz = beginFullBox(b, "stsz", 0, 0);
+        b.putInt(0);
+        b.putInt(0);
+        endBox(b, stsz);
+        int stco = beginFullBox(b, "stco", 0, 0);
+        b.putInt(0);
+        endBox(b, stco);
+        endBox(b, stbl);
+
+        endBox(b, minf);
+        endBox(b, mdia);
+        endBox(b, trak);
+    }
+
+    private void writeAvc1(ByteBuffer b, Track t) {
+        int avc1 = beginBox(b, "avc1");
+        b.putInt(0);
+        b.putShort((short) 0);          // reserved
+        b.putShort((short) 1);          // data reference index
+        b.putShort((short) 0);
+        b.putShort((short) 0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putShort((short) t.width);
+        b.putShort((short) t.height);
+        b.putInt(0x00480000);           // 72 dpi
+        b.putInt(0x00480000);
+        b.putInt(0);
+        b.putShort((short) 1);          // frame count
+        b.put(new byte[32]);            // compressor name
+        b.putShort((short) 0x0018);     // depth
+        b.putShort((short) -1);
+
+        int avcC = beginBox(b, "avcC");
+        b.put((byte) 1);                // configuration version
+        b.put(t.sps[1]);                // profile
+        b.put(t.sps[2]);                // profile compatibility
+        b.put(t.sps[3]);                // level
+        b.put((byte) 0xFF);             // 4-byte NAL lengths
+        b.put((byte) 0xE1);             // one SPS
+        b.putShort((short) t.sps.length);
+        b.put(t.sps);
+        b.put((byte) 1);                // one PPS
+        b.putShort((short) t.pps.length);
+        b.put(t.pps);
+        endBox(b, avcC);
+
+        endBox(b, avc1);
+    }
+
+    private void writeMp4a(ByteBuffer b, Track t) {
+        int mp4a = beginBox(b, "mp4a");
+        b.putInt(0);
+        b.putShort((short) 0);
+        b.putShort((short) 1);          // data reference index
+        b.putInt(0);
+        b.putInt(0);
+        b.putShort((short) t.channelCount);
+        b.putShort((short) 16);         // sample size
+        b.putShort((short) 0);
+        b.putShort((short) 0);
+        b.putInt(t.sampleRate << 16);
+
+        int ascLength = t.audioSpecificConfig.length;
+        int decoderSpecificInfo = 2 + ascLength;
+        int decoderConfig = 2 + 13 + decoderSpecificInfo;
+        int slConfig = 3;
+        int esds = beginFullBox(b, "esds", 0, 0);
+        b.put((byte) 0x03);             // ES_Descriptor
+        b.put((byte) (3 + decoderConfig + slConfig));
+        b.putShort((short) 0);          // ES_ID
+        b.put((byte) 0);
+        b.put((byte) 0x04);             // DecoderConfigDescriptor
+        b.put((byte) (13 + decoderSpecificInfo));
+        b.put((byte) 0x40);             // MPEG-4 audio
+        b.put((byte) 0x15);             // audio stream
+        b.put((byte) 0);                // buffer size, 24 bits
+        b.putShort((short) 0);
+        b.putInt(t.bitRate);            // max bit rate
+        b.putInt(t.bitRate);            // avg bit rate
+        b.put((byte) 0x05);             // DecoderSpecificInfo
+        b.put((byte) ascLength);
+        b.put(t.audioSpecificConfig);
+        b.put((byte) 0x06);             // SLConfigDescriptor
+        b.put((byte) 1);
+        b.put((byte) 0x02);
+        endBox(b, esds);
+
+        endBox(b, mp4a);
+    }
+
+    // ----- helpers -----
+
+    private void checkCanAddTrack() {
+        if (mStarted) {
+            throw new IllegalStateException("tracks must be added before start()");
+        }
+        if (mTrackCount == MAX_TRACKS) {
+            throw new IllegalStateException("too many tracks");
+        }
+    }
+
+    private ByteBuffer ensureHeader(int capacity) {
+        if (mHeader.capacity() < capacity) {
+            mHeader = ByteBuffer.allocate(Math.max(capacity, mHeader.capacity() * 2));
+        }
+        mHeader.clear();
+        return mHeader;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mBytesWritten += mChannel.write(buffer);
+        }
+    }
+
+    private static int beginBox(ByteBuffer b, String type) {
+        int start = b.position();
+        b.putInt(0);
+        putFourCc(b, type);
+        return start;
+    }
+
+    private static int beginFullBox(ByteBuffer b, String type, int version, int flags) {
+        int start = beginBox(b, type);
+        b.putInt((version << 24) | (flags & 0xFFFFFF));
+        return start;
+    }
+
+    private static void endBox(ByteBuffer b, int start) {
+        b.putInt(start, b.position() - start);
+    }
+
+    private static void putFourCc(ByteBuffer b, String fourCc) {
+        for (int i = 0; i < 4; i++) {
+            b.put((byte) fourCc.charAt(i));
+        }
+    }
+
+    private static void putUnityMatrix(ByteBuffer b) {
+        b.putInt(0x00010000);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(0x00010000);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(0);
+        b.putInt(0x40000000);
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        ByteBuffer dup = buffer.duplicate();
+        byte[] bytes = new byte[dup.remaining()];
+        dup.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] stripStartCode(ByteBuffer buffer) {
+        byte[] bytes = toArray(buffer);
+        int skip = startCodeLength(bytes, 0, bytes.length);
+        if (skip == 0) {
+            return bytes;
+        }
+        byte[] stripped = new byte[bytes.length - skip];
+        System.arraycopy(bytes, skip, stripped, 0, stripped.length);
+        return stripped;
+    }
+
+    /**
+     * Returns 3 or 4 if a start code begins at pos, 0 otherwise.
+     */
+    private static int startCodeLength(byte[] b, int pos, int end) {
+        if (pos + 3 <= end && b[pos] == 0 && b[pos + 1] == 0) {
+            if (b[pos + 2] == 1) {
+                return 3;
+            }
+            if (pos + 4 <= end && b[pos + 2] == 0 && b[pos + 3] == 1) {
+                return 4;
+            }
+        }
+        return 0;
+    }
+
+    private static int startCodeLength(ByteBuffer b, int pos, int end) {
+        if (pos + 3 <= end && b.get(pos) == 0 && b.get(pos + 1) == 0) {
+            if (b.get(pos + 2) == 1) {
+                return 3;
+            }
+            if (pos + 4 <= end && b.get(pos + 2) == 0 && b.get(pos + 3) == 1) {
+                return 4;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Copies an Annex-B access unit into out, replacing each start code with the 4-byte
+     * length of the NAL unit that follows.  Data without a leading start code is copied as
+     * a single NAL unit.
+     */
+    static void appendLengthPrefixed(ByteBuffer in, ByteBuffer out) {
+        int end = in.limit();
+        int pos = in.position();
+        int sc = startCodeLength(in, pos, end);
+        if (sc == 0) {
+            out.putInt(end - pos);
+            ByteBuffer dup = in.duplicate();
+            out.put(dup);
+            return;
+        }
+        int nalStart = pos + sc;
+        int i = nalStart;
+        while (i < end) {
+            int next = i + 2 < end && in.get(i) == 0 && in.get(i + 1) == 0
+                    ? startCodeLength(in, i, end) : 0;
+            if (next == 0) {
+                i++;
+                continue;
+            }
+            putNal(in, nalStart, i, out);
+            nalStart = i + next;
+            i = nalStart;
+        }
+        putNal(in, nalStart, end, out);
+    }
+
+    private static void putNal(ByteBuffer in, int start, int end, ByteBuffer out) {
+        if (end <= start) {
+            return;
+        }
+        out.putInt(end - start);
+        ByteBuffer dup = in.duplicate();
+        dup.limit(end);
+        dup.position(start);
+        out.put(dup);
+    }
+
+    /**
+     * Per-track description and the samples buffered for the current fragment.
+     */
+    private static final class Track {
+        final int type;
+        final int id;
+        final int timescale;
+        int width;
+        int height;
+        byte[] sps;
+        byte[] pps;
+        int sampleRate;
+        int channelCount;
+        byte[] audioSpecificConfig;
+        int bitRate;
+
+        ByteBuffer data = ByteBuffer.allocateDirect(64 * 1024);
+        int count;
+        int[] sizes = new int[64];
+        int[] flags = new int[64];
+        long[] ptsUs = new long[64];
+        long lastDuration;
+        boolean hasSamples;
+        /** pts at decode time 0, set when the track's first fragment is written */
+        long baseUs = Long.MIN_VALUE;
+
+        Track(int type, int id, int timescale) {
+            this.type = type;
+            this.id = id;
+            this.timescale = timescale;
+            // Until we have seen two samples: 1/30 s for video, one AAC frame for audio
+            lastDuration = type == TRACK_VIDEO ? timescale / 30 : 1024;
+        }
+
+        /**
+         * Converts a presentation time to this track's decode time.
+         */
+        long ticks(long ptsUs) {
+            return (ptsUs - baseUs) * timescale / 1000000L;
+        }
+
+        void ensureCapacity(int extra) {
+            if (data.remaining() < extra) {
+                ByteBuffer bigger = ByteBuffer.allocateDirect(
+                        Math.max(data.capacity() * 2, data.position() + extra));
+                data.flip();
+                bigger.put(data);
+                data = bigger;
+            }
+        }
+
+        void addSample(int size, long pts, int sampleFlags) {
+            if (count == sizes.length) {
+                int n = count * 2;
+                int[] newSizes = new int[n];
+                int[] newFlags = new int[n];
+                long[] newPts = new long[n];
+                System.arraycopy(sizes, 0, newSizes, 0, count);
+                System.arraycopy(flags, 0, newFlags, 0, count);
+                System.arraycopy(ptsUs, 0, newPts, 0, count);
+                sizes = newSizes;
+                flags = newFlags;
+                ptsUs = newPts;
+            }
+            sizes[count] = size;
+            flags[count] = sampleFlags;
+            ptsUs[count] = pts;
+            count++;
+        }
+
+        void reset() {
+            data.clear();
+            count = 0;
+        }
+    }
+}
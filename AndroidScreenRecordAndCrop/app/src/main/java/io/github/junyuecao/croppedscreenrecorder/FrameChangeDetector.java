@@ -0,0 +1,119 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import android.opengl.GLES20;
+import android.util.Log;
+
+import io.github.junyuecao.croppedscreenrecorder.gles.GlUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Fingerprints frames so that unchanged screen content can be skipped.
+ * <p>
+ * The frame is drawn, with the same crop as the real output, into a small offscreen
+ * framebuffer, read back, and hashed.  The readback is a few KB, but it does make the GPU
+ * finish the draw, so this is only worth it when idle frames are common.  The grid is
+ * sampled bilinearly, so a change smaller than the grid spacing (a blinking cursor, say)
+ * may go unnoticed until something else changes or the caller's keep-alive kicks in.
+ * <p>
+ * Must be created, used and released on the thread that owns the EGL context.
+ */
+public class FrameChangeDetector {
+    private static final String TAG = "FrameChangeDetector";
+    /** Width of the sampling grid; the height follows the output aspect ratio */
+    private static final int GRID_WIDTH = 64;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final ByteBuffer mPixels;
+    private int mTextureId;
+    private int mFramebuffer;
+
+    /**
+     * @param outputWidth  width of the encoded video
+     * @param outputHeight height of the encoded video
+     */
+    public FrameChangeDetector(int outputWidth, int outputHeight) {
+        mWidth = GRID_WIDTH;
+        mHeight = Math.max(1, GRID_WIDTH * outputHeight / Math.max(1, outputWidth));
+        mPixels = ByteBuffer.allocateDirect(mWidth * mHeight * 4).order(ByteOrder.nativeOrder());
+
+        int[] values = new int[1];
+        GLES20.glGenTextures(1, values, 0);
+        mTextureId = values[0];
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, mTextureId);
+        GLES20.glTexImage2D(GLES20.GL_TEXTURE_2D, 0, GLES20.GL_RGBA, mWidth, mHeight, 0,
+                GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, null);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER,
+                GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER,
+                GLES20.GL_NEAREST);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_S,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_WRAP_T,
+                GLES20.GL_CLAMP_TO_EDGE);
+        GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, 0);
+        GlUtil.checkGlError("glTexImage2D");
+
+        GLES20.glGenFramebuffers(1, values, 0);
+        mFramebuffer = values[0];
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glFramebufferTexture2D(GLES20.GL_FRAMEBUFFER, GLES20.GL_COLOR_ATTACHMENT0,
+                GLES20.GL_TEXTURE_2D, mTextureId, 0);
+        int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        if (status != GLES20.GL_FRAMEBUFFER_COMPLETE) {
+            release(true);
+            throw new RuntimeException("Framebuffer not complete, status=0x"
+                    + Integer.toHexString(status));
+        }
+        Log.d(TAG, "Sampling grid " + mWidth + "x" + mHeight);
+    }
+
+    /**
+     * Draws the frame into the sampling grid and returns its fingerprint.  Restores the
+     * default framebuffer and the given viewport afterwards.
+     */
+    public long fingerprint(MainFrameRect rect, int textureId, float[] texMatrix,
+                            int viewportWidth, int viewportHeight) {
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
+        GLES20.glViewport(0, 0, mWidth, mHeight);
+        rect.drawFrame(textureId, texMatrix);
+        mPixels.clear();
+        GLES20.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                mPixels);
+        GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+        GLES20.glViewport(0, 0, viewportWidth, viewportHeight);
+        GlUtil.checkGlError("glReadPixels");
+
+        // 64-bit FNV-1a over the pixels, a word at a time
+        long hash = 0xcbf29ce484222325L;
+        int words = mWidth * mHeight;
+        for (int i = 0; i < words; i++) {
+            hash ^= mPixels.getInt(i * 4);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Releases the GL objects.  Pass false if the EGL context is about to be destroyed
+     * anyway.
+     */
+    public void release(boolean doEglCleanup) {
+        if (doEglCleanup) {
+            int[] values = new int[1];
+            if (mFramebuffer != 0) {
+                values[0] = mFramebuffer;
+                GLES20.glDeleteFramebuffers(1, values, 0);
+            }
+            if (mTextureId != 0) {
+                values[0] = mTextureId;
+                GLES20.glDeleteTextures(1, values, 0);
+            }
+        }
+        mFramebuffer = 0;
+        mTextureId = 0;
+    }
+}
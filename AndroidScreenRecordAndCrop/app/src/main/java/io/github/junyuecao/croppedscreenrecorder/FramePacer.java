@@ -0,0 +1,78 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+/**
+ * Caps the rate at which captured frames are handed to the encoder.
+ * <p>
+ * For every frame-available notification the caller asks {@link #onFrameAvailable(long)}
+ * what to do.  A frame that is early is not thrown away right away: the first one in an
+ * interval is deferred until the interval ends, so the last frame before the screen goes
+ * idle still gets encoded.  Frames that arrive while a deferred frame is already scheduled
+ * are coalesced into it and counted as dropped.
+ * <p>
+ * Not thread-safe; use it from the thread that receives the frame notifications.
+ * {@link #getDroppedCount()} can be read from any thread.
+ */
+public final class FramePacer {
+    /** Returned by {@link #onFrameAvailable(long)}: submit the frame now */
+    public static final long SUBMIT = 0;
+    /** Returned by {@link #onFrameAvailable(long)}: a deferred submit is already pending */
+    public static final long COALESCED = -1;
+
+    private final long mIntervalNs;
+    private long mNextDueNs;
+    private boolean mDeferred;
+    // Written only by the notification thread, read by stats on others
+    private volatile long mDropped;
+
+    /**
+     * @param maxFps frame rate cap, or 0 for no cap
+     */
+    public FramePacer(int maxFps) {
+        mIntervalNs = maxFps > 0 ? 1000000000L / maxFps : 0;
+    }
+
+    /**
+     * Decides what to do with a frame that became available at nowNs.
+     *
+     * @return {@link #SUBMIT}, {@link #COALESCED}, or a positive delay in nanoseconds after
+     *     which the caller has to call {@link #onDeferredFrameDue(long)} and submit the frame
+     */
+    public long onFrameAvailable(long nowNs) {
+        if (mDeferred) {
+            mDropped++;
+            return COALESCED;
+        }
+        // Accept frames up to a quarter interval early to absorb vsync jitter.
+        long delay = mNextDueNs - nowNs;
+        if (mIntervalNs == 0 || delay <= mIntervalNs / 4) {
+            markSubmitted(nowNs);
+            return SUBMIT;
+        }
+        mDeferred = true;
+        return delay;
+    }
+
+    /**
+     * Called when the delay returned by {@link #onFrameAvailable(long)} has elapsed; the
+     * caller submits the frame right after.
+     */
+    public void onDeferredFrameDue(long nowNs) {
+        mDeferred = false;
+        markSubmitted(nowNs);
+    }
+
+    private void markSubmitted(long nowNs) {
+        // Keep a steady cadence, but don't try to catch up after an idle period.
+        mNextDueNs += mIntervalNs;
+        if (mNextDueNs <= nowNs) {
+            mNextDueNs = nowNs + mIntervalNs;
+        }
+    }
+
+    /**
+     * Returns the number of frames coalesced into a deferred frame.
+     */
+    public long getDroppedCount() {
+        return mDropped;
+    }
+}
@@ -0,0 +1,232 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+/**
+ * Fixed pool of frame slots handed from the frame producer to the encoder thread.
+ * <p>
+ * Each slot owns its timestamp and texture matrix, so a frame waiting in the encoder's queue
+ * can never see its matrix overwritten by a newer frame.  The pool also bounds the number of
+ * frames in flight: when every slot is pending, the configured drop policy decides whether
+ * the incoming frame is dropped ({@link #DROP_NEWEST}) or replaces the oldest pending one
+ * ({@link #DROP_OLDEST}).  With {@link #LATEST_WINS} at most one frame is ever pending: a
+ * new frame replaces it right away, so the encoder always picks up the latest frame and
+ * the queue never grows.  That takes a second slot besides the one being encoded, so the
+ * policy needs at least {@link #MIN_LATEST_WINS_SLOTS}; with one, a frame arriving while
+ * the slot is in use would have to be dropped, however new.
+ * <p>
+ * Frames are delivered in the order they were published.  A slot replaced under
+ * {@link #DROP_OLDEST} goes to the back: it gets a new sequence number, and
+ * {@link Slot#isRequeued()} tells the producer to remove the message already queued for it
+ * before sending the new one.  Under {@link #LATEST_WINS} the replaced slot is the only
+ * pending one, so it keeps its place: {@link #publish(Slot)} returns {@link #NO_MESSAGE}
+ * and the queued message delivers the newer frame.  Either way the consumer's queue holds
+ * at most one message per slot.  Replacements are counted as coalesced.
+ * <p>
+ * All methods are synchronized; the pool is touched a handful of times per frame.
+ */
+public final class FrameSlotPool {
+    public static final int DROP_NEWEST = 0;
+    public static final int DROP_OLDEST = 1;
+    public static final int LATEST_WINS = 2;
+    /** Returned by {@link #publish(Slot)}: a message for the slot is already queued */
+    public static final int NO_MESSAGE = -1;
+    /** Slots {@link #LATEST_WINS} needs: one being encoded and one to overwrite */
+    public static final int MIN_LATEST_WINS_SLOTS = 2;
+
+    private static final int STATE_FREE = 0;
+    private static final int STATE_PENDING = 1;
+    private static final int STATE_IN_USE = 2;
+    private static final int STATE_FILLING = 3; // replaced, being refilled by the producer
+
+    /**
+     * One frame in flight.  Fields are written by the producer before {@link #publish(Slot)}
+     * and read by the consumer after {@link #claim(int, int)}.
+     */
+    public static final class Slot {
+        /** Presentation time in nanoseconds */
+        public long timestampNs;
+        /** Texture transform, from SurfaceTexture */
+        public final float[] transform = new float[16];
+        /** True if the consumer still has to latch the frame with updateTexImage() */
+        public boolean latch;
+        /** When the producer queued the slot, for latency stats; 0 if not measured */
+        public long queuedAtNs;
+
+        final int mIndex;
+        int mSeq;
+        int mState;
+        long mPublishedAt;
+        boolean mQueued; // a message with mSeq is waiting for the consumer
+        boolean mRequeued;
+
+        Slot(int index) {
+            mIndex = index;
+        }
+
+        public int getIndex() {
+            return mIndex;
+        }
+
+        /**
+         * True after {@link #publish(Slot)} if the slot replaced a pending frame and went to
+         * the back of the queue: the message already queued for it has to be removed before
+         * the new one is sent, or it would deliver the frame too early.  (Producer.)
+         */
+        public boolean isRequeued() {
+            return mRequeued;
+        }
+    }
+
+    private final Slot[] mSlots;
+    private final int mPolicy;
+    private int mNextSeq;
+    private long mPublishCounter;
+    private long mDropped;
+    private long mCoalesced;
+
+    /**
+     * @param slotCount max number of frames in flight
+     * @param policy    {@link #DROP_NEWEST}, {@link #DROP_OLDEST} or {@link #LATEST_WINS}
+     */
+    public FrameSlotPool(int slotCount, int policy) {
+        checkConfig(slotCount, policy);
+        mSlots = new Slot[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            mSlots[i] = new Slot(i);
+        }
+        mPolicy = policy;
+    }
+
+    /**
+     * Throws IllegalArgumentException unless a pool can be made with the slot count and
+     * policy.
+     */
+    public static void checkConfig(int slotCount, int policy) {
+        if (slotCount <= 0) {
+            throw new IllegalArgumentException("invalid slot count " + slotCount);
+        }
+        if (policy != DROP_NEWEST && policy != DROP_OLDEST && policy != LATEST_WINS) {
+            throw new IllegalArgumentException("invalid drop policy " + policy);
+        }
+        if (policy == LATEST_WINS && slotCount < MIN_LATEST_WINS_SLOTS) {
+            throw new IllegalArgumentException("LATEST_WINS needs at least "
+                    + MIN_LATEST_WINS_SLOTS + " slots, not " + slotCount);
+        }
+    }
+
+    /**
+     * Returns a slot for a new frame, or null if the frame has to be dropped.  (Producer.)
+     */
+    public synchronized Slot acquire() {
+        Slot free = null;
+        Slot oldestPending = null;
+        for (Slot slot : mSlots) {
+            if (slot.mState == STATE_FREE) {
+                if (free == null) {
+                    free = slot;
+                }
+            } else if (slot.mState == STATE_PENDING
+                    && (oldestPending == null || slot.mPublishedAt < oldestPending.mPublishedAt)) {
+                oldestPending = slot;
+            }
+        }
+        if (free != null && (mPolicy != LATEST_WINS || oldestPending == null)) {
+            return free;
+        }
+        mDropped++;
+        if (mPolicy != DROP_NEWEST && oldestPending != null) {
+            // Its queued message can't claim it while it is refilled; see publish()
+            mCoalesced++;
+            oldestPending.mState = STATE_FILLING;
+            return oldestPending;
+        }
+        return null;
+    }
+
+    /**
+     * Marks a slot from {@link #acquire()} as pending and returns the sequence number the
+     * consumer has to present to {@link #claim(int, int)}, or {@link #NO_MESSAGE} if the
+     * message already queued for the slot will deliver it.  (Producer.)
+     */
+    public synchronized int publish(Slot slot) {
+        slot.mState = STATE_PENDING;
+        slot.mPublishedAt = ++mPublishCounter;
+        slot.mRequeued = false;
+        if (slot.mQueued) {
+            if (mPolicy == LATEST_WINS) {
+                return NO_MESSAGE;
+            }
+            // The old message can't claim the slot any more, and is to be removed
+            slot.mRequeued = true;
+        }
+        slot.mSeq = ++mNextSeq;
+        slot.mQueued = true;
+        return slot.mSeq;
+    }
+
+    /**
+     * Takes ownership of a published slot, or returns null if it was reclaimed in the
+     * meantime.  (Consumer.)
+     */
+    public synchronized Slot claim(int index, int seq) {
+        if (index < 0 || index >= mSlots.length) {
+            return null;
+        }
+        Slot slot = mSlots[index];
+        if (slot.mSeq != seq) {
+            return null;
+        }
+        slot.mQueued = false;
+        if (slot.mState != STATE_PENDING) {
+            // Being refilled; it is published again with a new message
+            return null;
+        }
+        slot.mState = STATE_IN_USE;
+        return slot;
+    }
+
+    /**
+     * Returns a claimed slot to the pool.  (Consumer, or the producer for an acquired slot
+     * it doesn't publish.)
+     */
+    public synchronized void release(Slot slot) {
+        slot.mState = STATE_FREE;
+    }
+
+    /**
+     * Releases a claimed slot whose frame the consumer couldn't use, and counts it as
+     * dropped.  (Consumer.)
+     */
+    public synchronized void discard(Slot slot) {
+        slot.mState = STATE_FREE;
+        mDropped++;
+    }
+
+    /**
+     * Returns the number of slots currently pending or being encoded.
+     */
+    public synchronized int getInFlightCount() {
+        int count = 0;
+        for (Slot slot : mSlots) {
+            if (slot.mState != STATE_FREE) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of frames dropped because every slot was in flight, replaced while
+     * pending, or discarded by the consumer.
+     */
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Returns the number of pending frames replaced by a newer one; part of the dropped
+     * count.
+     */
+    public synchronized long getCoalescedCount() {
+        return mCoalesced;
+    }
+}
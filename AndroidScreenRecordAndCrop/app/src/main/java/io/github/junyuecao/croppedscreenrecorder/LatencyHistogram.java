@@ -0,0 +1,136 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with microsecond resolution.
+ * <p>
+ * Buckets are logarithmic with four sub-buckets per power of two, so a reported percentile
+ * is at most 25% above the true value.  {@link #record(long)} does not allocate and may be
+ * called from any thread; {@link #snapshot()} allocates and is meant for occasional reads.
+ * <p>
+ * This class has no Android dependencies.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKETS = 4;
+    private static final int BUCKET_COUNT = 31 * SUB_BUCKETS;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSumUs = new AtomicLong();
+    private final AtomicLong mMaxUs = new AtomicLong();
+
+    /**
+     * Records one latency, in nanoseconds.  Negative values are recorded as 0.
+     */
+    public void record(long latencyNs) {
+        long us = latencyNs > 0 ? latencyNs / 1000 : 0;
+        mBuckets.incrementAndGet(bucketOf(us));
+        mCount.incrementAndGet();
+        mSumUs.addAndGet(us);
+        long max = mMaxUs.get();
+        while (us > max && !mMaxUs.compareAndSet(max, us)) {
+            max = mMaxUs.get();
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSumUs.set(0);
+        mMaxUs.set(0);
+    }
+
+    public Snapshot snapshot() {
+        long[] buckets = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = mBuckets.get(i);
+            total += buckets[i];
+        }
+        // Count from the buckets so percentiles are consistent with them.
+        return new Snapshot(buckets, total, mSumUs.get(), mMaxUs.get());
+    }
+
+    static int bucketOf(long us) {
+        if (us < SUB_BUCKETS) {
+            return (int) us;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(us);
+        int sub = (int) ((us >>> (msb - 2)) & (SUB_BUCKETS - 1));
+        int index = (msb - 1) * SUB_BUCKETS + sub;
+        return index < BUCKET_COUNT ? index : BUCKET_COUNT - 1;
+    }
+
+    /**
+     * Largest latency, in microseconds, that falls into the given bucket.
+     */
+    static long bucketUpperBoundUs(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int msb = index / SUB_BUCKETS + 1;
+        int sub = index % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (msb - 2)) - 1;
+    }
+
+    /**
+     * Immutable copy of a histogram.
+     */
+    public static final class Snapshot {
+        private final long[] mBuckets;
+        private final long mCount;
+        private final long mSumUs;
+        private final long mMaxUs;
+
+        Snapshot(long[] buckets, long count, long sumUs, long maxUs) {
+            mBuckets = buckets;
+            mCount = count;
+            mSumUs = sumUs;
+            mMaxUs = maxUs;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMeanUs() {
+            return mCount == 0 ? 0 : mSumUs / mCount;
+        }
+
+        public long getMaxUs() {
+            return mMaxUs;
+        }
+
+        /**
+         * @param percentile 0 to 100
+         * @return upper bound of the bucket holding that percentile, in microseconds
+         */
+        public long getPercentileUs(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(mCount * percentile / 100.0);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return Math.min(bucketUpperBoundUs(i), mMaxUs);
+                }
+            }
+            return mMaxUs;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + mCount + " mean=" + getMeanUs() + "us p50=" + getPercentileUs(50)
+                    + "us p99=" + getPercentileUs(99) + "us max=" + mMaxUs + "us";
+        }
+    }
+}
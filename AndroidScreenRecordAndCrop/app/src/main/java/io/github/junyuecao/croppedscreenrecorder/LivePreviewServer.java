@@ -0,0 +1,595 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the encoder output live over HTTP, as a fragmented MP4 stream, on the loopback
+ * interface only.  To watch from a workstation:
+ * <pre>
+ *     adb forward tcp:8080 tcp:8080
+ *     ffplay http://127.0.0.1:8080/live.mp4
+ * </pre>
+ * The encoder's samples are muxed once into short fragments by a
+ * {@link FragmentedMp4Writer}.  Each finished fragment is copied into one pooled direct
+ * buffer that all clients share; clients write duplicates of it, never a copy, and the
+ * buffer goes back to the pool once the last of them is done.  Every client has its own
+ * bounded queue and writer thread, so the encoder's drain thread never waits on a socket.
+ * A client whose queue is full skips fragments until the next one that starts with a key
+ * frame, and a sync frame is requested so that it doesn't wait a whole GOP.  New clients
+ * get the header first and join the same way.
+ * <p>
+ * A stream lasts for one encoder session; clients are disconnected when it ends.
+ */
+public class LivePreviewServer {
+    private static final String TAG = "LivePreviewServer";
+
+    public static final String PATH = "/live.mp4";
+    /** Fragment length; the latency added on top of encoding */
+    private static final long FRAGMENT_DURATION_US = 100000;
+    private static final int MAX_BUFFERED_BYTES = 2 * 1024 * 1024;
+    /** Fragments a client may fall behind before it has to resync at a key frame */
+    private static final int CLIENT_QUEUE_FRAGMENTS = 32;
+    private static final int MAX_REQUEST_BYTES = 8192;
+    /** Smallest pooled fragment buffer; larger ones are rounded up to a power of two */
+    private static final int MIN_FRAGMENT_CAPACITY = 64 * 1024;
+    private static final long POLL_TIMEOUT_MS = 500;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final int mRequestedPort;
+    private ServerSocketChannel mServer;
+    private volatile boolean mRunning;
+    private final List<Client> mClients = new CopyOnWriteArrayList<>();
+    private int mNextClientId;
+
+    // ----- stream state, guarded by this -----
+    private Runnable mSyncFrameRequester;
+    private MediaFormat mVideoFormat;
+    private MediaFormat mAudioFormat;
+    private FragmentedMp4Writer mWriter;
+    private final FragmentCollector mCollector = new FragmentCollector();
+    private int mVideoTrack;
+    private int mAudioTrack;
+    private boolean mWithAudio;
+    private Fragment mHeader;
+    private int mFragmentCount;
+    private boolean mFragmentOpen;
+    private boolean mFragmentStartsWithKey;
+    private long mFragmentsPublished;
+    private long mResyncs;
+
+    /**
+     * @param port port to listen on, or 0 for any free one
+     */
+    public LivePreviewServer(int port) {
+        mRequestedPort = port;
+    }
+
+    /**
+     * Starts listening on 127.0.0.1.
+     */
+    public synchronized void start() throws IOException {
+        if (mRunning) {
+            throw new IllegalStateException("already started");
+        }
+        mServer = ServerSocketChannel.open();
+        mServer.socket().setReuseAddress(true);
+        mServer.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"),
+                mRequestedPort));
+        mRunning = true;
+        RecorderScheduler.getDefault().newThread(RecorderScheduler.LANE_IO, "LivePreviewAccept",
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        acceptLoop();
+                    }
+                }, new Runnable() {
+                    @Override
+                    public void run() {
+                        stop();
+                    }
+                }).start();
+        Log.d(TAG, "Serving http://127.0.0.1:" + getPort() + PATH);
+    }
+
+    /**
+     * Stops listening and disconnects every client.
+     */
+    public void stop() {
+        ServerSocketChannel server;
+        synchronized (this) {
+            if (!mRunning) {
+                return;
+            }
+            mRunning = false;
+            server = mServer;
+            mServer = null;
+        }
+        closeQuietly(server);
+        for (Client client : mClients) {
+            client.close();
+        }
+    }
+
+    /**
+     * Returns the port the server listens on.
+     */
+    public synchronized int getPort() {
+        return mServer != null ? mServer.socket().getLocalPort() : -1;
+    }
+
+    public int getClientCount() {
+        return mClients.size();
+    }
+
+    public synchronized long getFragmentCount() {
+        return mFragmentsPublished;
+    }
+
+    /**
+     * Returns how often a client fell behind and had to skip to a key frame.
+     */
+    public synchronized long getResyncCount() {
+        return mResyncs;
+    }
+
+    // ----- encoder side -----
+
+    /**
+     * Starts a new stream for an encoder session, ending the previous one.
+     *
+     * @param syncFrameRequester asks the session's video encoder for a key frame; also
+     *                           identifies the session in {@link #endStream(Runnable)}
+     * @param withAudio          false if the session has no audio track to wait for
+     */
+    synchronized void beginStream(Runnable syncFrameRequester, boolean withAudio) {
+        if (mSyncFrameRequester != null) {
+            endStream(mSyncFrameRequester);
+        }
+        mSyncFrameRequester = syncFrameRequester;
+        mWithAudio = withAudio;
+    }
+
+    /**
+     * Ends the session's stream, disconnecting the clients.  Ignored if another session
+     * has started since.
+     */
+    synchronized void endStream(Runnable syncFrameRequester) {
+        if (mSyncFrameRequester != syncFrameRequester) {
+            return;
+        }
+        mSyncFrameRequester = null;
+        mVideoFormat = null;
+        mAudioFormat = null;
+        dropWriter();
+    }
+
+    /**
+     * Ends the current fragment stream and disconnects the clients, which are in the
+     * middle of it.  Clients that connect later get the next writer's header.
+     */
+    private void dropWriter() {
+        mWriter = null;
+        if (mHeader != null) {
+            mHeader.release();
+            mHeader = null;
+        }
+        mCollector.clear();
+        for (Client client : mClients) {
+            client.close();
+        }
+    }
+
+    /**
+     * Sets the format of a track, ReplayBuffer.TRACK_VIDEO or TRACK_AUDIO.  The stream
+     * starts once both are known, or just the video for a session without audio.
+     */
+    synchronized void setFormat(int track, MediaFormat format) {
+        if (mWriter != null) {
+            return;
+        }
+        if (track == ReplayBuffer.TRACK_VIDEO) {
+            mVideoFormat = format;
+        } else {
+            mAudioFormat = format;
+        }
+        startWriter();
+    }
+
+    /**
+     * Starts the fragment stream once the formats are known, and has the clients join it.
+     */
+    private void startWriter() {
+        if (mVideoFormat == null || (mWithAudio && mAudioFormat == null)
+                || mSyncFrameRequester == null) {
+            return;
+        }
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(mCollector, false,
+                FRAGMENT_DURATION_US, MAX_BUFFERED_BYTES);
+        writer.setKeyFrameAligned(false);
+        mVideoTrack = FragmentedMp4MuxerSink.addTrack(writer, mVideoFormat);
+        mAudioTrack = mWithAudio ? FragmentedMp4MuxerSink.addTrack(writer, mAudioFormat) : -1;
+        try {
+            writer.start();
+        } catch (IOException e) {
+            Log.w(TAG, "Can't start the live stream", e);
+            mCollector.clear();
+            return;
+        }
+        mWriter = writer;
+        mHeader = mCollector.take();
+        mFragmentCount = 0;
+        mFragmentOpen = false;
+        for (Client client : mClients) {
+            client.join(mHeader);
+        }
+        if (!mClients.isEmpty()) {
+            mSyncFrameRequester.run();
+        }
+    }
+
+    /**
+     * Adds one encoded sample to the stream.  (Drain thread.)
+     *
+     * @param data sample data between info.offset and info.offset + info.size; its position
+     *             and limit are changed
+     */
+    synchronized void writeSample(int track, ByteBuffer data, MediaCodec.BufferInfo info) {
+        if (mWriter == null) {
+            // Restarts after a failed write
+            startWriter();
+        }
+        if (mWriter == null || (track == ReplayBuffer.TRACK_AUDIO && mAudioTrack < 0)) {
+            return;
+        }
+        boolean keyFrame = track == ReplayBuffer.TRACK_VIDEO
+                && (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        data.position(info.offset);
+        data.limit(info.offset + info.size);
+        try {
+            mWriter.writeSample(track == ReplayBuffer.TRACK_VIDEO ? mVideoTrack : mAudioTrack,
+                    data, info.presentationTimeUs, keyFrame);
+        } catch (IOException e) {
+            // Never thrown at the drain thread: the stream is broken for every client, so
+            // they are all let go and the stream starts over
+            Log.w(TAG, "Live stream write failed, disconnecting " + mClients.size()
+                    + " clients", e);
+            dropWriter();
+            return;
+        }
+        if (mWriter.getFragmentCount() != mFragmentCount) {
+            // The fragment before this sample was written out
+            mFragmentCount = mWriter.getFragmentCount();
+            publish(mCollector.take(), mFragmentStartsWithKey);
+            mFragmentOpen = false;
+        }
+        if (!mFragmentOpen) {
+            mFragmentOpen = true;
+            mFragmentStartsWithKey = keyFrame;
+        }
+    }
+
+    private void publish(Fragment fragment, boolean startsWithKey) {
+        mFragmentsPublished++;
+        boolean resync = false;
+        for (Client client : mClients) {
+            if (!client.offer(fragment, startsWithKey)) {
+                mResyncs++;
+                resync = true;
+            }
+        }
+        // The clients hold their own references
+        fragment.release();
+        if (resync && mSyncFrameRequester != null) {
+            mSyncFrameRequester.run();
+        }
+    }
+
+    // ----- client side -----
+
+    private void acceptLoop() {
+        while (mRunning) {
+            ServerSocketChannel server;
+            synchronized (this) {
+                server = mServer;
+            }
+            if (server == null) {
+                break;
+            }
+            try {
+                final SocketChannel channel = server.accept();
+                final Client client = new Client(channel);
+                int id;
+                synchronized (this) {
+                    id = mNextClientId++;
+                }
+                // Disconnected by stop()
+                RecorderScheduler.getDefault().newThread(RecorderScheduler.LANE_IO,
+                        "LivePreviewClient-" + id, new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(client);
+                            }
+                        }, null).start();
+            } catch (IOException e) {
+                if (mRunning) {
+                    Log.w(TAG, "accept failed", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Client client) {
+        try {
+            String path = readRequestPath(client.mChannel);
+            if (path == null || !(PATH.equals(path) || "/".equals(path))) {
+                writeFully(client.mChannel, ByteBuffer.wrap(("HTTP/1.1 404 Not Found\r\n"
+                        + "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes(ASCII)));
+                return;
+            }
+            writeFully(client.mChannel, ByteBuffer.wrap(("HTTP/1.1 200 OK\r\n"
+                    + "Content-Type: video/mp4\r\nCache-Control: no-cache\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(ASCII)));
+            register(client);
+            while (mRunning && client.mChannel.isOpen()) {
+                Fragment fragment = client.mQueue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (fragment != null) {
+                    try {
+                        writeFully(client.mChannel, fragment.mData.duplicate());
+                    } finally {
+                        fragment.release();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "client gone: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            mClients.remove(client);
+            client.close();
+        }
+    }
+
+    private void register(Client client) {
+        Runnable requester;
+        synchronized (this) {
+            mClients.add(client);
+            if (mHeader == null) {
+                return;
+            }
+            client.join(mHeader);
+            requester = mSyncFrameRequester;
+        }
+        if (requester != null) {
+            requester.run();
+        }
+    }
+
+    /**
+     * Reads the request head and returns the path of a GET, or null.
+     */
+    private static String readRequestPath(SocketChannel channel) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf) < 0) {
+                return null;
+            }
+            String head = new String(buf.array(), 0, buf.position(), ASCII);
+            if (head.contains("\r\n\r\n") || head.contains("\n\n")) {
+                String[] requestLine = head.substring(0, head.indexOf('\n')).trim().split(" ");
+                if (requestLine.length < 2 || !"GET".equals(requestLine[0])) {
+                    return null;
+                }
+                String path = requestLine[1];
+                int query = path.indexOf('?');
+                return query >= 0 ? path.substring(0, query) : path;
+            }
+        }
+        return null;
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buf)
+            throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * One connected viewer.  The queue is filled by the drain thread and emptied by the
+     * client's own thread.
+     */
+    private static class Client {
+        final SocketChannel mChannel;
+        final BlockingQueue<Fragment> mQueue =
+                new ArrayBlockingQueue<>(CLIENT_QUEUE_FRAGMENTS + 1);
+        // Skipping fragments until one starts with a key frame; drain thread only
+        boolean mNeedKeyFrame = true;
+        boolean mJoined;
+
+        Client(SocketChannel channel) {
+            mChannel = channel;
+        }
+
+        /**
+         * Queues the stream header; fragments follow from the next key frame.
+         */
+        void join(Fragment header) {
+            releaseQueued();
+            header.retain();
+            mQueue.offer(header);
+            mNeedKeyFrame = true;
+            mJoined = true;
+        }
+
+        /**
+         * @return false if the client fell behind and now waits for a key frame
+         */
+        boolean offer(Fragment fragment, boolean startsWithKey) {
+            if (!mJoined) {
+                return true;
+            }
+            if (mNeedKeyFrame) {
+                if (!startsWithKey) {
+                    return true;
+                }
+                mNeedKeyFrame = false;
+            }
+            fragment.retain();
+            if (!mQueue.offer(fragment)) {
+                fragment.release();
+                mNeedKeyFrame = true;
+                return false;
+            }
+            return true;
+        }
+
+        void close() {
+            closeQuietly(mChannel);
+            releaseQueued();
+        }
+
+        private void releaseQueued() {
+            Fragment fragment;
+            while ((fragment = mQueue.poll()) != null) {
+                fragment.release();
+            }
+        }
+    }
+
+    /**
+     * A fragment's bytes in a direct buffer, shared by the client queues.  Whoever takes a
+     * reference releases it; the last release returns the buffer to the pool.
+     */
+    private static final class Fragment {
+        final ByteBuffer mData;
+        private final FragmentCollector mPool;
+        private final AtomicInteger mRefs = new AtomicInteger();
+
+        Fragment(FragmentCollector pool, int capacity) {
+            mPool = pool;
+            mData = ByteBuffer.allocateDirect(capacity);
+        }
+
+        void retain() {
+            mRefs.incrementAndGet();
+        }
+
+        void release() {
+            if (mRefs.decrementAndGet() == 0) {
+                mPool.recycle(this);
+            }
+        }
+    }
+
+    /**
+     * Collects what the writer produces until it is taken as one fragment, and pools the
+     * fragments' buffers.
+     */
+    private static class FragmentCollector implements WritableByteChannel {
+        private ByteBuffer mBuffer = ByteBuffer.allocate(256 * 1024);
+        // Released fragments, at most one client queue's worth; guarded by itself
+        private final List<Fragment> mFree = new ArrayList<>();
+
+        @Override
+        public int write(ByteBuffer src) {
+            int size = src.remaining();
+            if (mBuffer.remaining() < size) {
+                ByteBuffer bigger = ByteBuffer.allocate(
+                        Math.max(mBuffer.capacity() * 2, mBuffer.position() + size));
+                mBuffer.flip();
+                bigger.put(mBuffer);
+                mBuffer = bigger;
+            }
+            mBuffer.put(src);
+            return size;
+        }
+
+        /**
+         * Returns everything written since the last call, in a pooled fragment holding one
+         * reference for the caller.
+         */
+        Fragment take() {
+            mBuffer.flip();
+            Fragment fragment = obtain(mBuffer.remaining());
+            ByteBuffer out = fragment.mData;
+            out.clear();
+            out.put(mBuffer);
+            out.flip();
+            mBuffer.clear();
+            fragment.retain();
+            return fragment;
+        }
+
+        private Fragment obtain(int size) {
+            synchronized (mFree) {
+                Iterator<Fragment> it = mFree.iterator();
+                while (it.hasNext()) {
+                    Fragment fragment = it.next();
+                    if (fragment.mData.capacity() >= size) {
+                        it.remove();
+                        return fragment;
+                    }
+                }
+            }
+            int capacity = size <= MIN_FRAGMENT_CAPACITY ? MIN_FRAGMENT_CAPACITY
+                    : Integer.highestOneBit(size - 1) << 1;
+            return new Fragment(this, capacity);
+        }
+
+        /**
+         * Takes back a fragment no one references any more.  (Any thread.)
+         */
+        void recycle(Fragment fragment) {
+            synchronized (mFree) {
+                if (mFree.size() < CLIENT_QUEUE_FRAGMENTS) {
+                    mFree.add(fragment);
+                }
+            }
+        }
+
+        void clear() {
+            mBuffer.clear();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -122,8 +122,8 @@ public class MainActivity extends AppCompatActivity implements View.OnClickListe
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (mScreenCapture != null && mScreenCapture.isProjecting()) {
-            mScreenCapture.stopProjection();
+        if (mScreenCapture != null) {
+            mScreenCapture.release();
         }
     }
 
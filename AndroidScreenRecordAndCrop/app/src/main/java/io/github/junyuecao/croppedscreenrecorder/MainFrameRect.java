@@ -17,6 +17,7 @@
 package io.github.junyuecao.croppedscreenrecorder;
 
 import io.github.junyuecao.croppedscreenrecorder.gles.Drawable2d;
+import io.github.junyuecao.croppedscreenrecorder.gles.Drawable2dVbo;
 import io.github.junyuecao.croppedscreenrecorder.gles.GlUtil;
 import io.github.junyuecao.croppedscreenrecorder.gles.Texture2dProgram;
 
@@ -24,11 +25,13 @@ import io.github.junyuecao.croppedscreenrecorder.gles.Texture2dProgram;
  * This class is used to cut the top and bottom area of the screen and
  * just keep the center main part.
  *
- * In this demo, we'll cut the status bar and navigation bar of the screen
+ * In this demo, we'll cut the status bar and navigation bar of the screen.  Any other
+ * rectangle can be kept with {@link #setCropRect}, see also {@link CropAnimator}.
  */
 public class MainFrameRect {
     private final CroppedDrawable2d mRectDrawable;
     private Texture2dProgram mProgram;
+    private Drawable2dVbo mRectVbo;
 
     /**
      * Prepares the object.
@@ -39,6 +42,7 @@ public class MainFrameRect {
     public MainFrameRect(Texture2dProgram program) {
         mRectDrawable = new CroppedDrawable2d(Drawable2d.Prefab.FULL_RECTANGLE);
         mProgram = program;
+        mRectVbo = new Drawable2dVbo(mRectDrawable);
     }
 
     /**
@@ -50,6 +54,10 @@ public class MainFrameRect {
      * can pass a flag that will tell this function to skip any EGL-context-specific cleanup.
      */
     public void release(boolean doEglCleanup) {
+        if (mRectVbo != null) {
+            mRectVbo.release(doEglCleanup);
+            mRectVbo = null;
+        }
         if (mProgram != null) {
             if (doEglCleanup) {
                 mProgram.release();
@@ -89,6 +97,14 @@ public class MainFrameRect {
         mRectDrawable.setTopCropped(topCropped);
     }
 
+    /**
+     * Keeps only the given rectangle of the frame, in fractions from the top left.  Cheap
+     * enough to call every frame, e.g. to pan or zoom.
+     */
+    public void setCropRect(float left, float top, float right, float bottom) {
+        mRectDrawable.setCropRect(left, top, right, bottom);
+    }
+
     /**
      * Creates a texture object suitable for use with drawFrame().
      */
@@ -101,10 +117,7 @@ public class MainFrameRect {
      */
     public void drawFrame(int textureId, float[] texMatrix) {
         // Use the identity matrix for MVP so our 2x2 FULL_RECTANGLE covers the viewport.
-        mProgram.draw(GlUtil.IDENTITY_MATRIX, mRectDrawable.getVertexArray(), 0,
-                mRectDrawable.getVertexCount(), mRectDrawable.getCoordsPerVertex(),
-                mRectDrawable.getVertexStride(),
-                texMatrix, mRectDrawable.getTexCoordArray(), textureId,
-                mRectDrawable.getTexCoordStride());
+        // The crop only re-uploads the texture coordinates when it changes.
+        mProgram.draw(GlUtil.IDENTITY_MATRIX, mRectVbo, texMatrix, textureId);
     }
 }
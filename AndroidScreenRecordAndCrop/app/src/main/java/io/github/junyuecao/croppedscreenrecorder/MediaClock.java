@@ -0,0 +1,113 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+/**
+ * Presentation timestamps for a PCM stream, on the System.nanoTime() clock that
+ * SurfaceTexture stamps the video frames with.
+ * <p>
+ * Stamping each block with the time it is handed over makes the timestamps jitter with
+ * delivery, and includes whatever the caller waited for on the way.  Here a block's
+ * timestamp follows from the number of samples before it, counted from an anchor taken
+ * from the first block.  How far the arrival times have wandered off the sample count is
+ * the drift; it is smoothed, and while it exceeds the threshold the anchor is slewed
+ * towards the arrival times by at most 1/{@value #SLEW_DIVISOR} of each block's duration.
+ * The timestamps never jump and always increase.
+ * <p>
+ * Not thread-safe; use it from the thread that delivers the audio.  {@link #getDriftUs()}
+ * may be read from any thread.  This class has no Android dependencies.
+ */
+public final class MediaClock {
+    /** Drift tolerated before slewing, well under a video frame at 24 fps */
+    public static final long DEFAULT_MAX_DRIFT_US = 20000;
+    /** Slewing stretches or squeezes the audio by at most 1% */
+    static final int SLEW_DIVISOR = 100;
+    private static final int DRIFT_SMOOTHING = 8;
+
+    private final int mSampleRate;
+    private final int mBytesPerFrame;
+    private final long mMaxDriftUs;
+    private long mAnchorUs = -1;
+    private long mFrames;
+    private long mSmoothedDriftUs;
+    private volatile long mDriftUs;
+    private volatile long mCorrections;
+
+    /**
+     * @param bytesPerFrame bytes per sample times channels
+     * @param maxDriftUs    drift tolerated before the clock is slewed
+     */
+    public MediaClock(int sampleRate, int bytesPerFrame, long maxDriftUs) {
+        if (sampleRate <= 0 || bytesPerFrame <= 0 || maxDriftUs < 0) {
+            throw new IllegalArgumentException("invalid clock " + sampleRate + "Hz "
+                    + bytesPerFrame + "B " + maxDriftUs + "us");
+        }
+        mSampleRate = sampleRate;
+        mBytesPerFrame = bytesPerFrame;
+        mMaxDriftUs = maxDriftUs;
+    }
+
+    /**
+     * Starts over; the next block sets a new anchor.
+     */
+    public void reset() {
+        mAnchorUs = -1;
+        mFrames = 0;
+        mSmoothedDriftUs = 0;
+        mDriftUs = 0;
+        mCorrections = 0;
+    }
+
+    /**
+     * Stamps a block of PCM.
+     *
+     * @param sizeBytes size of the block
+     * @param arrivalUs when the block's last sample was captured, or as close to that as
+     *                  the caller knows, in the System.nanoTime() / 1000 base
+     * @return the presentation time of the block's first sample
+     */
+    public long stamp(int sizeBytes, long arrivalUs) {
+        long frames = Math.max(0, sizeBytes) / mBytesPerFrame;
+        long blockUs = getDurationUs(sizeBytes);
+        long captureStartUs = arrivalUs - blockUs;
+        if (mAnchorUs < 0) {
+            mAnchorUs = captureStartUs;
+        }
+        long ptsUs = mAnchorUs + mFrames * 1000000L / mSampleRate;
+        mFrames += frames;
+
+        // Positive when the samples fall behind the clock, e.g. after dropped blocks
+        long driftUs = captureStartUs - ptsUs;
+        mSmoothedDriftUs += (driftUs - mSmoothedDriftUs) / DRIFT_SMOOTHING;
+        if (Math.abs(mSmoothedDriftUs) > mMaxDriftUs) {
+            // Applies from the next block on; a step smaller than this block keeps order
+            long maxStepUs = Math.max(1, blockUs / SLEW_DIVISOR);
+            long stepUs = Math.max(-maxStepUs, Math.min(maxStepUs, mSmoothedDriftUs));
+            mAnchorUs += stepUs;
+            mSmoothedDriftUs -= stepUs;
+            mCorrections++;
+        }
+        mDriftUs = mSmoothedDriftUs;
+        return ptsUs;
+    }
+
+    /**
+     * Returns how long a block of this size plays, in microseconds.
+     */
+    public long getDurationUs(int sizeBytes) {
+        return Math.max(0, sizeBytes) / mBytesPerFrame * 1000000L / mSampleRate;
+    }
+
+    /**
+     * Returns the smoothed distance between the arrival times and the sample count, in
+     * microseconds; positive if the audio is behind.
+     */
+    public long getDriftUs() {
+        return mDriftUs;
+    }
+
+    /**
+     * Returns how many blocks were slewed since the last reset.
+     */
+    public long getCorrectionCount() {
+        return mCorrections;
+    }
+}
@@ -0,0 +1,47 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * MuxerSink backed by android.media.MediaMuxer, writing a regular MP4.  The file is only
+ * playable once stop() has written the moov box.
+ */
+public class MediaMuxerSink implements MuxerSink {
+    private final MediaMuxer mMuxer;
+
+    public MediaMuxerSink(File outputFile) throws IOException {
+        mMuxer = new MediaMuxer(outputFile.toString(),
+                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return mMuxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        mMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        mMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        mMuxer.release();
+    }
+}
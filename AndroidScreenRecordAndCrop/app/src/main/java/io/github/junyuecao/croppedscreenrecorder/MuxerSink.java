@@ -0,0 +1,28 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Destination for the encoded tracks, mirroring the subset of MediaMuxer that
+ * VideoEncoderCore uses.  Implementations report failures with IllegalStateException, like
+ * MediaMuxer does.
+ */
+public interface MuxerSink {
+    /**
+     * Adds a track with the format the encoder reported in INFO_OUTPUT_FORMAT_CHANGED.
+     *
+     * @return the track index to pass to writeSampleData()
+     */
+    int addTrack(MediaFormat format);
+
+    void start();
+
+    void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo);
+
+    void stop();
+
+    void release();
+}
@@ -0,0 +1,232 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single-producer / single-consumer ring of fixed-size direct PCM blocks.
+ * <p>
+ * All blocks are allocated up front, so neither side allocates once the ring is built.  The
+ * producer (the AudioRecord thread) never blocks: when the ring is full the block is counted
+ * as an overrun and the caller is expected to drop it.  The consumer (the thread feeding the
+ * AAC encoder) may park in {@link #awaitReadable(long)} until the producer publishes a block.
+ * One block is held back for {@link #writeEndOfStream(long)}, so the end of the stream can
+ * always be published without waiting for the consumer.
+ * <p>
+ * To use, on the producer thread:
+ * <pre>
+ *     ByteBuffer block = ring.beginWrite();
+ *     if (block != null) {
+ *         int size = fill(block);
+ *         ring.endWrite(size, ptsUs, false);
+ *     }
+ * </pre>
+ * and on the consumer thread:
+ * <pre>
+ *     if (ring.awaitReadable(timeoutNs)) {
+ *         ByteBuffer block = ring.beginRead();
+ *         consume(block, ring.getReadSize(), ring.getReadPresentationTimeUs());
+ *         ring.endRead();
+ *     }
+ * </pre>
+ * This class has no Android dependencies.
+ */
+public final class PcmRingBuffer {
+    private final ByteBuffer[] mBlocks;
+    private final int[] mSizes;
+    private final long[] mPtsUs;
+    private final boolean[] mEndOfStream;
+    private final int mMask;
+    private final int mBlockSize;
+
+    // Sequence numbers.  mHead is only written by the consumer, mTail only by the producer.
+    private final AtomicLong mHead = new AtomicLong();
+    private final AtomicLong mTail = new AtomicLong();
+
+    private final AtomicLong mOverruns = new AtomicLong();
+    private final AtomicLong mUnderruns = new AtomicLong();
+
+    private volatile Thread mConsumer;
+
+    /**
+     * @param blockCount number of blocks, a power of two of at least 2; one of them is kept
+     *                   for the end of stream
+     * @param blockSize  capacity of each block in bytes
+     */
+    public PcmRingBuffer(int blockCount, int blockSize) {
+        if (blockCount < 2 || (blockCount & (blockCount - 1)) != 0) {
+            throw new IllegalArgumentException("blockCount must be a power of two >= 2: "
+                    + blockCount);
+        }
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("invalid blockSize " + blockSize);
+        }
+        mBlocks = new ByteBuffer[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            mBlocks[i] = ByteBuffer.allocateDirect(blockSize).order(ByteOrder.nativeOrder());
+        }
+        mSizes = new int[blockCount];
+        mPtsUs = new long[blockCount];
+        mEndOfStream = new boolean[blockCount];
+        mMask = blockCount - 1;
+        mBlockSize = blockSize;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    public int getBlockCount() {
+        return mBlocks.length;
+    }
+
+    /**
+     * Returns the number of blocks ready to be read.
+     */
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    // ----- producer side -----
+
+    /**
+     * Returns the next free block, cleared and ready to be filled, or null if the ring is
+     * full.  A null return is counted as an overrun.  (Producer thread only.)
+     */
+    public ByteBuffer beginWrite() {
+        long tail = mTail.get();
+        // The last free block is left for the end of stream
+        if (tail - mHead.get() >= mBlocks.length - 1) {
+            mOverruns.incrementAndGet();
+            return null;
+        }
+        ByteBuffer block = mBlocks[(int) tail & mMask];
+        block.clear();
+        return block;
+    }
+
+    /**
+     * Publishes the block returned by the last {@link #beginWrite()}.  (Producer thread only.)
+     *
+     * @param size        number of valid bytes, from offset 0
+     * @param ptsUs       presentation time of the first sample in the block
+     * @param endOfStream true if this is the last block of the stream
+     */
+    public void endWrite(int size, long ptsUs, boolean endOfStream) {
+        publish(size < 0 ? 0 : Math.min(size, mBlockSize), ptsUs, endOfStream);
+    }
+
+    /**
+     * Publishes an empty block that ends the stream.  Never waits and never counts an
+     * overrun, as the block it uses is held back from {@link #beginWrite()}.  Write nothing
+     * after it.  (Producer thread only.)
+     */
+    public void writeEndOfStream(long ptsUs) {
+        publish(0, ptsUs, true);
+    }
+
+    private void publish(int size, long ptsUs, boolean endOfStream) {
+        long tail = mTail.get();
+        int slot = (int) tail & mMask;
+        mSizes[slot] = size;
+        mPtsUs[slot] = ptsUs;
+        mEndOfStream[slot] = endOfStream;
+        // Volatile store: publishes the slot contents above, and must not be reordered with
+        // the read of mConsumer below or a parking consumer could miss its wake-up.
+        mTail.set(tail + 1);
+        Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    // ----- consumer side -----
+
+    /**
+     * Waits until a block is readable.  Returns false if none arrived within the timeout,
+     * which is counted as an underrun.  (Consumer thread only.)
+     */
+    public boolean awaitReadable(long timeoutNs) {
+        if (mTail.get() != mHead.get()) {
+            return true;
+        }
+        mConsumer = Thread.currentThread();
+        long deadline = System.nanoTime() + timeoutNs;
+        try {
+            while (mTail.get() == mHead.get()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                    mUnderruns.incrementAndGet();
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            return true;
+        } finally {
+            mConsumer = null;
+        }
+    }
+
+    /**
+     * Returns the oldest published block, positioned at 0 with its limit set to the valid
+     * size, or null if the ring is empty.  (Consumer thread only.)
+     */
+    public ByteBuffer beginRead() {
+        long head = mHead.get();
+        if (head == mTail.get()) {
+            return null;
+        }
+        int slot = (int) head & mMask;
+        ByteBuffer block = mBlocks[slot];
+        block.position(0);
+        block.limit(mSizes[slot]);
+        return block;
+    }
+
+    /**
+     * Size in bytes of the block returned by the last {@link #beginRead()}.
+     */
+    public int getReadSize() {
+        return mSizes[(int) mHead.get() & mMask];
+    }
+
+    /**
+     * Presentation time of the block returned by the last {@link #beginRead()}.
+     */
+    public long getReadPresentationTimeUs() {
+        return mPtsUs[(int) mHead.get() & mMask];
+    }
+
+    /**
+     * True if the block returned by the last {@link #beginRead()} ends the stream.
+     */
+    public boolean isReadEndOfStream() {
+        return mEndOfStream[(int) mHead.get() & mMask];
+    }
+
+    /**
+     * Returns the block from the last {@link #beginRead()} to the producer.
+     * (Consumer thread only.)
+     */
+    public void endRead() {
+        mHead.lazySet(mHead.get() + 1);
+    }
+
+    // ----- stats -----
+
+    /**
+     * Number of blocks the producer had to drop because the ring was full.
+     */
+    public long getOverrunCount() {
+        return mOverruns.get();
+    }
+
+    /**
+     * Number of times the consumer waited a full timeout without getting a block.
+     */
+    public long getUnderrunCount() {
+        return mUnderruns.get();
+    }
+}
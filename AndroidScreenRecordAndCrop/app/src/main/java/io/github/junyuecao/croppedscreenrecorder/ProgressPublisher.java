@@ -0,0 +1,91 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import android.os.Handler;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Reports the recorded duration to {@link RecordCallback#onRecordedDurationChanged(long)}
+ * on the handler's thread.
+ * <p>
+ * The duration is the span of presentation timestamps written to the muxer, so it matches
+ * the file and stands still while the recording is paused.  The muxer writer only stores
+ * the latest timestamp; an update is posted once the duration has moved on by the
+ * interval, and only if the previous one has been delivered, so at most one is pending no
+ * matter how fast samples are written.  Posting reuses this Runnable and allocates nothing.
+ * <p>
+ * {@link #onSampleMuxed(long)} must be called from a single thread at a time.
+ */
+final class ProgressPublisher implements Runnable {
+    static final int DEFAULT_INTERVAL_MS = 100;
+
+    private final Handler mHandler;
+    private final AtomicBoolean mPosted = new AtomicBoolean();
+    private volatile RecordCallback mCallback;
+    private volatile long mIntervalUs = DEFAULT_INTERVAL_MS * 1000L;
+    private volatile long mDurationUs;
+    // ----- muxer writer only -----
+    private long mFirstPtsUs = -1;
+    private long mPostedDurationUs = -1;
+    // ----- handler thread only -----
+    private long mDeliveredMs = -1;
+
+    ProgressPublisher(Handler handler) {
+        mHandler = handler;
+    }
+
+    void setCallback(RecordCallback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * @param intervalMs smallest change in duration worth reporting
+     */
+    void setInterval(int intervalMs) {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("invalid progress interval " + intervalMs);
+        }
+        mIntervalUs = intervalMs * 1000L;
+    }
+
+    /**
+     * Takes note of a sample just written to the muxer.  (Muxer writer thread.)
+     */
+    void onSampleMuxed(long presentationTimeUs) {
+        if (mFirstPtsUs < 0) {
+            mFirstPtsUs = presentationTimeUs;
+        }
+        long durationUs = presentationTimeUs - mFirstPtsUs;
+        if (durationUs <= mDurationUs) {
+            // The other track is behind
+            return;
+        }
+        mDurationUs = durationUs;
+        if (mPostedDurationUs >= 0 && durationUs - mPostedDurationUs < mIntervalUs) {
+            return;
+        }
+        if (mCallback != null && mPosted.compareAndSet(false, true)) {
+            mPostedDurationUs = durationUs;
+            mHandler.post(this);
+        }
+    }
+
+    /**
+     * Returns the duration muxed so far.  (Call from any thread.)
+     */
+    long getDurationMs() {
+        return mDurationUs / 1000;
+    }
+
+    @Override
+    public void run() {
+        // Cleared first, so a sample muxed during the callback can post again
+        mPosted.set(false);
+        RecordCallback callback = mCallback;
+        long durationMs = mDurationUs / 1000;
+        if (callback != null && durationMs != mDeliveredMs) {
+            mDeliveredMs = durationMs;
+            callback.onRecordedDurationChanged(durationMs);
+        }
+    }
+}
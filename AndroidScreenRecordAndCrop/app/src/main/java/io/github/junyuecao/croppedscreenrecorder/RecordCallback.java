@@ -18,8 +18,9 @@ public interface RecordCallback {
     void onRecordFailed(Throwable e, long duration);
 
     /**
-     * Record progress changed
-     * @param ms current record duration in ms
+     * Record progress changed.  Called on the main thread, at most once per progress
+     * interval.
+     * @param ms duration written to the file so far in ms, pauses excluded
      */
     void onRecordedDurationChanged(long ms);
 }
@@ -0,0 +1,130 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import android.os.Handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completion of a {@link TextureMovieEncoder} lifecycle request, such as startRecording()
+ * or stopRecording().
+ * <p>
+ * The request itself returns at once.  Poll {@link #isDone()}, have a Runnable posted
+ * with {@link #whenDone(Runnable, Handler)}, or wait in {@link #get()} from a thread that
+ * may block; never from the UI thread.  A request can't be cancelled.
+ */
+public final class RecorderFuture implements Future<Void> {
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private volatile Throwable mFailure;
+    // Guarded by this; null once done
+    private List<Runnable> mActions = new ArrayList<>();
+    private List<Handler> mHandlers = new ArrayList<>();
+
+    /**
+     * Returns a future that has already failed, for a request that was refused.
+     */
+    static RecorderFuture failed(Throwable failure) {
+        RecorderFuture future = new RecorderFuture();
+        future.fail(failure);
+        return future;
+    }
+
+    /**
+     * Returns a future that is already done, for a request with nothing to do.
+     */
+    static RecorderFuture done() {
+        RecorderFuture future = new RecorderFuture();
+        future.complete();
+        return future;
+    }
+
+    void complete() {
+        finish(null);
+    }
+
+    void fail(Throwable failure) {
+        finish(failure);
+    }
+
+    private void finish(Throwable failure) {
+        List<Runnable> actions;
+        List<Handler> handlers;
+        synchronized (this) {
+            if (mActions == null) {
+                return;
+            }
+            mFailure = failure;
+            actions = mActions;
+            handlers = mHandlers;
+            mActions = null;
+            mHandlers = null;
+        }
+        mDone.countDown();
+        for (int i = 0; i < actions.size(); i++) {
+            handlers.get(i).post(actions.get(i));
+        }
+    }
+
+    /**
+     * Posts the action to the handler once the request is done, or right away if it is.
+     */
+    public void whenDone(Runnable action, Handler handler) {
+        synchronized (this) {
+            if (mActions != null) {
+                mActions.add(action);
+                mHandlers.add(handler);
+                return;
+            }
+        }
+        handler.post(action);
+    }
+
+    /**
+     * Returns why the request failed, or null if it succeeded or isn't done.
+     */
+    public Throwable getFailure() {
+        return mFailure;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mDone.getCount() == 0;
+    }
+
+    @Override
+    public Void get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return result();
+    }
+
+    @Override
+    public Void get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private Void result() throws ExecutionException {
+        if (mFailure != null) {
+            throw new ExecutionException(mFailure);
+        }
+        return null;
+    }
+}
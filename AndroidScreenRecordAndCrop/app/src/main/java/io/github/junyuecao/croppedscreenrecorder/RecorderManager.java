@@ -0,0 +1,288 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hands out recording sessions from a pool of pre-armed {@link TextureMovieEncoder}s, for
+ * callers that record many times in one process.
+ * <p>
+ * A pre-armed recorder keeps its encoder thread, frame sender thread, EGL context,
+ * compiled programs, SurfaceTexture and configured codecs between recordings (see
+ * {@link TextureMovieEncoder#prepareRecording}).  Closing a session returns its recorder
+ * to the pool instead of tearing it down, and {@link #acquire} reuses an idle recorder
+ * whose config builds the same pipeline, so a session after the first one only has to open
+ * a muxer.
+ * <p>
+ * Idle recorders are released once they have been idle for the idle timeout, and the
+ * least recently used ones go first when the estimated memory of the pool exceeds the
+ * budget.  Sessions in use are never evicted, so the budget can be exceeded while they
+ * are open.
+ * <p>
+ * All methods may be called from any thread and none of them blocks on a recorder.
+ * Evictions run on the main thread.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public final class RecorderManager {
+    private static final String TAG = "RecorderManager";
+    public static final long DEFAULT_MAX_IDLE_MS = 60000;
+    // Buffers per BufferQueue, the SurfaceTexture's and the codec input surface's
+    private static final int SURFACE_BUFFERS = 3;
+    // Reference and in-flight YUV frames a hardware encoder typically keeps
+    private static final int CODEC_FRAMES = 6;
+
+    private final long mMemoryBudgetBytes;
+    private final long mMaxIdleMs;
+    private final RecorderScheduler.LaneHandler mHandler =
+            RecorderScheduler.getDefault().newCallbackHandler();
+    // Guarded by this; idle sessions are kept in least recently used order
+    private final List<Session> mIdle = new ArrayList<>();
+    private final List<Session> mBusy = new ArrayList<>();
+    private long mPooledBytes;
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+    private boolean mReleased;
+
+    private final Runnable mEvictIdle = new Runnable() {
+        @Override
+        public void run() {
+            evict(SystemClock.elapsedRealtime());
+        }
+    };
+
+    /**
+     * @param memoryBudgetBytes estimated memory all pooled recorders may use, see
+     *                          {@link #estimateBytes(TextureMovieEncoder.EncoderConfig)}
+     * @param maxIdleMs         how long an idle recorder is kept
+     */
+    public RecorderManager(long memoryBudgetBytes, long maxIdleMs) {
+        if (memoryBudgetBytes <= 0 || maxIdleMs <= 0) {
+            throw new IllegalArgumentException("invalid budget " + memoryBudgetBytes
+                    + "B, idle timeout " + maxIdleMs + "ms");
+        }
+        mMemoryBudgetBytes = memoryBudgetBytes;
+        mMaxIdleMs = maxIdleMs;
+    }
+
+    /**
+     * Hands out a session with a recorder pre-armed for the config.  An idle recorder with
+     * the same pipeline is reused; otherwise a new one is prepared.  Either way, start
+     * recording once {@link Session#getReadyFuture()} is done: a new recorder has to warm up,
+     * and a reused one may still be finishing its last recording.  The config's output file
+     * is ignored; pass the file to {@link Session#start}.
+     */
+    public synchronized Session acquire(TextureMovieEncoder.EncoderConfig config) {
+        if (mReleased) {
+            throw new IllegalStateException("RecorderManager released");
+        }
+        String key = config.getPipelineKey();
+        for (int i = mIdle.size() - 1; i >= 0; i--) {
+            Session session = mIdle.get(i);
+            if (session.mKey.equals(key)
+                    && session.mRecorder.getState() != TextureMovieEncoder.STATE_RELEASED) {
+                mIdle.remove(i);
+                mBusy.add(session);
+                mHits++;
+                return session;
+            }
+        }
+        mMisses++;
+        Session session = new Session(this, key, estimateBytes(config));
+        mPooledBytes += session.mBytes;
+        mBusy.add(session);
+        session.mReady = session.mRecorder.prepareRecording(config);
+        // Make room for it among the idle ones
+        evict(SystemClock.elapsedRealtime());
+        return session;
+    }
+
+    /**
+     * Takes a session back, stopping its recording.  A recorder that isn't pre-armed any
+     * more, e.g. because it failed, is released instead of pooled.
+     */
+    synchronized void recycle(Session session) {
+        if (!mBusy.remove(session)) {
+            // Closed twice; it may belong to someone else by now
+            return;
+        }
+        session.mReady = session.mRecorder.stopRecording();
+        session.mRecorder.setRecordCallback(null);
+        session.setCallback(null);
+        int state = session.mRecorder.getState();
+        if (mReleased || state == TextureMovieEncoder.STATE_RELEASED) {
+            discard(session);
+            return;
+        }
+        session.mIdleSince = SystemClock.elapsedRealtime();
+        mIdle.add(session);
+        evict(session.mIdleSince);
+    }
+
+    /**
+     * Releases idle recorders that timed out or don't fit the budget, and schedules the
+     * next check.
+     */
+    private synchronized void evict(long now) {
+        mHandler.cancelCallbacks(mEvictIdle);
+        while (!mIdle.isEmpty()) {
+            Session oldest = mIdle.get(0);
+            if (now - oldest.mIdleSince < mMaxIdleMs && mPooledBytes <= mMemoryBudgetBytes) {
+                break;
+            }
+            mIdle.remove(0);
+            mEvictions++;
+            Log.d(TAG, "Evicting recorder idle for " + (now - oldest.mIdleSince) + "ms, pool "
+                    + (mPooledBytes / 1024) + "KiB of " + (mMemoryBudgetBytes / 1024) + "KiB");
+            discard(oldest);
+        }
+        if (!mIdle.isEmpty()) {
+            long dueMs = mIdle.get(0).mIdleSince + mMaxIdleMs - now;
+            mHandler.postDelayed(mEvictIdle, Math.max(0, dueMs));
+        }
+    }
+
+    private void discard(Session session) {
+        mPooledBytes -= session.mBytes;
+        session.mRecorder.releaseRecorder();
+    }
+
+    /**
+     * Releases the idle recorders now.
+     */
+    public synchronized void trim() {
+        while (!mIdle.isEmpty()) {
+            discard(mIdle.remove(0));
+        }
+        mHandler.cancelCallbacks(mEvictIdle);
+    }
+
+    /**
+     * Releases the idle recorders, and each session still in use once it is closed.
+     */
+    public synchronized void release() {
+        mReleased = true;
+        trim();
+    }
+
+    public synchronized int getIdleCount() {
+        return mIdle.size();
+    }
+
+    public synchronized int getBusyCount() {
+        return mBusy.size();
+    }
+
+    /**
+     * Returns the estimated memory of all recorders, idle and in use.
+     */
+    public synchronized long getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RecorderManager{idle=" + mIdle.size() + " busy=" + mBusy.size()
+                + " pooled=" + (mPooledBytes / 1024) + "KiB hits=" + mHits + " misses=" + mMisses
+                + " evictions=" + mEvictions + "}";
+    }
+
+    /**
+     * Roughly estimates the graphics and codec memory a pre-armed recorder holds: the
+     * SurfaceTexture's RGBA buffers at the capture size, the codec input surface's RGBA
+     * buffers and the codec's YUV frames at the video size.
+     */
+    public static long estimateBytes(TextureMovieEncoder.EncoderConfig config) {
+        long captureBytes = (long) config.mWidth * config.mHeight * 4;
+        long videoWidth = config.mVideoWidth > 0 ? config.mVideoWidth
+                : (long) (config.mWidth * (config.mCropRight - config.mCropLeft));
+        long videoHeight = config.mVideoHeight > 0 ? config.mVideoHeight
+                : (long) (config.mHeight * (config.mCropBottom - config.mCropTop));
+        long videoPixels = videoWidth * videoHeight;
+        return SURFACE_BUFFERS * (captureBytes + videoPixels * 4)
+                + CODEC_FRAMES * videoPixels * 3 / 2;
+    }
+
+    /**
+     * One use of a pooled recorder, from {@link #acquire} to {@link #close()}.  Record any
+     * number of times in between.
+     */
+    public static final class Session implements TextureMovieEncoder.Callback {
+        private final RecorderManager mManager;
+        final TextureMovieEncoder mRecorder = new TextureMovieEncoder();
+        final String mKey;
+        final long mBytes;
+        volatile RecorderFuture mReady;
+        long mIdleSince;
+        // Guarded by this
+        private Surface mSurface;
+        private TextureMovieEncoder.Callback mCallback;
+
+        Session(RecorderManager manager, String key, long bytes) {
+            mManager = manager;
+            mKey = key;
+            mBytes = bytes;
+            mRecorder.setCallback(this);
+        }
+
+        public TextureMovieEncoder getRecorder() {
+            return mRecorder;
+        }
+
+        /**
+         * Completes once the recorder is warm and ready to start.
+         */
+        public RecorderFuture getReadyFuture() {
+            return mReady;
+        }
+
+        /**
+         * Sets who gets the recorder's input surface.  A reused recorder's surface is handed
+         * over right away, on the calling thread.
+         */
+        public void setCallback(TextureMovieEncoder.Callback callback) {
+            Surface surface;
+            synchronized (this) {
+                mCallback = callback;
+                surface = mSurface;
+            }
+            if (callback != null && surface != null) {
+                callback.onInputSurfacePrepared(surface);
+            }
+        }
+
+        @Override
+        public void onInputSurfacePrepared(Surface surface) {
+            TextureMovieEncoder.Callback callback;
+            synchronized (this) {
+                mSurface = surface;
+                callback = mCallback;
+            }
+            if (callback != null) {
+                callback.onInputSurfacePrepared(surface);
+            }
+        }
+
+        public RecorderFuture start(TextureMovieEncoder.EncoderConfig config) {
+            return mRecorder.startRecording(config);
+        }
+
+        public RecorderFuture stop() {
+            return mRecorder.stopRecording();
+        }
+
+        /**
+         * Stops any recording and returns the recorder to the pool.  Don't use the session
+         * afterwards; it may be handed out again.
+         */
+        public void close() {
+            mManager.recycle(this);
+        }
+    }
+}
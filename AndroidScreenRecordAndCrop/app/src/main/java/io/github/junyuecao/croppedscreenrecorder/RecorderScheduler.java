@@ -0,0 +1,639 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The one place the recorder's threads come from.
+ * <p>
+ * Every thread belongs to a lane, which sets its priority and groups it for reporting and
+ * shutdown.  The lane numbers are the shutdown order: producers go first, so whatever they
+ * still hand on is consumed by lanes that are still running.
+ * <ul>
+ * <li>{@link #LANE_AUDIO_CAPTURE}: AudioRecord readers and the PCM feeder
+ * <li>{@link #LANE_RENDER}: the encoder's GL thread and the frame sender
+ * <li>{@link #LANE_ENCODE_DRAIN}: codec output draining and muxer writes
+ * <li>{@link #LANE_IO}: cover compression, segment finalizing, saving and serving files
+ * <li>{@link #LANE_CALLBACK}: app callbacks on the main thread, which is never stopped
+ * </ul>
+ * Threads are named and started here, and stopped by their owners as before.
+ * {@link #shutdown(long)} stops all of them instead: lane by lane, each thread by its own
+ * stop action, a Looper quit or an executor shutdown, never by interrupting it, and then
+ * waits for the lane's threads before moving on to the next lane.
+ * <p>
+ * {@link #report()} gives each lane's CPU time and queue depth.  CPU time covers the whole
+ * life of the lane's threads; on the callback lane it covers the dispatched callbacks only.
+ * Queue depth counts what was sent through a {@link LaneHandler} or lane executor and
+ * neither run nor cancelled yet; it goes away with the thread when the thread ends.
+ */
+public final class RecorderScheduler {
+    private static final String TAG = "RecorderScheduler";
+
+    public static final int LANE_AUDIO_CAPTURE = 0;
+    public static final int LANE_RENDER = 1;
+    public static final int LANE_ENCODE_DRAIN = 2;
+    public static final int LANE_IO = 3;
+    public static final int LANE_CALLBACK = 4;
+    public static final int LANE_COUNT = 5;
+
+    private static final String[] LANE_NAMES = {
+            "audioCapture", "render", "encodeDrain", "io", "callback"
+    };
+    private static final int[] LANE_PRIORITIES = {
+            Process.THREAD_PRIORITY_URGENT_AUDIO,
+            Process.THREAD_PRIORITY_DISPLAY,
+            Process.THREAD_PRIORITY_FOREGROUND,
+            Process.THREAD_PRIORITY_BACKGROUND,
+            Process.THREAD_PRIORITY_DEFAULT
+    };
+
+    private static final RecorderScheduler sDefault = new RecorderScheduler();
+
+    private final Lane[] mLanes = new Lane[LANE_COUNT];
+    private final Queue mMainQueue;
+
+    /**
+     * Returns the scheduler all recorder components use.
+     */
+    public static RecorderScheduler getDefault() {
+        return sDefault;
+    }
+
+    private RecorderScheduler() {
+        for (int i = 0; i < LANE_COUNT; i++) {
+            mLanes[i] = new Lane(i);
+        }
+        mMainQueue = new Queue(mLanes[LANE_CALLBACK]);
+        mLanes[LANE_CALLBACK].addQueue(mMainQueue);
+    }
+
+    /**
+     * Returns a thread in the lane that runs the body at the lane's priority.  Start it
+     * yourself.
+     *
+     * @param stopAction makes the body return soon, e.g. by setting its exit flag and
+     *                   unblocking it; run by {@link #shutdown(long)}.  May be null if the
+     *                   body ends by itself once the lanes before it have stopped.
+     */
+    public Thread newThread(int lane, String name, Runnable body, Runnable stopAction) {
+        return new LaneThread(mLanes[lane], name, body, stopAction);
+    }
+
+    /**
+     * Returns a started HandlerThread in the lane.  Create its Handlers as
+     * {@link LaneHandler}s so they count towards the lane's queue depth.
+     */
+    public HandlerThread startHandlerThread(int lane, String name) {
+        LaneHandlerThread thread = new LaneHandlerThread(mLanes[lane], name);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Returns a single-threaded executor in the lane, whose queue counts towards the lane's
+     * queue depth.
+     */
+    public ExecutorService newSingleThreadExecutor(final int lane, final String name) {
+        return new LaneExecutor(mLanes[lane], name);
+    }
+
+    /**
+     * Returns a Handler for callbacks on the main thread.
+     */
+    public LaneHandler newCallbackHandler() {
+        return new LaneHandler(Looper.getMainLooper());
+    }
+
+    /**
+     * Stops every lane in order on a thread of its own, so no caller blocks.  The future
+     * fails with a TimeoutException naming the first lane that did not stop in time; the
+     * lanes after it are still stopped.  Threads started afterwards run normally.
+     *
+     * @param laneTimeoutMs how long to wait for each lane
+     */
+    public RecorderFuture shutdown(final long laneTimeoutMs) {
+        final RecorderFuture future = new RecorderFuture();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                TimeoutException timeout = null;
+                for (Lane lane : mLanes) {
+                    long startNs = System.nanoTime();
+                    boolean stopped;
+                    try {
+                        stopped = lane.stop(laneTimeoutMs);
+                    } catch (InterruptedException ie) {
+                        future.fail(ie);
+                        return;
+                    }
+                    Log.d(TAG, "Lane " + lane.mName + (stopped ? " stopped in " : " timed out after ")
+                            + (System.nanoTime() - startNs) / 1000000 + "ms");
+                    if (!stopped && timeout == null) {
+                        timeout = new TimeoutException("lane " + lane.mName + " did not stop");
+                    }
+                }
+                if (timeout != null) {
+                    future.fail(timeout);
+                } else {
+                    future.complete();
+                }
+            }
+        }, "RecorderShutdown").start();
+        return future;
+    }
+
+    /**
+     * Returns the CPU time the lane's threads used so far, in nanoseconds.
+     */
+    public long getCpuTimeNs(int lane) {
+        return mLanes[lane].getCpuTimeNs();
+    }
+
+    /**
+     * Returns the messages and tasks sent to the lane and not run yet.
+     */
+    public int getQueueDepth(int lane) {
+        return mLanes[lane].getQueueDepth();
+    }
+
+    /**
+     * Returns one line per lane: live threads, CPU time, queue depth now and at most, and
+     * the number of messages and tasks run.
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder("RecorderScheduler{");
+        for (Lane lane : mLanes) {
+            sb.append("\n  ").append(lane);
+        }
+        return sb.append('}').toString();
+    }
+
+    /**
+     * Reads a live thread's CPU time from /proc, or returns -1.
+     */
+    private static long readThreadCpuNs(int tid) {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream("/proc/self/task/" + tid + "/schedstat");
+            byte[] buf = new byte[64];
+            int len = in.read(buf);
+            long ns = 0;
+            for (int i = 0; i < len && buf[i] >= '0' && buf[i] <= '9'; i++) {
+                ns = ns * 10 + (buf[i] - '0');
+            }
+            return ns;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts what was sent to one thread or executor and hasn't run yet.
+     */
+    private static final class Queue {
+        final Lane mLane;
+        final AtomicInteger mDepth = new AtomicInteger();
+
+        Queue(Lane lane) {
+            mLane = lane;
+        }
+
+        void onQueued() {
+            int depth = mDepth.incrementAndGet();
+            mLane.onQueued(depth);
+        }
+
+        void onCancelled() {
+            mDepth.decrementAndGet();
+        }
+
+        void onRun() {
+            mDepth.decrementAndGet();
+            mLane.mRun.incrementAndGet();
+        }
+    }
+
+    /**
+     * A thread of a lane: LaneThread, LaneHandlerThread or an executor's worker.
+     */
+    private interface Member {
+        /** Makes the thread end soon. */
+        void requestStop();
+
+        Thread getThread();
+
+        /** The thread's id, 0 until it runs */
+        int getTid();
+    }
+
+    private static final class Lane {
+        final int mIndex;
+        final String mName;
+        final int mPriority;
+        // Guarded by this
+        private final List<Member> mMembers = new ArrayList<>();
+        private final List<Queue> mQueues = new ArrayList<>();
+        private final AtomicLong mFinishedCpuNs = new AtomicLong();
+        private final AtomicLong mCallbackCpuNs = new AtomicLong();
+        private final AtomicInteger mMaxDepth = new AtomicInteger();
+        final AtomicLong mRun = new AtomicLong();
+
+        Lane(int lane) {
+            mIndex = lane;
+            mName = LANE_NAMES[lane];
+            mPriority = LANE_PRIORITIES[lane];
+        }
+
+        synchronized void add(Member member) {
+            mMembers.add(member);
+        }
+
+        /**
+         * Called on the member's own thread as it ends.
+         */
+        void remove(Member member, Queue queue) {
+            mFinishedCpuNs.addAndGet(Debug.threadCpuTimeNanos());
+            synchronized (this) {
+                mMembers.remove(member);
+                if (queue != null) {
+                    mQueues.remove(queue);
+                }
+            }
+        }
+
+        synchronized void addQueue(Queue queue) {
+            mQueues.add(queue);
+        }
+
+        synchronized void removeQueue(Queue queue) {
+            mQueues.remove(queue);
+        }
+
+        void onQueued(int depth) {
+            int max;
+            while (depth > (max = mMaxDepth.get()) && !mMaxDepth.compareAndSet(max, depth)) {
+                // retry
+            }
+        }
+
+        synchronized int getQueueDepth() {
+            int depth = 0;
+            for (Queue queue : mQueues) {
+                depth += Math.max(0, queue.mDepth.get());
+            }
+            return depth;
+        }
+
+        long getCpuTimeNs() {
+            long ns = mFinishedCpuNs.get() + mCallbackCpuNs.get();
+            List<Member> members;
+            synchronized (this) {
+                members = new ArrayList<>(mMembers);
+            }
+            for (Member member : members) {
+                int tid = member.getTid();
+                if (tid != 0) {
+                    ns += Math.max(0, readThreadCpuNs(tid));
+                }
+            }
+            return ns;
+        }
+
+        /**
+         * Asks every thread of the lane to stop, then waits for all of them.
+         *
+         * @return false if a thread is still running after the timeout
+         */
+        boolean stop(long timeoutMs) throws InterruptedException {
+            List<Member> members;
+            synchronized (this) {
+                members = new ArrayList<>(mMembers);
+            }
+            if (mIndex == LANE_CALLBACK) {
+                // The main thread keeps running; wait for the callbacks posted so far
+                final CountDownLatch flushed = new CountDownLatch(1);
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushed.countDown();
+                    }
+                });
+                return flushed.await(timeoutMs, TimeUnit.MILLISECONDS);
+            }
+            for (Member member : members) {
+                member.requestStop();
+            }
+            long deadlineNs = System.nanoTime() + timeoutMs * 1000000L;
+            for (Member member : members) {
+                long leftMs = (deadlineNs - System.nanoTime()) / 1000000;
+                member.getThread().join(Math.max(1, leftMs));
+                if (member.getThread().isAlive()) {
+                    Log.w(TAG, member.getThread().getName() + " didn't stop");
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            int threads;
+            synchronized (this) {
+                threads = mMembers.size();
+            }
+            return mName + ": threads=" + threads + " cpu=" + getCpuTimeNs() / 1000000 + "ms"
+                    + " queued=" + getQueueDepth() + " (max " + mMaxDepth.get() + ")"
+                    + " run=" + mRun.get();
+        }
+    }
+
+    private static final class LaneThread extends Thread implements Member {
+        private final Lane mLane;
+        private final Runnable mBody;
+        private final Runnable mStopAction;
+        // For a LaneHandler on a Looper the body runs
+        final Queue mQueue;
+        private volatile int mTid;
+
+        LaneThread(Lane lane, String name, Runnable body, Runnable stopAction) {
+            super(name);
+            mLane = lane;
+            mBody = body;
+            mStopAction = stopAction;
+            mQueue = new Queue(lane);
+        }
+
+        @Override
+        public synchronized void start() {
+            mLane.add(this);
+            mLane.addQueue(mQueue);
+            super.start();
+        }
+
+        @Override
+        public void run() {
+            mTid = Process.myTid();
+            Process.setThreadPriority(mLane.mPriority);
+            try {
+                mBody.run();
+            } finally {
+                mLane.remove(this, mQueue);
+            }
+        }
+
+        @Override
+        public void requestStop() {
+            if (mStopAction != null) {
+                mStopAction.run();
+            }
+        }
+
+        @Override
+        public Thread getThread() {
+            return this;
+        }
+
+        @Override
+        public int getTid() {
+            return mTid;
+        }
+    }
+
+    private static final class LaneHandlerThread extends HandlerThread implements Member {
+        private final Lane mLane;
+        final Queue mQueue;
+
+        LaneHandlerThread(Lane lane, String name) {
+            super(name, lane.mPriority);
+            mLane = lane;
+            mQueue = new Queue(lane);
+        }
+
+        @Override
+        public synchronized void start() {
+            mLane.add(this);
+            mLane.addQueue(mQueue);
+            super.start();
+        }
+
+        @Override
+        public void run() {
+            try {
+                super.run();
+            } finally {
+                mLane.remove(this, mQueue);
+            }
+        }
+
+        @Override
+        public void requestStop() {
+            quitSafely();
+        }
+
+        @Override
+        public Thread getThread() {
+            return this;
+        }
+
+        @Override
+        public int getTid() {
+            return Math.max(0, getThreadId());
+        }
+    }
+
+    /**
+     * Handler that counts its messages towards the lane of the thread it runs on.  On
+     * threads that aren't from a lane it counts nothing.  Use it for every Handler on a
+     * lane's thread, and take messages back with {@link #cancelMessages(int, Object)} and
+     * {@link #cancelCallbacks(Runnable)}: Handler's own remove methods can't be told apart
+     * from a message that is still queued, so the depth would stay counted until the
+     * thread ends.
+     */
+    public static class LaneHandler extends Handler {
+        private final Queue mQueue;
+        private final Lane mCpuLane;
+        // Guarded by itself; sent and neither run nor cancelled yet
+        private final Map<Message, Boolean> mQueued = new IdentityHashMap<>();
+
+        public LaneHandler(Looper looper) {
+            super(looper);
+            Thread thread = looper.getThread();
+            if (thread instanceof LaneHandlerThread) {
+                mQueue = ((LaneHandlerThread) thread).mQueue;
+                mCpuLane = null;
+            } else if (thread instanceof LaneThread) {
+                mQueue = ((LaneThread) thread).mQueue;
+                mCpuLane = null;
+            } else if (looper == Looper.getMainLooper()) {
+                mQueue = sDefault.mMainQueue;
+                mCpuLane = mQueue.mLane;
+            } else {
+                mQueue = null;
+                mCpuLane = null;
+            }
+        }
+
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            if (mQueue == null) {
+                return super.sendMessageAtTime(msg, uptimeMillis);
+            }
+            synchronized (mQueued) {
+                mQueued.put(msg, Boolean.TRUE);
+            }
+            mQueue.onQueued();
+            boolean queued = super.sendMessageAtTime(msg, uptimeMillis);
+            if (!queued) {
+                // The looper has quit
+                synchronized (mQueued) {
+                    mQueued.remove(msg);
+                }
+                mQueue.onCancelled();
+            }
+            return queued;
+        }
+
+        /**
+         * Removes the queued messages with the code and object, like
+         * {@link Handler#removeMessages(int, Object)}, and stops counting them.
+         */
+        public final void cancelMessages(int what, Object object) {
+            if (mQueue != null) {
+                synchronized (mQueued) {
+                    Iterator<Message> it = mQueued.keySet().iterator();
+                    while (it.hasNext()) {
+                        Message msg = it.next();
+                        if (msg.what == what && msg.getCallback() == null
+                                && (object == null || msg.obj == object)) {
+                            it.remove();
+                            mQueue.onCancelled();
+                        }
+                    }
+                }
+            }
+            removeMessages(what, object);
+        }
+
+        /**
+         * Removes the queued posts of the Runnable, like
+         * {@link Handler#removeCallbacks(Runnable)}, and stops counting them.
+         */
+        public final void cancelCallbacks(Runnable r) {
+            if (mQueue != null) {
+                synchronized (mQueued) {
+                    Iterator<Message> it = mQueued.keySet().iterator();
+                    while (it.hasNext()) {
+                        if (it.next().getCallback() == r) {
+                            it.remove();
+                            mQueue.onCancelled();
+                        }
+                    }
+                }
+            }
+            removeCallbacks(r);
+        }
+
+        @Override
+        public void dispatchMessage(Message msg) {
+            if (mQueue != null) {
+                boolean counted;
+                synchronized (mQueued) {
+                    // Not if it was cancelled just after the looper took it out of the queue
+                    counted = mQueued.remove(msg) != null;
+                }
+                if (counted) {
+                    mQueue.onRun();
+                }
+            }
+            if (mCpuLane == null) {
+                super.dispatchMessage(msg);
+                return;
+            }
+            long startNs = Debug.threadCpuTimeNanos();
+            super.dispatchMessage(msg);
+            mCpuLane.mCallbackCpuNs.addAndGet(Debug.threadCpuTimeNanos() - startNs);
+        }
+    }
+
+    private static final class LaneExecutor extends ThreadPoolExecutor {
+        private final Queue mQueue;
+
+        LaneExecutor(final Lane lane, final String name) {
+            super(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+            mQueue = new Queue(lane);
+            lane.addQueue(mQueue);
+            final LaneExecutor executor = this;
+            setThreadFactory(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new LaneThread(lane, name, r, new Runnable() {
+                        @Override
+                        public void run() {
+                            executor.shutdown();
+                        }
+                    });
+                }
+            });
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            mQueue.onQueued();
+            try {
+                super.execute(command);
+            } catch (RuntimeException e) {
+                mQueue.onCancelled();
+                throw e;
+            }
+        }
+
+        @Override
+        protected void beforeExecute(Thread t, Runnable r) {
+            mQueue.onRun();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            List<Runnable> dropped = super.shutdownNow();
+            for (int i = 0; i < dropped.size(); i++) {
+                mQueue.onCancelled();
+            }
+            return dropped;
+        }
+
+        @Override
+        protected void terminated() {
+            mQueue.mLane.removeQueue(mQueue);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.opengl.EGL14;
+import android.os.Build;
+import android.os.Debug;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Soak benchmark for {@link RecorderManager}: records many short sessions back to back in
+ * one process and logs how start latency and memory develop.
+ * <p>
+ * No screen capture is needed.  Each session's frames are drawn into the recorder's input
+ * surface with a Canvas, at the frame rate, into files in a scratch directory that is
+ * emptied after every session.  Every {@link #REPORT_EVERY} sessions, and at the end, a
+ * line with the start latencies so far, the process PSS, the native and Java heaps and
+ * the pool state is logged under the "RecorderSoak" tag.
+ * <p>
+ * Start latency is measured twice: until the start future completes, i.e. the muxer is
+ * open, and until the first video sample is muxed.  RecorderSoakTest runs it as an
+ * instrumented test; to run it in the app, use a background thread:
+ * <pre>
+ *     new Thread(new RecorderSoakBenchmark(manager, context.getCacheDir(), 300), "Soak").start();
+ * </pre>
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+public final class RecorderSoakBenchmark implements Runnable {
+    private static final String TAG = "RecorderSoak";
+    static final int REPORT_EVERY = 25;
+    private static final int WIDTH = 720;
+    private static final int HEIGHT = 1280;
+    private static final int FRAME_RATE = 30;
+    private static final int FRAMES_PER_SESSION = 30;
+    private static final long TIMEOUT_MS = 10000;
+
+    private final RecorderManager mManager;
+    private final File mDir;
+    private final int mSessions;
+    private final LatencyHistogram mStartLatency = new LatencyHistogram();
+    private final LatencyHistogram mFirstSampleLatency = new LatencyHistogram();
+    private volatile Surface mSurface;
+    private volatile int mFailures;
+    private volatile int mCompleted;
+
+    /**
+     * @param scratchDir directory for the recordings; created if needed
+     */
+    public RecorderSoakBenchmark(RecorderManager manager, File scratchDir, int sessions) {
+        mManager = manager;
+        mDir = new File(scratchDir, "soak");
+        mSessions = sessions;
+    }
+
+    @Override
+    public void run() {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            Log.w(TAG, "Can't create " + mDir);
+            return;
+        }
+        TextureMovieEncoder.EncoderConfig prepareConfig = newBuilder(null).build();
+        Log.i(TAG, "Starting " + mSessions + " sessions of " + FRAMES_PER_SESSION + " frames");
+        for (int i = 1; i <= mSessions; i++) {
+            try {
+                runSession(prepareConfig, new File(mDir, "soak_" + i + ".mp4"));
+            } catch (InterruptedException ie) {
+                Log.w(TAG, "Interrupted after " + (i - 1) + " sessions");
+                report(i - 1);
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException | TimeoutException e) {
+                mFailures++;
+                Log.w(TAG, "Session " + i + " failed", e);
+            }
+            emptyDir();
+            mCompleted = i;
+            if (i % REPORT_EVERY == 0 || i == mSessions) {
+                report(i);
+            }
+        }
+    }
+
+    private void runSession(TextureMovieEncoder.EncoderConfig prepareConfig, File file)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        RecorderManager.Session session = mManager.acquire(prepareConfig);
+        try {
+            session.setCallback(new TextureMovieEncoder.Callback() {
+                @Override
+                public void onInputSurfacePrepared(Surface surface) {
+                    mSurface = surface;
+                }
+            });
+            session.getReadyFuture().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            Surface surface = mSurface;
+            if (surface == null) {
+                throw new ExecutionException(new IllegalStateException("no input surface"));
+            }
+
+            long startNs = System.nanoTime();
+            session.start(newBuilder(file).build()).get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            mStartLatency.record(System.nanoTime() - startNs);
+
+            for (int frame = 0; frame < FRAMES_PER_SESSION; frame++) {
+                Canvas canvas = surface.lockCanvas(null);
+                // Changes every frame, so nothing is suppressed as static
+                canvas.drawColor(Color.rgb(frame * 8 % 256, 64, 255 - frame * 8 % 256));
+                surface.unlockCanvasAndPost(canvas);
+                Thread.sleep(1000 / FRAME_RATE);
+            }
+            long firstSampleUs = session.getRecorder().getStatsSnapshot().startupLatencyUs;
+            if (firstSampleUs >= 0) {
+                mFirstSampleLatency.record(firstSampleUs * 1000);
+            }
+            session.stop().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } finally {
+            mSurface = null;
+            session.close();
+        }
+    }
+
+    /**
+     * Returns how many sessions have run so far, failed ones included.
+     */
+    public int getCompletedSessions() {
+        return mCompleted;
+    }
+
+    public int getFailureCount() {
+        return mFailures;
+    }
+
+    public LatencyHistogram.Snapshot getStartLatency() {
+        return mStartLatency.snapshot();
+    }
+
+    private TextureMovieEncoder.EncoderConfig.Builder newBuilder(File file) {
+        return new TextureMovieEncoder.EncoderConfig.Builder(file, WIDTH, HEIGHT,
+                EGL14.EGL_NO_CONTEXT)
+                .setFrameRate(FRAME_RATE)
+                .setAudioPolicy(VideoEncoderCore.AUDIO_POLICY_NONE);
+    }
+
+    private void emptyDir() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                Log.w(TAG, "Can't delete " + file);
+            }
+        }
+    }
+
+    private void report(int sessions) {
+        Debug.MemoryInfo memory = new Debug.MemoryInfo();
+        Debug.getMemoryInfo(memory);
+        Runtime runtime = Runtime.getRuntime();
+        Log.i(TAG, sessions + "/" + mSessions + " sessions, " + mFailures + " failed"
+                + "; start: " + mStartLatency.snapshot()
+                + "; first sample: " + mFirstSampleLatency.snapshot()
+                + "; pss=" + memory.getTotalPss() + "KiB native="
+                + (Debug.getNativeHeapAllocatedSize() / 1024) + "KiB java="
+                + ((runtime.totalMemory() - runtime.freeMemory()) / 1024) + "KiB; " + mManager);
+    }
+}
@@ -0,0 +1,333 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and per-stage latency histograms for one recording pipeline.
+ * <p>
+ * The recording threads report into it; anyone may call {@link #snapshot} to read it.
+ * Reporting never allocates or takes a lock, and does nothing at all while the stats are
+ * disabled, so instrumented code looks like:
+ * <pre>
+ *     long start = stats.begin();
+ *     doWork();
+ *     stats.end(RecorderStats.STAGE_DRAW, start);
+ * </pre>
+ * This class has no Android dependencies.
+ */
+public final class RecorderStats {
+    /** Frame published to the encoder thread until the encoder thread picks it up */
+    public static final int STAGE_QUEUE = 0;
+    /** Draining the encoder, change detection and issuing the draw calls for a frame */
+    public static final int STAGE_DRAW = 1;
+    /** setPresentationTime() + swapBuffers() */
+    public static final int STAGE_SWAP = 2;
+    /** One writeSampleData() call into the muxer sink, audio or video */
+    public static final int STAGE_MUX_WRITE = 3;
+    /** Frame capture timestamp until its encoded sample reaches the muxer */
+    public static final int STAGE_CAPTURE_TO_MUX = 4;
+    /** Fingerprinting a frame for static-content suppression */
+    public static final int STAGE_DETECT = 5;
+    /** CPU time the encoder thread spends on one frame, draw through swap, without waits */
+    public static final int STAGE_GL_CPU = 6;
+    /** Moving the encoder into the share group of a new shared EGL context */
+    public static final int STAGE_CONTEXT_HANDOFF = 7;
+    public static final int STAGE_COUNT = 8;
+
+    private static final String[] STAGE_NAMES = {
+            "queue", "draw", "swap", "muxWrite", "captureToMux", "detect", "glCpu", "handoff"
+    };
+
+    private volatile boolean mEnabled;
+    private final LatencyHistogram[] mStages = new LatencyHistogram[STAGE_COUNT];
+    private final AtomicLong mFramesRendered = new AtomicLong();
+    private final AtomicLong mFramesSuppressed = new AtomicLong();
+    private final AtomicLong mVideoSamples = new AtomicLong();
+    private final AtomicLong mAudioSamples = new AtomicLong();
+    private final AtomicLong mVideoBytes = new AtomicLong();
+    private final AtomicLong mAudioBytes = new AtomicLong();
+    private final AtomicLong mSamplesDiscarded = new AtomicLong();
+    private volatile long mLastVideoPtsUs = -1;
+    private volatile long mLastAudioPtsUs = -1;
+    private volatile int mVideoBitRate;
+    private volatile long mStartRequestedNs;
+    private volatile long mStartupLatencyNs = -1;
+    private final AtomicLong mBitRateChanges = new AtomicLong();
+    private volatile long mAudioClockDriftUs;
+    private volatile long mAudioClockCorrections;
+    private volatile long mCaptureOffsetUs;
+
+    public RecorderStats(boolean enabled) {
+        mEnabled = enabled;
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            mStages[i] = new LatencyHistogram();
+        }
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Turns collection on or off.  Values collected so far are kept.
+     */
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    /**
+     * Returns a start time for {@link #end(int, long)}, or 0 while disabled.
+     */
+    public long begin() {
+        return mEnabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records the time since startNs, which came from {@link #begin()}.
+     */
+    public void end(int stage, long startNs) {
+        if (mEnabled && startNs != 0) {
+            mStages[stage].record(System.nanoTime() - startNs);
+        }
+    }
+
+    /**
+     * Records a latency measured by the caller.
+     */
+    public void recordLatency(int stage, long latencyNs) {
+        if (mEnabled) {
+            mStages[stage].record(latencyNs);
+        }
+    }
+
+    public void onFrameRendered() {
+        if (mEnabled) {
+            mFramesRendered.incrementAndGet();
+        }
+    }
+
+    /**
+     * A frame was skipped because it matched the last encoded one.
+     */
+    public void onFrameSuppressed() {
+        if (mEnabled) {
+            mFramesSuppressed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Recording was requested now; the time until the first muxed video sample is reported
+     * as the startup latency.  Call after {@link #reset()}.
+     */
+    public void markStartRequested() {
+        mStartRequestedNs = System.nanoTime();
+    }
+
+    /**
+     * An encoded video sample was written to the muxer.  Its presentation time is on the
+     * System.nanoTime() clock, like SurfaceTexture timestamps, so capture-to-mux latency is
+     * measured from it.
+     */
+    public void onVideoSampleWritten(int bytes, long ptsUs) {
+        if (mEnabled) {
+            if (mStartupLatencyNs < 0 && mStartRequestedNs != 0) {
+                mStartupLatencyNs = System.nanoTime() - mStartRequestedNs;
+            }
+            mVideoSamples.incrementAndGet();
+            mVideoBytes.addAndGet(bytes);
+            mLastVideoPtsUs = ptsUs;
+            mStages[STAGE_CAPTURE_TO_MUX].record(
+                    System.nanoTime() - (ptsUs + mCaptureOffsetUs) * 1000);
+        }
+    }
+
+    /**
+     * Video timestamps are this much behind the capture clock, e.g. after a pause, so
+     * capture-to-mux latency adds it back.
+     */
+    public void setCaptureOffsetUs(long offsetUs) {
+        mCaptureOffsetUs = offsetUs;
+    }
+
+    public long getCaptureOffsetUs() {
+        return mCaptureOffsetUs;
+    }
+
+    public void onAudioSampleWritten(int bytes, long ptsUs) {
+        if (mEnabled) {
+            mAudioSamples.incrementAndGet();
+            mAudioBytes.addAndGet(bytes);
+            mLastAudioPtsUs = ptsUs;
+        }
+    }
+
+    /**
+     * An encoded video sample was released without being muxed (muxer not started, not
+     * yet at a key frame after that, or paused).
+     */
+    public void onVideoSampleDiscarded() {
+        if (mEnabled) {
+            mSamplesDiscarded.incrementAndGet();
+        }
+    }
+
+    /**
+     * The video encoder was configured with, or switched to, a new bit rate.
+     */
+    public void onBitRateChanged(int bitRate) {
+        if (mEnabled) {
+            if (mVideoBitRate != 0) {
+                mBitRateChanges.incrementAndGet();
+            }
+            mVideoBitRate = bitRate;
+        }
+    }
+
+    /**
+     * Reports the state of the audio {@link MediaClock} after stamping a block.
+     */
+    public void onAudioClock(long driftUs, long corrections) {
+        if (mEnabled) {
+            mAudioClockDriftUs = driftUs;
+            mAudioClockCorrections = corrections;
+        }
+    }
+
+    /**
+     * Clears everything, e.g. at the start of a recording.
+     */
+    public void reset() {
+        for (LatencyHistogram stage : mStages) {
+            stage.reset();
+        }
+        mFramesRendered.set(0);
+        mFramesSuppressed.set(0);
+        mVideoSamples.set(0);
+        mAudioSamples.set(0);
+        mVideoBytes.set(0);
+        mAudioBytes.set(0);
+        mSamplesDiscarded.set(0);
+        mLastVideoPtsUs = -1;
+        mLastAudioPtsUs = -1;
+        mVideoBitRate = 0;
+        mBitRateChanges.set(0);
+        mStartRequestedNs = 0;
+        mStartupLatencyNs = -1;
+        mAudioClockDriftUs = 0;
+        mAudioClockCorrections = 0;
+        mCaptureOffsetUs = 0;
+    }
+
+    /**
+     * @param droppedFrames frames captured but never rendered, as counted by the caller
+     * @param framesQueued  frames waiting for the encoder thread
+     */
+    public Snapshot snapshot(long droppedFrames, int framesQueued) {
+        return snapshot(droppedFrames, 0, framesQueued);
+    }
+
+    /**
+     * @param coalescedFrames the part of droppedFrames that a later frame took the place of
+     */
+    public Snapshot snapshot(long droppedFrames, long coalescedFrames, int framesQueued) {
+        return new Snapshot(this, droppedFrames, coalescedFrames, framesQueued);
+    }
+
+    /**
+     * Point-in-time copy of the stats.
+     */
+    public static final class Snapshot {
+        private final LatencyHistogram.Snapshot[] mStages =
+                new LatencyHistogram.Snapshot[STAGE_COUNT];
+        public final long framesRendered;
+        public final long framesDropped;
+        /** Dropped frames that a later frame took the place of */
+        public final long framesCoalesced;
+        /** Frames skipped because the content had not changed */
+        public final long framesSuppressed;
+        /** Frames waiting for the encoder thread */
+        public final int framesQueued;
+        /** Frames rendered into the codec whose encoded sample has not been muxed yet */
+        public final long framesInCodec;
+        public final long videoSamples;
+        public final long audioSamples;
+        public final long videoBytes;
+        public final long audioBytes;
+        /** Video samples released without being muxed */
+        public final long samplesDiscarded;
+        /** Last muxed video PTS minus last muxed audio PTS, 0 until both have been seen */
+        public final long avDriftUs;
+        /** Bit rate currently asked of the video encoder */
+        public final int videoBitRate;
+        public final long bitRateChanges;
+        /** From startRecording() to the first muxed video sample, -1 until it happened */
+        public final long startupLatencyUs;
+        /** Audio arrival times minus the audio clock, see {@link MediaClock#getDriftUs()} */
+        public final long audioClockDriftUs;
+        /** Audio blocks whose clock was slewed */
+        public final long audioClockCorrections;
+
+        Snapshot(RecorderStats stats, long droppedFrames, long coalescedFrames, int queued) {
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                mStages[i] = stats.mStages[i].snapshot();
+            }
+            framesRendered = stats.mFramesRendered.get();
+            framesDropped = droppedFrames;
+            framesCoalesced = coalescedFrames;
+            framesSuppressed = stats.mFramesSuppressed.get();
+            framesQueued = queued;
+            videoSamples = stats.mVideoSamples.get();
+            audioSamples = stats.mAudioSamples.get();
+            videoBytes = stats.mVideoBytes.get();
+            audioBytes = stats.mAudioBytes.get();
+            samplesDiscarded = stats.mSamplesDiscarded.get();
+            framesInCodec = Math.max(0, framesRendered - videoSamples - samplesDiscarded);
+            long video = stats.mLastVideoPtsUs;
+            long audio = stats.mLastAudioPtsUs;
+            avDriftUs = video >= 0 && audio >= 0 ? video - audio : 0;
+            videoBitRate = stats.mVideoBitRate;
+            bitRateChanges = stats.mBitRateChanges.get();
+            long startup = stats.mStartupLatencyNs;
+            startupLatencyUs = startup < 0 ? -1 : startup / 1000;
+            audioClockDriftUs = stats.mAudioClockDriftUs;
+            audioClockCorrections = stats.mAudioClockCorrections;
+        }
+
+        /**
+         * Returns the fraction of frames reaching the encoder thread that were suppressed
+         * as unchanged, from 0 to 1.
+         */
+        public float getSuppressionRatio() {
+            long total = framesRendered + framesSuppressed;
+            return total == 0 ? 0f : (float) framesSuppressed / total;
+        }
+
+        public LatencyHistogram.Snapshot getStage(int stage) {
+            return mStages[stage];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("RecorderStats{");
+            sb.append("rendered=").append(framesRendered)
+                    .append(" dropped=").append(framesDropped)
+                    .append(" (").append(framesCoalesced).append(" coalesced)")
+                    .append(" suppressed=").append(framesSuppressed)
+                    .append(" queued=").append(framesQueued)
+                    .append(" inCodec=").append(framesInCodec)
+                    .append(" video=").append(videoSamples).append('/').append(videoBytes).append('B')
+                    .append(" audio=").append(audioSamples).append('/').append(audioBytes).append('B')
+                    .append(" discarded=").append(samplesDiscarded)
+                    .append(" avDrift=").append(avDriftUs).append("us")
+                    .append(" bitRate=").append(videoBitRate)
+                    .append(" (").append(bitRateChanges).append(" changes)")
+                    .append(" startup=").append(startupLatencyUs).append("us")
+                    .append(" audioClock=").append(audioClockDriftUs).append("us (")
+                    .append(audioClockCorrections).append(" slewed)");
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                sb.append("\n  ").append(STAGE_NAMES[i]).append(": ").append(mStages[i]);
+            }
+            return sb.append('}').toString();
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the last few seconds of encoded video and audio in memory, so they can be saved
+ * after the fact ("instant replay").
+ * <p>
+ * Samples are copied into one direct buffer used as a byte ring; their sizes, timestamps
+ * and flags go into fixed parallel arrays.  Nothing is allocated per sample.  The oldest
+ * data is evicted a whole GOP at a time, so the buffer always starts with a video key frame.
+ * A GOP is evicted when the newer GOPs alone cover the requested duration, or when a new
+ * sample doesn't fit in the memory budget or the sample table.  The window therefore holds
+ * at least the requested duration if the budget allows it, plus up to one key frame
+ * interval.
+ * <p>
+ * Writes come from the encoder's drain thread; {@link #save(File, int)} may run on any
+ * other thread at the same time.  It copies one sample at a time under the lock, so the
+ * writer is never blocked by disk I/O.
+ */
+public final class ReplayBuffer {
+    private static final String TAG = "ReplayBuffer";
+
+    public static final int TRACK_VIDEO = 0;
+    public static final int TRACK_AUDIO = 1;
+
+    /** Rough number of samples per second of A/V, used to size the sample table */
+    private static final int SAMPLES_PER_SECOND = 128;
+
+    private final long mMaxDurationUs;
+    private final ByteBuffer mData;
+    private final int mCapacity;
+
+    // Sample table, indexed by sequence number & mMask
+    private final int mMask;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final long[] mPtsUs;
+    private final int[] mFlags;
+    private final byte[] mTracks;
+    // Sequence numbers of the video key frames in the buffer, oldest first
+    private final long[] mKeyFrames;
+    private long mKeyHead;
+    private long mKeyTail;
+
+    private long mHead; // oldest sample
+    private long mTail; // next sample
+    private int mWritePos;
+    private int mMaxSampleSize;
+    // Set when the buffer is empty or a sample had to be dropped; cleared by a key frame
+    private boolean mNeedKeyFrame = true;
+    private long mEvictedGops;
+    private long mDroppedSamples;
+
+    private MediaFormat mVideoFormat;
+    private MediaFormat mAudioFormat;
+
+    /**
+     * @param maxDurationUs how much to keep
+     * @param budgetBytes   memory for the encoded samples
+     */
+    public ReplayBuffer(long maxDurationUs, int budgetBytes) {
+        this(maxDurationUs, budgetBytes,
+                (int) ((maxDurationUs / 1000000 + 10) * SAMPLES_PER_SECOND));
+    }
+
+    /**
+     * @param maxDurationUs how much to keep
+     * @param budgetBytes   memory for the encoded samples
+     * @param maxSamples    size of the sample table, rounded up to a power of two
+     */
+    public ReplayBuffer(long maxDurationUs, int budgetBytes, int maxSamples) {
+        if (maxDurationUs <= 0) {
+            throw new IllegalArgumentException("invalid duration " + maxDurationUs);
+        }
+        if (budgetBytes <= 0 || maxSamples <= 0) {
+            throw new IllegalArgumentException("invalid budget " + budgetBytes + "/" + maxSamples);
+        }
+        int slots = Integer.highestOneBit(maxSamples);
+        if (slots < maxSamples) {
+            slots <<= 1;
+        }
+        mMaxDurationUs = maxDurationUs;
+        mData = ByteBuffer.allocateDirect(budgetBytes);
+        mCapacity = budgetBytes;
+        mMask = slots - 1;
+        mOffsets = new int[slots];
+        mSizes = new int[slots];
+        mPtsUs = new long[slots];
+        mFlags = new int[slots];
+        mTracks = new byte[slots];
+        mKeyFrames = new long[slots];
+    }
+
+    /**
+     * Sets the track formats the encoders reported.  Needed before {@link #save(File, int)}.
+     */
+    public synchronized void setFormat(int track, MediaFormat format) {
+        if (track == TRACK_VIDEO) {
+            mVideoFormat = format;
+        } else {
+            mAudioFormat = format;
+        }
+    }
+
+    /**
+     * Drops everything, e.g. before the buffer is used with a new encoder session.
+     */
+    public synchronized void clear() {
+        mHead = mTail;
+        mKeyHead = mKeyTail;
+        mWritePos = 0;
+        mNeedKeyFrame = true;
+        mVideoFormat = null;
+        mAudioFormat = null;
+    }
+
+    /**
+     * Copies one encoded sample into the buffer.  Video up to the first key frame is
+     * dropped, as is audio before any video.  (Drain thread.)
+     *
+     * @param data sample data between info.offset and info.offset + info.size; its position
+     *             and limit are changed
+     * @return false if the sample was dropped
+     */
+    public synchronized boolean write(int track, ByteBuffer data, MediaCodec.BufferInfo info) {
+        boolean keyFrame = track == TRACK_VIDEO
+                && (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+        int size = info.size;
+        if (mNeedKeyFrame && !keyFrame) {
+            mDroppedSamples++;
+            return false;
+        }
+        if (size > mCapacity) {
+            Log.w(TAG, "Sample of " + size + " bytes exceeds the budget");
+            mDroppedSamples++;
+            mNeedKeyFrame = true;
+            return false;
+        }
+        if (keyFrame) {
+            trimToDuration(info.presentationTimeUs);
+        }
+
+        int offset;
+        while ((offset = allocate(size)) < 0 || mTail - mHead > mMask) {
+            evictGop();
+            if (mHead == mTail && !keyFrame) {
+                // The GOP being written was evicted; the rest of it is useless.
+                mDroppedSamples++;
+                mNeedKeyFrame = true;
+                return false;
+            }
+        }
+        data.position(info.offset);
+        data.limit(info.offset + size);
+        mData.limit(offset + size);
+        mData.position(offset);
+        mData.put(data);
+        mWritePos = offset + size;
+
+        int slot = (int) mTail & mMask;
+        mOffsets[slot] = offset;
+        mSizes[slot] = size;
+        mPtsUs[slot] = info.presentationTimeUs;
+        mFlags[slot] = keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+        mTracks[slot] = (byte) track;
+        if (keyFrame) {
+            mKeyFrames[(int) mKeyTail++ & mMask] = mTail;
+            mNeedKeyFrame = false;
+        }
+        mTail++;
+        mMaxSampleSize = Math.max(mMaxSampleSize, size);
+        return true;
+    }
+
+    /**
+     * Returns the offset to write size bytes at, or -1 if the oldest data is in the way.
+     */
+    private int allocate(int size) {
+        if (mHead == mTail) {
+            mWritePos = 0;
+            return 0;
+        }
+        int headPos = mOffsets[(int) mHead & mMask];
+        if (mWritePos > headPos) {
+            if (mCapacity - mWritePos >= size) {
+                return mWritePos;
+            }
+            // Wrap around, leaving the tail end unused.  Keep a gap so that a full ring can
+            // be told from an empty one.
+            return headPos > size ? 0 : -1;
+        }
+        return headPos - mWritePos > size ? mWritePos : -1;
+    }
+
+    /**
+     * Evicts GOPs while the newer ones still cover the requested duration.
+     */
+    private void trimToDuration(long nowUs) {
+        while (mKeyTail - mKeyHead >= 2) {
+            long nextKey = mKeyFrames[(int) (mKeyHead + 1) & mMask];
+            if (nowUs - mPtsUs[(int) nextKey & mMask] < mMaxDurationUs) {
+                break;
+            }
+            evictGop();
+        }
+    }
+
+    /**
+     * Drops the oldest GOP, with the audio interleaved in it.
+     */
+    private void evictGop() {
+        if (mKeyTail == mKeyHead) {
+            mHead = mTail;
+            return;
+        }
+        mKeyHead++;
+        mHead = mKeyTail != mKeyHead ? mKeyFrames[(int) mKeyHead & mMask] : mTail;
+        mEvictedGops++;
+    }
+
+    /**
+     * Returns the time span from the oldest to the newest sample.
+     */
+    public synchronized long getBufferedDurationUs() {
+        if (mHead == mTail) {
+            return 0;
+        }
+        return mPtsUs[(int) (mTail - 1) & mMask] - mPtsUs[(int) mHead & mMask];
+    }
+
+    public synchronized int getSampleCount() {
+        return (int) (mTail - mHead);
+    }
+
+    public synchronized long getEvictedGopCount() {
+        return mEvictedGops;
+    }
+
+    public synchronized long getDroppedSampleCount() {
+        return mDroppedSamples;
+    }
+
+    public int getBudgetBytes() {
+        return mCapacity;
+    }
+
+    /**
+     * Writes the buffered samples to a file.  Samples written to the buffer after the call
+     * started are not included.  Recording may go on meanwhile; if it evicts samples that
+     * weren't saved yet, saving skips ahead to the oldest remaining key frame.
+     *
+     * @param outputFormat VideoEncoderCore.OUTPUT_FORMAT_MP4 or OUTPUT_FORMAT_FRAGMENTED_MP4
+     * @return the duration saved, in microseconds
+     * @throws IOException           if the file couldn't be created
+     * @throws IllegalStateException if there is nothing to save, or the muxer failed
+     */
+    public long save(File file, int outputFormat) throws IOException {
+        MediaFormat videoFormat;
+        MediaFormat audioFormat = null;
+        long seq;
+        long end;
+        ByteBuffer scratch;
+        synchronized (this) {
+            if (mHead == mTail || mVideoFormat == null) {
+                throw new IllegalStateException("replay buffer is empty");
+            }
+            videoFormat = mVideoFormat;
+            for (long s = mHead; s < mTail; s++) {
+                if (mTracks[(int) s & mMask] == TRACK_AUDIO) {
+                    audioFormat = mAudioFormat;
+                    break;
+                }
+            }
+            seq = mHead;
+            end = mTail;
+            scratch = ByteBuffer.allocateDirect(mMaxSampleSize);
+        }
+
+        MuxerSink muxer = VideoEncoderCore.createMuxerSink(file, outputFormat);
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long firstPtsUs = -1;
+        long lastPtsUs = -1;
+        try {
+            int videoTrack = muxer.addTrack(videoFormat);
+            int audioTrack = audioFormat != null ? muxer.addTrack(audioFormat) : -1;
+            muxer.start();
+            while (true) {
+                int track;
+                synchronized (this) {
+                    if (seq < mHead) {
+                        Log.w(TAG, "Samples evicted while saving, skipped " + (mHead - seq));
+                        seq = mHead;
+                    }
+                    if (seq >= end) {
+                        break;
+                    }
+                    int slot = (int) seq & mMask;
+                    int offset = mOffsets[slot];
+                    int size = mSizes[slot];
+                    mData.limit(offset + size);
+                    mData.position(offset);
+                    scratch.clear();
+                    scratch.put(mData);
+                    scratch.flip();
+                    info.set(0, size, mPtsUs[slot], mFlags[slot]);
+                    track = mTracks[slot];
+                }
+                seq++;
+                if (track == TRACK_AUDIO && audioTrack < 0) {
+                    continue;
+                }
+                muxer.writeSampleData(track == TRACK_VIDEO ? videoTrack : audioTrack,
+                        scratch, info);
+                if (firstPtsUs < 0) {
+                    firstPtsUs = info.presentationTimeUs;
+                }
+                lastPtsUs = Math.max(lastPtsUs, info.presentationTimeUs);
+            }
+            muxer.stop();
+        } finally {
+            muxer.release();
+        }
+        return lastPtsUs - firstPtsUs;
+    }
+}
@@ -18,6 +18,7 @@ import android.opengl.EGL14;
 import android.opengl.EGLContext;
 import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.support.annotation.RequiresApi;
 import android.util.DisplayMetrics;
@@ -25,8 +26,11 @@ import android.util.Log;
 import android.view.Surface;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Screen capture
@@ -42,6 +46,8 @@ public class ScreenCapture {
 
     private static final String TAG = "ScreenCapture";
     public static final int CAPTURE_REQUEST_CODE = 8080;
+    /** How long release() waits for each lane of recorder threads */
+    private static final long SHUTDOWN_LANE_TIMEOUT_MS = 3000;
     private final WeakReference<Activity> mActivity; // Prevent memory leak
     private final int mScreenDensity;
     private MediaProjectionManager projectionManager;
@@ -49,6 +55,26 @@ public class ScreenCapture {
     private int width = 720; // Width of the recorded video
     private int height = 1280; // Height of the recorded video
     private int mBitRate = 1 * 1024 * 1024; //
+    private int mMinBitRate = 2000000; // floor for adaptive bit rate, 0 to disable
+    private int mDrainMode = VideoEncoderCore.DRAIN_MODE_ASYNC;
+    private int mOutputFormat = VideoEncoderCore.OUTPUT_FORMAT_MP4;
+    private int mAudioPolicy = VideoEncoderCore.AUDIO_POLICY_ENCODE;
+    private boolean mSuppressStaticFrames;
+    private int mProgressIntervalMs = 100;
+    private int mMaxFramesInFlight = TextureMovieEncoder.EncoderConfig.Builder.DEFAULT_MAX_FRAMES_IN_FLIGHT;
+    private int mFrameDropPolicy = FrameSlotPool.LATEST_WINS;
+    private int mQuality = CodecNegotiator.QUALITY_MEDIUM;
+    private boolean mPreArmed;
+    private boolean mArmed; // the recorder was pre-armed by startProjection()
+    private ReplayBuffer mReplayBuffer;
+    private long mSegmentDurationMs;
+    private long mSegmentBytes;
+    private SegmentingMuxerSink.Listener mSegmentListener;
+    private LivePreviewServer mLivePreview;
+    // Simulcast targets as {width, bitRate}
+    private final List<int[]> mSimulcastTargets = new ArrayList<>();
+    private CodecNegotiator.Result mNegotiated; // null if negotiation failed
+    private float[] mCropRegion; // null: the screen minus status and navigation bars
 
     private boolean running; // true if it is projecting screen
     private boolean recording; // true if it is recording screen
@@ -82,6 +108,246 @@ public class ScreenCapture {
     }
 
 
+    public int getMinBitRate() {
+        return mMinBitRate;
+    }
+
+    /**
+     * Sets the floor the bit rate may adapt down to on quiet screens, or 0 to always
+     * record at the full bit rate.
+     */
+    public void setMinBitRate(int minBitRate) {
+        mMinBitRate = minBitRate;
+    }
+
+    public int getProgressInterval() {
+        return mProgressIntervalMs;
+    }
+
+    /**
+     * Sets how much the recorded duration has to grow before the record callback hears
+     * about it.  100ms by default; 1000 is enough for a seconds counter.
+     */
+    public void setProgressInterval(int progressIntervalMs) {
+        mProgressIntervalMs = progressIntervalMs;
+    }
+
+    /**
+     * Sets how many frames may wait for or be drawn by the encoder, and what happens to
+     * the next one when that many are in flight.  By default a waiting frame is replaced by
+     * the latest one, so a slow encoder drops frames instead of falling behind.
+     *
+     * @param dropPolicy FrameSlotPool.LATEST_WINS, which needs at least 2 frames in flight,
+     *                   DROP_OLDEST or DROP_NEWEST
+     */
+    public void setBackPressure(int maxFramesInFlight, int dropPolicy) {
+        FrameSlotPool.checkConfig(maxFramesInFlight, dropPolicy);
+        mMaxFramesInFlight = maxFramesInFlight;
+        mFrameDropPolicy = dropPolicy;
+    }
+
+    public int getDrainMode() {
+        return mDrainMode;
+    }
+
+    /**
+     * Selects how the encoder output is drained for the next recording.
+     *
+     * @param drainMode VideoEncoderCore.DRAIN_MODE_ASYNC (default) or
+     *                  VideoEncoderCore.DRAIN_MODE_BLOCKING
+     */
+    public void setDrainMode(int drainMode) {
+        mDrainMode = drainMode;
+    }
+
+    /**
+     * Returns a copy of the recording pipeline's stats: per-stage latencies, queue depths,
+     * dropped frames, bytes written and A/V drift.
+     */
+    public RecorderStats.Snapshot getStatsSnapshot() {
+        return mRecorder.getStatsSnapshot();
+    }
+
+    /**
+     * Turns stats collection on (the default) or off.
+     */
+    public void setStatsEnabled(boolean enabled) {
+        mRecorder.getStats().setEnabled(enabled);
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Selects the quality tier negotiated with the device's encoder on the next
+     * startProjection().
+     *
+     * @param quality CodecNegotiator.QUALITY_LOW, QUALITY_MEDIUM (default) or QUALITY_HIGH
+     */
+    public void setQuality(int quality) {
+        mQuality = quality;
+    }
+
+    public boolean isSuppressStaticFrames() {
+        return mSuppressStaticFrames;
+    }
+
+    /**
+     * Skips encoding frames whose content did not change, for the next recording.  The
+     * share of skipped frames is reported as the suppression ratio in the stats.
+     */
+    public void setSuppressStaticFrames(boolean suppressStaticFrames) {
+        mSuppressStaticFrames = suppressStaticFrames;
+    }
+
+    public boolean isPreArmed() {
+        return mPreArmed;
+    }
+
+    /**
+     * Keeps the encoder warm while projecting, from the next startProjection() on, so that
+     * attachRecorder() starts writing almost immediately.  Costs a running encoder session
+     * while idle.
+     */
+    public void setPreArmed(boolean preArmed) {
+        mPreArmed = preArmed;
+    }
+
+    public ReplayBuffer getReplayBuffer() {
+        return mReplayBuffer;
+    }
+
+    /**
+     * Keeps the last seconds of every following recording in replayBuffer, or null for no
+     * replay.  See {@link #startReplay()} and {@link #saveReplay(File)}.
+     */
+    public void setReplayBuffer(ReplayBuffer replayBuffer) {
+        mReplayBuffer = replayBuffer;
+    }
+
+    /**
+     * Splits the following recordings into files of at most maxDurationMs or maxBytes, 0 for
+     * no limit.  Finished segments are finalized in the background while recording goes on.
+     */
+    public void setSegmentLimits(long maxDurationMs, long maxBytes) {
+        mSegmentDurationMs = maxDurationMs;
+        mSegmentBytes = maxBytes;
+    }
+
+    /**
+     * @param segmentListener told about every finished segment, on a background thread
+     */
+    public void setSegmentListener(SegmentingMuxerSink.Listener segmentListener) {
+        mSegmentListener = segmentListener;
+    }
+
+    /**
+     * Starts serving the following recordings live on http://127.0.0.1:port/live.mp4, see
+     * {@link LivePreviewServer}.
+     *
+     * @param port port to listen on, or 0 for any free one
+     * @return the port listened on
+     */
+    public int startLivePreview(int port) throws IOException {
+        if (mLivePreview == null) {
+            LivePreviewServer server = new LivePreviewServer(port);
+            server.start();
+            mLivePreview = server;
+        }
+        return mLivePreview.getPort();
+    }
+
+    public void stopLivePreview() {
+        if (mLivePreview != null) {
+            mLivePreview.stop();
+            mLivePreview = null;
+        }
+    }
+
+    /**
+     * Also records every following recording at width pixels wide (height keeps the video's
+     * aspect ratio) and bitRate, to a file next to the main one named e.g.
+     * "1234_360x640.mp4".  Costs another codec per target.
+     */
+    public void addSimulcastTarget(int width, int bitRate) {
+        mSimulcastTargets.add(new int[]{width, bitRate});
+    }
+
+    public void clearSimulcastTargets() {
+        mSimulcastTargets.clear();
+    }
+
+    /**
+     * Returns the stats of the current recording's simulcast targets, in the order they
+     * were added.
+     */
+    public RecorderStats.Snapshot[] getSimulcastStatsSnapshots() {
+        return mRecorder.getSimulcastStatsSnapshots();
+    }
+
+    /**
+     * Records only this part of the screen, from the next startProjection() on, in fractions
+     * of the screen's width and height from the top left.  The encoder is sized for the
+     * region, so a small region is cheaper to encode and gives smaller files.  null (the
+     * default) records the screen without the status and navigation bars.
+     */
+    public void setCropRegion(float left, float top, float right, float bottom) {
+        if (left < 0f || right > 1f || left >= right || top < 0f || bottom > 1f || top >= bottom) {
+            throw new IllegalArgumentException("invalid region " + left + "," + top
+                    + " - " + right + "," + bottom);
+        }
+        mCropRegion = new float[]{left, top, right, bottom};
+    }
+
+    public void clearCropRegion() {
+        mCropRegion = null;
+    }
+
+    /**
+     * Smoothly pans and zooms the recording inside the crop region, e.g. to follow a part
+     * of the screen.  See {@link TextureMovieEncoder#zoomTo}.
+     *
+     * @param centerX    horizontal center of the view, as a fraction of the region
+     * @param centerY    vertical center of the view, as a fraction of the region
+     * @param zoom       1 shows the whole region
+     * @param durationMs 0 to jump there
+     */
+    public void zoomTo(float centerX, float centerY, float zoom, int durationMs) {
+        mRecorder.zoomTo(centerX, centerY, zoom, durationMs);
+    }
+
+    public int getOutputFormat() {
+        return mOutputFormat;
+    }
+
+    /**
+     * Selects the container for the next recording.
+     *
+     * @param outputFormat VideoEncoderCore.OUTPUT_FORMAT_MP4 (default) or
+     *                     VideoEncoderCore.OUTPUT_FORMAT_FRAGMENTED_MP4
+     */
+    public void setOutputFormat(int outputFormat) {
+        mOutputFormat = outputFormat;
+    }
+
+    public int getAudioPolicy() {
+        return mAudioPolicy;
+    }
+
+    /**
+     * Selects what the next recording does for audio.  With anything but
+     * VideoEncoderCore.AUDIO_POLICY_ENCODE, no AAC codec runs and sendAudioFrame() is
+     * ignored, so there is no need to capture audio at all.
+     *
+     * @param audioPolicy VideoEncoderCore.AUDIO_POLICY_ENCODE (default),
+     *                    VideoEncoderCore.AUDIO_POLICY_NONE or
+     *                    VideoEncoderCore.AUDIO_POLICY_SILENCE
+     */
+    public void setAudioPolicy(int audioPolicy) {
+        mAudioPolicy = audioPolicy;
+    }
+
     /**
      * @return true when projecting
      */
@@ -133,8 +399,14 @@ public class ScreenCapture {
         if (mMediaProjectionReadyListener != null) {
             mMediaProjectionReadyListener.onMediaProjectionReady(mediaProjection);
         }
+        negotiateVideoConfig();
         createVirtualDisplay();
         running = true;
+        mArmed = mPreArmed;
+        if (mArmed) {
+            setRecorderSurfaceCallback();
+            mRecorder.prepareRecording(buildEncoderConfig(null, mAudioPolicy));
+        }
         Log.d(TAG, "end startProjection");
         return true;
     }
@@ -145,6 +417,70 @@ public class ScreenCapture {
      * @return true if attach success
      */
     public synchronized boolean attachRecorder() {
+        return attach(getFile());
+    }
+
+    /**
+     * Like {@link #attachRecorder()}, but only encodes into the replay buffer without writing
+     * a file.  Stop with {@link #detachRecorder()}.
+     *
+     * @return true if attach success
+     */
+    public synchronized boolean startReplay() {
+        if (mReplayBuffer == null) {
+            throw new IllegalStateException("no replay buffer set");
+        }
+        return attach(null);
+    }
+
+    /**
+     * Saves the replay buffer's contents to file on a background thread, while recording
+     * goes on.  The result is reported to the RecordCallback, without a cover.
+     */
+    public void saveReplay(final File file) {
+        final ReplayBuffer replay = mReplayBuffer;
+        if (replay == null) {
+            throw new IllegalStateException("no replay buffer set");
+        }
+        final int outputFormat = mOutputFormat;
+        final Handler mainHandler = RecorderScheduler.getDefault().newCallbackHandler();
+        RecorderScheduler.getDefault().newThread(RecorderScheduler.LANE_IO, "ReplaySaver", new Runnable() {
+            @Override
+            public void run() {
+                long startNs = System.nanoTime();
+                try {
+                    final long durationUs = replay.save(file, outputFormat);
+                    Log.d(TAG, "Saved " + durationUs / 1000 + "ms replay in "
+                            + (System.nanoTime() - startNs) / 1000000 + "ms");
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            RecordCallback callback = getRecordCallback();
+                            if (callback != null) {
+                                callback.onRecordSuccess(file.getPath(), null, durationUs / 1000);
+                            }
+                        }
+                    });
+                } catch (final IOException | IllegalStateException e) {
+                    Log.w(TAG, "Failed to save replay", e);
+                    mainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            RecordCallback callback = getRecordCallback();
+                            if (callback != null) {
+                                callback.onRecordFailed(e, 0);
+                            }
+                        }
+                    });
+                }
+            }
+        }, null).start();
+    }
+
+    /**
+     * @param file output file, or null to record into the replay buffer only
+     */
+    private boolean attach(File file) {
         Log.d(TAG, "Start attachRecorder");
         if (!running ) {//running代表获取 media projection 成功
             // if not projecting screen or already recording return false
@@ -154,32 +490,53 @@ public class ScreenCapture {
         if (recording) {
             return false;
         }
-        EGLContext eglContext = EGL14.eglGetCurrentContext();
-        File file = getFile();
-        float cropTop = ((float) Utils.getStatusBarHeight(mActivity.get())) /  Utils.getRealHeight(mActivity.get());
-        float cropBottom = ((float) Utils.getNavBarHeight(mActivity.get())) / Utils.getRealHeight(mActivity.get());
-        mRecorder.startRecording(new TextureMovieEncoder.EncoderConfig(file,
-                width, height,
-                cropTop, cropBottom, mBitRate, eglContext));
-        mRecorder.setCallback(new TextureMovieEncoder.Callback() {
-            @Override
-            public void onInputSurfacePrepared(Surface surface) {
-                virtualDisplay.setSurface(surface);
-            }
-        });
-
-        // init AudioRecord to record from mic
-        initAudioRecord(MediaRecorder.AudioSource.MIC, DEFAULT_SAMPLE_RATE, DEFAULT_CHANNEL_CONFIG, DEFAULT_DATA_FORMAT);
+        // Read once: the config and the capture below must agree on it
+        int audioPolicy = mAudioPolicy;
+        RecorderFuture started = mRecorder.startRecording(buildEncoderConfig(file, audioPolicy));
+        if (started.getFailure() != null) {
+            // Refused at once, e.g. the last recording is still being finished
+            Log.w(TAG, "Recorder not ready: " + started.getFailure().getMessage());
+            return false;
+        }
+        mRecordingId = mRecorder.getRecordingId();
+        if (!mArmed) {
+            setRecorderSurfaceCallback();
+        }
 
-        mAudioLoopExited = false;
-        mAudioThread = new Thread(new AudioRunnable());
-        mAudioThread.start();
+        if (audioPolicy == VideoEncoderCore.AUDIO_POLICY_ENCODE) {
+            startAudioCapture();
+        }
 
         recording = true;
         Log.d(TAG, "end attachRecorder");
         return true;
     }
 
+    /**
+     * Starts the mic capture thread and the thread that feeds its PCM to the encoder.  Only
+     * needed when the recording encodes audio; any other policy never reads it.
+     */
+    private void startAudioCapture() {
+        // init AudioRecord to record from mic
+        AudioRecord audioRecord = initAudioRecord(MediaRecorder.AudioSource.MIC,
+                DEFAULT_SAMPLE_RATE, DEFAULT_CHANNEL_CONFIG, DEFAULT_DATA_FORMAT);
+
+        RecorderScheduler scheduler = RecorderScheduler.getDefault();
+        mAudioRing = new PcmRingBuffer(AUDIO_RING_BLOCKS, AUDIO_BLOCK_SIZE);
+        final AudioRunnable capture = new AudioRunnable(mAudioRing, audioRecord);
+        mAudioCapture = capture;
+        scheduler.newThread(RecorderScheduler.LANE_AUDIO_CAPTURE, "AudioCapture", capture,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        capture.stop();
+                    }
+                }).start();
+        // Ends by itself after the end-of-stream block the capture thread writes last
+        scheduler.newThread(RecorderScheduler.LANE_AUDIO_CAPTURE, "AudioEncodeFeeder",
+                new AudioEncodeRunnable(mAudioRing, mRecordingId), null).start();
+    }
+
     /**
      * Step 4，detach encoder from virtual screen and stop recoding.
      *
@@ -192,24 +549,22 @@ public class ScreenCapture {
             return false;
         }
         recording = false;
-        mAudioLoopExited = true;
 
-        if (mAudioThread != null) {
-            mAudioThread.interrupt();
-            mAudioThread = null;
+        if (mAudioCapture != null) {
+            // The capture thread releases the AudioRecord, and the feeder exits once it has
+            // consumed the end-of-stream block
+            mAudioCapture.stop();
+            mAudioCapture = null;
         }
-        if (mAudioRecord != null) {
-            try {
-                mAudioRecord.stop();
-                mAudioRecord.release();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-            mAudioRecord = null;
+        if (mAudioRing != null) {
+            Log.d(TAG, "Audio ring overruns: " + mAudioRing.getOverrunCount()
+                    + ", underruns: " + mAudioRing.getUnderrunCount());
+            mAudioRing = null;
         }
-
         mRecorder.stopRecording();
-        virtualDisplay.setSurface(null);
+        if (!mArmed) {
+            virtualDisplay.setSurface(null);
+        }
 
         return true;
     }
@@ -225,6 +580,11 @@ public class ScreenCapture {
         if (recording) {
             detachRecorder();
         }
+        if (mArmed) {
+            mArmed = false;
+            mRecorder.releaseRecorder();
+            virtualDisplay.setSurface(null);
+        }
         running = false;
         if (virtualDisplay != null) {
             virtualDisplay.release();
@@ -238,6 +598,29 @@ public class ScreenCapture {
         return true;
     }
 
+    /**
+     * Stops projecting, then stops every recorder thread in order: audio capture first, the
+     * encoder threads next, which finish the last recording, and the file threads last.
+     * The future completes once they have all exited.
+     */
+    public RecorderFuture release() {
+        if (running) {
+            stopProjection();
+        }
+        final RecorderFuture stopped = RecorderScheduler.getDefault().shutdown(
+                SHUTDOWN_LANE_TIMEOUT_MS);
+        stopped.whenDone(new Runnable() {
+            @Override
+            public void run() {
+                if (stopped.getFailure() != null) {
+                    Log.w(TAG, "Recorder threads didn't stop", stopped.getFailure());
+                }
+                Log.d(TAG, RecorderScheduler.getDefault().report());
+            }
+        }, RecorderScheduler.getDefault().newCallbackHandler());
+        return stopped;
+    }
+
     public boolean pauseRecording() {
         if (mRecorder != null) {
             mRecorder.pauseRecording();
@@ -245,16 +628,147 @@ public class ScreenCapture {
         return true;
     }
 
+    public boolean isPaused() {
+        return mRecorder != null && mRecorder.isPaused();
+    }
+
+    /**
+     * Returns the recorder's lifecycle state, one of the TextureMovieEncoder.STATE_
+     * constants; e.g. a new recording can't start while the last one is draining.
+     */
+    public int getRecorderState() {
+        return mRecorder.getState();
+    }
+
+    /**
+     * Feeds audio to the recording started by the last attachRecorder(); frames left over
+     * from an earlier recording are dropped by the recorder.
+     */
     public void sendAudioFrame(ByteBuffer byteBuffer, int size, boolean isEnd) {
-        if (mRecorder.isRecording()) {
-            mRecorder.audioFrameAvailable(byteBuffer, size, isEnd);
+        mRecorder.audioFrameAvailable(mRecordingId, byteBuffer, size, isEnd);
+    }
+
+    public void sendAudioFrame(ByteBuffer byteBuffer, int size, long presentTimeUs, boolean isEnd) {
+        mRecorder.audioFrameAvailable(mRecordingId, byteBuffer, size, presentTimeUs, isEnd);
+    }
+
+    /**
+     * @param file        output file, or null when pre-arming
+     * @param audioPolicy one of the VideoEncoderCore.AUDIO_POLICY_ constants
+     */
+    private TextureMovieEncoder.EncoderConfig buildEncoderConfig(File file, int audioPolicy) {
+        EGLContext eglContext = EGL14.eglGetCurrentContext();
+        float[] crop = getCropRect();
+        TextureMovieEncoder.EncoderConfig.Builder builder = new TextureMovieEncoder.EncoderConfig.Builder(file,
+                width, height, eglContext)
+                .setCropRect(crop[0], crop[1], crop[2], crop[3])
+                .setBitRate(mBitRate)
+                .setMinBitRate(mMinBitRate)
+                .setDrainMode(mDrainMode)
+                .setOutputFormat(mOutputFormat)
+                .setAudioPolicy(audioPolicy)
+                .setSuppressStaticFrames(mSuppressStaticFrames)
+                .setProgressInterval(mProgressIntervalMs)
+                .setMaxFramesInFlight(mMaxFramesInFlight)
+                .setFrameDropPolicy(mFrameDropPolicy)
+                .setReplayBuffer(mReplayBuffer)
+                .setSegmentLimits(mSegmentDurationMs, mSegmentBytes)
+                .setSegmentListener(mSegmentListener)
+                .setLivePreview(mLivePreview);
+        if (mNegotiated != null) {
+            builder.setVideoSize(mNegotiated.width, mNegotiated.height)
+                    .setFrameRate(mNegotiated.frameRate)
+                    .setMaxFrameRate(mNegotiated.frameRate)
+                    .setCodecName(mNegotiated.codecName);
+        }
+        if (file != null) {
+            addSimulcastTargets(builder, file);
         }
+        return builder.build();
+    }
+
+    private void addSimulcastTargets(TextureMovieEncoder.EncoderConfig.Builder builder, File file) {
+        float[] crop = getCropRect();
+        int videoWidth = mNegotiated != null ? mNegotiated.width
+                : (int) (width * (crop[2] - crop[0]));
+        int videoHeight = mNegotiated != null ? mNegotiated.height
+                : (int) (height * (crop[3] - crop[1]));
+        for (int[] target : mSimulcastTargets) {
+            int targetWidth = target[0] & ~1;
+            int targetHeight = Math.round((float) targetWidth * videoHeight / videoWidth) & ~1;
+            String name = file.getName().replace(".mp4", "")
+                    + "_" + targetWidth + "x" + targetHeight + ".mp4";
+            builder.addSimulcastTarget(new SimulcastTarget.Builder(
+                    new File(file.getParentFile(), name), targetWidth, targetHeight)
+                    .setBitRate(target[1])
+                    .setOutputFormat(mOutputFormat)
+                    .build());
+        }
+    }
+
+    private void setRecorderSurfaceCallback() {
+        mRecorder.setCallback(new TextureMovieEncoder.Callback() {
+            @Override
+            public void onInputSurfacePrepared(Surface surface) {
+                virtualDisplay.setSurface(surface);
+            }
+        });
     }
 
     private boolean isCurrentActivity(Activity activity) {
         return mActivity.get() == activity;
     }
 
+    /**
+     * Returns the part of the screen recorded, {left, top, right, bottom}.
+     */
+    private float[] getCropRect() {
+        if (mCropRegion != null) {
+            return mCropRegion;
+        }
+        return new float[]{0f, getCropTop(), 1f, 1f - getCropBottom()};
+    }
+
+    private float getCropTop() {
+        return ((float) Utils.getStatusBarHeight(mActivity.get())) / Utils.getRealHeight(mActivity.get());
+    }
+
+    private float getCropBottom() {
+        return ((float) Utils.getNavBarHeight(mActivity.get())) / Utils.getRealHeight(mActivity.get());
+    }
+
+    /**
+     * Asks the encoder what it can do for the selected quality tier, and sizes the virtual
+     * display so that the cropped area matches the negotiated video size.  Keeps the
+     * defaults if no encoder fits.
+     */
+    private void negotiateVideoConfig() {
+        Activity activity = mActivity.get();
+        if (activity == null) {
+            return;
+        }
+        float[] crop = getCropRect();
+        float keepWidth = crop[2] - crop[0];
+        float keep = crop[3] - crop[1];
+        int croppedWidth = (int) (Utils.getScreenWidth(activity) * keepWidth);
+        int croppedHeight = (int) (Utils.getRealHeight(activity) * keep);
+        mNegotiated = new CodecNegotiator(activity).negotiate(mQuality, croppedWidth, croppedHeight);
+        if (mNegotiated == null) {
+            Log.w(TAG, "No encoder configuration found, keeping " + width + "x" + height);
+            return;
+        }
+        width = Math.round(mNegotiated.width / keepWidth);
+        if (width % 2 != 0) {
+            width += 1;
+        }
+        height = Math.round(mNegotiated.height / keep);
+        if (height % 2 != 0) {
+            height += 1;
+        }
+        mBitRate = mNegotiated.bitRate;
+        Log.d(TAG, "Negotiated " + mNegotiated + ", capturing " + width + "x" + height);
+    }
+
     private void createVirtualDisplay() {
         Log.d(TAG, "start createVirtualDisplay()");
         virtualDisplay = mediaProjection.createVirtualDisplay(
@@ -284,55 +798,133 @@ public class ScreenCapture {
     }
 
     // -------- Audio test ---------
-    private boolean mAudioLoopExited;
-    private AudioRecord mAudioRecord;
-    private Thread mAudioThread;
+    /** PCM bytes per ring block, same as the old per-read buffer */
+    private static final int AUDIO_BLOCK_SIZE = 1024 * 2;
+    /** ~320ms of 48kHz mono 16-bit PCM, plus the block held back for the end of stream */
+    private static final int AUDIO_RING_BLOCKS = 16;
+    /** How long the feeder waits for a block before counting an underrun */
+    private static final long AUDIO_WAIT_NS = 50 * 1000 * 1000L;
+
+    private volatile AudioRunnable mAudioCapture;
+    // Id of the recording the last attachRecorder() started, see sendAudioFrame()
+    private volatile int mRecordingId;
+    private PcmRingBuffer mAudioRing;
 
-    private boolean initAudioRecord(int audioSource, int sampleRateInHz, int channelConfig, int audioFormat) {
+    /**
+     * Returns a started AudioRecord, or null if it can't be set up.
+     */
+    private AudioRecord initAudioRecord(int audioSource, int sampleRateInHz, int channelConfig, int audioFormat) {
         int minBufferSize = AudioRecord.getMinBufferSize(sampleRateInHz, channelConfig, audioFormat);
         if (minBufferSize == AudioRecord.ERROR_BAD_VALUE) {
             Log.e(TAG, "Invalid parameter !");
-            return false;
+            return null;
         }
-        mAudioRecord = new AudioRecord(audioSource, sampleRateInHz, channelConfig, audioFormat, minBufferSize * 4);
-        if (mAudioRecord.getState() == AudioRecord.STATE_UNINITIALIZED) {
+        AudioRecord audioRecord = new AudioRecord(audioSource, sampleRateInHz, channelConfig, audioFormat, minBufferSize * 4);
+        if (audioRecord.getState() == AudioRecord.STATE_UNINITIALIZED) {
             Log.e(TAG, "AudioRecord initialize fail !");
-            return false;
+            audioRecord.release();
+            return null;
         }
 
-        mAudioRecord.startRecording();
-        return true;
+        audioRecord.startRecording();
+        return audioRecord;
     }
 
+    /**
+     * Reads PCM from the AudioRecord into the ring.  Never waits on the encoder: when the
+     * ring is full the block is read into a scratch buffer and dropped.
+     */
     private class AudioRunnable implements Runnable {
-        private byte[] mBuffer;
+        private final PcmRingBuffer mRing;
+        private final ByteBuffer mScratch;
+        // Owned by the capture thread, which releases it; null if it couldn't be set up
+        private final AudioRecord mRecord;
+        private volatile boolean mStopped;
+
+        AudioRunnable(PcmRingBuffer ring, AudioRecord record) {
+            mRing = ring;
+            mScratch = ByteBuffer.allocateDirect(ring.getBlockSize());
+            mRecord = record;
+        }
+
+        /**
+         * Ends the capture loop; stopping the AudioRecord makes a blocked read return.
+         */
+        void stop() {
+            mStopped = true;
+            if (mRecord != null) {
+                try {
+                    mRecord.stop();
+                } catch (IllegalStateException e) {
+                    Log.w(TAG, "AudioRecord.stop failed", e);
+                }
+            }
+        }
 
         @Override
         public void run() {
-            while (!mAudioLoopExited) {
-                enqueueAudioFrame(false);
+            try {
+                while (!mStopped && mRecord != null) {
+                    readAudioBlock();
+                }
+            } finally {
+                if (mRecord != null) {
+                    mRecord.release();
+                }
             }
 
-            enqueueAudioFrame(true);
+            // Goes into the block the ring holds back for it, even if the ring is full
+            mRing.writeEndOfStream(System.nanoTime() / 1000);
+            Log.d(TAG, "AudioLoopExiting, add flag end of stream");
         }
 
-        private void enqueueAudioFrame(boolean endOfStream) {
-            if (mBuffer == null) {
-                mBuffer = new byte[1024 * 2]; // prevent recreate buffer
-            }
-            if (mAudioRecord == null) {
-                return;
-            }
+        private void readAudioBlock() {
+            ByteBuffer block = mRing.beginWrite();
+            ByteBuffer target = block != null ? block : mScratch;
+            target.clear();
 
-            int ret = mAudioRecord.read(mBuffer, 0, mBuffer.length);
+            int ret = mRecord.read(target, target.capacity());
+            // The read returns once the last sample is in; 16-bit mono, so 2 bytes a sample
+            long ptsUs = System.nanoTime() / 1000
+                    - Math.max(0, ret) * 1000000L / (DEFAULT_SAMPLE_RATE * 2);
             if (ret == AudioRecord.ERROR_INVALID_OPERATION) {
                 Log.e(TAG, "Error ERROR_INVALID_OPERATION");
             } else if (ret == AudioRecord.ERROR_BAD_VALUE) {
                 Log.e(TAG, "Error ERROR_BAD_VALUE");
-            } else {
-                ByteBuffer buf = ByteBuffer.wrap(mBuffer);
-                sendAudioFrame(buf, ret, endOfStream);
-                Log.d(TAG, "AudioLoopExiting, add flag end of stream");
+            } else if (block != null) {
+                mRing.endWrite(ret, ptsUs, false);
+            }
+        }
+    }
+
+    /**
+     * Drains the ring into the AAC encoder.  This is the only thread that waits on encoder
+     * input buffers, so a slow encoder can no longer stall the AudioRecord thread.
+     */
+    private class AudioEncodeRunnable implements Runnable {
+        private final PcmRingBuffer mRing;
+        private final int mRecordingId;
+
+        AudioEncodeRunnable(PcmRingBuffer ring, int recordingId) {
+            mRing = ring;
+            mRecordingId = recordingId;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                if (!mRing.awaitReadable(AUDIO_WAIT_NS)) {
+                    continue;
+                }
+                ByteBuffer block = mRing.beginRead();
+                boolean endOfStream = mRing.isReadEndOfStream();
+                // This recording's id, even once the next one has started
+                mRecorder.audioFrameCaptured(mRecordingId, block, mRing.getReadSize(),
+                        mRing.getReadPresentationTimeUs(), endOfStream);
+                mRing.endRead();
+                if (endOfStream) {
+                    break;
+                }
             }
         }
     }
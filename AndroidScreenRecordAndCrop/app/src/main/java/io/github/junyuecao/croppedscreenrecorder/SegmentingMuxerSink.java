@@ -0,0 +1,224 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MuxerSink that splits the recording into several files, each starting with a video key
+ * frame.
+ * <p>
+ * Once the current segment reaches the duration or size limit, the sink switches to a new
+ * file at the next key frame, asking the encoder for one through the sync frame requester.
+ * The finished segment is finalized on a background thread while encoding goes on into the
+ * next one, so stop() only has to finish the last segment.  A crash loses at most the
+ * segment being written.
+ * <p>
+ * The first segment is written to the output file itself; later ones get "_1", "_2"... added
+ * to its name.
+ */
+public class SegmentingMuxerSink implements MuxerSink {
+    private static final String TAG = "SegmentingMuxerSink";
+    /** How long to wait for a requested key frame before asking again */
+    private static final long SYNC_FRAME_RETRY_US = 1000000;
+    /** How long stop() waits for segments still being finalized */
+    private static final long FINALIZE_TIMEOUT_MS = 10000;
+
+    /**
+     * Told about every finalized segment, on the finalizer thread.
+     */
+    public interface Listener {
+        void onSegmentFinished(int index, File file);
+    }
+
+    private final File mOutputFile;
+    private final int mOutputFormat;
+    private final long mMaxDurationUs;
+    private final long mMaxBytes;
+    private final Runnable mSyncFrameRequester;
+    private final ExecutorService mFinalizer;
+    private volatile Listener mListener;
+
+    private final List<MediaFormat> mFormats = new ArrayList<>();
+    private int mVideoTrack = -1;
+    private int[] mTrackMap;
+
+    private MuxerSink mCurrent;
+    private File mCurrentFile;
+    private int mSegmentIndex;
+    private long mSegmentStartUs = -1;
+    private long mSegmentBytes;
+    private long mSyncRequestedUs = -1;
+    private volatile Exception mFinalizeError;
+
+    /**
+     * @param outputFormat       VideoEncoderCore.OUTPUT_FORMAT_MP4 or OUTPUT_FORMAT_FRAGMENTED_MP4
+     * @param maxDurationUs      segment duration limit, or 0 for none
+     * @param maxBytes           segment size limit, or 0 for none
+     * @param syncFrameRequester asks the video encoder for a key frame; called on the thread
+     *                           that writes samples
+     */
+    public SegmentingMuxerSink(File outputFile, int outputFormat, long maxDurationUs,
+                               long maxBytes, Runnable syncFrameRequester) {
+        mOutputFile = outputFile;
+        mOutputFormat = outputFormat;
+        mMaxDurationUs = maxDurationUs;
+        mMaxBytes = maxBytes;
+        mSyncFrameRequester = syncFrameRequester;
+        mFinalizer = RecorderScheduler.getDefault().newSingleThreadExecutor(
+                RecorderScheduler.LANE_IO, "SegmentFinalizer");
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        if (mCurrent != null) {
+            throw new IllegalStateException("already started");
+        }
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (mime != null && mime.startsWith("video/")) {
+            mVideoTrack = mFormats.size();
+        }
+        mFormats.add(format);
+        return mFormats.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        mTrackMap = new int[mFormats.size()];
+        openSegment();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (trackIndex == mVideoTrack) {
+            long ptsUs = bufferInfo.presentationTimeUs;
+            if (mSegmentStartUs < 0) {
+                mSegmentStartUs = ptsUs;
+            } else if (isSegmentFull(ptsUs)) {
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                    finishSegment();
+                    openSegment();
+                    mSegmentStartUs = ptsUs;
+                } else if (mSyncRequestedUs < 0 || ptsUs - mSyncRequestedUs >= SYNC_FRAME_RETRY_US) {
+                    mSyncRequestedUs = ptsUs;
+                    mSyncFrameRequester.run();
+                }
+            }
+        }
+        mCurrent.writeSampleData(mTrackMap[trackIndex], byteBuf, bufferInfo);
+        mSegmentBytes += bufferInfo.size;
+    }
+
+    private boolean isSegmentFull(long ptsUs) {
+        return (mMaxDurationUs > 0 && ptsUs - mSegmentStartUs >= mMaxDurationUs)
+                || (mMaxBytes > 0 && mSegmentBytes >= mMaxBytes);
+    }
+
+    private void openSegment() {
+        File file = mSegmentIndex == 0 ? mOutputFile : getSegmentFile(mOutputFile, mSegmentIndex);
+        try {
+            mCurrent = VideoEncoderCore.createMuxerSink(file, mOutputFormat);
+        } catch (IOException e) {
+            throw new IllegalStateException("failed to create segment " + file, e);
+        }
+        for (int i = 0; i < mFormats.size(); i++) {
+            mTrackMap[i] = mCurrent.addTrack(mFormats.get(i));
+        }
+        mCurrent.start();
+        mCurrentFile = file;
+        mSegmentBytes = 0;
+        mSyncRequestedUs = -1;
+    }
+
+    /**
+     * Hands the current segment to the finalizer thread.
+     */
+    private void finishSegment() {
+        final MuxerSink muxer = mCurrent;
+        final File file = mCurrentFile;
+        final int index = mSegmentIndex++;
+        mCurrent = null;
+        Log.d(TAG, "Segment " + index + " done: " + mSegmentBytes + " bytes");
+        mFinalizer.execute(new Runnable() {
+            @Override
+            public void run() {
+                finalizeSegment(muxer, index, file);
+            }
+        });
+    }
+
+    private void finalizeSegment(MuxerSink muxer, int index, File file) {
+        try {
+            muxer.stop();
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onSegmentFinished(index, file);
+            }
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Failed to finalize " + file, e);
+            mFinalizeError = e;
+        } finally {
+            muxer.release();
+        }
+    }
+
+    /**
+     * Finishes the last segment and waits for the others to be finalized.
+     *
+     * @throws IllegalStateException if any segment could not be finalized
+     */
+    @Override
+    public void stop() {
+        if (mCurrent != null) {
+            MuxerSink muxer = mCurrent;
+            mCurrent = null;
+            finalizeSegment(muxer, mSegmentIndex, mCurrentFile);
+        }
+        mFinalizer.shutdown();
+        try {
+            if (!mFinalizer.awaitTermination(FINALIZE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out finalizing segments");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Exception error = mFinalizeError;
+        if (error != null) {
+            throw new IllegalStateException("failed to finalize a segment", error);
+        }
+    }
+
+    @Override
+    public void release() {
+        // No-op if stop() already ran.
+        if (mCurrent != null) {
+            mCurrent.release();
+            mCurrent = null;
+        }
+        mFinalizer.shutdown();
+    }
+
+    /**
+     * Returns the file that segment index (1 or above) of a recording to outputFile goes to.
+     */
+    public static File getSegmentFile(File outputFile, int index) {
+        String name = outputFile.getName();
+        int dot = name.lastIndexOf('.');
+        String segmentName = dot > 0
+                ? name.substring(0, dot) + "_" + index + name.substring(dot)
+                : name + "_" + index;
+        return new File(outputFile.getParentFile(), segmentName);
+    }
+}
@@ -0,0 +1,101 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pre-encoded silence for a mono AAC-LC track, so a muted recording keeps a valid audio
+ * track without running the AAC encoder.
+ * <p>
+ * Every frame is the same 4-byte raw_data_block: a single channel element with no
+ * spectral data, followed by the end element.  Frames are handed out at the AAC cadence of
+ * {@link #SAMPLES_PER_FRAME} samples, up to a timestamp the caller provides, normally
+ * that of the video sample just written.
+ * <p>
+ * Not thread-safe; use it from the muxer writer thread.
+ */
+final class SilentAacSource {
+    static final int SAMPLES_PER_FRAME = 1024;
+
+    // SCE, global gain 160, long window, max_sfb 0, no tools; END; byte aligned
+    private static final byte[] SILENT_FRAME = {0x01, 0x40, 0x20, 0x07};
+    private static final int[] SAMPLE_RATES = {
+            96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000
+    };
+
+    private final int mSampleRate;
+    private final MediaFormat mFormat;
+    private final ByteBuffer mFrame;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private long mStartUs = -1;
+    private long mFrameCount;
+
+    SilentAacSource(int sampleRate) {
+        int rateIndex = -1;
+        for (int i = 0; i < SAMPLE_RATES.length; i++) {
+            if (SAMPLE_RATES[i] == sampleRate) {
+                rateIndex = i;
+                break;
+            }
+        }
+        if (rateIndex < 0) {
+            throw new IllegalArgumentException("unsupported sample rate " + sampleRate);
+        }
+        mSampleRate = sampleRate;
+
+        // AudioSpecificConfig: object type 2 (LC), rate index, 1 channel, no extensions
+        int asc = (2 << 11) | (rateIndex << 7) | (1 << 3);
+        ByteBuffer csd = ByteBuffer.wrap(new byte[]{(byte) (asc >> 8), (byte) asc});
+        mFormat = MediaFormat.createAudioFormat(MediaFormat.MIMETYPE_AUDIO_AAC, sampleRate, 1);
+        mFormat.setInteger(MediaFormat.KEY_AAC_PROFILE,
+                MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        mFormat.setByteBuffer("csd-0", csd);
+
+        mFrame = ByteBuffer.allocateDirect(SILENT_FRAME.length);
+        mFrame.put(SILENT_FRAME);
+    }
+
+    /**
+     * Returns the track format, the same an AAC encoder would report for this stream.
+     */
+    MediaFormat getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Sets up the next silent frame if it is due at or before untilUs.  The first call
+     * starts the track at untilUs.
+     *
+     * @return false if no frame is due yet
+     */
+    boolean nextFrame(long untilUs) {
+        if (mStartUs < 0) {
+            mStartUs = untilUs;
+        }
+        // From the frame count, so rounding doesn't add up
+        long ptsUs = mStartUs + mFrameCount * SAMPLES_PER_FRAME * 1000000L / mSampleRate;
+        if (ptsUs > untilUs) {
+            return false;
+        }
+        mFrameCount++;
+        mInfo.set(0, SILENT_FRAME.length, ptsUs, 0);
+        mFrame.limit(SILENT_FRAME.length);
+        mFrame.position(0);
+        return true;
+    }
+
+    /**
+     * The frame set up by the last successful {@link #nextFrame(long)}.  Writers may move
+     * its position and limit.
+     */
+    ByteBuffer getFrame() {
+        return mFrame;
+    }
+
+    MediaCodec.BufferInfo getInfo() {
+        return mInfo;
+    }
+}
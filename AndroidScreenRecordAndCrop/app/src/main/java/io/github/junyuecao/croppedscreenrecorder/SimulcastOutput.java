@@ -0,0 +1,118 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import android.opengl.GLES20;
+import android.os.Build;
+import android.support.annotation.RequiresApi;
+import android.util.Log;
+
+import io.github.junyuecao.croppedscreenrecorder.gles.EglCore;
+import io.github.junyuecao.croppedscreenrecorder.gles.WindowSurface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The codec, input surface and stats of one {@link SimulcastTarget} while it records.
+ * <p>
+ * Its window surface lives on the main recording's EglCore, so the frame the encoder
+ * thread latched is drawn once more per target without another updateTexImage().  Every
+ * target is drawn for every frame, so a codec that can't keep up blocks in swapBuffers()
+ * and slows the others down; its own stats show this as a long swap stage.
+ * <p>
+ * Everything but the audio input runs on the encoder thread.
+ */
+@RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
+final class SimulcastOutput {
+    private static final String TAG = "SimulcastOutput";
+
+    private final SimulcastTarget mTarget;
+    private final VideoEncoderCore mEncoder;
+    private final WindowSurface mSurface;
+    private final RecorderStats mStats = new RecorderStats(true);
+
+    /**
+     * Starts the codecs and the muxer.  Leaves this target's surface current.
+     *
+     * @param codecName   AVC encoder to use, or null for the platform default
+     * @param audioPolicy the main recording's, see VideoEncoderCore
+     */
+    SimulcastOutput(EglCore eglCore, SimulcastTarget target, int frameRate, String codecName,
+                    int drainMode, int audioPolicy) throws IOException {
+        mTarget = target;
+        mEncoder = new VideoEncoderCore(target.mWidth, target.mHeight, target.mBitRate,
+                frameRate, codecName, target.mOutputFile, drainMode, target.mOutputFormat,
+                audioPolicy);
+        mEncoder.setRecordCallback(target.mRecordCallback);
+        mStats.markStartRequested();
+        mEncoder.setStats(mStats);
+        mSurface = new WindowSurface(eglCore, mEncoder.getInputSurface(), true);
+        mSurface.makeCurrent();
+        Log.d(TAG, "Started " + target);
+    }
+
+    SimulcastTarget getTarget() {
+        return mTarget;
+    }
+
+    /**
+     * Draws the latched frame into this target's codec.  Leaves this target's surface
+     * current.
+     */
+    void drawFrame(MainFrameRect rect, int textureId, float[] transform, long timestampNanos) {
+        long drawStart = mStats.begin();
+        mSurface.makeCurrent();
+        GLES20.glViewport(0, 0, mTarget.mWidth, mTarget.mHeight);
+        mEncoder.drainEncoder(false);
+        rect.drawFrame(textureId, transform);
+        mStats.end(RecorderStats.STAGE_DRAW, drawStart);
+
+        long swapStart = mStats.begin();
+        mSurface.setPresentationTime(timestampNanos);
+        mSurface.swapBuffers();
+        mStats.end(RecorderStats.STAGE_SWAP, swapStart);
+        mStats.onFrameRendered();
+    }
+
+    /**
+     * (Audio feeder thread.)
+     */
+    void enqueueAudioFrame(ByteBuffer buffer, int size, long presentTimeUs, boolean endOfStream) {
+        mEncoder.enqueueAudioFrame(buffer, size, presentTimeUs, endOfStream);
+    }
+
+    void drainAudio(boolean endOfStream) {
+        mEncoder.drainAudio(endOfStream);
+    }
+
+    void requestSyncFrame() {
+        mEncoder.requestSyncFrame();
+    }
+
+    /**
+     * Ends the stream, finishes the file and releases the codecs and the surface.
+     */
+    void finish() {
+        mEncoder.drainEncoder(true);
+        mEncoder.release();
+        mSurface.release();
+        Log.d(TAG, "Finished " + mTarget + ": " + getStatsSnapshot());
+    }
+
+    /**
+     * Frees the EGL surface before the EglCore is replaced, see {@link #recreate(EglCore)}.
+     */
+    void releaseEglSurface() {
+        mSurface.releaseEglSurface();
+    }
+
+    void recreate(EglCore eglCore) {
+        mSurface.recreate(eglCore);
+    }
+
+    /**
+     * (Call from any thread.)
+     */
+    RecorderStats.Snapshot getStatsSnapshot() {
+        return mStats.snapshot(0, 0);
+    }
+}
@@ -0,0 +1,92 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import java.io.File;
+
+/**
+ * An extra output encoded from the same captured frames as the main recording, e.g. a
+ * low-bit-rate preview next to the full-quality archive.  Each target has its own codec,
+ * size, bit rate and file.
+ * <p>
+ * The frame is scaled to the target's size with the main recording's crop, so the target
+ * should keep the main video's aspect ratio.
+ * <p>
+ * Object is immutable; use {@link Builder}.
+ */
+public final class SimulcastTarget {
+    final File mOutputFile;
+    final int mWidth;
+    final int mHeight;
+    final int mBitRate;
+    final int mOutputFormat;
+    final RecordCallback mRecordCallback;
+
+    private SimulcastTarget(Builder builder) {
+        mOutputFile = builder.mOutputFile;
+        mWidth = builder.mWidth;
+        mHeight = builder.mHeight;
+        mBitRate = builder.mBitRate;
+        mOutputFormat = builder.mOutputFormat;
+        mRecordCallback = builder.mRecordCallback;
+    }
+
+    public File getOutputFile() {
+        return mOutputFile;
+    }
+
+    @Override
+    public String toString() {
+        return "SimulcastTarget: " + mWidth + "x" + mHeight + "@" + mBitRate
+                + " to '" + mOutputFile + "' outputFormat=" + mOutputFormat;
+    }
+
+    /**
+     * Builds a SimulcastTarget.  Output file and size are required.
+     */
+    public static class Builder {
+        private final File mOutputFile;
+        private final int mWidth;
+        private final int mHeight;
+        private int mBitRate = 1000000;
+        private int mOutputFormat = VideoEncoderCore.OUTPUT_FORMAT_MP4;
+        private RecordCallback mRecordCallback;
+
+        /**
+         * @param width  encoded width, even
+         * @param height encoded height, even
+         */
+        public Builder(File outputFile, int width, int height) {
+            if (width <= 0 || height <= 0 || width % 2 != 0 || height % 2 != 0) {
+                throw new IllegalArgumentException("invalid size " + width + "x" + height);
+            }
+            mOutputFile = outputFile;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        public Builder setBitRate(int bitRate) {
+            mBitRate = bitRate;
+            return this;
+        }
+
+        /**
+         * @param outputFormat VideoEncoderCore.OUTPUT_FORMAT_MP4 (default) or
+         *                     VideoEncoderCore.OUTPUT_FORMAT_FRAGMENTED_MP4
+         */
+        public Builder setOutputFormat(int outputFormat) {
+            mOutputFormat = outputFormat;
+            return this;
+        }
+
+        /**
+         * @param recordCallback told when this target's file is finished, or null
+         */
+        public Builder setRecordCallback(RecordCallback recordCallback) {
+            mRecordCallback = recordCallback;
+            return this;
+        }
+
+        public SimulcastTarget build() {
+            return new SimulcastTarget(this);
+        }
+    }
+}
@@ -16,10 +16,12 @@
 
 package io.github.junyuecao.croppedscreenrecorder;
 
+import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
 import android.opengl.EGLContext;
 import android.opengl.GLES20;
 import android.os.Build;
+import android.os.Debug;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -28,7 +30,9 @@ import android.support.annotation.NonNull;
 import android.support.annotation.RequiresApi;
 import android.util.Log;
 import android.view.Surface;
+import io.github.junyuecao.croppedscreenrecorder.gles.AsyncFrameSaver;
 import io.github.junyuecao.croppedscreenrecorder.gles.EglCore;
+import io.github.junyuecao.croppedscreenrecorder.gles.GlUtil;
 import io.github.junyuecao.croppedscreenrecorder.gles.Texture2dProgram;
 import io.github.junyuecao.croppedscreenrecorder.gles.WindowSurface;
 
@@ -36,6 +40,10 @@ import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 
 /**
@@ -61,12 +69,32 @@ import java.nio.ByteBuffer;
  * call TextureMovieEncoder#frameAvailable().
  * </ul>
  * <p>
+ * For recordings that must start instantly, call {@link #prepareRecording(EncoderConfig)}
+ * ahead of time instead.  That "pre-arms" the encoder: the thread, EGL context, program,
+ * SurfaceTexture and configured codecs are created and kept warm, incoming frames are
+ * latched but not encoded, and startRecording() then only has to open a muxer.  stopRecording()
+ * re-arms with fresh codecs; {@link #releaseRecorder()} tears the pipeline down.
+ * <p>
+ * {@link SimulcastTarget}s in the config are recorded alongside the main file, each with
+ * its own codec, from the same latched frame and EGL context.
+ * <p>
+ * None of the lifecycle calls wait for the encoder thread.  They move the state machine
+ * ({@link #getState()}) and return a {@link RecorderFuture} that completes on the encoder
+ * thread once the request has been carried out.  Frames still queued when a stop or release
+ * is requested are dropped.
+ * <p>
+ * Audio is fed with the id of the recording it belongs to ({@link #getRecordingId()}), so a
+ * late block can't reach the next recording.  A recording with an AAC codec keeps recording
+ * after stopRecording() until its audio end of stream has been queued, so the audio isn't
+ * cut short, and only then starts draining; at most {@link #AUDIO_EOS_TIMEOUT_MS} later
+ * it drains anyway, ending the audio stream itself.
+ * <p>
  * TODO: tweak the API (esp. textureId) so it's less awkward for simple use cases.
  */
 @RequiresApi(api = Build.VERSION_CODES.LOLLIPOP)
 public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvailableListener {
     private static final String TAG = "TextureMovieEncoder";
-    private static final boolean VERBOSE = true;
+    private static final boolean VERBOSE = false;
 
     private static final int MSG_START_RECORDING = 0;
     private static final int MSG_STOP_RECORDING = 1;
@@ -75,44 +103,121 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
     private static final int MSG_UPDATE_SHARED_CONTEXT = 4;
     private static final int MSG_AUDIO_FRAME_AVAILABLE = 5;
     private static final int MSG_QUIT = 6;
+    private static final int MSG_PREPARE = 7;
+    private static final int MSG_RELEASE = 8;
+    private static final int MSG_ZOOM = 9;
+    private static final int MSG_RESUME = 10;
+    private static final int MSG_AUDIO_EOS_TIMEOUT = 11;
+    /** How long stopRecording() waits for the audio end of stream before draining */
+    public static final long AUDIO_EOS_TIMEOUT_MS = 1000;
+    private static final int COVER_QUALITY = 90;
     // ----- accessed exclusively by encoder thread -----
     private WindowSurface mInputWindowSurface;
     private EglCore mEglCore;
     private MainFrameRect mFullScreen;
     private int mTextureId;
     private int mFrameNum;
-    private VideoEncoderCore mVideoEncoder;
+    // Set on the encoder thread; volatile as the audio feeder thread reads it too
+    private volatile VideoEncoderCore mVideoEncoder;
+
+    /** No encoder thread.  The initial state; stopping or releasing ends here too. */
+    public static final int STATE_RELEASED = 0;
+    /** The encoder thread is starting or building the pipeline. */
+    public static final int STATE_PREPARING = 1;
+    /** Pre-armed: the pipeline is warm and waits for startRecording(). */
+    public static final int STATE_IDLE = 2;
+    public static final int STATE_RECORDING = 3;
+    public static final int STATE_PAUSED = 4;
+    /** Stop or release requested; the encoders are drained and the file finished. */
+    public static final int STATE_DRAINING = 5;
+    private static final String[] STATE_NAMES = {
+            "released", "preparing", "idle", "recording", "paused", "draining"
+    };
 
     // ----- accessed by multiple threads -----
     private volatile EncoderHandler mHandler;
 
     //TextureMovieEncoder继承Runnable, 本质是一个线程, 防止多线程破坏状态,起到保护作用
-    private final Object mReadyFence = new Object();      // guards ready/running
-    private boolean mReady;
-    private boolean mRunning;//表示守护线程（mReadyFence）已经运行
-    private boolean mPause = false;
+    // Guards the lifecycle.  Held only for a few field updates, never while waiting for
+    // the encoder thread, so no caller blocks on start or stop.
+    private final Object mReadyFence = new Object();
+    // Written under mReadyFence; read without it where a stale value is harmless
+    private volatile int mState = STATE_RELEASED;
+    private boolean mThreadAlive; // from startThread() until run() returns
+    // Sent before the encoder thread had its Handler; run() sends them in order
+    private final List<Message> mPendingMessages = new ArrayList<>();
+    private boolean mArmed; // thread stays up between recordings
+    private RecorderFuture mPrepareFuture;
+    private RecorderFuture mStartFuture;
+    private RecorderFuture mStopFuture;
+    // From startRecording() until the recording starts draining
+    private volatile boolean mRecordingOpen;
+    // Id of the latest startRecording()
+    private int mRecordingId;
+    // Id of the recording whose audio is passed on, until its end of stream is queued or it
+    // starts draining; 0 if none.  Audio with another id is late and dropped.
+    private volatile int mAudioRecordingId;
+    private int mRecordingAudioPolicy;
+    // stopRecording() waits for the audio end of stream
+    private boolean mStopPending;
+    // ----- pause, written under mReadyFence -----
+    // While paused (STATE_PAUSED) nothing reaches the codecs.  Timestamps are moved back by
+    // the total time spent paused, so the output has no gap.  Both are in the
+    // System.nanoTime() base shared by SurfaceTexture and the audio timestamps.
+    private volatile long mPauseOffsetNs;
+    private long mPausedAtNs;
+    // Audio feeder thread; reset by startRecording() before audio is accepted
+    private long mLastAudioTimeUs;
+    private final MediaClock mAudioClock = new MediaClock(VideoEncoderCore.DEFAULT_SAMPLE_RATE,
+            2 * VideoEncoderCore.DEFAULT_CHANNEL_CONFIG, MediaClock.DEFAULT_MAX_DRIFT_US);
     private Callback mCallback;
     private HandlerThread mVideoFrameSender;
-    private Handler mVideoFrameHandler;
+    private RecorderScheduler.LaneHandler mVideoFrameHandler;
     private SurfaceTexture mSurfaceTexture;
-    private Runnable mUpdate = new Runnable() {
+    private volatile FrameSlotPool mSlotPool;
+    // ----- accessed exclusively by the frame sender thread -----
+    private FramePacer mPacer;
+    private Runnable mDeferredFrame = new Runnable() {
         @Override
         public void run() {
-            if (mSurfaceTexture != null) {
-                mSurfaceTexture.updateTexImage();
+            FramePacer pacer = mPacer;
+            if (pacer != null) {
+                pacer.onDeferredFrameDue(System.nanoTime());
+                submitLatchFrame();
             }
         }
     };
     private Surface mSurface;
-    private float mTopCropped;
-    private float mBottomCropped;
-    private float[] mTransform;
+    // Current crop {left, top, right, bottom}, encoder thread only
+    private final float[] mCropRect = new float[4];
+    private CropAnimator mCropAnimator;
     private RecordCallback mRecordCallback;
     // Should save first frame as a cover
     private boolean mFirstFrameSaved;
     private int mVideoWidth;
     private int mVideoHeight;
     private File mCoverImageFile;
+    private AsyncFrameSaver mFrameSaver;
+    private final RecorderStats mStats = new RecorderStats(true);
+    // Written on the encoder thread only; replaced, never modified
+    private volatile SimulcastOutput[] mSimulcast = new SimulcastOutput[0];
+    // ----- static-frame suppression, encoder thread only -----
+    private FrameChangeDetector mChangeDetector;
+    private boolean mSuppressStaticFrames;
+    private long mKeepAliveNs;
+    private long mLastEncodedHash;
+    private long mLastEncodedPtsNs;
+    // ----- pre-armed mode, encoder thread only -----
+    private EncoderConfig mArmConfig; // non-null while pre-armed
+    private boolean mRecordingActive;
+    private boolean mVideoPrimed;
+    private boolean mHasLatestFrame;
+    private long mLastVideoPtsNs;
+    // ----- shared context hand-off, encoder thread only -----
+    private EGLContext mSharedContext; // share group mEglCore lives in
+    private EGLContext mHostContext; // latest from updateSharedContext()
+    private int mOwnTextureId; // backs mSurfaceTexture
+    private final float[] mLatestTransform = new float[16];
 
     public Callback getCallback() {
         return mCallback;
@@ -125,90 +230,280 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
     /**
      * Tells the video recorder to start recording.  (Call from non-encoder thread.)
      * <p>
-     * Creates a new thread, which will create an encoder using the provided configuration.
-     * <p>
-     * Returns after the recorder thread has started and is ready to accept Messages.  The
-     * encoder may not yet be fully configured.
+     * Starts the encoder thread, which will create an encoder using the provided
+     * configuration, unless the recorder is pre-armed.  Returns at once; the future
+     * completes once the recording is running, and fails at once if the recorder is busy.
      */
-    public void startRecording(EncoderConfig config) {
+    public RecorderFuture startRecording(EncoderConfig config) {
         Log.d(TAG, "Encoder: startRecording()");
         synchronized(mReadyFence) {
-            if (mRunning) {
-                Log.w(TAG, "Encoder thread already running");
+            int state = mState;
+            boolean warm = mArmed && (state == STATE_IDLE || state == STATE_PREPARING);
+            if ((state != STATE_RELEASED && !warm) || mRecordingOpen) {
+                Log.w(TAG, "Can't start recording while " + STATE_NAMES[state]);
+                return RecorderFuture.failed(new IllegalStateException(
+                        "Can't start recording while " + STATE_NAMES[state]));
+            }
+            mStats.reset();
+            mStats.markStartRequested();
+            mPauseOffsetNs = 0;
+            mLastAudioTimeUs = -1;
+            mAudioClock.reset();
+            mRecordingOpen = true;
+            mRecordingId++;
+            if (mRecordingId <= 0) {
+                mRecordingId = 1;
+            }
+            mAudioRecordingId = mRecordingId;
+            mRecordingAudioPolicy = config.mAudioPolicy;
+            mStopPending = false;
+            mState = STATE_PREPARING;
+            mStartFuture = new RecorderFuture();
+            startThread();
+            sendControl(MSG_START_RECORDING, 0, config);
+            return mStartFuture;
+        }
+    }
+
+    /**
+     * Pre-arms the recorder.  (Call from non-encoder thread.)
+     * <p>
+     * Builds everything but the muxer from the config, whose output file is ignored and may
+     * be null.  The input surface is reported to the Callback as usual.  A later
+     * startRecording() uses the warm pipeline and only takes the output file and format from
+     * its config.  The future completes once the pipeline is warm.
+     */
+    public RecorderFuture prepareRecording(EncoderConfig config) {
+        Log.d(TAG, "Encoder: prepareRecording()");
+        synchronized(mReadyFence) {
+            if (mState != STATE_RELEASED) {
+                Log.w(TAG, "Can't prepare while " + STATE_NAMES[mState]);
+                return RecorderFuture.failed(new IllegalStateException(
+                        "Can't prepare while " + STATE_NAMES[mState]));
+            }
+            mArmed = true;
+            mState = STATE_PREPARING;
+            mPrepareFuture = new RecorderFuture();
+            startThread();
+            sendControl(MSG_PREPARE, 0, config);
+            return mPrepareFuture;
+        }
+    }
+
+    /**
+     * Stops any recording and tears down a pre-armed pipeline.  (Call from non-encoder
+     * thread.)
+     * <p>
+     * Returns at once; the future completes when the encoder thread has exited.
+     */
+    public RecorderFuture releaseRecorder() {
+        synchronized(mReadyFence) {
+            if (mState == STATE_RELEASED) {
+                return RecorderFuture.done();
+            }
+            mArmed = false;
+            mRecordingOpen = false;
+            mAudioRecordingId = 0;
+            mStopPending = false;
+            mState = STATE_DRAINING;
+            if (mStopFuture == null) {
+                mStopFuture = new RecorderFuture();
+            }
+            removeDeferredFrame();
+            sendControl(MSG_RELEASE, 0, null);
+            sendControl(MSG_QUIT, 0, null);
+            return mStopFuture;
+        }
+    }
+
+    /**
+     * Starts the encoder thread if it isn't running.  Doesn't wait for it: messages sent
+     * before it has a Handler are kept and handed over in order.  Call with mReadyFence
+     * held.
+     */
+    private void startThread() {
+        if (mThreadAlive) {
+            return;
+        }
+        mThreadAlive = true;
+        RecorderScheduler.getDefault().newThread(RecorderScheduler.LANE_RENDER,
+                "TextureMovieEncoder", this, new Runnable() {
+                    @Override
+                    public void run() {
+                        releaseRecorder();
+                    }
+                }).start();
+    }
+
+    /**
+     * Sends a control message to the encoder thread, or keeps it until the thread is ready.
+     * Dropped if there is no encoder thread.
+     */
+    private void sendControl(int what, int arg1, Object obj) {
+        synchronized(mReadyFence) {
+            if (!mThreadAlive) {
                 return;
             }
-            mRunning = true;
-            new Thread(this, "TextureMovieEncoder").start();
-            while (!mReady) {
-                try {
-                    mReadyFence.wait();
-                } catch (InterruptedException ie) {
-                    // ignore
-                }
+            Message msg = Message.obtain(null, what, arg1, 0, obj);
+            EncoderHandler handler = mHandler;
+            if (handler != null) {
+                handler.sendMessage(msg);
+            } else {
+                mPendingMessages.add(msg);
             }
         }
+    }
 
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_START_RECORDING, config));
+    private void removeDeferredFrame() {
+        RecorderScheduler.LaneHandler frameHandler = mVideoFrameHandler;
+        if (frameHandler != null) {
+            frameHandler.cancelCallbacks(mDeferredFrame);
+        }
     }
 
     /**
      * Tells the video recorder to stop recording.  (Call from non-encoder thread.)
      * <p>
-     * Returns immediately; the encoder/muxer may not yet be finished creating the movie.
-     * <p>
-     * TODO: have the encoder thread invoke a callback on the UI thread just before it shuts down
-     * so we can provide reasonable status UI (and let the caller know that movie encoding
-     * has completed).
+     * Returns immediately.  With an AAC codec, recording goes on until the audio end of
+     * stream has been queued, or {@link #AUDIO_EOS_TIMEOUT_MS} at most; then frames that are
+     * still queued are dropped.  The future completes once the encoders are drained and,
+     * unless the recorder is pre-armed, the encoder thread has exited.  Success or failure
+     * of the file itself is reported to the RecordCallback.
      */
-    public void stopRecording() {
+    public RecorderFuture stopRecording() {
         synchronized(mReadyFence) {
-            if (!mReady) {
-                return;
+            int state = mState;
+            if (state == STATE_DRAINING || mStopPending) {
+                return mStopFuture;
             }
+            if (!mRecordingOpen) {
+                // Released, or pre-armed without a recording
+                return RecorderFuture.done();
+            }
+            mStopFuture = new RecorderFuture();
+            EncoderHandler handler = mHandler;
+            if (mAudioRecordingId != 0 && handler != null
+                    && mRecordingAudioPolicy == VideoEncoderCore.AUDIO_POLICY_ENCODE) {
+                // Drains once the audio end of stream is queued, see feedAudio()
+                mStopPending = true;
+                handler.sendMessageDelayed(handler.obtainMessage(MSG_AUDIO_EOS_TIMEOUT,
+                        mRecordingId, 0), AUDIO_EOS_TIMEOUT_MS);
+                return mStopFuture;
+            }
+            beginDrain();
+            return mStopFuture;
         }
+    }
 
-        mHandler.removeCallbacks(mUpdate);
-        synchronized(this) {
-            mHandler.sendMessage(mHandler.obtainMessage(MSG_STOP_RECORDING));
-            mHandler.sendMessage(mHandler.obtainMessage(MSG_QUIT));
+    /**
+     * Moves from recording to draining.  Call with mReadyFence held.
+     */
+    private void beginDrain() {
+        mRecordingOpen = false;
+        mAudioRecordingId = 0;
+        mStopPending = false;
+        mState = STATE_DRAINING;
+        if (mArmed) {
+            // Keep the pipeline (and the deferred frame) going for the next recording
+            sendControl(MSG_STOP_RECORDING, 0, null);
+        } else {
+            removeDeferredFrame();
+            sendControl(MSG_STOP_RECORDING, 0, null);
+            sendControl(MSG_QUIT, 0, null);
         }
-        // We don't know when these will actually finish (or even start).  We don't want to
-        // delay the UI thread though, so we return immediately.
     }
 
+    /**
+     * Drains a stopped recording whose audio end of stream didn't come in time.  (Encoder
+     * thread.)
+     */
+    private void handleAudioEosTimeout(int recordingId) {
+        synchronized(mReadyFence) {
+            if (!mStopPending || recordingId != mRecordingId) {
+                return;
+            }
+            Log.w(TAG, "No audio end of stream after " + AUDIO_EOS_TIMEOUT_MS + "ms, stopping");
+            beginDrain();
+        }
+    }
+
+    /**
+     * Pauses the recording, or resumes it if it is paused.  (Call from non-encoder thread.)
+     * <p>
+     * While paused, frames are latched and dropped before drawing and audio is not queued,
+     * so the codecs sit idle.  On resume the timestamps continue where they stopped, and the
+     * first frame is a key frame.  Ignored unless recording or paused, and once stopped.
+     */
     public void pauseRecording() {
         synchronized (mReadyFence) {
-            if (isRecording()) {
-                if (!mPause) {
-                    mPause = true;
-                    if (mVideoEncoder != null) {
-                        mVideoEncoder.setPause(mPause);
-                    }
-                } else {
-                    mPause = false;
-                    if (mVideoEncoder != null) {
-                        mVideoEncoder.setPause(mPause);
-                    }
-                    Log.d(TAG, "pauseRecording() ---------------   pause ---> resume success");
-                }
+            if (mStopPending) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (mState == STATE_RECORDING) {
+                mPausedAtNs = now;
+                mState = STATE_PAUSED;
+                Log.d(TAG, "pauseRecording() paused");
+            } else if (mState == STATE_PAUSED) {
+                mPauseOffsetNs += now - mPausedAtNs;
+                mStats.setCaptureOffsetUs(mPauseOffsetNs / 1000);
+                mState = STATE_RECORDING;
+                sendControl(MSG_RESUME, 0, null);
+                Log.d(TAG, "pauseRecording() resumed, paused for "
+                        + (mPauseOffsetNs / 1000000) + "ms in total");
             }
         }
     }
 
     /**
-     * Returns true if recording has been started.
+     * Returns true while the recording is paused.
+     */
+    public boolean isPaused() {
+        return mState == STATE_PAUSED;
+    }
+
+    /**
+     * Returns true if recording has been started, or the recorder is pre-armed, and the
+     * encoder thread hasn't exited yet.
      */
     public boolean isRecording() {
-        synchronized(mReadyFence) {
-            return mRunning;
-        }
+        return mState != STATE_RELEASED;
     }
 
     /**
-     * Tells the video recorder to refresh its EGL surface.  (Call from non-encoder thread.)
+     * Returns the lifecycle state, one of the STATE_ constants.  (Call from any thread.)
+     */
+    public int getState() {
+        return mState;
+    }
+
+    /**
+     * Smoothly pans and zooms inside the config's crop rectangle.  (Call from non-encoder
+     * thread.)
+     * <p>
+     * The encoded size stays the same; a zoom shows less of the screen at the same size.
+     * The animation advances with incoming frames, so it pauses while the screen is static.
+     *
+     * @param centerX    horizontal center of the view, as a fraction of the crop rectangle
+     * @param centerY    vertical center of the view, as a fraction of the crop rectangle
+     * @param zoom       1 shows the whole crop rectangle
+     * @param durationMs 0 to jump there
+     */
+    public void zoomTo(float centerX, float centerY, float zoom, int durationMs) {
+        float[] zoomArgs = {centerX, centerY, zoom, durationMs};
+        sendControl(MSG_ZOOM, 0, zoomArgs);
+    }
+
+    /**
+     * Tells the video recorder that the host's EGL context changed.  (Call from non-encoder
+     * thread.)
+     * <p>
+     * The recording goes on in its own context.  Only a host that hands its own texture to
+     * {@link #setTextureId(int)} needs the recorder in its share group; the move happens
+     * before the next frame that draws that texture.
      */
     public void updateSharedContext(EGLContext sharedContext) {
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_UPDATE_SHARED_CONTEXT, sharedContext));
+        sendControl(MSG_UPDATE_SHARED_CONTEXT, 0, sharedContext);
     }
 
 
@@ -222,27 +517,18 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
     /**
      * Tells the video recorder that a new frame is available.  (Call from non-encoder thread.)
      * <p>
-     * This function sends a message and returns immediately.  This isn't sufficient -- we
-     * don't want the caller to latch a new frame until we're done with this one -- but we
-     * can get away with it so long as the input frame rate is reasonable and the encoder
-     * thread doesn't stall.
-     * <p>
-     * or have a separate "block if still busy" method that the caller can execute immediately
-     * before it calls updateTexImage().  The latter is preferred because we don't want to
-     * stall the caller while this thread does work.
+     * This function sends a message and returns immediately.  The transform and timestamp
+     * are copied into a slot from a fixed pool, so the caller may latch the next frame right
+     * away.  If every slot is still in flight the frame is dropped (or replaces the oldest
+     * queued frame, depending on the drop policy) instead of growing the encoder's queue.
      * @param timestamp present timestamp in nanosecond
      */
     public void frameAvailable(SurfaceTexture st, long timestamp) {
-        synchronized(mReadyFence) {
-            if (!mReady) {
-                return;
-            }
+        int state = mState;
+        if (state == STATE_RELEASED || state == STATE_DRAINING) {
+            return;
         }
 
-        if (mTransform == null) {
-            mTransform = new float[16];
-        }
-        st.getTransformMatrix(mTransform);
         if (timestamp == 0) {
             // Seeing this after device is toggled off/on with power button.  The
             // first frame back has a zero timestamp.
@@ -252,19 +538,157 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
             Log.w(TAG, "HEY: got SurfaceTexture with timestamp of zero");
             return;
         }
+        if (state == STATE_PAUSED) {
+            // The caller already latched it
+            return;
+        }
+
+        FrameSlotPool pool = mSlotPool;
+        if (pool == null) {
+            return;
+        }
+        FrameSlotPool.Slot slot = pool.acquire();
+        if (slot == null) {
+            return;
+        }
+        st.getTransformMatrix(slot.transform);
+        slot.timestampNs = timestamp;
+        slot.latch = false;
+        sendFrame(pool, slot);
+    }
+
+    /**
+     * Queues a frame that the encoder thread still has to latch from our own SurfaceTexture.
+     * (Frame sender thread.)
+     */
+    private void submitLatchFrame() {
+        FrameSlotPool pool = mSlotPool;
+        if (pool == null) {
+            return;
+        }
+        FrameSlotPool.Slot slot = pool.acquire();
+        if (slot == null) {
+            return;
+        }
+        slot.timestampNs = 0;
+        slot.latch = true;
+        sendFrame(pool, slot);
+    }
 
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME_AVAILABLE,
-                (int) (timestamp >> 32), (int) timestamp, mTransform));
+    private void sendFrame(FrameSlotPool pool, FrameSlotPool.Slot slot) {
+        EncoderHandler handler = mHandler;
+        if (handler == null) {
+            pool.release(slot);
+            return;
+        }
+        slot.queuedAtNs = mStats.begin();
+        int seq = pool.publish(slot);
+        if (seq == FrameSlotPool.NO_MESSAGE) {
+            // Took the place of a queued frame, whose message picks this one up
+            return;
+        }
+        if (slot.isRequeued()) {
+            // Goes behind the frames that are still pending
+            handler.cancelMessages(MSG_FRAME_AVAILABLE, slot);
+        }
+        handler.sendMessage(handler.obtainMessage(MSG_FRAME_AVAILABLE, slot.getIndex(), seq,
+                slot));
     }
 
-    public void audioFrameAvailable(ByteBuffer buffer, int size, boolean endOfStream) {
+    /**
+     * Returns the id of the recording started last, for feeding its audio.  (Call from any
+     * thread.)
+     */
+    public int getRecordingId() {
         synchronized(mReadyFence) {
-            if (!mReady) {
+            return mRecordingId;
+        }
+    }
+
+    /**
+     * Feeds a block of PCM that was just captured to the audio encoder.  (Call from the
+     * audio feeder thread.)
+     * <p>
+     * Timestamps come from the audio {@link MediaClock}: they follow the sample count, on
+     * the clock the video frames are stamped with.  The PCM has to be 16-bit mono at
+     * VideoEncoderCore.DEFAULT_SAMPLE_RATE.
+     *
+     * @param recordingId {@link #getRecordingId()} when the recording was started; blocks
+     *                    of another recording are dropped
+     */
+    public void audioFrameAvailable(int recordingId, ByteBuffer buffer, int size,
+                                    boolean endOfStream) {
+        feedAudio(recordingId, buffer, size, System.nanoTime() / 1000, true, endOfStream);
+    }
+
+    /**
+     * Like {@link #audioFrameAvailable(int, ByteBuffer, int, boolean)}, for a block that was
+     * captured earlier, e.g. one that waited in a ring buffer.  The audio clock measures
+     * the drift against the capture time instead of the time the block is handed over.
+     *
+     * @param captureStartUs when the block's first sample was captured, in the
+     *                       System.nanoTime() / 1000 base
+     */
+    public void audioFrameCaptured(int recordingId, ByteBuffer buffer, int size,
+                                   long captureStartUs, boolean endOfStream) {
+        feedAudio(recordingId, buffer, size, captureStartUs + mAudioClock.getDurationUs(size),
+                true, endOfStream);
+    }
+
+    /**
+     * Feeds a block of PCM to the audio encoder.  (Call from the audio feeder thread.)
+     *
+     * @param recordingId   {@link #getRecordingId()} when the recording was started
+     * @param presentTimeUs capture time of the first sample in the block
+     */
+    public void audioFrameAvailable(int recordingId, ByteBuffer buffer, int size,
+                                    long presentTimeUs, boolean endOfStream) {
+        feedAudio(recordingId, buffer, size, presentTimeUs, false, endOfStream);
+    }
+
+    /**
+     * @param timeUs   presentation time, or arrival time if useClock is set
+     * @param useClock stamp the block with the audio clock
+     */
+    private void feedAudio(int recordingId, ByteBuffer buffer, int size, long timeUs,
+                           boolean useClock, boolean endOfStream) {
+        if (recordingId == 0 || recordingId != mAudioRecordingId) {
+            return;
+        }
+        long offsetNs = mPauseOffsetNs;
+        if (mState == STATE_PAUSED && !endOfStream) {
+            return;
+        }
+        timeUs -= offsetNs / 1000;
+        if (timeUs <= mLastAudioTimeUs) {
+            // Captured while paused, but delivered after resuming
+            if (!endOfStream) {
                 return;
             }
+            timeUs = mLastAudioTimeUs + 1;
         }
-        if (mVideoEncoder != null) {
-            mVideoEncoder.enqueueAudioFrame(buffer, size, endOfStream);
+        mLastAudioTimeUs = timeUs;
+        long presentTimeUs = timeUs;
+        if (useClock) {
+            presentTimeUs = mAudioClock.stamp(size, timeUs);
+            mStats.onAudioClock(mAudioClock.getDriftUs(), mAudioClock.getCorrectionCount());
+        }
+        VideoEncoderCore encoder = mVideoEncoder;
+        if (encoder != null) {
+            encoder.enqueueAudioFrame(buffer, size, presentTimeUs, endOfStream);
+        }
+        for (SimulcastOutput output : mSimulcast) {
+            output.enqueueAudioFrame(buffer, size, presentTimeUs, endOfStream);
+        }
+        if (endOfStream) {
+            synchronized(mReadyFence) {
+                if (mAudioRecordingId == recordingId) {
+                    mAudioRecordingId = 0;
+                    if (mStopPending) {
+                        beginDrain();
+                    }
+                }
+            }
         }
     }
 
@@ -275,12 +699,7 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
      * TODO: do something less clumsy
      */
     public void setTextureId(int id) {
-        synchronized(mReadyFence) {
-            if (!mReady) {
-                return;
-            }
-        }
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_SET_TEXTURE_ID, id, 0, null));
+        sendControl(MSG_SET_TEXTURE_ID, id, null);
     }
 
     /**
@@ -295,15 +714,28 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
         Looper.prepare();
         synchronized(mReadyFence) {
             mHandler = new EncoderHandler(this);
-            mReady = true;
-            mReadyFence.notify();
+            for (Message msg : mPendingMessages) {
+                mHandler.sendMessage(msg);
+            }
+            mPendingMessages.clear();
         }
         Looper.loop();
 
         Log.d(TAG, "Encoder thread exiting");
+        RecorderFuture stopped;
         synchronized(mReadyFence) {
-            mReady = mRunning = false;
             mHandler = null;
+            mThreadAlive = false;
+            mArmed = false;
+            mRecordingOpen = false;
+            mAudioRecordingId = 0;
+            mStopPending = false;
+            mState = STATE_RELEASED;
+            stopped = mStopFuture;
+            mStopFuture = null;
+        }
+        if (stopped != null) {
+            stopped.complete();
         }
     }
 
@@ -316,12 +748,151 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
     }
 
     /**
-     * Starts recording.
+     * Starts recording, then completes the start future.
      */
     private void handleStartRecording(EncoderConfig config) {
+        RecorderFuture started;
+        synchronized(mReadyFence) {
+            started = mStartFuture;
+            mStartFuture = null;
+        }
+        try {
+            startEncoding(config);
+        } catch (RuntimeException re) {
+            if (started != null) {
+                started.fail(re);
+            }
+            throw re;
+        }
+        synchronized(mReadyFence) {
+            // Unless a stop came in meanwhile
+            if (mState == STATE_PREPARING) {
+                mState = STATE_RECORDING;
+            }
+        }
+        if (started != null) {
+            started.complete();
+        }
+    }
+
+    private void startEncoding(EncoderConfig config) {
         Log.d(TAG, "handleStartRecording " + config);
         mFrameNum = 0;
-        prepareEncoder(config);
+        if (mRecordingActive) {
+            Log.w(TAG, "Already recording");
+            return;
+        }
+        if (mArmConfig == null || mVideoEncoder == null) {
+            prepareEncoder(config, config.mOutputFile != null);
+            mVideoEncoder.setReplayBuffer(config.mReplayBuffer);
+            mVideoEncoder.setLivePreview(config.mLivePreview);
+            mRecordingActive = true;
+            mLastVideoPtsNs = -1;
+            startSimulcast(config);
+            return;
+        }
+
+        // Warm start: the codecs are running, only the muxer is missing.
+        if (config.mOutputFile != null) {
+            try {
+                openMuxer(mVideoEncoder, config);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+            mCoverImageFile = getCoverFile(config.mOutputFile);
+            mFirstFrameSaved = false;
+        }
+        mVideoEncoder.setReplayBuffer(config.mReplayBuffer);
+        mVideoEncoder.setLivePreview(config.mLivePreview);
+        mVideoEncoder.setStats(mStats);
+        mRecordingActive = true;
+        mLastEncodedPtsNs = -1;
+        mLastVideoPtsNs = -1;
+        startSimulcast(config);
+        if (mHasLatestFrame) {
+            // The screen hasn't changed since this frame, so it is what's showing now.
+            mLastVideoPtsNs = System.nanoTime();
+            drawFrame(mLatestTransform, mLastVideoPtsNs);
+        }
+    }
+
+    /**
+     * Starts the config's simulcast targets on our EglCore.  A target that fails to start
+     * is left out; the main recording goes on.
+     */
+    private void startSimulcast(EncoderConfig config) {
+        List<SimulcastTarget> targets = config.mSimulcastTargets;
+        if (targets.isEmpty()) {
+            return;
+        }
+        SimulcastOutput[] outputs = new SimulcastOutput[targets.size()];
+        int count = 0;
+        for (SimulcastTarget target : targets) {
+            try {
+                outputs[count] = new SimulcastOutput(mEglCore, target, config.mFrameRate,
+                        config.mCodecName, config.mDrainMode, config.mAudioPolicy);
+                count++;
+            } catch (IOException | IllegalStateException e) {
+                Log.w(TAG, "Failed to start " + target, e);
+            }
+        }
+        mSimulcast = Arrays.copyOf(outputs, count);
+        makeMainSurfaceCurrent();
+    }
+
+    /**
+     * Finishes the simulcast targets' files.
+     */
+    private void stopSimulcast() {
+        SimulcastOutput[] outputs = mSimulcast;
+        mSimulcast = new SimulcastOutput[0];
+        for (SimulcastOutput output : outputs) {
+            output.finish();
+        }
+    }
+
+    private void makeMainSurfaceCurrent() {
+        mInputWindowSurface.makeCurrent();
+        GLES20.glViewport(0, 0, mInputWindowSurface.getWidth(), mInputWindowSurface.getHeight());
+    }
+
+    /**
+     * Builds the warm pipeline.
+     */
+    private void handlePrepare(EncoderConfig config) {
+        Log.d(TAG, "handlePrepare " + config);
+        mArmConfig = config;
+        mHasLatestFrame = false;
+        prepareEncoder(config, false);
+        RecorderFuture prepared;
+        synchronized(mReadyFence) {
+            // Stays PREPARING if startRecording() was called meanwhile
+            if (mState == STATE_PREPARING && !mRecordingOpen) {
+                mState = STATE_IDLE;
+            }
+            prepared = mPrepareFuture;
+            mPrepareFuture = null;
+        }
+        if (prepared != null) {
+            prepared.complete();
+        }
+    }
+
+    /**
+     * Tears down a pre-armed pipeline, finishing the current recording first.
+     */
+    private void handleRelease() {
+        Log.d(TAG, "handleRelease");
+        mArmConfig = null;
+        if (mRecordingActive) {
+            handleStopRecording();
+            return;
+        }
+        if (mVideoEncoder != null) {
+            // Nothing was recorded; end the stream so release() doesn't wait for it
+            mVideoEncoder.drainEncoder(true);
+        }
+        releaseEncoder();
     }
 
     /**
@@ -331,44 +902,148 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
      * box (just because we can).
      * <p>
      *
-     * @param transform      The texture transform, from SurfaceTexture.
-     * @param timestampNanos The frame's timestamp, from SurfaceTexture.
+     * @param slotIndex Index of the frame slot holding the transform and timestamp.
+     * @param seq       Sequence number the slot was published with.
      */
-    private void handleFrameAvailable(float[] transform, long timestampNanos) {
+    private void handleFrameAvailable(int slotIndex, int seq) {
+        FrameSlotPool pool = mSlotPool;
+        if (pool == null || mVideoEncoder == null) {
+            return;
+        }
+        FrameSlotPool.Slot slot = pool.claim(slotIndex, seq);
+        if (slot == null) {
+            // Replaced by a newer frame while it was queued
+            return;
+        }
+        mStats.end(RecorderStats.STAGE_QUEUE, slot.queuedAtNs);
+        try {
+            if (slot.latch) {
+                mSurfaceTexture.updateTexImage();
+                mSurfaceTexture.getTransformMatrix(slot.transform);
+                slot.timestampNs = mSurfaceTexture.getTimestamp();
+                if (slot.timestampNs == 0) {
+                    Log.w(TAG, "HEY: got SurfaceTexture with timestamp of zero");
+                    return;
+                }
+            }
+            int state = mState;
+            if (state == STATE_PAUSED || state == STATE_DRAINING) {
+                // Latched above, so the producer isn't stalled.  Frames queued before a stop
+                // are stale; nothing else to do.
+                return;
+            }
+            if (mTextureId != mOwnTextureId && mHostContext != mSharedContext) {
+                reshareContext();
+            }
+            if (!mRecordingActive) {
+                // Pre-armed: remember the frame for the start of the next recording, and
+                // draw the first one so the video encoder produces its format.
+                System.arraycopy(slot.transform, 0, mLatestTransform, 0, 16);
+                mHasLatestFrame = true;
+                if (!mVideoPrimed) {
+                    mVideoPrimed = true;
+                    drawFrame(slot.transform, slot.timestampNs);
+                }
+                return;
+            }
+            long timestampNs = slot.timestampNs - mPauseOffsetNs;
+            if (timestampNs <= mLastVideoPtsNs) {
+                // Captured while paused, but drawn after resuming
+                pool.discard(slot);
+                slot = null;
+                return;
+            }
+            mLastVideoPtsNs = timestampNs;
+            drawFrame(slot.transform, timestampNs);
+        } finally {
+            if (slot != null) {
+                pool.release(slot);
+            }
+        }
+    }
+
+    private void drawFrame(float[] transform, long timestampNanos) {
         if (VERBOSE) {
             Log.d(TAG, "handleFrameAvailable tr=" + transform);
         }
+        long drawStart = mStats.begin();
+        long cpuStart = mStats.isEnabled() ? Debug.threadCpuTimeNanos() : -1;
 
         mVideoEncoder.drainEncoder(false);
+        mFrameSaver.poll();
+        if (mCropAnimator.update(System.nanoTime(), mCropRect)) {
+            mFullScreen.setCropRect(mCropRect[0], mCropRect[1], mCropRect[2], mCropRect[3]);
+        }
+        if (isUnchanged(transform, timestampNanos)) {
+            mStats.onFrameSuppressed();
+            return;
+        }
         mFullScreen.drawFrame(mTextureId, transform);
 
         /*if (BuildConfig.DEBUG) {
             drawBox(mFrameNum++);
         }*/
 
-        // used for save a frame
-        // saveFirstFrame();
+        saveCoverFrame();
 
+        long swapStart = mStats.begin();
+        mStats.end(RecorderStats.STAGE_DRAW, drawStart);
         mInputWindowSurface.setPresentationTime(timestampNanos);
         mInputWindowSurface.swapBuffers();
+        mStats.end(RecorderStats.STAGE_SWAP, swapStart);
+        mStats.onFrameRendered();
+
+        SimulcastOutput[] outputs = mSimulcast;
+        if (outputs.length > 0) {
+            for (SimulcastOutput output : outputs) {
+                output.drawFrame(mFullScreen, mTextureId, transform, timestampNanos);
+            }
+            makeMainSurfaceCurrent();
+        }
+        if (cpuStart >= 0) {
+            mStats.recordLatency(RecorderStats.STAGE_GL_CPU, Debug.threadCpuTimeNanos() - cpuStart);
+        }
     }
 
-    // private void saveFirstFrame() {
-    //     if (mFirstFrameSaved) {
-    //         return;
-    //     }
-    //     int width = mInputWindowSurface.getWidth();
-    //     int height = mInputWindowSurface.getHeight();
-    //     ByteBuffer buf = ByteBuffer.allocateDirect(width * height * 4);
-    //     buf.order(ByteOrder.LITTLE_ENDIAN);
-    //     buf.rewind();
-    //     GLES20.glReadPixels(0, 0, width, height,
-    //             GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buf);
-    //     new Thread(new ImageSaverThread(buf, mCoverImageFile, width, height)).start();
-    //     mVideoEncoder.setCoverPath(mCoverImageFile.getAbsolutePath());
-    //
-    //     mFirstFrameSaved = true; // 已经保存
-    // }
+    /**
+     * Returns true if the frame matches the last encoded one and the keep-alive interval
+     * has not run out, i.e. the frame can be skipped.
+     */
+    private boolean isUnchanged(float[] transform, long timestampNanos) {
+        if (mChangeDetector == null) {
+            return false;
+        }
+        long detectStart = mStats.begin();
+        long hash = mChangeDetector.fingerprint(mFullScreen, mTextureId, transform,
+                mInputWindowSurface.getWidth(), mInputWindowSurface.getHeight());
+        mStats.end(RecorderStats.STAGE_DETECT, detectStart);
+        if (mLastEncodedPtsNs >= 0 && hash == mLastEncodedHash
+                && timestampNanos - mLastEncodedPtsNs < mKeepAliveNs) {
+            return true;
+        }
+        mLastEncodedHash = hash;
+        mLastEncodedPtsNs = timestampNanos;
+        return false;
+    }
+
+    /**
+     * Starts saving the frame just drawn as the cover, if it is the first one recorded.
+     * The pixels are read back and compressed without blocking this thread.
+     */
+    private void saveCoverFrame() {
+        if (mFirstFrameSaved || mCoverImageFile == null || !mRecordingActive) {
+            return;
+        }
+        if (mFrameSaver.requestSave(mCoverImageFile, Bitmap.CompressFormat.JPEG, COVER_QUALITY)) {
+            mVideoEncoder.setCoverPath(mCoverImageFile.getAbsolutePath());
+            mFirstFrameSaved = true; // 已经保存
+        }
+    }
+
+    private void createFrameSaver() {
+        mFrameSaver = new AsyncFrameSaver(mEglCore, mInputWindowSurface.getWidth(),
+                mInputWindowSurface.getHeight());
+    }
 
     /**
      *
@@ -384,11 +1059,120 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
      */
     private void handleStopRecording() {
         Log.d(TAG, "handleStopRecording");
+        if (mRecordingActive) {
+            mRecordingActive = false;
+
+            // The cover has to be on disk before the encoder reports success.
+            mFrameSaver.flush();
+            mCoverImageFile = null;
+            // Unless the feeder queued it before the stop went ahead
+            mVideoEncoder.endAudioStream();
+            mVideoEncoder.drainEncoder(true);
+            stopSimulcast();
+            if (mStats.isEnabled()) {
+                String mode = mVideoEncoder.getDrainMode() == VideoEncoderCore.DRAIN_MODE_ASYNC
+                        ? "async" : "blocking";
+                Log.i(TAG, "Recording finished (" + mode + " drain): " + getStatsSnapshot());
+                Log.d(TAG, RecorderScheduler.getDefault().report());
+            }
+            if (mArmConfig != null) {
+                rearmEncoder();
+            } else {
+                releaseEncoder();
+            }
+        }
+        if (mArmConfig == null) {
+            // The stop future completes when the thread exits
+            return;
+        }
+        RecorderFuture stopped = null;
+        synchronized(mReadyFence) {
+            // Unless releaseRecorder() was called meanwhile
+            if (mArmed && mState == STATE_DRAINING) {
+                mState = STATE_IDLE;
+                stopped = mStopFuture;
+                mStopFuture = null;
+            }
+        }
+        if (stopped != null) {
+            stopped.complete();
+        }
+    }
 
-        mPause = false;
-        mVideoEncoder.setPause(mPause);
-        mVideoEncoder.drainEncoder(true);
-        releaseEncoder();
+    /**
+     * Swaps the finished codecs for fresh warm ones, keeping the EGL context, program and
+     * SurfaceTexture.
+     */
+    private void rearmEncoder() {
+        mVideoEncoder.release();
+        mVideoEncoder = null;
+        mInputWindowSurface.release();
+        mInputWindowSurface = null;
+
+        mVideoEncoder = createVideoEncoder(mArmConfig, false);
+        mInputWindowSurface = new WindowSurface(mEglCore, mVideoEncoder.getInputSurface(), true);
+        mInputWindowSurface.makeCurrent();
+        mVideoPrimed = false;
+        if (mHasLatestFrame) {
+            mVideoPrimed = true;
+            // The new encoder needs this frame even if the screen hasn't changed since the
+            // last recording, so don't let the change detector skip it
+            mLastEncodedPtsNs = -1;
+            drawFrame(mLatestTransform, System.nanoTime());
+        }
+    }
+
+    /**
+     * Returns the number of captured frames that were not encoded, either because the pacer
+     * coalesced them or because every frame slot was in flight.
+     */
+    public long getDroppedFrameCount() {
+        FrameSlotPool pool = mSlotPool;
+        FramePacer pacer = mPacer;
+        return (pool != null ? pool.getDroppedCount() : 0)
+                + (pacer != null ? pacer.getDroppedCount() : 0);
+    }
+
+    /**
+     * Returns the part of the dropped frames that a later frame took the place of, in the
+     * pacer or in the frame slot queue.
+     */
+    public long getCoalescedFrameCount() {
+        FrameSlotPool pool = mSlotPool;
+        FramePacer pacer = mPacer;
+        return (pool != null ? pool.getCoalescedCount() : 0)
+                + (pacer != null ? pacer.getDroppedCount() : 0);
+    }
+
+    /**
+     * Returns the pipeline stats collector, e.g. to switch collection off with
+     * {@link RecorderStats#setEnabled(boolean)}.
+     */
+    public RecorderStats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Returns a copy of the current recording's stats.  (Call from any thread.)
+     */
+    public RecorderStats.Snapshot getStatsSnapshot() {
+        FrameSlotPool pool = mSlotPool;
+        return mStats.snapshot(getDroppedFrameCount(), getCoalescedFrameCount(),
+                pool != null ? pool.getInFlightCount() : 0);
+    }
+
+    /**
+     * Returns a copy of the stats of each simulcast target, in config order, for the current
+     * recording.  A target with a much longer swap stage than the others is the one holding
+     * them back.  (Call from any thread.)
+     */
+    public RecorderStats.Snapshot[] getSimulcastStatsSnapshots() {
+        SimulcastOutput[] outputs = mSimulcast;
+        RecorderStats.Snapshot[] snapshots = new RecorderStats.Snapshot[outputs.length];
+        for (int i = 0; i < outputs.length; i++) {
+            snapshots[i] = outputs[i].getStatsSnapshot();
+        }
+        return snapshots;
     }
 
     /**
@@ -408,61 +1192,194 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
      */
     private void handleUpdateSharedContext(EGLContext newSharedContext) {
         Log.d(TAG, "handleUpdatedSharedContext " + newSharedContext);
+        if (mEglCore == null) {
+            return;
+        }
+        mHostContext = newSharedContext;
+        // Drawing from our own SurfaceTexture needs nothing from the host, so the context,
+        // programs and buffers stay.  See handleFrameAvailable() for host textures; the
+        // hand-off is timed in reshareContext(), when it actually happens.
+    }
+
+    /**
+     * Moves the encoder into the host's current share group, so the host's texture can be
+     * drawn.  Codecs, surfaces, the crop and the SurfaceTexture carry over; GL objects can't
+     * cross share groups, so programs, buffers and our texture are created again.
+     */
+    private void reshareContext() {
+        long start = System.nanoTime();
+        Log.d(TAG, "Moving to the share group of " + mHostContext);
+
+        // Keep our SurfaceTexture, whose texture goes away with the context
+        mInputWindowSurface.makeCurrent();
+        mSurfaceTexture.detachFromGLContext();
 
         // Release the EGLSurface and EGLContext.
+        mFrameSaver.release();
         mInputWindowSurface.releaseEglSurface();
+        for (SimulcastOutput output : mSimulcast) {
+            output.releaseEglSurface();
+        }
         mFullScreen.release(false);
+        if (mChangeDetector != null) {
+            mChangeDetector.release(false);
+            mChangeDetector = null;
+        }
         mEglCore.release();
 
         // Create a new EGLContext and recreate the window surface.
-        mEglCore = new EglCore(newSharedContext, EglCore.FLAG_RECORDABLE);
+        mEglCore = new EglCore(mHostContext,
+                EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
+        mSharedContext = mHostContext;
         mInputWindowSurface.recreate(mEglCore);
+        for (SimulcastOutput output : mSimulcast) {
+            output.recreate(mEglCore);
+        }
         mInputWindowSurface.makeCurrent();
+        createFrameSaver();
 
         // Create new programs and such for the new context.
         mFullScreen = new MainFrameRect(new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
-        mFullScreen.setTopCropped(mTopCropped);
-        mFullScreen.setBottomCropped(mBottomCropped);
+        mFullScreen.setCropRect(mCropRect[0], mCropRect[1], mCropRect[2], mCropRect[3]);
+        mOwnTextureId = mFullScreen.createTextureObject();
+        mSurfaceTexture.attachToGLContext(mOwnTextureId);
+        if (mSuppressStaticFrames) {
+            mChangeDetector = new FrameChangeDetector(mVideoWidth, mVideoHeight);
+            mLastEncodedPtsNs = -1;
+        }
+
+        long elapsedNs = System.nanoTime() - start;
+        mStats.recordLatency(RecorderStats.STAGE_CONTEXT_HANDOFF, elapsedNs);
+        Log.d(TAG, "Shared context hand-off took " + (elapsedNs / 1000) + "us");
+    }
+
+    private void handleZoom(float[] zoomArgs) {
+        if (mCropAnimator == null) {
+            return;
+        }
+        mCropAnimator.zoomTo(zoomArgs[0], zoomArgs[1], zoomArgs[2],
+                (long) zoomArgs[3] * 1000000L, System.nanoTime());
+    }
+
+    /**
+     * Makes the first frame after a pause a key frame, so the resumed part decodes on its
+     * own.
+     */
+    private void handleResume() {
+        if (!mRecordingActive) {
+            return;
+        }
+        mVideoEncoder.requestSyncFrame();
+        for (SimulcastOutput output : mSimulcast) {
+            output.requestSyncFrame();
+        }
     }
 
     private void handleAudioFrameAvailable(boolean endOfStream) {
         mVideoEncoder.drainAudio(endOfStream);
+        for (SimulcastOutput output : mSimulcast) {
+            output.drainAudio(endOfStream);
+        }
     }
 
-    private void prepareEncoder(EncoderConfig config) {
-        Log.d(TAG, "prepareEncoder() enter...");
-        mTopCropped = config.mTopCropped;
-        mBottomCropped = config.mBottomCropped;
-        //对高度做了处理，录屏不包含状态栏和虚拟键的高度
-        mVideoHeight = (int) (config.mHeight * (1f - mTopCropped - mBottomCropped));
-        if (mVideoHeight % 2 != 0) {
-            mVideoHeight += 1; // Pixels must be even
-        }
-        mVideoWidth = config.mWidth;
-        mCoverImageFile = getCoverFile(config.mOutputFile);//保存第一帧图像的位置，相当于截图
+    /**
+     * Creates the codecs, plus the muxer if withMuxer is set; a warm encoder without a muxer
+     * also gets its audio codec primed.
+     */
+    private VideoEncoderCore createVideoEncoder(EncoderConfig config, boolean withMuxer) {
+        VideoEncoderCore encoder;
         try {
             //init MediaMuxer; video MediaCodec; audio MediaCodec
-            mVideoEncoder = new VideoEncoderCore(mVideoWidth, mVideoHeight, config.mBitRate, config.mOutputFile);
-            mVideoEncoder.setRecordCallback(mRecordCallback);
+            encoder = new VideoEncoderCore(mVideoWidth, mVideoHeight, config.mBitRate,
+                    config.mFrameRate, config.mCodecName, config.mDrainMode, config.mAudioPolicy);
+            if (withMuxer) {
+                openMuxer(encoder, config);
+            }
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
-        mEglCore = new EglCore(config.mEglContext, EglCore.FLAG_RECORDABLE);
+        encoder.setRecordCallback(mRecordCallback);
+        encoder.setProgressInterval(config.mProgressIntervalMs);
+        encoder.setStats(mStats);
+        if (config.mMinBitRate > 0 && config.mMinBitRate < config.mBitRate) {
+            int nominalFps = config.mMaxFrameRate > 0
+                    ? config.mMaxFrameRate : EncoderConfig.Builder.DEFAULT_MAX_FRAME_RATE;
+            encoder.setBitrateController(new BitrateController(config.mBitRate,
+                    config.mMinBitRate, config.mBitRate, nominalFps));
+        }
+        if (!withMuxer) {
+            encoder.primeAudio();
+        }
+        return encoder;
+    }
+
+    private static void openMuxer(VideoEncoderCore encoder, EncoderConfig config)
+            throws IOException {
+        encoder.setSegmentLimits(config.mSegmentDurationMs * 1000, config.mSegmentBytes,
+                config.mSegmentListener);
+        encoder.openMuxer(config.mOutputFile, config.mOutputFormat);
+    }
+
+    private void prepareEncoder(EncoderConfig config, boolean withMuxer) {
+        Log.d(TAG, "prepareEncoder() enter...");
+        GlUtil.setDebugChecks(BuildConfig.DEBUG);
+        mCropRect[0] = config.mCropLeft;
+        mCropRect[1] = config.mCropTop;
+        mCropRect[2] = config.mCropRight;
+        mCropRect[3] = config.mCropBottom;
+        mCropAnimator = new CropAnimator(config.mCropLeft, config.mCropTop,
+                config.mCropRight, config.mCropBottom);
+        if (config.mVideoWidth > 0 && config.mVideoHeight > 0) {
+            // Size negotiated with the codec; the crop is applied when drawing.
+            mVideoWidth = config.mVideoWidth;
+            mVideoHeight = config.mVideoHeight;
+        } else {
+            //对高度做了处理，录屏只编码裁剪区域（默认不包含状态栏和虚拟键的高度）
+            mVideoHeight = (int) (config.mHeight * (config.mCropBottom - config.mCropTop));
+            if (mVideoHeight % 2 != 0) {
+                mVideoHeight += 1; // Pixels must be even
+            }
+            mVideoWidth = (int) (config.mWidth * (config.mCropRight - config.mCropLeft));
+            if (mVideoWidth % 2 != 0) {
+                mVideoWidth += 1;
+            }
+        }
+        if (config.mOutputFile != null) {
+            mCoverImageFile = getCoverFile(config.mOutputFile);//保存第一帧图像的位置，相当于截图
+        }
+        mVideoEncoder = createVideoEncoder(config, withMuxer);
+        mVideoPrimed = false;
+        // GLES3 lets the cover frame be read back asynchronously.
+        mEglCore = new EglCore(config.mEglContext,
+                EglCore.FLAG_RECORDABLE | EglCore.FLAG_TRY_GLES3);
         mInputWindowSurface = new WindowSurface(mEglCore, mVideoEncoder.getInputSurface(), true);
         mInputWindowSurface.makeCurrent();
+        createFrameSaver();
 
         mFullScreen = new MainFrameRect(
                 new Texture2dProgram(Texture2dProgram.ProgramType.TEXTURE_EXT));
-        mFullScreen.setTopCropped(config.mTopCropped);
-        mFullScreen.setBottomCropped(config.mBottomCropped);
+        mFullScreen.setCropRect(mCropRect[0], mCropRect[1], mCropRect[2], mCropRect[3]);
 
         mTextureId = mFullScreen.createTextureObject();
+        mOwnTextureId = mTextureId;
+        mSharedContext = config.mEglContext;
+        mHostContext = config.mEglContext;
+
+        mSuppressStaticFrames = config.mSuppressStaticFrames;
+        mKeepAliveNs = config.mKeepAliveMs * 1000000L;
+        mLastEncodedPtsNs = -1;
+        if (mSuppressStaticFrames) {
+            mChangeDetector = new FrameChangeDetector(mVideoWidth, mVideoHeight);
+        }
 
         Log.d(TAG, "Texture created id: " + mTextureId);
 
-        mVideoFrameSender = new HandlerThread("SurfaceFrameSender");
-        mVideoFrameSender.start();
-        mVideoFrameHandler = new Handler(mVideoFrameSender.getLooper());
+        mSlotPool = new FrameSlotPool(config.mMaxFramesInFlight, config.mFrameDropPolicy);
+        mPacer = new FramePacer(config.mMaxFrameRate);
+
+        mVideoFrameSender = RecorderScheduler.getDefault().startHandlerThread(
+                RecorderScheduler.LANE_RENDER, "SurfaceFrameSender");
+        mVideoFrameHandler = new RecorderScheduler.LaneHandler(mVideoFrameSender.getLooper());
         mSurfaceTexture = new SurfaceTexture(mTextureId);
         mSurfaceTexture.setOnFrameAvailableListener(this, mVideoFrameHandler); // 为了不阻塞TextureMovieEncoder ，需要额外的线程
         mSurfaceTexture.setDefaultBufferSize(config.mWidth, config.mHeight);
@@ -476,12 +1393,26 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
         Log.d(TAG, "prepareEncoder() exit...");
     }
 
+    /**
+     * Runs on the frame sender thread.  Asks the pacer whether the frame goes to the encoder
+     * now, later, or not at all; the encoder thread latches it when it gets there.
+     */
     @Override
     public void onFrameAvailable(SurfaceTexture surfaceTexture) {
-        Log.d(TAG, "onFrameAvailable()...");
-        mHandler.postDelayed(mUpdate, 16);
-
-        frameAvailable(surfaceTexture);
+        if (VERBOSE) {
+            Log.d(TAG, "onFrameAvailable()...");
+        }
+        FramePacer pacer = mPacer;
+        Handler frameHandler = mVideoFrameHandler;
+        if (pacer == null || frameHandler == null) {
+            return;
+        }
+        long decision = pacer.onFrameAvailable(System.nanoTime());
+        if (decision == FramePacer.SUBMIT) {
+            submitLatchFrame();
+        } else if (decision > 0) {
+            frameHandler.postDelayed(mDeferredFrame, (decision + 999999) / 1000000);
+        }
     }
 
     private void releaseEncoder() {
@@ -493,6 +1424,10 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
             mSurface.release();
             mSurface = null;
         }
+        if (mFrameSaver != null) {
+            mFrameSaver.release();
+            mFrameSaver = null;
+        }
         if (mInputWindowSurface != null) {
             mInputWindowSurface.release();
             mInputWindowSurface = null;
@@ -501,11 +1436,16 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
             mFullScreen.release(false);
             mFullScreen = null;
         }
+        if (mChangeDetector != null) {
+            mChangeDetector.release(false);
+            mChangeDetector = null;
+        }
         if (mEglCore != null) {
             mEglCore.release();
             mEglCore = null;
         }
         if (mVideoFrameHandler != null) {
+            mVideoFrameHandler.cancelCallbacks(mDeferredFrame);
             mVideoFrameHandler = null;
         }
         if (mVideoFrameSender != null) {
@@ -542,47 +1482,381 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
      * explicit synchronization (and don't need to worry about it getting tweaked out from
      * under us).
      * <p>
-     * TODO: make frame rate and iframe interval configurable?  Maybe use builder pattern
-     * with reasonable defaults for those and bit rate.
+     * Use {@link Builder} for the optional settings.
+     * <p>
+     * TODO: make the iframe interval configurable?
      */
     public static class EncoderConfig {
         final File mOutputFile;
         final int mWidth;
         final int mHeight;
-        final float mTopCropped;
-        final float mBottomCropped;
+        final float mCropLeft;
+        final float mCropTop;
+        final float mCropRight;
+        final float mCropBottom;
         final int mBitRate;
+        final int mMinBitRate;
         final EGLContext mEglContext;
+        final int mDrainMode;
+        final int mMaxFrameRate;
+        final int mFrameDropPolicy;
+        final int mMaxFramesInFlight;
+        final int mOutputFormat;
+        final int mAudioPolicy;
+        final boolean mSuppressStaticFrames;
+        final int mVideoWidth;
+        final int mVideoHeight;
+        final int mFrameRate;
+        final String mCodecName;
+        final int mKeepAliveMs;
+        final int mProgressIntervalMs;
+        final ReplayBuffer mReplayBuffer;
+        final long mSegmentDurationMs;
+        final long mSegmentBytes;
+        final SegmentingMuxerSink.Listener mSegmentListener;
+        final LivePreviewServer mLivePreview;
+        final List<SimulcastTarget> mSimulcastTargets;
 
         public EncoderConfig(File outputFile, int width, int height,
                              float topCropped, float bottomCropped,
                              int bitRate,
                              EGLContext sharedEglContext) {
-            mOutputFile = outputFile;
-            mWidth = width;
-            mHeight = height;
-            mTopCropped = topCropped;
-            mBottomCropped = bottomCropped;
-            mBitRate = bitRate;
-            mEglContext = sharedEglContext;
+            this(new Builder(outputFile, width, height, sharedEglContext)
+                    .setCropped(topCropped, bottomCropped)
+                    .setBitRate(bitRate)
+                    .setDrainMode(VideoEncoderCore.DRAIN_MODE_BLOCKING));
+        }
+
+        private EncoderConfig(Builder builder) {
+            mOutputFile = builder.mOutputFile;
+            mWidth = builder.mWidth;
+            mHeight = builder.mHeight;
+            mCropLeft = builder.mCropLeft;
+            mCropTop = builder.mCropTop;
+            mCropRight = builder.mCropRight;
+            mCropBottom = builder.mCropBottom;
+            mBitRate = builder.mBitRate;
+            mMinBitRate = builder.mMinBitRate;
+            mEglContext = builder.mEglContext;
+            mDrainMode = builder.mDrainMode;
+            mMaxFrameRate = builder.mMaxFrameRate;
+            mFrameDropPolicy = builder.mFrameDropPolicy;
+            mMaxFramesInFlight = builder.mMaxFramesInFlight;
+            mOutputFormat = builder.mOutputFormat;
+            mAudioPolicy = builder.mAudioPolicy;
+            mSuppressStaticFrames = builder.mSuppressStaticFrames;
+            mKeepAliveMs = builder.mKeepAliveMs;
+            mProgressIntervalMs = builder.mProgressIntervalMs;
+            mVideoWidth = builder.mVideoWidth;
+            mVideoHeight = builder.mVideoHeight;
+            mFrameRate = builder.mFrameRate;
+            mCodecName = builder.mCodecName;
+            mReplayBuffer = builder.mReplayBuffer;
+            mSegmentDurationMs = builder.mSegmentDurationMs;
+            mSegmentBytes = builder.mSegmentBytes;
+            mSegmentListener = builder.mSegmentListener;
+            mLivePreview = builder.mLivePreview;
+            mSimulcastTargets = Collections.unmodifiableList(
+                    new ArrayList<>(builder.mSimulcastTargets));
         }
 
         @Override
         public String toString() {
             return "EncoderConfig: " + mWidth + "x" + mHeight
-                    + ", Crop with: " + mTopCropped + " and " + mBottomCropped
-                    + "@" + mBitRate +
-                    " to '" + mOutputFile.toString() + "' ctxt=" + mEglContext;
+                    + ", Crop to: " + mCropLeft + "," + mCropTop + " - " + mCropRight + "," + mCropBottom
+                    + "@" + mBitRate + (mMinBitRate > 0 ? " (min " + mMinBitRate + ")" : "") +
+                    " to '" + mOutputFile + "' ctxt=" + mEglContext
+                    + " drainMode=" + mDrainMode
+                    + " maxFps=" + mMaxFrameRate + " dropPolicy=" + mFrameDropPolicy
+                    + " inFlight=" + mMaxFramesInFlight
+                    + " outputFormat=" + mOutputFormat + " audioPolicy=" + mAudioPolicy
+                    + (mSuppressStaticFrames ? " suppressStatic keepAlive=" + mKeepAliveMs : "")
+                    + " video=" + mVideoWidth + "x" + mVideoHeight + "@" + mFrameRate
+                    + " codec=" + mCodecName
+                    + (mReplayBuffer != null ? " replay" : "")
+                    + (mLivePreview != null ? " live" : "")
+                    + (!mSimulcastTargets.isEmpty() ? " simulcast=" + mSimulcastTargets : "")
+                    + (mSegmentDurationMs > 0 || mSegmentBytes > 0
+                    ? " segments=" + mSegmentDurationMs + "ms/" + mSegmentBytes + "B" : "");
+        }
+
+        /**
+         * Identifies the warm pipeline this config builds: everything but the output file and
+         * what only applies once a recording starts.  Configs with the same key can share a
+         * pre-armed recorder.
+         */
+        String getPipelineKey() {
+            return mWidth + "x" + mHeight + " crop=" + mCropLeft + "," + mCropTop + ","
+                    + mCropRight + "," + mCropBottom + " " + mBitRate + "/" + mMinBitRate
+                    + " ctxt=" + mEglContext + " drain=" + mDrainMode + " maxFps=" + mMaxFrameRate
+                    + " drop=" + mFrameDropPolicy + " inFlight=" + mMaxFramesInFlight
+                    + " audio=" + mAudioPolicy + " static=" + mSuppressStaticFrames + "/"
+                    + mKeepAliveMs + " progress=" + mProgressIntervalMs
+                    + " video=" + mVideoWidth + "x" + mVideoHeight + "@" + mFrameRate
+                    + " codec=" + mCodecName;
+        }
+
+        /**
+         * Builds an EncoderConfig.  Output file, size and shared context are required, the
+         * rest has reasonable defaults.  The output file may be null if the samples only go
+         * to a replay buffer.
+         */
+        public static class Builder {
+            static final int DEFAULT_MAX_FRAME_RATE = 60;
+            static final int DEFAULT_KEEP_ALIVE_MS = 1000;
+            /** Frames queued to or being drawn by the encoder thread */
+            static final int DEFAULT_MAX_FRAMES_IN_FLIGHT = 3;
+
+            private final File mOutputFile;
+            private final int mWidth;
+            private final int mHeight;
+            private final EGLContext mEglContext;
+            private float mCropLeft;
+            private float mCropTop;
+            private float mCropRight = 1f;
+            private float mCropBottom = 1f;
+            private int mBitRate = 4000000;
+            private int mMinBitRate;
+            private int mDrainMode = VideoEncoderCore.DRAIN_MODE_ASYNC;
+            private int mMaxFrameRate = DEFAULT_MAX_FRAME_RATE;
+            private int mFrameDropPolicy = FrameSlotPool.DROP_NEWEST;
+            private int mMaxFramesInFlight = DEFAULT_MAX_FRAMES_IN_FLIGHT;
+            private int mOutputFormat = VideoEncoderCore.OUTPUT_FORMAT_MP4;
+            private int mAudioPolicy = VideoEncoderCore.AUDIO_POLICY_ENCODE;
+            private boolean mSuppressStaticFrames;
+            private int mKeepAliveMs = DEFAULT_KEEP_ALIVE_MS;
+            private int mProgressIntervalMs = ProgressPublisher.DEFAULT_INTERVAL_MS;
+            private int mVideoWidth;
+            private int mVideoHeight;
+            private int mFrameRate = VideoEncoderCore.DEFAULT_FRAME_RATE;
+            private String mCodecName;
+            private ReplayBuffer mReplayBuffer;
+            private long mSegmentDurationMs;
+            private long mSegmentBytes;
+            private SegmentingMuxerSink.Listener mSegmentListener;
+            private LivePreviewServer mLivePreview;
+            private final List<SimulcastTarget> mSimulcastTargets = new ArrayList<>();
+
+            public Builder(File outputFile, int width, int height, EGLContext sharedEglContext) {
+                mOutputFile = outputFile;
+                mWidth = width;
+                mHeight = height;
+                mEglContext = sharedEglContext;
+            }
+
+            public Builder setCropped(float topCropped, float bottomCropped) {
+                return setCropRect(0f, topCropped, 1f, 1f - bottomCropped);
+            }
+
+            /**
+             * Encodes only this rectangle of the captured frame, in fractions of its width
+             * and height from the top left.  Unless {@link #setVideoSize(int, int)} says
+             * otherwise, the video is the rectangle's size.
+             */
+            public Builder setCropRect(float left, float top, float right, float bottom) {
+                if (left < 0f || right > 1f || left >= right
+                        || top < 0f || bottom > 1f || top >= bottom) {
+                    throw new IllegalArgumentException("invalid crop " + left + "," + top
+                            + " - " + right + "," + bottom);
+                }
+                mCropLeft = left;
+                mCropTop = top;
+                mCropRight = right;
+                mCropBottom = bottom;
+                return this;
+            }
+
+            public Builder setBitRate(int bitRate) {
+                mBitRate = bitRate;
+                return this;
+            }
+
+            /**
+             * Lets the bit rate adapt to the content between minBitRate and the bit rate
+             * from {@link #setBitRate(int)}, which is also the starting point.  0 (the
+             * default) keeps the bit rate fixed.
+             */
+            public Builder setMinBitRate(int minBitRate) {
+                mMinBitRate = minBitRate;
+                return this;
+            }
+
+            /**
+             * @param drainMode VideoEncoderCore.DRAIN_MODE_ASYNC (default) or
+             *                  VideoEncoderCore.DRAIN_MODE_BLOCKING
+             */
+            public Builder setDrainMode(int drainMode) {
+                mDrainMode = drainMode;
+                return this;
+            }
+
+            /**
+             * @param maxFrameRate cap on frames handed to the encoder per second, 0 for none
+             */
+            public Builder setMaxFrameRate(int maxFrameRate) {
+                mMaxFrameRate = maxFrameRate;
+                return this;
+            }
+
+            /**
+             * @param frameDropPolicy what to do when the encoder falls behind:
+             *                        FrameSlotPool.DROP_NEWEST (default), DROP_OLDEST, or
+             *                        LATEST_WINS to coalesce every waiting frame into the
+             *                        latest one, which needs at least 2 frames in flight
+             */
+            public Builder setFrameDropPolicy(int frameDropPolicy) {
+                mFrameDropPolicy = frameDropPolicy;
+                return this;
+            }
+
+            /**
+             * Bounds the frames queued to or being drawn by the encoder thread, and with it
+             * the latency the queue can add.  Beyond that the drop policy applies.
+             *
+             * @param maxFramesInFlight at least 1; default {@value #DEFAULT_MAX_FRAMES_IN_FLIGHT}
+             */
+            public Builder setMaxFramesInFlight(int maxFramesInFlight) {
+                if (maxFramesInFlight <= 0) {
+                    throw new IllegalArgumentException("invalid frames in flight "
+                            + maxFramesInFlight);
+                }
+                mMaxFramesInFlight = maxFramesInFlight;
+                return this;
+            }
+
+            /**
+             * @param outputFormat VideoEncoderCore.OUTPUT_FORMAT_MP4 (default) or
+             *                     VideoEncoderCore.OUTPUT_FORMAT_FRAGMENTED_MP4
+             */
+            public Builder setOutputFormat(int outputFormat) {
+                mOutputFormat = outputFormat;
+                return this;
+            }
+
+            /**
+             * @param audioPolicy VideoEncoderCore.AUDIO_POLICY_ENCODE (default),
+             *                    VideoEncoderCore.AUDIO_POLICY_NONE for video only, or
+             *                    VideoEncoderCore.AUDIO_POLICY_SILENCE for a silent track
+             *                    without an AAC codec, e.g. with the mic muted
+             */
+            public Builder setAudioPolicy(int audioPolicy) {
+                mAudioPolicy = audioPolicy;
+                return this;
+            }
+
+            /**
+             * Skips frames whose content matches the last encoded frame.  Off by default;
+             * costs a small GPU readback per frame.
+             */
+            public Builder setSuppressStaticFrames(boolean suppressStaticFrames) {
+                mSuppressStaticFrames = suppressStaticFrames;
+                return this;
+            }
+
+            /**
+             * @param keepAliveMs with static-frame suppression, the longest gap between
+             *                    encoded frames when frames keep arriving unchanged
+             */
+            public Builder setKeepAliveInterval(int keepAliveMs) {
+                mKeepAliveMs = keepAliveMs;
+                return this;
+            }
+
+            /**
+             * @param progressIntervalMs how much the recorded duration grows between two
+             *                           RecordCallback.onRecordedDurationChanged() calls
+             */
+            public Builder setProgressInterval(int progressIntervalMs) {
+                if (progressIntervalMs <= 0) {
+                    throw new IllegalArgumentException("invalid progress interval "
+                            + progressIntervalMs);
+                }
+                mProgressIntervalMs = progressIntervalMs;
+                return this;
+            }
+
+            /**
+             * Sets the encoded size explicitly, e.g. one the codec is known to support.  By
+             * default it is the capture size minus the cropped areas.
+             */
+            public Builder setVideoSize(int videoWidth, int videoHeight) {
+                mVideoWidth = videoWidth;
+                mVideoHeight = videoHeight;
+                return this;
+            }
+
+            public Builder setFrameRate(int frameRate) {
+                mFrameRate = frameRate;
+                return this;
+            }
+
+            /**
+             * @param codecName AVC encoder to use, or null (default) for the platform's choice
+             */
+            public Builder setCodecName(String codecName) {
+                mCodecName = codecName;
+                return this;
+            }
+
+            /**
+             * Also keeps the encoded samples in replayBuffer, which is cleared when recording
+             * starts.
+             */
+            public Builder setReplayBuffer(ReplayBuffer replayBuffer) {
+                mReplayBuffer = replayBuffer;
+                return this;
+            }
+
+            /**
+             * Splits the recording into files of at most maxDurationMs or maxBytes each, 0 for
+             * no limit.  Both 0 (the default) writes a single file.
+             */
+            public Builder setSegmentLimits(long maxDurationMs, long maxBytes) {
+                mSegmentDurationMs = maxDurationMs;
+                mSegmentBytes = maxBytes;
+                return this;
+            }
+
+            /**
+             * @param segmentListener told about every finished segment, on a background thread
+             */
+            public Builder setSegmentListener(SegmentingMuxerSink.Listener segmentListener) {
+                mSegmentListener = segmentListener;
+                return this;
+            }
+
+            /**
+             * Also streams the encoded samples to livePreview's clients.
+             */
+            public Builder setLivePreview(LivePreviewServer livePreview) {
+                mLivePreview = livePreview;
+                return this;
+            }
+
+            /**
+             * Also records the same frames to target, see {@link SimulcastTarget}.  Ignored
+             * when pre-arming; targets start with the recording.
+             */
+            public Builder addSimulcastTarget(SimulcastTarget target) {
+                mSimulcastTargets.add(target);
+                return this;
+            }
+
+            public EncoderConfig build() {
+                FrameSlotPool.checkConfig(mMaxFramesInFlight, mFrameDropPolicy);
+                return new EncoderConfig(this);
+            }
         }
     }
 
     /**
      * Handles encoder state change requests.  The handler is created on the encoder thread.
      */
-    private static class EncoderHandler extends Handler {
+    private static class EncoderHandler extends RecorderScheduler.LaneHandler {
         private WeakReference<TextureMovieEncoder> mWeakEncoder;
 
         public EncoderHandler(TextureMovieEncoder encoder) {
+            super(Looper.myLooper());
             mWeakEncoder = new WeakReference<TextureMovieEncoder>(encoder);
         }
 
@@ -604,10 +1878,11 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
                 case MSG_STOP_RECORDING:
                     encoder.handleStopRecording();
                     break;
+                case MSG_AUDIO_EOS_TIMEOUT:
+                    encoder.handleAudioEosTimeout(inputMessage.arg1);
+                    break;
                 case MSG_FRAME_AVAILABLE:
-                    long timestamp = (((long) inputMessage.arg1) << 32) |
-                            (((long) inputMessage.arg2) & 0xffffffffL);
-                    encoder.handleFrameAvailable((float[]) obj, timestamp);
+                    encoder.handleFrameAvailable(inputMessage.arg1, inputMessage.arg2);
                     break;
                 case MSG_SET_TEXTURE_ID:
                     encoder.handleSetTexture(inputMessage.arg1);
@@ -618,6 +1893,18 @@ public class TextureMovieEncoder implements Runnable, SurfaceTexture.OnFrameAvai
                 case MSG_AUDIO_FRAME_AVAILABLE:
                     encoder.handleAudioFrameAvailable(inputMessage.arg1 == 1);
                     break;
+                case MSG_PREPARE:
+                    encoder.handlePrepare((EncoderConfig) obj);
+                    break;
+                case MSG_RELEASE:
+                    encoder.handleRelease();
+                    break;
+                case MSG_ZOOM:
+                    encoder.handleZoom((float[]) obj);
+                    break;
+                case MSG_RESUME:
+                    encoder.handleResume();
+                    break;
                 case MSG_QUIT:
                     Log.d(TAG, "Exit encoder loop");
                     Looper.myLooper().quit();
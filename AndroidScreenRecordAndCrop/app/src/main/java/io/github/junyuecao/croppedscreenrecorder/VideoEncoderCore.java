@@ -22,9 +22,10 @@ import android.media.AudioFormat;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
+import android.os.Build;
+import android.os.Bundle;
 import android.os.Handler;
-import android.os.Looper;
+import android.os.HandlerThread;
 import android.support.annotation.RequiresApi;
 import android.util.Log;
 import android.view.Surface;
@@ -32,8 +33,10 @@ import android.view.Surface;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class wraps up the core components used for surface-input video encoding.
@@ -44,6 +47,24 @@ import java.util.TimerTask;
  * <p>
  * This class is not thread-safe, with one exception: it is valid to use the input surface
  * on one thread, and drain the output on a different thread.
+ * <p>
+ * Two drain modes are available.  {@link #DRAIN_MODE_BLOCKING} is the original behaviour:
+ * the caller polls the codecs with drainEncoder(), which may block for up to TIMEOUT_USER
+ * per track.  {@link #DRAIN_MODE_ASYNC} registers a MediaCodec.Callback for both codecs on
+ * a dedicated "EncoderDrain" thread, which is then the only thread that ever touches the
+ * muxer; drainEncoder(false) becomes a no-op for the caller.
+ * <p>
+ * The muxer can be opened later than the codecs: an encoder created without an output file
+ * is "warm", its codecs configured and running.  Output produced before
+ * {@link #openMuxer(File, int)} is discarded, but the formats are kept, so opening the
+ * muxer can start it right away.
+ * <p>
+ * With a {@link ReplayBuffer} or {@link LivePreviewServer} set, every encoded sample is also
+ * handed to it, with or without a muxer.
+ * <p>
+ * The audio policy decides whether there is an AAC codec at all.  Without one the muxer
+ * starts on the video format alone, or on the format of {@link SilentAacSource}, whose
+ * frames are then written along with the video.
  */
 @RequiresApi(LOLLIPOP)
 public class VideoEncoderCore {
@@ -55,57 +76,184 @@ public class VideoEncoderCore {
     public static final int DEFAULT_DATA_FORMAT = AudioFormat.ENCODING_PCM_16BIT;
 
     public static final int MAX_INPUT_SIZE = 65536;
+
+    /** Caller drains the codecs synchronously with drainEncoder(). */
+    public static final int DRAIN_MODE_BLOCKING = 0;
+    /** Codecs are drained from MediaCodec callbacks on a dedicated thread.  Requires API 23. */
+    public static final int DRAIN_MODE_ASYNC = 1;
+    /** How long release() waits for the video EOS in async mode, in ms. */
+    private static final long EOS_TIMEOUT_MS = 2000;
+    /** From dequeueAudioInput(): the codec takes no more input */
+    private static final int INPUT_CLOSED = Integer.MIN_VALUE;
+
+    /** Regular MP4 written by MediaMuxer; unplayable if release() never runs. */
+    public static final int OUTPUT_FORMAT_MP4 = 0;
+    /** Fragmented MP4 written by FragmentedMp4Writer; playable up to the last fragment. */
+    public static final int OUTPUT_FORMAT_FRAGMENTED_MP4 = 1;
+
+    /** Encode the PCM passed to enqueueAudioFrame() with an AAC codec. */
+    public static final int AUDIO_POLICY_ENCODE = 0;
+    /** Video only: no AAC codec and no audio track; audio frames are ignored. */
+    public static final int AUDIO_POLICY_NONE = 1;
+    /** A silent audio track from pre-encoded frames, no AAC codec; audio frames are ignored. */
+    public static final int AUDIO_POLICY_SILENCE = 2;
+
     private static final String VIDEO_MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;    // H.264 Advanced Video Coding
     private static final String AUDIO_MIME_TYPE = MediaFormat.MIMETYPE_AUDIO_AAC;
-    /** fps */
-    private static final int FRAME_RATE = 60;
+    /** fps, unless negotiated otherwise */
+    public static final int DEFAULT_FRAME_RATE = 60;
     /** 5 seconds between I-frames */
     private static final int IFRAME_INTERVAL = 5;
-    /** Save path */
-    private final String mPath;
+    /** Save path, null until the muxer is opened */
+    private String mPath;
 
     private Surface mInputSurface;
-    private MediaMuxer mMuxer;
+    private MuxerSink mMuxer;
     private MediaCodec mVideoEncoder;
-    private MediaCodec mAudioEncoder;
+    // Stopped and cleared under mAudioInputLock, as the feeder thread queues input into it
+    private volatile MediaCodec mAudioEncoder;
     private MediaCodec.BufferInfo mVBufferInfo;
     private MediaCodec.BufferInfo mABufferInfo;
     private int mVTrackIndex;
     private int mATrackIndex;
-    private boolean mMuxerStarted;
-    private boolean mStreamEnded;
-    private boolean mPause;
-    private long mRecordStartedAt = 0;
-
-    private RecordCallback mCallback;
-    private Handler mMainHandler;
-    // is audio empty , if true, we should add a frame of audio data to the muxer
-    private boolean mIsAudioEmpty;
+    private volatile boolean mMuxerStarted;
+    private volatile boolean mStreamEnded;
+    // Output formats, kept so that a muxer opened later can add the tracks right away
+    private MediaFormat mVideoFormat;
+    private MediaFormat mAudioFormat;
+    // Video output was thrown away before the muxer started; the next frame must be a key frame
+    private boolean mVideoDiscarded;
+    // The muxer started after such a discard; video isn't muxed until the next key frame
+    private boolean mAwaitingKeyFrame;
 
-    private Runnable mRecordProgressChangeRunnable = new Runnable() {
+    private final int mDrainMode;
+    // ----- async drain mode only -----
+    private HandlerThread mDrainThread;
+    private Handler mDrainHandler;
+    private final BlockingQueue<Integer> mFreeAudioInputs = new ArrayBlockingQueue<>(64);
+    private final CountDownLatch mVideoEosLatch = new CountDownLatch(1);
+    // Counted down once the audio EOS came out of the codec, in either drain mode
+    private final CountDownLatch mAudioEosLatch = new CountDownLatch(1);
+    private volatile boolean mReleased;
 
+    private RecordCallback mCallback;
+    private volatile RecorderStats mStats = new RecorderStats(false);
+    private volatile BitrateController mBitrateController;
+    private volatile ReplayBuffer mReplayBuffer;
+    private volatile LivePreviewServer mLivePreview;
+    private final Runnable mSyncFrameRequester = new Runnable() {
         @Override
         public void run() {
-            if (mCallback != null) {
-                mCallback.onRecordedDurationChanged(System.currentTimeMillis() - mRecordStartedAt);
-            }
+            requestSyncFrame();
         }
     };
+    private long mFirstVideoPtsUs = -1; // first one muxed
+    private long mSegmentDurationUs;
+    private long mSegmentBytes;
+    private SegmentingMuxerSink.Listener mSegmentListener;
+    private final int mBitRate;
+    private Handler mMainHandler;
+    private ProgressPublisher mProgress;
+    // is audio empty , if true, we should add a frame of audio data to the muxer
+    private boolean mIsAudioEmpty;
+    private final int mAudioPolicy;
+    // For enqueueAudioFrame() without a timestamp; 16-bit PCM
+    private final MediaClock mAudioClock = new MediaClock(DEFAULT_SAMPLE_RATE,
+            2 * DEFAULT_CHANNEL_CONFIG, MediaClock.DEFAULT_MAX_DRIFT_US);
+    private SilentAacSource mSilence; // AUDIO_POLICY_SILENCE only
+    // Guards queueing audio input, so nothing is queued after the end of stream
+    private final Object mAudioInputLock = new Object();
+    private boolean mAudioEosQueued;
+    private long mLastAudioInputUs;
+
     private String mCoverPath;
-    private Timer mProgressTimer;
-    private TimerTask mProgressTask = new TimerTask() {
-        @Override
-        public void run() {
-            mMainHandler.post(mRecordProgressChangeRunnable);
-        }
-    };
 
     /**
-     * Configures encoder and muxer state, and prepares the input Surface.
+     * Configures encoder and muxer state, and prepares the input Surface.  Uses the blocking
+     * drain mode.
      */
     public VideoEncoderCore(int width, int height, int bitRate, File outputFile)
             throws IOException {
-        mMainHandler = new Handler(Looper.getMainLooper());
+        this(width, height, bitRate, outputFile, DRAIN_MODE_BLOCKING);
+    }
+
+    /**
+     * Configures encoder and muxer state, and prepares the input Surface.  Writes a regular
+     * MP4.
+     * <p>
+     * DRAIN_MODE_ASYNC falls back to DRAIN_MODE_BLOCKING before Android M, where
+     * MediaCodec.setCallback() cannot be given a Handler.
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, File outputFile, int drainMode)
+            throws IOException {
+        this(width, height, bitRate, outputFile, drainMode, OUTPUT_FORMAT_MP4);
+    }
+
+    /**
+     * Configures encoder and muxer state, and prepares the input Surface.
+     *
+     * @param outputFormat {@link #OUTPUT_FORMAT_MP4} or {@link #OUTPUT_FORMAT_FRAGMENTED_MP4}
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, File outputFile, int drainMode,
+                            int outputFormat) throws IOException {
+        this(width, height, bitRate, DEFAULT_FRAME_RATE, null, outputFile, drainMode, outputFormat);
+    }
+
+    /**
+     * Configures encoder and muxer state, and prepares the input Surface.
+     *
+     * @param frameRate    frame rate to configure the encoder with
+     * @param codecName    name of the AVC encoder to use, e.g. from CodecNegotiator, or null
+     *                     for the platform default
+     * @param outputFormat {@link #OUTPUT_FORMAT_MP4} or {@link #OUTPUT_FORMAT_FRAGMENTED_MP4}
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, int frameRate, String codecName,
+                            File outputFile, int drainMode, int outputFormat) throws IOException {
+        this(width, height, bitRate, frameRate, codecName, outputFile, drainMode, outputFormat,
+                AUDIO_POLICY_ENCODE);
+    }
+
+    /**
+     * Configures encoder and muxer state, and prepares the input Surface.
+     *
+     * @param audioPolicy {@link #AUDIO_POLICY_ENCODE}, {@link #AUDIO_POLICY_NONE} or
+     *                    {@link #AUDIO_POLICY_SILENCE}
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, int frameRate, String codecName,
+                            File outputFile, int drainMode, int outputFormat, int audioPolicy)
+            throws IOException {
+        this(width, height, bitRate, frameRate, codecName, drainMode, audioPolicy);
+        openMuxer(outputFile, outputFormat);
+    }
+
+    /**
+     * Configures and starts the codecs and prepares the input Surface, without a muxer.
+     * Call {@link #openMuxer(File, int)} to start recording.
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, int frameRate, String codecName,
+                            int drainMode) throws IOException {
+        this(width, height, bitRate, frameRate, codecName, drainMode, AUDIO_POLICY_ENCODE);
+    }
+
+    /**
+     * Configures and starts the codecs and prepares the input Surface, without a muxer.
+     * Only {@link #AUDIO_POLICY_ENCODE} creates an AAC codec.
+     */
+    public VideoEncoderCore(int width, int height, int bitRate, int frameRate, String codecName,
+                            int drainMode, int audioPolicy) throws IOException {
+        if (drainMode == DRAIN_MODE_ASYNC && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            Log.w(TAG, "Async drain needs API 23, falling back to blocking drain");
+            drainMode = DRAIN_MODE_BLOCKING;
+        }
+        mDrainMode = drainMode;
+        if (mDrainMode == DRAIN_MODE_ASYNC) {
+            mDrainThread = RecorderScheduler.getDefault().startHandlerThread(
+                    RecorderScheduler.LANE_ENCODE_DRAIN, "EncoderDrain");
+            mDrainHandler = new RecorderScheduler.LaneHandler(mDrainThread.getLooper());
+        }
+        mMainHandler = RecorderScheduler.getDefault().newCallbackHandler();
+        mProgress = new ProgressPublisher(mMainHandler);
+        mBitRate = bitRate;
         mVBufferInfo = new MediaCodec.BufferInfo();
         mABufferInfo = new MediaCodec.BufferInfo();
 
@@ -116,20 +264,47 @@ public class VideoEncoderCore {
         videoFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
                 MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
         videoFormat.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
-        videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+        videoFormat.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
         videoFormat.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
-        Log.d(TAG, "------>  width = " + width + "    height = " + height + "   bitRate = " + bitRate + "    frame = " + FRAME_RATE);
+        Log.d(TAG, "------>  width = " + width + "    height = " + height + "   bitRate = " + bitRate + "    frame = " + frameRate
+                + "    codec = " + codecName);
         if (VERBOSE) {
             Log.d(TAG, "videoFormat: " + videoFormat);
         }
 
         // Create a MediaCodec encoder, and configure it with our videoFormat.  Get a Surface
         // we can use for input and wrap it with a class that handles the EGL work.
-        mVideoEncoder = MediaCodec.createEncoderByType(VIDEO_MIME_TYPE);
+        mVideoEncoder = codecName != null ? MediaCodec.createByCodecName(codecName)
+                : MediaCodec.createEncoderByType(VIDEO_MIME_TYPE);
+        if (mDrainMode == DRAIN_MODE_ASYNC) {
+            // Callbacks must be set before configure()
+            mVideoEncoder.setCallback(new VideoCallback(), mDrainHandler);
+        }
         mVideoEncoder.configure(videoFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mInputSurface = mVideoEncoder.createInputSurface();
         mVideoEncoder.start();
 
+        mAudioPolicy = audioPolicy;
+        mVTrackIndex = -1;
+        mATrackIndex = -1;
+        mMuxerStarted = false;
+        mStreamEnded = false;
+        switch (audioPolicy) {
+            case AUDIO_POLICY_ENCODE:
+                createAudioEncoder();
+                break;
+            case AUDIO_POLICY_NONE:
+                break;
+            case AUDIO_POLICY_SILENCE:
+                mSilence = new SilentAacSource(DEFAULT_SAMPLE_RATE);
+                mAudioFormat = mSilence.getFormat();
+                break;
+            default:
+                throw new IllegalArgumentException("unknown audio policy " + audioPolicy);
+        }
+    }
+
+    private void createAudioEncoder() throws IOException {
         MediaFormat audioFormat = MediaFormat.createAudioFormat(AUDIO_MIME_TYPE, DEFAULT_SAMPLE_RATE, DEFAULT_CHANNEL_CONFIG);
         audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
         audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, 128000);
@@ -137,23 +312,112 @@ public class VideoEncoderCore {
         mIsAudioEmpty = true;
 
         mAudioEncoder = MediaCodec.createEncoderByType(AUDIO_MIME_TYPE);
+        if (mDrainMode == DRAIN_MODE_ASYNC) {
+            mAudioEncoder.setCallback(new AudioCallback(), mDrainHandler);
+        }
         mAudioEncoder.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mAudioEncoder.start();
-        mStreamEnded = false;
+    }
 
-        // Create a MediaMuxer.  We can't add the video track and start() the muxer here,
-        // because our MediaFormat doesn't have the Magic Goodies.  These can only be
-        // obtained from the encoder after it has started processing data.
-        //
-        // We're not actually interested in multiplexing audio.  We just want to convert
-        // the raw H.264 elementary stream we get from MediaCodec into a .mp4 file.
+    public int getAudioPolicy() {
+        return mAudioPolicy;
+    }
+
+    /**
+     * Creates the muxer.  Tracks whose format the encoders already reported are added right
+     * away, so with warm codecs the muxer starts as soon as this runs on the drain thread.
+     */
+    public void openMuxer(File outputFile, int outputFormat) throws IOException {
+        if (mPath != null) {
+            throw new IllegalStateException("muxer already open");
+        }
+        // We can't add the video track and start() the muxer here unless the encoder has
+        // already handed us the Magic Goodies.  These can only be obtained from the encoder
+        // after it has started processing data.
+        final MuxerSink muxer;
+        if (mSegmentDurationUs > 0 || mSegmentBytes > 0) {
+            SegmentingMuxerSink segmenting = new SegmentingMuxerSink(outputFile, outputFormat,
+                    mSegmentDurationUs, mSegmentBytes, mSyncFrameRequester);
+            segmenting.setListener(mSegmentListener);
+            muxer = segmenting;
+        } else {
+            muxer = createMuxerSink(outputFile, outputFormat);
+        }
         mPath = outputFile.toString();
-        mMuxer = new MediaMuxer(mPath,
-                MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        if (mDrainMode != DRAIN_MODE_ASYNC) {
+            attachMuxer(muxer);
+            return;
+        }
+        // The formats arrive on the drain thread, so hand the muxer over there.
+        mDrainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mReleased) {
+                    attachMuxer(muxer);
+                }
+            }
+        });
+    }
 
-        mVTrackIndex = -1;
-        mATrackIndex = -1;
-        mMuxerStarted = false;
+    private void attachMuxer(MuxerSink muxer) {
+        mMuxer = muxer;
+        if (mVideoFormat != null) {
+            mVTrackIndex = mMuxer.addTrack(mVideoFormat);
+        }
+        if (mAudioFormat != null) {
+            mATrackIndex = mMuxer.addTrack(mAudioFormat);
+        }
+        tryStartMuxer();
+    }
+
+    /**
+     * Splits the recording into segments of at most maxDurationUs or maxBytes (0 for no
+     * limit), see {@link SegmentingMuxerSink}.  Call before {@link #openMuxer(File, int)}.
+     *
+     * @param listener told about every finished segment, may be null
+     */
+    public void setSegmentLimits(long maxDurationUs, long maxBytes,
+                                 SegmentingMuxerSink.Listener listener) {
+        mSegmentDurationUs = maxDurationUs;
+        mSegmentBytes = maxBytes;
+        mSegmentListener = listener;
+    }
+
+    /**
+     * Feeds the audio encoder a block of silence so it reports its output format before
+     * recording starts.  The encoded output is discarded.  For warm encoders only.
+     */
+    public void primeAudio() {
+        if (mAudioEncoder == null) {
+            return;
+        }
+        int size = 2048;
+        enqueueAudioFrame(ByteBuffer.allocateDirect(size), size, System.nanoTime() / 1000, false);
+    }
+
+    /**
+     * Asks the video encoder to make the next frame a key frame.
+     */
+    public void requestSyncFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        try {
+            mVideoEncoder.setParameters(params);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Failed to request sync frame", e);
+        }
+    }
+
+    static MuxerSink createMuxerSink(File outputFile, int outputFormat)
+            throws IOException {
+        switch (outputFormat) {
+            case OUTPUT_FORMAT_MP4:
+                return new MediaMuxerSink(outputFile);
+            case OUTPUT_FORMAT_FRAGMENTED_MP4:
+                return new FragmentedMp4MuxerSink(outputFile);
+            default:
+                throw new IllegalArgumentException("unknown output format " + outputFormat);
+        }
     }
 
     /**
@@ -163,45 +427,93 @@ public class VideoEncoderCore {
         return mInputSurface;
     }
 
+    /**
+     * Returns the drain mode actually in use.
+     */
+    public int getDrainMode() {
+        return mDrainMode;
+    }
+
     /**
      * Releases encoder resources.
+     * <p>
+     * In async mode this waits (bounded) for the video EOS, and for the audio EOS if one
+     * was queued, then tears everything down on the drain thread so the muxer keeps a
+     * single writer until the very end.
      */
     public void release() {
+        if (mDrainMode != DRAIN_MODE_ASYNC) {
+            releaseInternal();
+            return;
+        }
+        long deadlineNs = System.nanoTime() + EOS_TIMEOUT_MS * 1000000L;
+        try {
+            if (!mVideoEosLatch.await(EOS_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Timed out waiting for video EOS");
+            }
+            if (isAudioEosQueued() && !mAudioEosLatch.await(
+                    Math.max(0, deadlineNs - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                Log.w(TAG, "Timed out waiting for audio EOS");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        final CountDownLatch released = new CountDownLatch(1);
+        mDrainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                releaseInternal();
+                released.countDown();
+            }
+        });
+        try {
+            released.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mDrainThread.quitSafely();
+        mDrainThread = null;
+        mDrainHandler = null;
+    }
+
+    private void releaseInternal() {
         if (VERBOSE) {
             Log.d(TAG, "releasing encoder objects");
         }
+        mReleased = true;
+        LivePreviewServer live = mLivePreview;
+        if (live != null) {
+            live.endStream(mSyncFrameRequester);
+        }
 
         if (mVideoEncoder != null) {
             mVideoEncoder.stop();
             mVideoEncoder.release();
             mVideoEncoder = null;
         }
-        if (mAudioEncoder != null) {
-            mAudioEncoder.stop();
-            mAudioEncoder.release();
-            mAudioEncoder = null;
-        }
-        if (mProgressTimer != null) {
-            mProgressTimer.cancel();
-            mProgressTimer = null;
+        synchronized (mAudioInputLock) {
+            // Waits for a feeder in dequeueAudioInput() or queueAudioInput()
+            if (mAudioEncoder != null) {
+                mAudioEncoder.stop();
+                mAudioEncoder.release();
+                mAudioEncoder = null;
+            }
         }
+        final long durationMs = mProgress.getDurationMs();
         if (mMuxer != null) {
             try {
-                if (mIsAudioEmpty) {
-                    // avoid empty audio track. if the audio track is empty , muxer.stop will failed
-                    byte[] bytes = new byte[2];
-                    ByteBuffer buffer = ByteBuffer.wrap(bytes);
-                    mABufferInfo.set(0, 2, System.nanoTime() / 1000, 0);
-                    buffer.position(mABufferInfo.offset);
-                    buffer.limit(mABufferInfo.offset + mABufferInfo.size);
-                    mMuxer.writeSampleData(mATrackIndex, buffer, mABufferInfo);
+                if (mIsAudioEmpty && mATrackIndex != -1 && mMuxerStarted) {
+                    // The muxer fails to stop with an empty track; one silent frame will do
+                    SilentAacSource silence = new SilentAacSource(DEFAULT_SAMPLE_RATE);
+                    silence.nextFrame(Math.max(mFirstVideoPtsUs, 0));
+                    mMuxer.writeSampleData(mATrackIndex, silence.getFrame(), silence.getInfo());
                 }
                 mMuxer.stop();
                 if (mCallback != null) {
                     mMainHandler.post(new Runnable() {
                         @Override
                         public void run() {
-                            mCallback.onRecordSuccess(mPath, mCoverPath, System.currentTimeMillis() - mRecordStartedAt);
+                            mCallback.onRecordSuccess(mPath, mCoverPath, durationMs);
                         }
                     });
                 }
@@ -211,7 +523,7 @@ public class VideoEncoderCore {
                     mMainHandler.post(new Runnable() {
                         @Override
                         public void run() {
-                            mCallback.onRecordFailed(e, System.currentTimeMillis() - mRecordStartedAt);
+                            mCallback.onRecordFailed(e, durationMs);
                         }
                     });
                 }
@@ -241,14 +553,100 @@ public class VideoEncoderCore {
 
     public void setRecordCallback(RecordCallback callback) {
         mCallback = callback;
+        mProgress.setCallback(callback);
     }
 
-    public void setPause(boolean pause) {
-        mPause = pause;
+    /**
+     * @param intervalMs how much the recorded duration has to grow before the callback
+     *                   hears about it, {@link ProgressPublisher#DEFAULT_INTERVAL_MS} by default
+     */
+    public void setProgressInterval(int intervalMs) {
+        mProgress.setInterval(intervalMs);
+    }
+
+    /**
+     * Sets where muxer writes are reported, and reports the configured bit rate to it.
+     * Call before feeding frames.
+     */
+    public void setStats(RecorderStats stats) {
+        mStats = stats;
+        stats.onBitRateChanged(mBitRate);
+    }
+
+    /**
+     * Keeps the encoded samples in the replay buffer from now on, or stops with null.  The
+     * buffer is cleared first.  Call from the thread that feeds frames.
+     */
+    public void setReplayBuffer(ReplayBuffer replay) {
+        if (replay != null) {
+            replay.clear();
+            if (mVideoFormat != null) {
+                replay.setFormat(ReplayBuffer.TRACK_VIDEO, mVideoFormat);
+                // Output has started already; don't wait for the next periodic key frame
+                requestSyncFrame();
+            }
+            if (mAudioFormat != null) {
+                replay.setFormat(ReplayBuffer.TRACK_AUDIO, mAudioFormat);
+            }
+        }
+        mReplayBuffer = replay;
+    }
+
+    /**
+     * Streams the encoded samples to the server's clients from now on.  The server's previous
+     * stream, if any, ends.  Call from the thread that feeds frames.
+     */
+    public void setLivePreview(LivePreviewServer server) {
+        if (server != null) {
+            server.beginStream(mSyncFrameRequester, mAudioPolicy != AUDIO_POLICY_NONE);
+            if (mVideoFormat != null) {
+                server.setFormat(ReplayBuffer.TRACK_VIDEO, mVideoFormat);
+            }
+            if (mAudioFormat != null) {
+                server.setFormat(ReplayBuffer.TRACK_AUDIO, mAudioFormat);
+            }
+        }
+        mLivePreview = server;
     }
 
-    public boolean getPause() {
-        return mPause;
+    /**
+     * Lets the controller retune the video bit rate from the drain loop, or pass null to
+     * keep the configured bit rate.  Call before feeding frames.
+     */
+    public void setBitrateController(BitrateController controller) {
+        mBitrateController = controller;
+    }
+
+    /**
+     * Feeds one muxed video sample to the bit rate controller and applies its decision.
+     * (Drain thread.)
+     */
+    private void updateBitRate(int size, long presentationTimeUs) {
+        BitrateController controller = mBitrateController;
+        if (controller == null) {
+            return;
+        }
+        long nowUs = System.nanoTime() / 1000;
+        // Timestamps exclude the time spent paused; latency is measured on the capture clock
+        long captureUs = presentationTimeUs + mStats.getCaptureOffsetUs();
+        int bitRate = controller.onVideoSample(size, nowUs, nowUs - captureUs);
+        if (bitRate == BitrateController.NO_CHANGE) {
+            return;
+        }
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        try {
+            mVideoEncoder.setParameters(params);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Failed to change bit rate", e);
+            return;
+        }
+        mStats.onBitRateChanged(bitRate);
+        if (VERBOSE) {
+            Log.d(TAG, "bit rate -> " + bitRate + " (measured " + controller.getMeasuredBitRate()
+                    + ", " + controller.getMeasuredFps() + " fps, latency "
+                    + controller.getMeasuredLatencyUs() + "us)");
+        }
     }
 
     /**
@@ -274,24 +672,26 @@ public class VideoEncoderCore {
             mStreamEnded = true;
         }
 
-        drainVideo(endOfStream);
-        drainAudio(endOfStream);
-
-        if (mMuxerStarted && mCallback != null) {
-            mMainHandler.post(mRecordProgressChangeRunnable);
+        if (mDrainMode == DRAIN_MODE_BLOCKING) {
+            drainVideo(endOfStream);
+            drainAudio(endOfStream);
         }
     }
 
     private void drainVideo(boolean endOfStream) {
+        long deadlineNs = System.nanoTime() + EOS_TIMEOUT_MS * 1000000L;
         while (true) {
             int encoderStatus = mVideoEncoder.dequeueOutputBuffer(mVBufferInfo, TIMEOUT_USER);
-            Log.d(TAG, "drainVideo() encoderStatus = " + encoderStatus);
+            if (VERBOSE) {
+                Log.d(TAG, "drainVideo() encoderStatus = " + encoderStatus);
+            }
             if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 // no output available yet
                 if (!endOfStream) {
                     break;      // out of while
                 } else {
-                    if (mStreamEnded) {
+                    if (System.nanoTime() > deadlineNs) {
+                        Log.w(TAG, "Timed out waiting for video EOS");
                         break;
                     }
                     if (VERBOSE) {
@@ -299,86 +699,181 @@ public class VideoEncoderCore {
                     }
                 }
             } else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                // should happen before receiving buffers, and should only happen once
-                if (mMuxerStarted) {
-                    throw new RuntimeException("format changed twice");
-                }
-                MediaFormat newFormat = mVideoEncoder.getOutputFormat();
-                Log.d(TAG, "video encoder output format changed: " + newFormat);
-
-                // now that we have the Magic Goodies, start the muxer
-                mVTrackIndex = mMuxer.addTrack(newFormat);
-                tryStartMuxer();
+                onVideoFormatChanged(mVideoEncoder.getOutputFormat());
             } else if (encoderStatus < 0) {
                 Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " +
                         encoderStatus);
                 // let's ignore it
             } else {
-                if (mMuxerStarted && !mPause) {
-                    // same as mVideoEncoder.getOutputBuffer(encoderStatus)
-                    ByteBuffer encodedData = mVideoEncoder.getOutputBuffer(encoderStatus);
+                if (writeVideoOutput(encoderStatus, mVBufferInfo, endOfStream)) {
+                    break;      // out of while
+                }
+            }
+        }
+    }
 
-                    if (encodedData == null) {
-                        throw new RuntimeException("encoderOutputBuffer " + encoderStatus +
-                                " was null");
-                    }
+    /**
+     * Adds the video track once the encoder has handed us the Magic Goodies.
+     */
+    private void onVideoFormatChanged(MediaFormat newFormat) {
+        // should happen before receiving buffers, and should only happen once
+        if (mMuxerStarted) {
+            throw new RuntimeException("format changed twice");
+        }
+        Log.d(TAG, "video encoder output format changed: " + newFormat);
+        mVideoFormat = newFormat;
+        ReplayBuffer replay = mReplayBuffer;
+        if (replay != null) {
+            replay.setFormat(ReplayBuffer.TRACK_VIDEO, newFormat);
+        }
+        LivePreviewServer live = mLivePreview;
+        if (live != null) {
+            live.setFormat(ReplayBuffer.TRACK_VIDEO, newFormat);
+        }
 
-                    if ((mVBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                        // The codec config data was pulled out and fed to the muxer when we got
-                        // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
-                        if (VERBOSE) {
-                            Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
-                        }
-                        mVBufferInfo.size = 0;
-                    }
+        // now that we have the Magic Goodies, start the muxer
+        if (mMuxer != null) {
+            mVTrackIndex = mMuxer.addTrack(newFormat);
+            tryStartMuxer();
+        }
+    }
 
-                    if (mVBufferInfo.size != 0) {
-                        if (!mMuxerStarted) {
-                            throw new RuntimeException("muxer hasn't started");
-                        }
+    /**
+     * Writes one encoded video buffer to the muxer and releases it back to the codec.
+     *
+     * @return true if the buffer carried the end-of-stream flag
+     */
+    private boolean writeVideoOutput(int index, MediaCodec.BufferInfo info, boolean endOfStream) {
+        boolean mux = mMuxerStarted;
+        ReplayBuffer replay = mReplayBuffer;
+        LivePreviewServer live = mLivePreview;
+        if (mux || replay != null || live != null) {
+            // same as mVideoEncoder.getOutputBuffer(encoderStatus)
+            ByteBuffer encodedData = mVideoEncoder.getOutputBuffer(index);
 
-                        // adjust the ByteBuffer values to match BufferInfo (not needed?)
-                        encodedData.position(mVBufferInfo.offset);
-                        encodedData.limit(mVBufferInfo.offset + mVBufferInfo.size);
+            if (encodedData == null) {
+                throw new RuntimeException("encoderOutputBuffer " + index +
+                        " was null");
+            }
 
-                        mMuxer.writeSampleData(mVTrackIndex, encodedData, mVBufferInfo);
-                        if (VERBOSE) {
-                            Log.d(TAG, "sent " + mVBufferInfo.size + " video bytes to muxer, ts=" +
-                                    mVBufferInfo.presentationTimeUs);
-                        }
-                    }
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                // The codec config data was pulled out and fed to the muxer when we got
+                // the INFO_OUTPUT_FORMAT_CHANGED status.  Ignore it.
+                if (VERBOSE) {
+                    Log.d(TAG, "ignoring BUFFER_FLAG_CODEC_CONFIG");
+                }
+                info.size = 0;
+            }
 
-                    mVideoEncoder.releaseOutputBuffer(encoderStatus, false);
+            if (info.size != 0) {
+                // adjust the ByteBuffer values to match BufferInfo (not needed?)
+                encodedData.position(info.offset);
+                encodedData.limit(info.offset + info.size);
 
-                    if ((mVBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        if (!endOfStream) {
-                            Log.w(TAG, "reached end of stream unexpectedly");
-                        } else {
-                            if (VERBOSE) {
-                                Log.d(TAG, "end of video stream reached");
-                            }
-                        }
-                        break;      // out of while
+                boolean muxVideo = mux;
+                if (mux && mAwaitingKeyFrame) {
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+                        mAwaitingKeyFrame = false;
+                    } else {
+                        // Would refer to frames the file doesn't have
+                        mStats.onVideoSampleDiscarded();
+                        muxVideo = false;
                     }
-                } else {
-                    Log.w(TAG, "Muxer is not started, just return");
-                    // let's ignore it
-                    mVideoEncoder.releaseOutputBuffer(encoderStatus, false);
+                }
+                if (muxVideo) {
+                    RecorderStats stats = mStats;
+                    long writeStart = stats.begin();
+                    mMuxer.writeSampleData(mVTrackIndex, encodedData, info);
+                    stats.end(RecorderStats.STAGE_MUX_WRITE, writeStart);
+                    stats.onVideoSampleWritten(info.size, info.presentationTimeUs);
+                    mProgress.onSampleMuxed(info.presentationTimeUs);
+                    if (mFirstVideoPtsUs < 0) {
+                        mFirstVideoPtsUs = info.presentationTimeUs;
+                    }
+                } else if (!mux) {
+                    mStats.onVideoSampleDiscarded();
+                    mVideoDiscarded = true;
+                }
+                if (replay != null) {
+                    replay.write(ReplayBuffer.TRACK_VIDEO, encodedData, info);
+                }
+                if (live != null) {
+                    live.writeSample(ReplayBuffer.TRACK_VIDEO, encodedData, info);
+                }
+                if (mSilence != null) {
+                    writeSilence(info.presentationTimeUs, mux, replay, live);
+                }
+                updateBitRate(info.size, info.presentationTimeUs);
+                if (VERBOSE) {
+                    Log.d(TAG, "sent " + info.size + " video bytes to muxer, ts=" +
+                            info.presentationTimeUs);
+                }
+            }
+
+            mVideoEncoder.releaseOutputBuffer(index, false);
+        } else {
+            if (VERBOSE) {
+                Log.w(TAG, "Muxer is not started, just return");
+            }
+            // let's ignore it
+            mStats.onVideoSampleDiscarded();
+            mVideoDiscarded = true;
+            mVideoEncoder.releaseOutputBuffer(index, false);
+        }
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            if (!endOfStream) {
+                Log.w(TAG, "reached end of stream unexpectedly");
+            } else {
+                if (VERBOSE) {
+                    Log.d(TAG, "end of video stream reached");
                 }
             }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes the silent audio frames due up to the video sample at untilUs.
+     */
+    private void writeSilence(long untilUs, boolean mux, ReplayBuffer replay,
+                              LivePreviewServer live) {
+        SilentAacSource silence = mSilence;
+        while (silence.nextFrame(untilUs)) {
+            ByteBuffer frame = silence.getFrame();
+            MediaCodec.BufferInfo info = silence.getInfo();
+            if (mux) {
+                mMuxer.writeSampleData(mATrackIndex, frame, info);
+                mStats.onAudioSampleWritten(info.size, info.presentationTimeUs);
+                mIsAudioEmpty = false;
+            }
+            if (replay != null) {
+                replay.write(ReplayBuffer.TRACK_AUDIO, frame, info);
+            }
+            if (live != null) {
+                live.writeSample(ReplayBuffer.TRACK_AUDIO, frame, info);
+            }
         }
     }
 
     public void drainAudio(boolean endOfStream) {
+        if (mDrainMode == DRAIN_MODE_ASYNC || mAudioEncoder == null) {
+            return; // drained by AudioCallback, or nothing to drain
+        }
+        // Without an EOS in the codec there's no end to wait for
+        boolean awaitEos = endOfStream && isAudioEosQueued();
+        long deadlineNs = System.nanoTime() + EOS_TIMEOUT_MS * 1000000L;
         while (true) {
             // Start to get data from OutputBuffer and write to Muxer
             int index = mAudioEncoder.dequeueOutputBuffer(mABufferInfo, TIMEOUT_USER);
             if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 // no output available yet
-                if (!endOfStream) {
+                if (!awaitEos || mAudioEosLatch.getCount() == 0) {
                     break;      // out of while
                 } else {
-                    if (mStreamEnded) {
+                    if (System.nanoTime() > deadlineNs) {
+                        Log.w(TAG, "Timed out waiting for audio EOS");
                         break;
                     }
                     if (VERBOSE) {
@@ -387,50 +882,96 @@ public class VideoEncoderCore {
                 }
             }
             if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                if (mATrackIndex != -1) {
-                    throw new RuntimeException("format changed twice");
-                }
-                mATrackIndex = mMuxer.addTrack(mAudioEncoder.getOutputFormat());
-                tryStartMuxer();
+                onAudioFormatChanged(mAudioEncoder.getOutputFormat());
             } else if (index >= 0) {
-                if (mMuxerStarted && !mPause) {
-                    if ((mABufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                        // ignore codec config
-                        mABufferInfo.size = 0;
-                    }
+                if (writeAudioOutput(index, mABufferInfo, endOfStream)) {
+                    break;      // out of while
+                }
+            }
+        }
+    }
 
-                    if (mABufferInfo.size != 0) {
-                        ByteBuffer out = mAudioEncoder.getOutputBuffer(index);
-                        out.position(mABufferInfo.offset);
-                        out.limit(mABufferInfo.offset + mABufferInfo.size);
-                        mMuxer.writeSampleData(mATrackIndex, out, mABufferInfo);
-                        mIsAudioEmpty = false;
-                        if (VERBOSE) {
-                            Log.d(TAG, "sent " + mABufferInfo.size + " audio bytes to muxer, ts=" +
-                                    mABufferInfo.presentationTimeUs);
-                        }
-                    }
+    private void onAudioFormatChanged(MediaFormat newFormat) {
+        if (mATrackIndex != -1) {
+            throw new RuntimeException("format changed twice");
+        }
+        mAudioFormat = newFormat;
+        ReplayBuffer replay = mReplayBuffer;
+        if (replay != null) {
+            replay.setFormat(ReplayBuffer.TRACK_AUDIO, newFormat);
+        }
+        LivePreviewServer live = mLivePreview;
+        if (live != null) {
+            live.setFormat(ReplayBuffer.TRACK_AUDIO, newFormat);
+        }
+        if (mMuxer != null) {
+            mATrackIndex = mMuxer.addTrack(newFormat);
+            tryStartMuxer();
+        }
+    }
 
-                    mAudioEncoder.releaseOutputBuffer(index, false);
+    /**
+     * Writes one encoded audio buffer to the muxer and releases it back to the codec.
+     *
+     * @return true if the buffer carried the end-of-stream flag
+     */
+    private boolean writeAudioOutput(int index, MediaCodec.BufferInfo info, boolean endOfStream) {
+        boolean mux = mMuxerStarted;
+        ReplayBuffer replay = mReplayBuffer;
+        LivePreviewServer live = mLivePreview;
+        if (mux || replay != null || live != null) {
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                // ignore codec config
+                info.size = 0;
+            }
 
-                    if ((mABufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                        if (!endOfStream) {
-                            Log.w(TAG, "reached end of stream unexpectedly");
-                        } else {
-                            if (VERBOSE) {
-                                Log.d(TAG, "end of audio stream reached");
-                            }
-                        }
-                        mStreamEnded = true; // Audio stream ended
-                        break;      // out of while
-                    }
-                } else {
-                    Log.w(TAG, "Muxer is not started, just return");
-                    // let's ignore it
-                    mAudioEncoder.releaseOutputBuffer(index, false); // Don't forget to release it
+            if (info.size != 0) {
+                ByteBuffer out = mAudioEncoder.getOutputBuffer(index);
+                out.position(info.offset);
+                out.limit(info.offset + info.size);
+                if (mux) {
+                    RecorderStats stats = mStats;
+                    long writeStart = stats.begin();
+                    mMuxer.writeSampleData(mATrackIndex, out, info);
+                    stats.end(RecorderStats.STAGE_MUX_WRITE, writeStart);
+                    stats.onAudioSampleWritten(info.size, info.presentationTimeUs);
+                    mProgress.onSampleMuxed(info.presentationTimeUs);
+                    mIsAudioEmpty = false;
+                }
+                if (replay != null) {
+                    replay.write(ReplayBuffer.TRACK_AUDIO, out, info);
+                }
+                if (live != null) {
+                    live.writeSample(ReplayBuffer.TRACK_AUDIO, out, info);
+                }
+                if (VERBOSE) {
+                    Log.d(TAG, "sent " + info.size + " audio bytes to muxer, ts=" +
+                            info.presentationTimeUs);
                 }
             }
+
+            mAudioEncoder.releaseOutputBuffer(index, false);
+        } else {
+            if (VERBOSE) {
+                Log.w(TAG, "Muxer is not started, just return");
+            }
+            // let's ignore it
+            mAudioEncoder.releaseOutputBuffer(index, false); // Don't forget to release it
         }
+
+        if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+            // The audio EOS is queued ahead of drainEncoder(true), so it may come out first
+            if (!endOfStream && !isAudioEosQueued()) {
+                Log.w(TAG, "reached end of stream unexpectedly");
+            } else {
+                if (VERBOSE) {
+                    Log.d(TAG, "end of audio stream reached");
+                }
+            }
+            mAudioEosLatch.countDown();
+            return true;
+        }
+        return false;
     }
 
     /**
@@ -441,33 +982,19 @@ public class VideoEncoderCore {
      * @param endOfStream is this frame the end
      */
     public void enqueueAudioFrame(ByteBuffer buffer, int size, long presentTimeUs, boolean endOfStream) {
+        if (mAudioEncoder == null) {
+            return; // see the audio policy
+        }
         boolean done = false;
-        while (!done) {
+        while (!done && !mReleased) {
             // Start to put data to InputBuffer
-            int index = mAudioEncoder.dequeueInputBuffer(TIMEOUT_USER);
-            if (index >= 0 && !mPause) { // In case we didn't get any input buffer, it may be blocked by all output buffers being
+            int index = dequeueAudioInput();
+            if (index == INPUT_CLOSED) {
+                return;
+            }
+            if (index >= 0) { // In case we didn't get any input buffer, it may be blocked by all output buffers being
                 // full, thus try to drain them below if we didn't get any
-                ByteBuffer in = mAudioEncoder.getInputBuffer(index);
-                in.clear();
-                if (size < 0) {
-                    size = 0;
-                }
-                if (buffer == null) {
-                    buffer = ByteBuffer.allocate(0);
-                    size = 0;
-                }
-                in.position(0);
-                in.limit(size);
-                buffer.position(0);
-                buffer.limit(size);
-                if (VERBOSE) {
-                    Log.d(TAG, "enqueueAudioFrame: "
-                            + "buffer [pos:" + buffer.position() + ", limit: " + buffer.limit() + "]"
-                            + "in [pos:" + in.position() + ", capacity: " + in.capacity() + "]");
-                }
-                in.put(buffer); // Here we should ensure that `size` is smaller than the capacity of the `in` buffer
-                int flag = endOfStream ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0;
-                mAudioEncoder.queueInputBuffer(index, 0, size, presentTimeUs, flag);
+                queueAudioInput(index, buffer, size, presentTimeUs, endOfStream);
                 done = true; // Done passing the input to the codec, but still check for available output below
             } else if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
                 // if input buffers are full try to drain them
@@ -479,26 +1006,197 @@ public class VideoEncoderCore {
     }
 
     /**
-     * Enqueue the audio frame buffers to the encoder
+     * Copies the block into the input buffer and queues it, unless the end of stream has
+     * been queued already.
+     */
+    private void queueAudioInput(int index, ByteBuffer buffer, int size, long presentTimeUs,
+                                 boolean endOfStream) {
+        synchronized (mAudioInputLock) {
+            if (mAudioEosQueued || mReleased || mAudioEncoder == null) {
+                if (mDrainMode == DRAIN_MODE_ASYNC) {
+                    // Still free; a dequeued buffer in blocking mode is reset by stop()
+                    mFreeAudioInputs.offer(index);
+                }
+                return;
+            }
+            ByteBuffer in = mAudioEncoder.getInputBuffer(index);
+            in.clear();
+            if (size < 0) {
+                size = 0;
+            }
+            if (buffer == null) {
+                buffer = ByteBuffer.allocate(0);
+                size = 0;
+            }
+            in.position(0);
+            in.limit(size);
+            buffer.position(0);
+            buffer.limit(size);
+            if (VERBOSE) {
+                Log.d(TAG, "enqueueAudioFrame: "
+                        + "buffer [pos:" + buffer.position() + ", limit: " + buffer.limit() + "]"
+                        + "in [pos:" + in.position() + ", capacity: " + in.capacity() + "]");
+            }
+            in.put(buffer); // Here we should ensure that `size` is smaller than the capacity of the `in` buffer
+            int flag = endOfStream ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0;
+            mAudioEncoder.queueInputBuffer(index, 0, size, presentTimeUs, flag);
+            mLastAudioInputUs = presentTimeUs;
+            mAudioEosQueued = endOfStream;
+        }
+    }
+
+    /**
+     * Queues the audio end of stream unless the feeder already did, so the audio codec can
+     * be drained to the end.  (Thread that feeds frames, before drainEncoder(true).)  Gives
+     * up after {@link #EOS_TIMEOUT_MS} without a free input buffer.
+     */
+    public void endAudioStream() {
+        if (mAudioEncoder == null) {
+            return;
+        }
+        long deadlineNs = System.nanoTime() + EOS_TIMEOUT_MS * 1000000L;
+        while (!mReleased && System.nanoTime() < deadlineNs) {
+            long ptsUs;
+            synchronized (mAudioInputLock) {
+                if (mAudioEosQueued) {
+                    return;
+                }
+                ptsUs = mLastAudioInputUs + 1;
+            }
+            int index = dequeueAudioInput();
+            if (index == INPUT_CLOSED) {
+                break;
+            }
+            if (index >= 0) {
+                queueAudioInput(index, null, 0, ptsUs, true);
+            } else if (mDrainMode == DRAIN_MODE_BLOCKING) {
+                // Inputs free up as the output is drained, which only we do
+                drainAudio(false);
+            }
+        }
+        Log.w(TAG, "Couldn't queue the audio end of stream");
+    }
+
+    private boolean isAudioEosQueued() {
+        synchronized (mAudioInputLock) {
+            return mAudioEosQueued;
+        }
+    }
+
+    /**
+     * Enqueue the audio frame buffers to the encoder, timestamped by the sample count (see
+     * {@link MediaClock}) rather than the time the input buffer becomes free
      *
      * @param buffer      the data
      * @param size        size of the data
      * @param endOfStream is this frame the end
      */
     public void enqueueAudioFrame(ByteBuffer buffer, int size, boolean endOfStream) {
-        enqueueAudioFrame(buffer, size, System.nanoTime() / 1000, endOfStream);
+        // Stamped before waiting for an input buffer
+        long presentTimeUs = mAudioClock.stamp(size, System.nanoTime() / 1000);
+        mStats.onAudioClock(mAudioClock.getDriftUs(), mAudioClock.getCorrectionCount());
+        enqueueAudioFrame(buffer, size, presentTimeUs, endOfStream);
+    }
+
+    /**
+     * Returns a free audio input buffer index, INFO_TRY_AGAIN_LATER after TIMEOUT_USER, or
+     * INPUT_CLOSED once the end of stream is queued or the codec is released.  In async mode
+     * the indices come from AudioCallback instead of dequeueInputBuffer(), which MediaCodec
+     * forbids once a callback is set.
+     */
+    private int dequeueAudioInput() {
+        synchronized (mAudioInputLock) {
+            if (mReleased || mAudioEncoder == null || mAudioEosQueued) {
+                return INPUT_CLOSED;
+            }
+            if (mDrainMode != DRAIN_MODE_ASYNC) {
+                // Under the lock, so releaseInternal() can't stop the codec meanwhile
+                return mAudioEncoder.dequeueInputBuffer(TIMEOUT_USER);
+            }
+        }
+        try {
+            Integer index = mFreeAudioInputs.poll(TIMEOUT_USER, TimeUnit.MICROSECONDS);
+            return index != null ? index : MediaCodec.INFO_TRY_AGAIN_LATER;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
     }
 
     private void tryStartMuxer() {
         if (mVTrackIndex != -1  // Video track is added
-                && mATrackIndex != -1 // and audio track is added
+                && (mATrackIndex != -1 || mAudioPolicy == AUDIO_POLICY_NONE) // and audio track
                 && !mMuxerStarted) { // and muxer not started
             // then start the muxer
             mMuxer.start();
             mMuxerStarted = true;
-            mRecordStartedAt = System.currentTimeMillis();
-            mProgressTimer = new Timer();
-            mProgressTimer.schedule(mProgressTask, 0, 16);
+            if (mVideoDiscarded) {
+                // What was thrown away may have been the key frame
+                mAwaitingKeyFrame = true;
+                requestSyncFrame();
+            }
+        }
+    }
+
+    /**
+     * Drains the video codec on the drain thread.
+     */
+    private class VideoCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            // Surface input, never called
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            if (mReleased) {
+                return;
+            }
+            if (writeVideoOutput(index, info, mStreamEnded)) {
+                mVideoEosLatch.countDown();
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "Video encoder error", e);
+            mVideoEosLatch.countDown();
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            onVideoFormatChanged(format);
+        }
+    }
+
+    /**
+     * Collects free audio input buffers and drains the audio codec on the drain thread.
+     */
+    private class AudioCallback extends MediaCodec.Callback {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            if (!mFreeAudioInputs.offer(index)) {
+                Log.w(TAG, "Dropping audio input buffer " + index);
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            if (mReleased) {
+                return;
+            }
+            writeAudioOutput(index, info, mStreamEnded);
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "Audio encoder error", e);
+            mAudioEosLatch.countDown();
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            onAudioFormatChanged(format);
         }
     }
 }
@@ -0,0 +1,313 @@
+package io.github.junyuecao.croppedscreenrecorder.gles;
+
+import android.graphics.Bitmap;
+import android.opengl.GLES20;
+import android.opengl.GLES30;
+import android.util.Log;
+
+import io.github.junyuecao.croppedscreenrecorder.RecorderScheduler;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves frames from the current EGL surface to image files without stalling the GL thread
+ * on the readback or the compression.
+ * <p>
+ * On GLES3, glReadPixels goes into one of two pixel pack buffers and returns right away.
+ * A fence tells {@link #poll()}, called once per frame, when the copy is done so the buffer
+ * can be mapped without waiting.  On GLES2, where glReadPixels is synchronous, the pixels go
+ * into a pooled buffer instead of a new one per frame.  Either way the pixels are flipped
+ * upright and compressed on a background thread, and the buffer goes back to the pool.
+ * <p>
+ * Everything but the callback runs on the GL thread, with the context current.
+ */
+public class AsyncFrameSaver {
+    private static final String TAG = GlUtil.TAG;
+
+    private static final int PBO_COUNT = 2;
+    private static final int POOL_SIZE = 2;
+    /** How long flush() waits for the GPU and the compressor */
+    private static final long FLUSH_TIMEOUT_MS = 500;
+
+    /**
+     * Told about every saved frame, on the compressor thread.
+     */
+    public interface Callback {
+        void onFrameSaved(File file, boolean success);
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final boolean mUsePbo;
+    private final BlockingQueue<ByteBuffer> mPool = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final ExecutorService mCompressor;
+    private volatile Callback mCallback;
+
+    // ----- GLES3 only -----
+    private final int[] mPbos = new int[PBO_COUNT];
+    private final long[] mFences = new long[PBO_COUNT];
+    private final Request[] mPending = new Request[PBO_COUNT];
+    private int mNextPbo;
+
+    // ----- compressor thread only -----
+    private Bitmap mBitmap;
+    private byte[] mRowA;
+    private byte[] mRowB;
+
+    /**
+     * Where a frame goes once its pixels are read back.
+     */
+    private static class Request {
+        final File file;
+        final Bitmap.CompressFormat format;
+        final int quality;
+
+        Request(File file, Bitmap.CompressFormat format, int quality) {
+            this.file = file;
+            this.format = format;
+            this.quality = quality;
+        }
+    }
+
+    /**
+     * @param width  width of the surfaces to read, in pixels
+     * @param height height of the surfaces to read, in pixels
+     */
+    public AsyncFrameSaver(EglCore eglCore, int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mUsePbo = eglCore.getGlVersion() >= 3;
+        int frameBytes = width * height * 4;
+        for (int i = 0; i < POOL_SIZE; i++) {
+            mPool.add(ByteBuffer.allocateDirect(frameBytes).order(ByteOrder.LITTLE_ENDIAN));
+        }
+        if (mUsePbo) {
+            GLES20.glGenBuffers(PBO_COUNT, mPbos, 0);
+            for (int pbo : mPbos) {
+                GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, pbo);
+                GLES20.glBufferData(GLES30.GL_PIXEL_PACK_BUFFER, frameBytes, null,
+                        GLES30.GL_STREAM_READ);
+            }
+            GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+            GlUtil.checkGlError("create PBOs");
+        }
+        mCompressor = RecorderScheduler.getDefault().newSingleThreadExecutor(
+                RecorderScheduler.LANE_IO, "FrameSaver");
+        Log.d(TAG, "AsyncFrameSaver " + width + "x" + height + (mUsePbo ? " (PBO)" : " (sync)"));
+    }
+
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    /**
+     * Starts saving what has been drawn to the current surface.  Call before swapBuffers().
+     *
+     * @return false if the frame was skipped because earlier ones are still in flight
+     */
+    public boolean requestSave(File file, Bitmap.CompressFormat format, int quality) {
+        Request request = new Request(file, format, quality);
+        if (!mUsePbo) {
+            ByteBuffer buf = mPool.poll();
+            if (buf == null) {
+                return false;
+            }
+            buf.clear();
+            GLES20.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE,
+                    buf);
+            GlUtil.checkGlError("glReadPixels");
+            compress(buf, request);
+            return true;
+        }
+
+        int i = mNextPbo;
+        if (mPending[i] != null) {
+            return false;
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbos[i]);
+        GLES30.glReadPixels(0, 0, mWidth, mHeight, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, 0);
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        mFences[i] = GLES30.glFenceSync(GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        GlUtil.checkGlError("async glReadPixels");
+        mPending[i] = request;
+        mNextPbo = (i + 1) % PBO_COUNT;
+        return true;
+    }
+
+    /**
+     * Hands finished readbacks to the compressor.  Never waits for the GPU.
+     */
+    public void poll() {
+        if (!mUsePbo) {
+            return;
+        }
+        for (int i = 0; i < PBO_COUNT; i++) {
+            if (mPending[i] == null) {
+                continue;
+            }
+            int status = GLES30.glClientWaitSync(mFences[i],
+                    GLES30.GL_SYNC_FLUSH_COMMANDS_BIT, 0);
+            if (status == GLES30.GL_TIMEOUT_EXPIRED) {
+                continue;
+            }
+            ByteBuffer buf = mPool.poll();
+            if (buf != null) {
+                collect(i, buf);
+            }
+        }
+    }
+
+    /**
+     * Waits (bounded) until every requested frame has been written out.
+     */
+    public void flush() {
+        long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_TIMEOUT_MS);
+        try {
+            if (mUsePbo) {
+                for (int i = 0; i < PBO_COUNT; i++) {
+                    if (mPending[i] == null) {
+                        continue;
+                    }
+                    long remainingNs = Math.max(0, deadlineNs - System.nanoTime());
+                    GLES30.glClientWaitSync(mFences[i], GLES30.GL_SYNC_FLUSH_COMMANDS_BIT,
+                            remainingNs);
+                    ByteBuffer buf = mPool.poll(remainingNs, TimeUnit.NANOSECONDS);
+                    if (buf == null) {
+                        Log.w(TAG, "Timed out saving " + mPending[i].file);
+                        return;
+                    }
+                    collect(i, buf);
+                }
+            }
+            // Every buffer back in the pool means the compressor is idle.
+            while (mPool.size() < POOL_SIZE) {
+                if (System.nanoTime() >= deadlineNs) {
+                    Log.w(TAG, "Timed out waiting for the compressor");
+                    return;
+                }
+                Thread.sleep(5);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Finishes pending saves and frees the GL objects.
+     */
+    public void release() {
+        flush();
+        if (mUsePbo) {
+            for (int i = 0; i < PBO_COUNT; i++) {
+                if (mPending[i] != null) {
+                    GLES30.glDeleteSync(mFences[i]);
+                    mPending[i] = null;
+                }
+            }
+            GLES20.glDeleteBuffers(PBO_COUNT, mPbos, 0);
+        }
+        mCompressor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mBitmap != null) {
+                    mBitmap.recycle();
+                    mBitmap = null;
+                }
+            }
+        });
+        mCompressor.shutdown();
+    }
+
+    /**
+     * Copies a finished pixel pack buffer into buf and queues it for compression.
+     */
+    private void collect(int i, ByteBuffer buf) {
+        Request request = mPending[i];
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, mPbos[i]);
+        ByteBuffer mapped = (ByteBuffer) GLES30.glMapBufferRange(GLES30.GL_PIXEL_PACK_BUFFER, 0,
+                buf.capacity(), GLES30.GL_MAP_READ_BIT);
+        if (mapped != null) {
+            buf.clear();
+            buf.put(mapped);
+            buf.flip();
+            GLES30.glUnmapBuffer(GLES30.GL_PIXEL_PACK_BUFFER);
+        }
+        GLES20.glBindBuffer(GLES30.GL_PIXEL_PACK_BUFFER, 0);
+        GLES30.glDeleteSync(mFences[i]);
+        mPending[i] = null;
+        if (mapped == null) {
+            Log.w(TAG, "glMapBufferRange failed");
+            mPool.offer(buf);
+            notifySaved(request.file, false);
+            return;
+        }
+        compress(buf, request);
+    }
+
+    private void compress(final ByteBuffer buf, final Request request) {
+        mCompressor.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = false;
+                try {
+                    flipRows(buf);
+                    if (mBitmap == null) {
+                        mBitmap = Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+                    }
+                    buf.rewind();
+                    mBitmap.copyPixelsFromBuffer(buf);
+                    OutputStream os = new BufferedOutputStream(new FileOutputStream(request.file));
+                    try {
+                        success = mBitmap.compress(request.format, request.quality, os);
+                    } finally {
+                        os.close();
+                    }
+                    Log.d(TAG, "Saved " + mWidth + "x" + mHeight + " frame as '" + request.file + "'");
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to save " + request.file, e);
+                } finally {
+                    mPool.offer(buf);
+                }
+                notifySaved(request.file, success);
+            }
+        });
+    }
+
+    private void notifySaved(File file, boolean success) {
+        Callback callback = mCallback;
+        if (callback != null) {
+            callback.onFrameSaved(file, success);
+        }
+    }
+
+    /**
+     * GL rows start at the bottom; images start at the top.
+     */
+    private void flipRows(ByteBuffer buf) {
+        int stride = mWidth * 4;
+        if (mRowA == null) {
+            mRowA = new byte[stride];
+            mRowB = new byte[stride];
+        }
+        for (int top = 0, bottom = mHeight - 1; top < bottom; top++, bottom--) {
+            buf.position(top * stride);
+            buf.get(mRowA);
+            buf.position(bottom * stride);
+            buf.get(mRowB);
+            buf.position(bottom * stride);
+            buf.put(mRowA);
+            buf.position(top * stride);
+            buf.put(mRowB);
+        }
+    }
+}
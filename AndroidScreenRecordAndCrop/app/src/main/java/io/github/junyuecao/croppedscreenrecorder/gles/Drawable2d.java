@@ -158,6 +158,14 @@ public class Drawable2d {
         return mTexCoordArray;
     }
 
+    /**
+     * Returns a number that changes whenever the texture coordinates do, so copies of them
+     * (e.g. in a {@link Drawable2dVbo}) know when to update.  Always 0 here.
+     */
+    public int getTexCoordVersion() {
+        return 0;
+    }
+
     /**
      * Returns the number of vertices stored in the vertex array.
      */
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 Google Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.junyuecao.croppedscreenrecorder.gles;
+
+import android.opengl.GLES20;
+
+import java.nio.FloatBuffer;
+
+/**
+ * A Drawable2d's geometry in GPU buffer objects.
+ * <p>
+ * Drawing from client-side arrays copies the vertices to the driver on every draw call.
+ * Here the positions are uploaded once, and the texture coordinates again only when the
+ * drawable reports a new {@link Drawable2d#getTexCoordVersion() version}.
+ * <p>
+ * Create, use and release with the same EGL context current.
+ */
+public class Drawable2dVbo {
+    private static final int SIZEOF_FLOAT = 4;
+
+    private final Drawable2d mDrawable;
+    private final int[] mBuffers = new int[2];
+    private int mTexCoordVersion;
+
+    public Drawable2dVbo(Drawable2d drawable) {
+        mDrawable = drawable;
+        GLES20.glGenBuffers(2, mBuffers, 0);
+
+        FloatBuffer vertices = drawable.getVertexArray();
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffers[0]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, vertices.capacity() * SIZEOF_FLOAT,
+                vertices, GLES20.GL_STATIC_DRAW);
+
+        FloatBuffer texCoords = drawable.getTexCoordArray();
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffers[1]);
+        GLES20.glBufferData(GLES20.GL_ARRAY_BUFFER, texCoords.capacity() * SIZEOF_FLOAT,
+                texCoords, GLES20.GL_DYNAMIC_DRAW);
+        mTexCoordVersion = drawable.getTexCoordVersion();
+
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+        GlUtil.checkGlError("create VBOs");
+    }
+
+    public Drawable2d getDrawable() {
+        return mDrawable;
+    }
+
+    /**
+     * Returns the buffer holding the positions.
+     */
+    public int getVertexBuffer() {
+        return mBuffers[0];
+    }
+
+    /**
+     * Returns the buffer holding the texture coordinates, uploading them first if the
+     * drawable changed them.  Leaves GL_ARRAY_BUFFER bound to it in that case.
+     */
+    public int getTexCoordBuffer() {
+        int version = mDrawable.getTexCoordVersion();
+        if (version != mTexCoordVersion) {
+            FloatBuffer texCoords = mDrawable.getTexCoordArray();
+            GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, mBuffers[1]);
+            GLES20.glBufferSubData(GLES20.GL_ARRAY_BUFFER, 0,
+                    texCoords.capacity() * SIZEOF_FLOAT, texCoords);
+            mTexCoordVersion = version;
+        }
+        return mBuffers[1];
+    }
+
+    /**
+     * Deletes the buffers.  Pass false if the EGL context is about to be destroyed anyway.
+     */
+    public void release(boolean doEglCleanup) {
+        if (doEglCleanup && mBuffers[0] != 0) {
+            GLES20.glDeleteBuffers(2, mBuffers, 0);
+        }
+        mBuffers[0] = mBuffers[1] = 0;
+    }
+}
@@ -44,6 +44,8 @@ public class EglSurfaceBase {
     private EGLSurface mEGLSurface = EGL14.EGL_NO_SURFACE;
     private int mWidth = -1;
     private int mHeight = -1;
+    // Reused by saveFrame()
+    private ByteBuffer mPixelBuf;
 
     protected EglSurfaceBase(EglCore eglCore) {
         mEglCore = eglCore;
@@ -111,6 +113,7 @@ public class EglSurfaceBase {
         mEglCore.releaseSurface(mEGLSurface);
         mEGLSurface = EGL14.EGL_NO_SURFACE;
         mWidth = mHeight = -1;
+        mPixelBuf = null;
     }
 
     /**
@@ -165,8 +168,9 @@ public class EglSurfaceBase {
         // constructor that takes an int[] wants little-endian ARGB (blue/red swapped), the
         // Bitmap "copy pixels" method wants the same format GL provides.
         //
-        // Ideally we'd have some way to re-use the ByteBuffer, especially if we're calling
-        // here often.
+        // The ByteBuffer is kept and re-used as long as the surface size doesn't change.
+        // This still blocks until the GPU is done and compresses on the calling thread;
+        // AsyncFrameSaver avoids both when saving from the render loop.
         //
         // Making this even more interesting is the upside-down nature of GL, which means
         // our output will look upside down relative to what appears on screen if the
@@ -176,8 +180,13 @@ public class EglSurfaceBase {
 
         int width = getWidth();
         int height = getHeight();
-        ByteBuffer buf = ByteBuffer.allocateDirect(width * height * 4);
-        buf.order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer buf = mPixelBuf;
+        if (buf == null || buf.capacity() != width * height * 4) {
+            buf = ByteBuffer.allocateDirect(width * height * 4);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            mPixelBuf = buf;
+        }
+        buf.clear();
         GLES20.glReadPixels(0, 0, width, height,
                 GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, buf);
         GlUtil.checkGlError("glReadPixels");
@@ -23,6 +23,7 @@ package io.github.junyuecao.croppedscreenrecorder.gles;
 public class FullFrameRect {
     private final Drawable2d mRectDrawable = new Drawable2d(Drawable2d.Prefab.FULL_RECTANGLE);
     private Texture2dProgram mProgram;
+    private Drawable2dVbo mRectVbo;
 
     /**
      * Prepares the object.
@@ -32,6 +33,7 @@ public class FullFrameRect {
      */
     public FullFrameRect(Texture2dProgram program) {
         mProgram = program;
+        mRectVbo = new Drawable2dVbo(mRectDrawable);
     }
 
     /**
@@ -43,6 +45,10 @@ public class FullFrameRect {
      * can pass a flag that will tell this function to skip any EGL-context-specific cleanup.
      */
     public void release(boolean doEglCleanup) {
+        if (mRectVbo != null) {
+            mRectVbo.release(doEglCleanup);
+            mRectVbo = null;
+        }
         if (mProgram != null) {
             if (doEglCleanup) {
                 mProgram.release();
@@ -80,10 +86,6 @@ public class FullFrameRect {
      */
     public void drawFrame(int textureId, float[] texMatrix) {
         // Use the identity matrix for MVP so our 2x2 FULL_RECTANGLE covers the viewport.
-        mProgram.draw(GlUtil.IDENTITY_MATRIX, mRectDrawable.getVertexArray(), 0,
-                mRectDrawable.getVertexCount(), mRectDrawable.getCoordsPerVertex(),
-                mRectDrawable.getVertexStride(),
-                texMatrix, mRectDrawable.getTexCoordArray(), textureId,
-                mRectDrawable.getTexCoordStride());
+        mProgram.draw(GlUtil.IDENTITY_MATRIX, mRectVbo, texMatrix, textureId);
     }
 }
@@ -0,0 +1,124 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays synthetic one-second windows of encoder output through the controller.
+ */
+public class BitrateControllerTest {
+    private static final int FLOOR = 1000000;
+    private static final int CEILING = 8000000;
+    private static final int NOMINAL_FPS = 30;
+    private static final long LOW_LATENCY_US = 50000;
+    private static final long HIGH_LATENCY_US = 300000;
+
+    private long mNowUs;
+
+    @Before
+    public void setUp() throws Exception {
+        mNowUs = 0;
+    }
+
+    private BitrateController newController(int initialBitRate) {
+        BitrateController controller = new BitrateController(initialBitRate, FLOOR, CEILING,
+                NOMINAL_FPS);
+        // Opens the first window
+        assertEquals(BitrateController.NO_CHANGE, controller.onVideoSample(1000, mNowUs, 0));
+        return controller;
+    }
+
+    /**
+     * Feeds one window of samples, evenly spaced; returns what the last one decided.
+     */
+    private int window(BitrateController controller, int fps, long latencyUs) {
+        long startUs = mNowUs;
+        int result = BitrateController.NO_CHANGE;
+        for (int i = 1; i <= fps; i++) {
+            mNowUs = startUs + BitrateController.DEFAULT_WINDOW_US * i / fps;
+            result = controller.onVideoSample(10000, mNowUs, latencyUs);
+            if (i < fps) {
+                assertEquals(BitrateController.NO_CHANGE, result);
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void staticContentDropsToTheFloor() throws Exception {
+        BitrateController controller = newController(4000000);
+        int bitRate = window(controller, 1, LOW_LATENCY_US);
+        assertTrue("bit rate " + bitRate, bitRate >= FLOOR && bitRate < FLOOR + CEILING / 10);
+        assertEquals(bitRate, controller.getBitRate());
+        assertEquals(1, controller.getChangeCount());
+    }
+
+    @Test
+    public void busyContentStepsUpToTheCeiling() throws Exception {
+        BitrateController controller = newController(2000000);
+        int previous = controller.getBitRate();
+        int windows = 0;
+        int bitRate;
+        while ((bitRate = window(controller, NOMINAL_FPS, LOW_LATENCY_US))
+                != BitrateController.NO_CHANGE) {
+            assertTrue(bitRate > previous);
+            assertTrue(bitRate <= previous * BitrateController.MAX_STEP_UP + 1);
+            previous = bitRate;
+            assertTrue("too many windows", ++windows < 10);
+        }
+        // Settles within a reportable change of the ceiling
+        assertTrue(controller.getBitRate() <= CEILING);
+        assertTrue(CEILING - controller.getBitRate()
+                < controller.getBitRate() * BitrateController.MIN_CHANGE);
+        assertEquals(NOMINAL_FPS, controller.getMeasuredFps(), 0.5);
+    }
+
+    @Test
+    public void highLatencyBacksOffAndHolds() throws Exception {
+        BitrateController controller = newController(4000000);
+        int bitRate = window(controller, NOMINAL_FPS, HIGH_LATENCY_US);
+        assertEquals((int) (4000000 * BitrateController.BACKOFF_FACTOR), bitRate);
+        assertTrue(controller.getMeasuredLatencyUs() > BitrateController.DEFAULT_MAX_LATENCY_US);
+        for (int i = 0; i < BitrateController.HOLD_WINDOWS; i++) {
+            assertEquals("held window " + i, BitrateController.NO_CHANGE,
+                    window(controller, NOMINAL_FPS, LOW_LATENCY_US));
+        }
+        assertTrue(window(controller, NOMINAL_FPS, LOW_LATENCY_US) > bitRate);
+    }
+
+    @Test
+    public void smallChangesAreNotReported() throws Exception {
+        // Starts where 16 fps aims; the first window counts the sample that opened it
+        int initial = FLOOR + (CEILING - FLOOR) * 16 / NOMINAL_FPS;
+        BitrateController controller = newController(initial);
+        assertEquals(BitrateController.NO_CHANGE, window(controller, 15, LOW_LATENCY_US));
+        // 15 fps aims under 5% lower
+        assertEquals(BitrateController.NO_CHANGE, window(controller, 15, LOW_LATENCY_US));
+        assertEquals(initial, controller.getBitRate());
+        assertEquals(0, controller.getChangeCount());
+        // 14 fps doesn't
+        assertTrue(window(controller, 14, LOW_LATENCY_US) < initial);
+    }
+
+    @Test
+    public void measuresTheProducedBitRate() throws Exception {
+        BitrateController controller = newController(4000000);
+        window(controller, NOMINAL_FPS, LOW_LATENCY_US);
+        window(controller, NOMINAL_FPS, LOW_LATENCY_US);
+        // 30 samples of 10000 bytes in a second
+        assertEquals(2400000, controller.getMeasuredBitRate());
+    }
+
+    @Test
+    public void initialBitRateIsClamped() throws Exception {
+        assertEquals(CEILING, new BitrateController(20000000, FLOOR, CEILING, NOMINAL_FPS)
+                .getBitRate());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvertedRange() throws Exception {
+        new BitrateController(FLOOR, CEILING, FLOOR, NOMINAL_FPS);
+    }
+}
@@ -0,0 +1,108 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes a few minutes of recorder-sized samples to a channel that discards them and
+ * reports how long the writer spends per sample, so changes to the fragment path can be
+ * compared on the JVM.  Results go to stdout.
+ */
+public class FragmentedMp4WriterBenchmarkTest {
+    private static final int FRAME_RATE = 30;
+    private static final int SECONDS = 180;
+    private static final int VIDEO_SAMPLE_BYTES = 24 * 1024;
+    private static final int KEY_FRAME_BYTES = 96 * 1024;
+    private static final int AUDIO_SAMPLE_BYTES = 372;
+    private static final int SAMPLE_RATE = 44100;
+    private static final int ROUNDS = 3;
+
+    /** Counts and drops everything written to it. */
+    private static final class NullChannel implements WritableByteChannel {
+        long bytes;
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            bytes += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static ByteBuffer annexB(int size, int nalType) {
+        ByteBuffer b = ByteBuffer.allocateDirect(size);
+        b.put(new byte[]{0, 0, 0, 1, (byte) nalType});
+        while (b.hasRemaining()) {
+            // No zero bytes, so the payload never looks like a start code
+            b.put((byte) (b.position() | 0x01));
+        }
+        b.flip();
+        return b;
+    }
+
+    private static long writeClip(NullChannel channel) throws Exception {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(channel, true,
+                FragmentedMp4Writer.DEFAULT_FRAGMENT_DURATION_US,
+                FragmentedMp4Writer.DEFAULT_MAX_BUFFERED_BYTES);
+        int video = writer.addVideoTrack(720, 1280,
+                ByteBuffer.wrap(new byte[]{0x67, 0x42, (byte) 0xC0, 0x1F}),
+                ByteBuffer.wrap(new byte[]{0x68, (byte) 0xCE, 0x3C, (byte) 0x80}));
+        int audio = writer.addAudioTrack(SAMPLE_RATE, 2, ByteBuffer.wrap(new byte[]{0x12, 0x10}),
+                128000);
+        ByteBuffer keyFrame = annexB(KEY_FRAME_BYTES, 0x65);
+        ByteBuffer frame = annexB(VIDEO_SAMPLE_BYTES, 0x41);
+        ByteBuffer aac = ByteBuffer.allocateDirect(AUDIO_SAMPLE_BYTES);
+
+        long samples = 0;
+        long audioPtsUs = 0;
+        long audioFrames = 0;
+        writer.start();
+        for (int i = 0; i < FRAME_RATE * SECONDS; i++) {
+            long videoPtsUs = i * 1000000L / FRAME_RATE;
+            while (audioPtsUs <= videoPtsUs) {
+                writer.writeSample(audio, aac, audioPtsUs, true);
+                audioFrames++;
+                audioPtsUs = audioFrames * 1024 * 1000000L / SAMPLE_RATE;
+                samples++;
+            }
+            boolean key = i % FRAME_RATE == 0;
+            writer.writeSample(video, key ? keyFrame : frame, videoPtsUs, key);
+            samples++;
+        }
+        writer.stop();
+        assertEquals(SECONDS, writer.getFragmentCount());
+        return samples;
+    }
+
+    @Test
+    public void fragmentedWriterThroughput() throws Exception {
+        // The first round warms up the JIT
+        for (int round = 0; round <= ROUNDS; round++) {
+            NullChannel channel = new NullChannel();
+            long startNs = System.nanoTime();
+            long samples = writeClip(channel);
+            long elapsedNs = System.nanoTime() - startNs;
+            if (round == 0) {
+                continue;
+            }
+            System.out.printf("FragmentedMp4Writer: %d samples, %.1f MB in %d ms;"
+                            + " %.2f us/sample, %.0f MB/s%n",
+                    samples, channel.bytes / 1e6, elapsedNs / 1000000,
+                    elapsedNs / 1000.0 / samples, channel.bytes * 1e3 / elapsedNs);
+        }
+    }
+}
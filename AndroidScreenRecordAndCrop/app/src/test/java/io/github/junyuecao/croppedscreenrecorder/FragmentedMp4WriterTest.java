@@ -0,0 +1,347 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FragmentedMp4WriterTest {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int SAMPLE_RATE = 44100;
+    private static final long FRAME_US = 33333;
+    private static final long AAC_FRAME_US = 1024 * 1000000L / SAMPLE_RATE;
+    /** Cuts a fragment at every key frame but the first */
+    private static final long FRAGMENT_US = 400000;
+
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xC0, 0x1E, 0x11, 0x22};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xCE, 0x3C, (byte) 0x80};
+    private static final byte[] ASC = {0x12, 0x10};
+
+    private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+    private int mVideo;
+    private int mAudio;
+
+    /** A box found in the output: its type and where it sits in the file. */
+    private static final class Box {
+        final String type;
+        final int start;
+        final int size;
+
+        Box(String type, int start, int size) {
+            this.type = type;
+            this.start = start;
+            this.size = size;
+        }
+
+        int end() {
+            return start + size;
+        }
+
+        int payload() {
+            return start + 8;
+        }
+    }
+
+    private FragmentedMp4Writer newWriter(long fragmentDurationUs) throws Exception {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(Channels.newChannel(mOut), false,
+                fragmentDurationUs, FragmentedMp4Writer.DEFAULT_MAX_BUFFERED_BYTES);
+        mVideo = writer.addVideoTrack(WIDTH, HEIGHT, ByteBuffer.wrap(SPS), ByteBuffer.wrap(PPS));
+        mAudio = writer.addAudioTrack(SAMPLE_RATE, 2, ByteBuffer.wrap(ASC), 128000);
+        writer.start();
+        return writer;
+    }
+
+    /** One access unit with two NAL units, sized and filled from the frame number. */
+    private static ByteBuffer videoSample(int frame, boolean keyFrame) {
+        int size = 40 + frame % 17;
+        ByteBuffer b = ByteBuffer.allocate(4 + 2 + 3 + size);
+        b.put(new byte[]{0, 0, 0, 1, (byte) (keyFrame ? 0x65 : 0x41), (byte) frame});
+        b.put(new byte[]{0, 0, 1});
+        for (int i = 0; i < size; i++) {
+            b.put((byte) (frame + i | 0x10));
+        }
+        b.flip();
+        return b;
+    }
+
+    private static ByteBuffer audioSample(int frame) {
+        byte[] bytes = new byte[20 + frame % 7];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (frame * 3 + i);
+        }
+        return ByteBuffer.wrap(bytes);
+    }
+
+    /** Writes interleaved video and audio, with a key frame every 15 frames. */
+    private void writeClip(FragmentedMp4Writer writer, int videoFrames, long audioStartUs)
+            throws Exception {
+        int audioFrame = 0;
+        for (int frame = 0; frame < videoFrames; frame++) {
+            long videoPtsUs = frame * FRAME_US;
+            while (audioStartUs + audioFrame * AAC_FRAME_US <= videoPtsUs) {
+                writer.writeSample(mAudio, audioSample(audioFrame),
+                        audioStartUs + audioFrame * AAC_FRAME_US, true);
+                audioFrame++;
+            }
+            writer.writeSample(mVideo, videoSample(frame, frame % 15 == 0), videoPtsUs,
+                    frame % 15 == 0);
+        }
+    }
+
+    private static List<Box> parse(ByteBuffer file, int start, int end) {
+        List<Box> boxes = new ArrayList<>();
+        int pos = start;
+        while (pos + 8 <= end) {
+            int size = file.getInt(pos);
+            if (size < 8 || pos + size > end) {
+                break;
+            }
+            byte[] type = new byte[4];
+            for (int i = 0; i < 4; i++) {
+                type[i] = file.get(pos + 4 + i);
+            }
+            boxes.add(new Box(new String(type), pos, size));
+            pos += size;
+        }
+        return boxes;
+    }
+
+    private static List<Box> children(ByteBuffer file, Box box) {
+        return parse(file, box.payload(), box.end());
+    }
+
+    private static Box find(ByteBuffer file, Box box, String... path) {
+        Box current = box;
+        for (String type : path) {
+            Box next = null;
+            for (Box child : children(file, current)) {
+                if (child.type.equals(type)) {
+                    next = child;
+                    break;
+                }
+            }
+            assertNotNull("no " + type + " in " + current.type, next);
+            current = next;
+        }
+        return current;
+    }
+
+    private static List<String> types(List<Box> boxes) {
+        List<String> types = new ArrayList<>();
+        for (Box box : boxes) {
+            types.add(box.type);
+        }
+        return types;
+    }
+
+    private ByteBuffer output() {
+        return ByteBuffer.wrap(mOut.toByteArray());
+    }
+
+    @Test
+    public void headerAndFragmentsAreLaidOutAsTopLevelBoxes() throws Exception {
+        FragmentedMp4Writer writer = newWriter(FRAGMENT_US);
+        writeClip(writer, 90, 0);
+        writer.stop();
+
+        ByteBuffer file = output();
+        List<Box> top = parse(file, 0, file.limit());
+        assertEquals(file.limit(), top.get(top.size() - 1).end());
+        assertEquals("ftyp", top.get(0).type);
+        assertEquals("moov", top.get(1).type);
+        assertEquals(2 + 2 * writer.getFragmentCount(), top.size());
+        assertTrue(writer.getFragmentCount() >= 5);
+        for (int i = 2; i < top.size(); i += 2) {
+            assertEquals("moof", top.get(i).type);
+            assertEquals("mdat", top.get(i + 1).type);
+        }
+        assertEquals(file.limit(), writer.getBytesWritten());
+
+        Box moov = top.get(1);
+        assertEquals("[mvhd, trak, trak, mvex]", types(children(file, moov)).toString());
+        assertEquals("[trex, trex]", types(children(file, find(file, moov, "mvex"))).toString());
+        Box stbl = find(file, moov, "trak", "mdia", "minf", "stbl");
+        assertEquals("[stsd, stts, stsc, stsz, stco]", types(children(file, stbl)).toString());
+
+        for (int i = 2; i < top.size(); i += 2) {
+            Box moof = top.get(i);
+            assertEquals("[mfhd, traf, traf]", types(children(file, moof)).toString());
+            assertEquals(i / 2, file.getInt(find(file, moof, "mfhd").payload() + 4));
+            Box traf = find(file, moof, "traf");
+            assertEquals("[tfhd, tfdt, trun]", types(children(file, traf)).toString());
+        }
+    }
+
+    @Test
+    public void trunOffsetsAndSizesPointAtTheSamples() throws Exception {
+        FragmentedMp4Writer writer = newWriter(FRAGMENT_US);
+        writeClip(writer, 60, 0);
+        writer.stop();
+
+        ByteBuffer file = output();
+        List<Box> top = parse(file, 0, file.limit());
+        int videoFrame = 0;
+        int audioFrame = 0;
+        for (int i = 2; i < top.size(); i += 2) {
+            Box moof = top.get(i);
+            Box mdat = top.get(i + 1);
+            int next = mdat.payload();
+            for (Box traf : children(file, moof)) {
+                if (!traf.type.equals("traf")) {
+                    continue;
+                }
+                int trackId = file.getInt(find(file, traf, "tfhd").payload() + 4);
+                Box trun = find(file, traf, "trun");
+                int pos = trun.payload();
+                assertEquals(0x000701, file.getInt(pos) & 0xFFFFFF);
+                int count = file.getInt(pos + 4);
+                int dataOffset = file.getInt(pos + 8);
+                // default-base-is-moof: the offset is from the start of the moof
+                assertEquals(next, moof.start + dataOffset);
+                pos += 12;
+                for (int s = 0; s < count; s++) {
+                    int duration = file.getInt(pos);
+                    int size = file.getInt(pos + 4);
+                    int flags = file.getInt(pos + 8);
+                    pos += 12;
+                    assertTrue(duration > 0);
+                    byte[] expected;
+                    if (trackId == mVideo + 1) {
+                        boolean keyFrame = videoFrame % 15 == 0;
+                        expected = lengthPrefixed(videoSample(videoFrame, keyFrame));
+                        assertEquals(keyFrame, flags == 0x02000000);
+                        videoFrame++;
+                    } else {
+                        expected = audioSample(audioFrame++).array();
+                    }
+                    assertEquals(expected.length, size);
+                    for (int b = 0; b < expected.length; b++) {
+                        assertEquals("byte " + b, expected[b], file.get(next + b));
+                    }
+                    next += size;
+                }
+            }
+            assertEquals(mdat.end(), next);
+        }
+        assertEquals(60, videoFrame);
+        assertTrue(audioFrame > 0);
+    }
+
+    private static byte[] lengthPrefixed(ByteBuffer annexB) {
+        ByteBuffer out = ByteBuffer.allocate(annexB.remaining() * 2);
+        FragmentedMp4Writer.appendLengthPrefixed(annexB, out);
+        out.flip();
+        byte[] bytes = new byte[out.remaining()];
+        out.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void fileCutAfterAnyFragmentStillParses() throws Exception {
+        FragmentedMp4Writer writer = newWriter(FRAGMENT_US);
+        writeClip(writer, 90, 0);
+        // No stop(): the process died with a fragment still buffered
+        ByteBuffer file = output();
+        List<Box> top = parse(file, 0, file.limit());
+        assertEquals(file.limit(), top.get(top.size() - 1).end());
+
+        for (int cut = 3; cut < top.size(); cut += 2) {
+            int length = top.get(cut).end();
+            ByteBuffer truncated = ByteBuffer.wrap(mOut.toByteArray(), 0, length).slice();
+            List<Box> boxes = parse(truncated, 0, length);
+            assertEquals(cut + 1, boxes.size());
+            assertEquals(length, boxes.get(boxes.size() - 1).end());
+            assertEquals("ftyp", boxes.get(0).type);
+            assertEquals("moov", boxes.get(1).type);
+            for (int i = 2; i < boxes.size(); i += 2) {
+                Box moof = boxes.get(i);
+                Box mdat = boxes.get(i + 1);
+                assertEquals("moof", moof.type);
+                assertEquals("mdat", mdat.type);
+                for (Box traf : children(truncated, moof)) {
+                    if (!traf.type.equals("traf")) {
+                        continue;
+                    }
+                    Box trun = find(truncated, traf, "trun");
+                    int count = truncated.getInt(trun.payload() + 4);
+                    int dataOffset = truncated.getInt(trun.payload() + 8);
+                    int total = 0;
+                    for (int s = 0; s < count; s++) {
+                        total += truncated.getInt(trun.payload() + 12 + s * 12 + 4);
+                    }
+                    assertTrue(moof.start + dataOffset + total <= mdat.end());
+                }
+            }
+        }
+    }
+
+    private long tfdt(ByteBuffer file, Box moof, int trackIndex) {
+        for (Box traf : children(file, moof)) {
+            if (traf.type.equals("traf")
+                    && file.getInt(find(file, traf, "tfhd").payload() + 4) == trackIndex + 1) {
+                return file.getLong(find(file, traf, "tfdt").payload() + 4);
+            }
+        }
+        fail("track " + trackIndex + " not in fragment");
+        return -1;
+    }
+
+    @Test
+    public void earlierAudioKeepsTheVideoOffset() throws Exception {
+        FragmentedMp4Writer writer = newWriter(FRAGMENT_US);
+        // Video reaches the writer first, but the audio starts 100 ms before it
+        long videoStartUs = 100000;
+        writer.writeSample(mVideo, videoSample(0, true), videoStartUs, true);
+        for (int i = 0; i < 5; i++) {
+            writer.writeSample(mAudio, audioSample(i), i * AAC_FRAME_US, true);
+        }
+        for (int frame = 1; frame < 30; frame++) {
+            writer.writeSample(mVideo, videoSample(frame, frame % 15 == 0),
+                    videoStartUs + frame * FRAME_US, frame % 15 == 0);
+        }
+        writer.stop();
+
+        ByteBuffer file = output();
+        Box moof = parse(file, 0, file.limit()).get(2);
+        assertEquals(0, tfdt(file, moof, mAudio));
+        assertEquals(videoStartUs * 90000 / 1000000, tfdt(file, moof, mVideo));
+    }
+
+    @Test
+    public void laterAudioStartsAtItsOffset() throws Exception {
+        FragmentedMp4Writer writer = newWriter(FRAGMENT_US);
+        long audioStartUs = 50000;
+        writeClip(writer, 60, audioStartUs);
+        writer.stop();
+
+        ByteBuffer file = output();
+        List<Box> top = parse(file, 0, file.limit());
+        assertEquals(0, tfdt(file, top.get(2), mVideo));
+        assertEquals(audioStartUs * SAMPLE_RATE / 1000000, tfdt(file, top.get(2), mAudio));
+
+        // Later fragments continue from the same origin
+        Box second = top.get(4);
+        long videoTicks = tfdt(file, second, mVideo);
+        long audioTicks = tfdt(file, second, mAudio);
+        assertEquals(videoTicks / 90000.0, audioTicks / (double) SAMPLE_RATE, 0.05);
+    }
+
+    @Test
+    public void firstFragmentWaitsForEveryTrack() throws Exception {
+        FragmentedMp4Writer writer = newWriter(100000);
+        for (int frame = 0; frame < 15; frame++) {
+            writer.writeSample(mVideo, videoSample(frame, true), frame * FRAME_US, true);
+        }
+        assertEquals(0, writer.getFragmentCount());
+
+        writer.writeSample(mAudio, audioSample(0), 0, true);
+        writer.writeSample(mVideo, videoSample(15, true), 15 * FRAME_US, true);
+        assertEquals(1, writer.getFragmentCount());
+    }
+}
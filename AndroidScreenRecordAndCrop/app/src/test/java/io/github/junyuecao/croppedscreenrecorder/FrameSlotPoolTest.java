@@ -0,0 +1,225 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives the pool the way TextureMovieEncoder does: the producer publishes into a message
+ * queue, removing a requeued slot's old message first, and the consumer claims from its
+ * head.  Frames are numbered by their timestamp.
+ */
+public class FrameSlotPoolTest {
+    private final Deque<int[]> mQueue = new ArrayDeque<>();
+
+    /**
+     * Like TextureMovieEncoder.sendFrame(); returns false if the frame was dropped at once.
+     */
+    private boolean send(FrameSlotPool pool, long frame) {
+        FrameSlotPool.Slot slot = pool.acquire();
+        if (slot == null) {
+            return false;
+        }
+        slot.timestampNs = frame;
+        int seq = pool.publish(slot);
+        if (seq == FrameSlotPool.NO_MESSAGE) {
+            return true;
+        }
+        if (slot.isRequeued()) {
+            Iterator<int[]> it = mQueue.iterator();
+            while (it.hasNext()) {
+                if (it.next()[0] == slot.getIndex()) {
+                    it.remove();
+                }
+            }
+        }
+        mQueue.addLast(new int[]{slot.getIndex(), seq});
+        return true;
+    }
+
+    /**
+     * Handles one message; returns the frame, or -1 if the message was stale.
+     */
+    private long receive(FrameSlotPool pool) {
+        int[] message = mQueue.pollFirst();
+        assertNotNull("no message", message);
+        FrameSlotPool.Slot slot = pool.claim(message[0], message[1]);
+        if (slot == null) {
+            return -1;
+        }
+        long frame = slot.timestampNs;
+        pool.release(slot);
+        return frame;
+    }
+
+    private List<Long> receiveAll(FrameSlotPool pool) {
+        List<Long> frames = new ArrayList<>();
+        while (!mQueue.isEmpty()) {
+            long frame = receive(pool);
+            if (frame >= 0) {
+                frames.add(frame);
+            }
+        }
+        return frames;
+    }
+
+    @Test
+    public void dropNewestDropsTheIncomingFrame() throws Exception {
+        FrameSlotPool pool = new FrameSlotPool(2, FrameSlotPool.DROP_NEWEST);
+        assertTrue(send(pool, 1));
+        assertTrue(send(pool, 2));
+        assertFalse(send(pool, 3));
+        assertEquals(1, pool.getDroppedCount());
+        assertEquals(0, pool.getCoalescedCount());
+        assertEquals(2, pool.getInFlightCount());
+        assertEquals(listOf(1, 2), receiveAll(pool));
+        assertEquals(0, pool.getInFlightCount());
+    }
+
+    @Test
+    public void dropOldestKeepsTheOrder() throws Exception {
+        FrameSlotPool pool = new FrameSlotPool(3, FrameSlotPool.DROP_OLDEST);
+        for (long frame = 1; frame <= 5; frame++) {
+            assertTrue(send(pool, frame));
+        }
+        // 1 and 2 were replaced; the slots that held them went to the back
+        assertEquals(2, pool.getDroppedCount());
+        assertEquals(2, pool.getCoalescedCount());
+        assertEquals(3, mQueue.size());
+        assertEquals(listOf(3, 4, 5), receiveAll(pool));
+    }
+
+    @Test
+    public void dropOldestSkipsTheSlotBeingEncoded() throws Exception {
+        FrameSlotPool pool = new FrameSlotPool(2, FrameSlotPool.DROP_OLDEST);
+        send(pool, 1);
+        send(pool, 2);
+        int[] message = mQueue.pollFirst();
+        FrameSlotPool.Slot encoding = pool.claim(message[0], message[1]);
+        assertEquals(1, encoding.timestampNs);
+        send(pool, 3);
+        send(pool, 4);
+        assertEquals(1, encoding.timestampNs);
+        pool.release(encoding);
+        assertEquals(listOf(4), receiveAll(pool));
+        assertEquals(2, pool.getDroppedCount());
+    }
+
+    @Test
+    public void latestWinsDeliversOnlyTheNewestFrame() throws Exception {
+        FrameSlotPool pool = new FrameSlotPool(2, FrameSlotPool.LATEST_WINS);
+        for (long frame = 1; frame <= 5; frame++) {
+            assertTrue(send(pool, frame));
+            assertEquals(1, mQueue.size());
+        }
+        assertEquals(4, pool.getDroppedCount());
+        assertEquals(4, pool.getCoalescedCount());
+        assertEquals(listOf(5), receiveAll(pool));
+    }
+
+    @Test
+    public void latestWinsKeepsTheNewestWhileEncoding() throws Exception {
+        FrameSlotPool pool = new FrameSlotPool(2, FrameSlotPool.LATEST_WINS);
+        send(pool, 1);
+        int[] message = mQueue.pollFirst();
+        FrameSlotPool.Slot encoding = pool.claim(message[0], message[1]);
+        send(pool, 2);
+        send(pool, 3);
+        pool.release(encoding);
+        assertEquals(listOf(3), receiveAll(pool));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void latestWinsNeedsTwoSlots() throws Exception {
+        new FrameSlotPool(1, FrameSlotPool.LATEST_WINS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownPolicy() throws Exception {
+        FrameSlotPool.checkConfig(2, 7);
+    }
+
+    @Test
+    public void staleMessageCannotClaim() throws Exception {
+        FrameSlotPool pool = new FrameSlotPool(1, FrameSlotPool.DROP_OLDEST);
+        FrameSlotPool.Slot slot = pool.acquire();
+        int oldSeq = pool.publish(slot);
+        // Replaced while pending; the old message still waits in the queue
+        assertSame(slot, pool.acquire());
+        int newSeq = pool.publish(slot);
+        assertTrue(slot.isRequeued());
+        assertNull(pool.claim(slot.getIndex(), oldSeq));
+        assertSame(slot, pool.claim(slot.getIndex(), newSeq));
+        assertNull(pool.claim(5, newSeq));
+        pool.release(slot);
+
+        // The old message came in while the slot was refilled: it finds nothing, and the
+        // refilled slot needs no requeue
+        oldSeq = pool.publish(pool.acquire());
+        assertSame(slot, pool.acquire());
+        assertNull(pool.claim(slot.getIndex(), oldSeq));
+        newSeq = pool.publish(slot);
+        assertFalse(slot.isRequeued());
+        assertSame(slot, pool.claim(slot.getIndex(), newSeq));
+    }
+
+    @Test
+    public void discardCountsAsDropped() throws Exception {
+        FrameSlotPool pool = new FrameSlotPool(2, FrameSlotPool.DROP_NEWEST);
+        send(pool, 1);
+        int[] message = mQueue.pollFirst();
+        pool.discard(pool.claim(message[0], message[1]));
+        assertEquals(1, pool.getDroppedCount());
+        assertEquals(0, pool.getInFlightCount());
+    }
+
+    @Test
+    public void everyFrameIsDeliveredOrCountedInOrder() throws Exception {
+        int[] policies = {
+                FrameSlotPool.DROP_NEWEST, FrameSlotPool.DROP_OLDEST, FrameSlotPool.LATEST_WINS
+        };
+        for (int policy : policies) {
+            mQueue.clear();
+            FrameSlotPool pool = new FrameSlotPool(3, policy);
+            Random random = new Random(policy);
+            long delivered = 0;
+            long last = 0;
+            long frames = 0;
+            for (int step = 0; step < 10000; step++) {
+                // A producer that's faster than the consumer, in bursts
+                if (random.nextInt(3) != 0) {
+                    send(pool, ++frames);
+                } else if (!mQueue.isEmpty()) {
+                    long frame = receive(pool);
+                    if (frame >= 0) {
+                        assertTrue("policy " + policy + ": " + frame + " after " + last,
+                                frame > last);
+                        last = frame;
+                        delivered++;
+                    }
+                }
+                assertTrue(mQueue.size() <= 3);
+            }
+            long pending = pool.getInFlightCount();
+            assertEquals("policy " + policy, frames,
+                    delivered + pool.getDroppedCount() + pending);
+            delivered += receiveAll(pool).size();
+            assertEquals("policy " + policy, frames, delivered + pool.getDroppedCount());
+        }
+    }
+
+    private static List<Long> listOf(long... frames) {
+        List<Long> list = new ArrayList<>();
+        for (long frame : frames) {
+            list.add(frame);
+        }
+        return list;
+    }
+}
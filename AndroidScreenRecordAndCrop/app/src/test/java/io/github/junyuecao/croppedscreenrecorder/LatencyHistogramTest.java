@@ -0,0 +1,91 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptySnapshot() throws Exception {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMeanUs());
+        assertEquals(0, snapshot.getPercentileUs(99));
+    }
+
+    @Test
+    public void percentilesAreWithinABucket() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int us = 1; us <= 10000; us++) {
+            histogram.record(us * 1000L);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(10000, snapshot.getCount());
+        assertEquals(5000, snapshot.getMeanUs());
+        assertEquals(10000, snapshot.getMaxUs());
+        double[] percentiles = {1, 50, 90, 99, 100};
+        for (double percentile : percentiles) {
+            long exactUs = (long) (percentile * 100);
+            long reportedUs = snapshot.getPercentileUs(percentile);
+            assertTrue("p" + percentile + " " + reportedUs, reportedUs >= exactUs);
+            assertTrue("p" + percentile + " " + reportedUs, reportedUs <= exactUs * 1.25 + 1);
+        }
+    }
+
+    @Test
+    public void bucketsCoverEveryValue() throws Exception {
+        long previousBound = -1;
+        for (long us = 0; us < 1 << 20; us++) {
+            int bucket = LatencyHistogram.bucketOf(us);
+            long bound = LatencyHistogram.bucketUpperBoundUs(bucket);
+            assertTrue(us + "us above its bucket's bound " + bound, us <= bound);
+            assertTrue(bound >= previousBound);
+            previousBound = bound;
+        }
+        // Anything huge lands in the last bucket
+        assertEquals(LatencyHistogram.bucketOf(Long.MAX_VALUE),
+                LatencyHistogram.bucketOf(Long.MAX_VALUE / 2));
+    }
+
+    @Test
+    public void negativeLatencyCountsAsZero() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5000);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1, snapshot.getCount());
+        assertEquals(0, snapshot.getMaxUs());
+    }
+
+    @Test
+    public void resetEmptiesIt() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000000);
+        histogram.reset();
+        assertEquals(0, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().getMaxUs());
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++) {
+                        histogram.record(i % 1000 * 1000L);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(400000, snapshot.getCount());
+        assertEquals(999, snapshot.getMaxUs());
+    }
+}
@@ -0,0 +1,111 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds the clock simulated AudioRecord deliveries: 1024-sample blocks of 48kHz mono
+ * 16-bit PCM, arriving with jitter and, where it matters, off the nominal rate.
+ */
+public class MediaClockTest {
+    private static final int BLOCK_BYTES = 2048;
+    private static final double BLOCK_US = 1024 * 1000000.0 / 48000;
+
+    private static MediaClock newClock() {
+        return new MediaClock(48000, 2, MediaClock.DEFAULT_MAX_DRIFT_US);
+    }
+
+    @Test
+    public void stampsFollowTheSampleCount() throws Exception {
+        MediaClock clock = newClock();
+        double arrivalUs = 1000000;
+        for (int i = 0; i < 100; i++) {
+            arrivalUs += BLOCK_US;
+            long ptsUs = clock.stamp(BLOCK_BYTES, (long) arrivalUs);
+            // First sample of the first block is anchored one block before its arrival
+            assertEquals(1000000 + i * 1024 * 1000000L / 48000, ptsUs, 1);
+        }
+        assertEquals(0, clock.getCorrectionCount());
+    }
+
+    @Test
+    public void jitterDoesNotMoveTheClock() throws Exception {
+        MediaClock clock = newClock();
+        Random random = new Random(1);
+        double arrivalUs = 1000000;
+        for (int i = 0; i < 5000; i++) {
+            arrivalUs += BLOCK_US;
+            clock.stamp(BLOCK_BYTES, (long) arrivalUs + random.nextInt(6000));
+        }
+        assertEquals(0, clock.getCorrectionCount());
+        assertTrue(Math.abs(clock.getDriftUs()) <= MediaClock.DEFAULT_MAX_DRIFT_US);
+    }
+
+    @Test
+    public void slowDeviceClockIsSlewedBackIntoRange() throws Exception {
+        MediaClock clock = newClock();
+        Random random = new Random(1);
+        double arrivalUs = 1000000;
+        long lastPtsUs = -1;
+        long maxDriftUs = 0;
+        for (int i = 0; i < 20000; i++) {
+            // The audio clock runs 0.3% slow against System.nanoTime()
+            arrivalUs += BLOCK_US * 1.003;
+            long ptsUs = clock.stamp(BLOCK_BYTES, (long) arrivalUs + random.nextInt(6000));
+            assertTrue("not increasing at block " + i, ptsUs > lastPtsUs);
+            lastPtsUs = ptsUs;
+            if (i > 2000) {
+                maxDriftUs = Math.max(maxDriftUs, Math.abs(clock.getDriftUs()));
+            }
+        }
+        assertTrue(clock.getCorrectionCount() > 0);
+        // Held near the threshold instead of growing to the ~1.3s a free-running count reaches
+        assertTrue("drift " + maxDriftUs, maxDriftUs < 2 * MediaClock.DEFAULT_MAX_DRIFT_US);
+        long lastCaptureUs = (long) (arrivalUs - BLOCK_US);
+        assertTrue(Math.abs(lastCaptureUs - lastPtsUs) < 2 * MediaClock.DEFAULT_MAX_DRIFT_US);
+    }
+
+    @Test
+    public void droppedBlocksAreCaughtUpWithoutJumping() throws Exception {
+        MediaClock clock = newClock();
+        double arrivalUs = 1000000;
+        long lastPtsUs = -1;
+        for (int i = 0; i < 3000; i++) {
+            arrivalUs += BLOCK_US;
+            if (i == 100) {
+                // Ten blocks lost while the ring was full
+                arrivalUs += 10 * BLOCK_US;
+            }
+            long ptsUs = clock.stamp(BLOCK_BYTES, (long) arrivalUs);
+            // A slew step is at most 1% of a block
+            assertTrue(lastPtsUs < 0 || ptsUs - lastPtsUs <= BLOCK_US * 1.01 + 1);
+            assertTrue(ptsUs > lastPtsUs);
+            lastPtsUs = ptsUs;
+        }
+        assertTrue(clock.getCorrectionCount() > 0);
+        assertTrue(Math.abs(clock.getDriftUs()) <= MediaClock.DEFAULT_MAX_DRIFT_US);
+    }
+
+    @Test
+    public void resetTakesANewAnchor() throws Exception {
+        MediaClock clock = newClock();
+        clock.stamp(BLOCK_BYTES, 5000000);
+        clock.reset();
+        assertEquals(9000000 - (long) BLOCK_US, clock.stamp(BLOCK_BYTES, 9000000), 1);
+        assertEquals(0, clock.getCorrectionCount());
+    }
+
+    @Test
+    public void durationFollowsTheFormat() throws Exception {
+        assertEquals(21333, newClock().getDurationUs(BLOCK_BYTES));
+        assertEquals(0, newClock().getDurationUs(-1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidRate() throws Exception {
+        new MediaClock(0, 2, MediaClock.DEFAULT_MAX_DRIFT_US);
+    }
+}
@@ -0,0 +1,136 @@
+package io.github.junyuecao.croppedscreenrecorder;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class PcmRingBufferTest {
+    private static final int BLOCK_SIZE = 64;
+
+    private static void write(PcmRingBuffer ring, int value, long ptsUs) {
+        ByteBuffer block = ring.beginWrite();
+        assertNotNull("ring full", block);
+        block.putInt(value);
+        ring.endWrite(block.position(), ptsUs, false);
+    }
+
+    @Test
+    public void blocksComeOutInOrder() throws Exception {
+        PcmRingBuffer ring = new PcmRingBuffer(4, BLOCK_SIZE);
+        write(ring, 1, 100);
+        write(ring, 2, 200);
+        assertEquals(2, ring.size());
+        for (int value = 1; value <= 2; value++) {
+            assertTrue(ring.awaitReadable(0));
+            ByteBuffer block = ring.beginRead();
+            assertEquals(4, ring.getReadSize());
+            assertEquals(4, block.remaining());
+            assertEquals(value, block.getInt());
+            assertEquals(value * 100, ring.getReadPresentationTimeUs());
+            assertFalse(ring.isReadEndOfStream());
+            ring.endRead();
+        }
+        assertEquals(0, ring.size());
+        assertNull(ring.beginRead());
+    }
+
+    @Test
+    public void fullRingCountsOverrunsAndKeepsABlockForTheEnd() throws Exception {
+        PcmRingBuffer ring = new PcmRingBuffer(4, BLOCK_SIZE);
+        for (int value = 0; value < 3; value++) {
+            write(ring, value, value);
+        }
+        assertNull(ring.beginWrite());
+        assertNull(ring.beginWrite());
+        assertEquals(2, ring.getOverrunCount());
+
+        ring.writeEndOfStream(1000);
+        assertEquals(2, ring.getOverrunCount());
+        assertEquals(4, ring.size());
+        for (int value = 0; value < 3; value++) {
+            ring.beginRead();
+            assertFalse(ring.isReadEndOfStream());
+            ring.endRead();
+        }
+        ring.beginRead();
+        assertTrue(ring.isReadEndOfStream());
+        assertEquals(0, ring.getReadSize());
+        assertEquals(1000, ring.getReadPresentationTimeUs());
+        ring.endRead();
+    }
+
+    @Test
+    public void sizeIsClampedToTheBlock() throws Exception {
+        PcmRingBuffer ring = new PcmRingBuffer(2, BLOCK_SIZE);
+        ring.beginWrite();
+        ring.endWrite(BLOCK_SIZE * 2, 0, false);
+        ring.beginRead();
+        assertEquals(BLOCK_SIZE, ring.getReadSize());
+        ring.endRead();
+        ring.beginWrite();
+        ring.endWrite(-3, 0, false);
+        ring.beginRead();
+        assertEquals(0, ring.getReadSize());
+    }
+
+    @Test
+    public void emptyRingTimesOutAsAnUnderrun() throws Exception {
+        PcmRingBuffer ring = new PcmRingBuffer(2, BLOCK_SIZE);
+        long startNs = System.nanoTime();
+        assertFalse(ring.awaitReadable(20 * 1000 * 1000L));
+        assertTrue(System.nanoTime() - startNs >= 20 * 1000 * 1000L);
+        assertEquals(1, ring.getUnderrunCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBlockCountThatIsNotAPowerOfTwo() throws Exception {
+        new PcmRingBuffer(6, BLOCK_SIZE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsASingleBlock() throws Exception {
+        new PcmRingBuffer(1, BLOCK_SIZE);
+    }
+
+    @Test
+    public void producerAndConsumerThreadsLoseNothingButOverruns() throws Exception {
+        final PcmRingBuffer ring = new PcmRingBuffer(8, BLOCK_SIZE);
+        final int blocks = 200000;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int value = 0; value < blocks; value++) {
+                    ByteBuffer block = ring.beginWrite();
+                    if (block != null) {
+                        block.putInt(value);
+                        ring.endWrite(4, value, false);
+                    }
+                }
+                ring.writeEndOfStream(blocks);
+            }
+        });
+        producer.start();
+        int received = 0;
+        int last = -1;
+        while (true) {
+            if (!ring.awaitReadable(1000 * 1000 * 1000L)) {
+                fail("producer stalled");
+            }
+            ByteBuffer block = ring.beginRead();
+            if (ring.isReadEndOfStream()) {
+                ring.endRead();
+                break;
+            }
+            int value = block.getInt();
+            assertTrue(value + " after " + last, value > last);
+            assertEquals(value, ring.getReadPresentationTimeUs());
+            last = value;
+            received++;
+            ring.endRead();
+        }
+        producer.join();
+        assertEquals(blocks, received + ring.getOverrunCount());
+    }
+}
@@ -3,6 +3,7 @@ package com.research.GLRecorder;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.opengl.Matrix;
+import android.os.Debug;
 import android.text.TextUtils;
 import android.util.Log;
 import com.research.GLRecorder.gles.*;
@@ -40,6 +41,11 @@ public class GLRecorder {
     private static long mTick;
     private static String mOutputPath;
 
+    // GL-thread CPU time spent blitting, logged as an average every CPU_LOG_FRAMES frames.
+    private static final int CPU_LOG_FRAMES = 300;
+    private static long mBlitCpuNanos;
+    private static int mBlitFrames;
+
     // A simple EGL config chooser for get recordable config.
     private static GLSurfaceView.EGLConfigChooser mDefaultConfigChooser = new GLSurfaceView.EGLConfigChooser() {
         @Override
@@ -83,7 +89,7 @@ public class GLRecorder {
 
         // Render offscreen.
         GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, mFramebuffer);
-        GlUtil.checkGlError("glBindFramebuffer");
+        GlUtil.checkGlErrorDebug("glBindFramebuffer");
     }
 
     public static void endDraw() {
@@ -93,10 +99,11 @@ public class GLRecorder {
             return;
         }
         ++mTick;
+        long cpuStart = Debug.threadCpuTimeNanos();
 
         // Blit to display.
         GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
-        GlUtil.checkGlError("glBindFramebuffer");
+        GlUtil.checkGlErrorDebug("glBindFramebuffer");
         mFullScreen.drawFrame(mOffscreenTexture, mIdentityMatrix);
 
         // Blit to encoder.
@@ -109,6 +116,15 @@ public class GLRecorder {
         mInputWindowSurface.swapBuffers();
 
         mEglCore.makeCurrent(mWindowSurface);
+
+        if (cpuStart >= 0) {
+            mBlitCpuNanos += Debug.threadCpuTimeNanos() - cpuStart;
+            if (++mBlitFrames == CPU_LOG_FRAMES) {
+                Log.d(TAG, "blit CPU " + (mBlitCpuNanos / mBlitFrames / 1000) + "us/frame");
+                mBlitCpuNanos = 0;
+                mBlitFrames = 0;
+            }
+        }
     }
 
     public static void setRecordOutputFile(String filePath) {
@@ -148,6 +164,7 @@ public class GLRecorder {
     private static void setup(int w, int h) {
         if (null != mIdentityMatrix) return;
         Log.d(TAG, "Setup GLRecorder");
+        GlUtil.setDebugChecks(com.screen.record.BuildConfig.DEBUG);
 
         setRecordOutputFile(RECORD_OUTPUT_FILE);    // Set default output path.
 
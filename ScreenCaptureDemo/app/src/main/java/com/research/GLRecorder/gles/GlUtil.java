@@ -40,6 +40,9 @@ public class GlUtil {
 
     private static final int SIZEOF_FLOAT = 4;
 
+    // Whether checkGlErrorDebug() checks; off in production.
+    private static boolean sDebugChecks;
+
 
     private GlUtil() {}     // do not instantiate
 
@@ -100,6 +103,28 @@ public class GlUtil {
         return shader;
     }
 
+    /**
+     * Turns the error checks on the per-frame draw path on or off, e.g. with
+     * BuildConfig.DEBUG.  Setup code always checks.
+     */
+    public static void setDebugChecks(boolean enabled) {
+        sDebugChecks = enabled;
+    }
+
+    public static boolean isDebugChecks() {
+        return sDebugChecks;
+    }
+
+    /**
+     * Like {@link #checkGlError(String)}, but only with debug checks on.  glGetError() makes
+     * the driver catch up with the command stream, so per-frame code should use this.
+     */
+    public static void checkGlErrorDebug(String op) {
+        if (sDebugChecks) {
+            checkGlError(op);
+        }
+    }
+
     /**
      * Checks to see if a GLES error has been raised.
      */
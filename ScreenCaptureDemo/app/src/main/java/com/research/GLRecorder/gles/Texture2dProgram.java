@@ -21,6 +21,7 @@ import android.opengl.GLES20;
 import android.util.Log;
 
 import java.nio.FloatBuffer;
+import java.util.Arrays;
 
 /**
  * GL program and supporting functions for textured 2D shapes.
@@ -130,6 +131,10 @@ public class Texture2dProgram {
     private float[] mKernel = new float[KERNEL_SIZE];
     private float[] mTexOffset;
     private float mColorAdjust;
+    // Uniform values last set in the program, which keeps them between draws
+    private boolean mKernelDirty = true;
+    private final float[] mLastMvpMatrix = new float[16];
+    private boolean mMvpValid;
 
 
     /**
@@ -250,6 +255,7 @@ public class Texture2dProgram {
         }
         System.arraycopy(values, 0, mKernel, 0, KERNEL_SIZE);
         mColorAdjust = colorAdj;
+        mKernelDirty = true;
         //Log.d(TAG, "filt kernel: " + Arrays.toString(mKernel) + ", adj=" + colorAdj);
     }
 
@@ -266,6 +272,7 @@ public class Texture2dProgram {
             -rw, 0f,    0f, 0f,     rw, 0f,
             -rw, rh,    0f, rh,     rw, rh
         };
+        mKernelDirty = true;
         //Log.d(TAG, "filt size: " + width + "x" + height + ": " + Arrays.toString(mTexOffset));
     }
 
@@ -287,52 +294,48 @@ public class Texture2dProgram {
     public void draw(float[] mvpMatrix, FloatBuffer vertexBuffer, int firstVertex,
             int vertexCount, int coordsPerVertex, int vertexStride,
             float[] texMatrix, FloatBuffer texBuffer, int textureId, int texStride) {
-        GlUtil.checkGlError("draw start");
+        GlUtil.checkGlErrorDebug("draw start");
 
         // Select the program.
         GLES20.glUseProgram(mProgramHandle);
-        GlUtil.checkGlError("glUseProgram");
+        GlUtil.checkGlErrorDebug("glUseProgram");
 
         // Set the texture.
         GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
         GLES20.glBindTexture(mTextureTarget, textureId);
 
         // Copy the model / view / projection matrix over.
-        GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mvpMatrix, 0);
-        GlUtil.checkGlError("glUniformMatrix4fv");
+        setMvpMatrix(mvpMatrix);
+        GlUtil.checkGlErrorDebug("glUniformMatrix4fv");
 
         // Copy the texture transformation matrix over.
         GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, texMatrix, 0);
-        GlUtil.checkGlError("glUniformMatrix4fv");
+        GlUtil.checkGlErrorDebug("glUniformMatrix4fv");
 
         // Enable the "aPosition" vertex attribute.
         GLES20.glEnableVertexAttribArray(maPositionLoc);
-        GlUtil.checkGlError("glEnableVertexAttribArray");
+        GlUtil.checkGlErrorDebug("glEnableVertexAttribArray");
 
         // Connect vertexBuffer to "aPosition".
         GLES20.glVertexAttribPointer(maPositionLoc, coordsPerVertex,
             GLES20.GL_FLOAT, false, vertexStride, vertexBuffer);
-        GlUtil.checkGlError("glVertexAttribPointer");
+        GlUtil.checkGlErrorDebug("glVertexAttribPointer");
 
         // Enable the "aTextureCoord" vertex attribute.
         GLES20.glEnableVertexAttribArray(maTextureCoordLoc);
-        GlUtil.checkGlError("glEnableVertexAttribArray");
+        GlUtil.checkGlErrorDebug("glEnableVertexAttribArray");
 
         // Connect texBuffer to "aTextureCoord".
         GLES20.glVertexAttribPointer(maTextureCoordLoc, 2,
                 GLES20.GL_FLOAT, false, texStride, texBuffer);
-            GlUtil.checkGlError("glVertexAttribPointer");
+        GlUtil.checkGlErrorDebug("glVertexAttribPointer");
 
         // Populate the convolution kernel, if present.
-        if (muKernelLoc >= 0) {
-            GLES20.glUniform1fv(muKernelLoc, KERNEL_SIZE, mKernel, 0);
-            GLES20.glUniform2fv(muTexOffsetLoc, KERNEL_SIZE, mTexOffset, 0);
-            GLES20.glUniform1f(muColorAdjustLoc, mColorAdjust);
-        }
+        setKernelUniforms();
 
         // Draw the rect.
         GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, firstVertex, vertexCount);
-        GlUtil.checkGlError("glDrawArrays");
+        GlUtil.checkGlErrorDebug("glDrawArrays");
 
         // Done -- disable vertex array, texture, and program.
         GLES20.glDisableVertexAttribArray(maPositionLoc);
@@ -340,4 +343,68 @@ public class Texture2dProgram {
         GLES20.glBindTexture(mTextureTarget, 0);
         GLES20.glUseProgram(0);
     }
+
+    /**
+     * Issues the draw call with the geometry in buffer objects.  This is the production
+     * path: nothing is copied from client memory, uniforms that didn't change aren't sent
+     * again, and errors are only checked with {@link GlUtil#setDebugChecks debug checks} on.
+     * <p>
+     * The program and texture stay bound afterwards; anything else drawing sets its own.
+     *
+     * @param mvpMatrix The 4x4 projection matrix.
+     * @param geometry The shape to draw, drawn as a triangle strip.
+     * @param texMatrix A 4x4 transformation matrix for texture coords.
+     */
+    public void draw(float[] mvpMatrix, Drawable2dVbo geometry, float[] texMatrix,
+                     int textureId) {
+        Drawable2d drawable = geometry.getDrawable();
+        GLES20.glUseProgram(mProgramHandle);
+        GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+        GLES20.glBindTexture(mTextureTarget, textureId);
+
+        setMvpMatrix(mvpMatrix);
+        GLES20.glUniformMatrix4fv(muTexMatrixLoc, 1, false, texMatrix, 0);
+        setKernelUniforms();
+
+        GLES20.glEnableVertexAttribArray(maPositionLoc);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, geometry.getVertexBuffer());
+        GLES20.glVertexAttribPointer(maPositionLoc, drawable.getCoordsPerVertex(),
+                GLES20.GL_FLOAT, false, drawable.getVertexStride(), 0);
+        GLES20.glEnableVertexAttribArray(maTextureCoordLoc);
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, geometry.getTexCoordBuffer());
+        GLES20.glVertexAttribPointer(maTextureCoordLoc, 2,
+                GLES20.GL_FLOAT, false, drawable.getTexCoordStride(), 0);
+        // Client-array draws elsewhere need the binding cleared.
+        GLES20.glBindBuffer(GLES20.GL_ARRAY_BUFFER, 0);
+
+        GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, drawable.getVertexCount());
+        GlUtil.checkGlErrorDebug("draw VBO");
+
+        GLES20.glDisableVertexAttribArray(maPositionLoc);
+        GLES20.glDisableVertexAttribArray(maTextureCoordLoc);
+    }
+
+    /**
+     * Sends the MVP matrix unless the program already has it.  The program must be in use.
+     */
+    private void setMvpMatrix(float[] mvpMatrix) {
+        if (mMvpValid && Arrays.equals(mvpMatrix, mLastMvpMatrix)) {
+            return;
+        }
+        GLES20.glUniformMatrix4fv(muMVPMatrixLoc, 1, false, mvpMatrix, 0);
+        System.arraycopy(mvpMatrix, 0, mLastMvpMatrix, 0, 16);
+        mMvpValid = true;
+    }
+
+    /**
+     * Sends the convolution kernel if present and changed.  The program must be in use.
+     */
+    private void setKernelUniforms() {
+        if (muKernelLoc >= 0 && mKernelDirty) {
+            GLES20.glUniform1fv(muKernelLoc, KERNEL_SIZE, mKernel, 0);
+            GLES20.glUniform2fv(muTexOffsetLoc, KERNEL_SIZE, mTexOffset, 0);
+            GLES20.glUniform1f(muColorAdjustLoc, mColorAdjust);
+            mKernelDirty = false;
+        }
+    }
 }